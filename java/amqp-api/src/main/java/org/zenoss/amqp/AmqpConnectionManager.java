@@ -17,10 +17,16 @@ import com.rabbitmq.client.impl.AMQCommand;
 import com.rabbitmq.client.impl.AMQImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.zenoss.amqp.impl.ConfirmingPublisherImpl;
 
 import java.io.Closeable;
-import java.util.Iterator;
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
@@ -29,7 +35,10 @@ import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class which maintains a persistent connection to an AMQP server and allows
@@ -37,29 +46,69 @@ import java.util.concurrent.TimeUnit;
  * gracefully handles connection retries to the server, as well as restarting
  * all workers when the connection is torn down. After creating the connection
  * manager, call {@link #init()} to initialize the connection and when finished
- * call {@link #shutdown()} to tear down the connection manager.
+ * call {@link #shutdown()} to tear down the connection manager. For higher
+ * throughput the manager can spread its channels over several connections
+ * (see {@link #setConnections(int)}).
  */
 public class AmqpConnectionManager {
 
     public static final int DEFAULT_RETRY_INTERVAL = 1000;
+    public static final int DEFAULT_MAX_RETRY_INTERVAL = (int) EndpointSelector.DEFAULT_MAX_BACKOFF_MILLIS;
+    public static final int DEFAULT_PUBLISHER_CHANNELS = 1;
+    public static final int DEFAULT_ASYNC_PUBLISH_THREADS = 1;
+    public static final int DEFAULT_ASYNC_PUBLISH_BUFFER_SIZE = 8192;
     private static final int POOL_SHUTDOWN_WAIT_SECONDS = 30;
+    private static final long DRAIN_POLL_MILLIS = 50;
+    private static final long DRAIN_REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
 
     private static final Logger log = LoggerFactory.getLogger(AmqpConnectionManager.class);
 
-    private final long retry;
-    private final AmqpServerUri uri;
+    /**
+     * How publishing threads are assigned to the channels in an exchange's
+     * publisher pool (see {@link #setPublisherChannels(int)}).
+     */
+    public enum PublisherStriping {
+        /**
+         * Each thread always uses the same channel (selected by thread id).
+         * Messages published by a thread stay in order.
+         */
+        THREAD_AFFINITY,
+
+        /**
+         * Each publish uses the next channel in turn. This balances load when
+         * only a few threads publish, but messages published by one thread may
+         * be reordered across channels.
+         */
+        ROUND_ROBIN
+    }
+
+    private final EndpointSelector endpoints;
     private final ExecutorCompletionService<Object> ecs;
     private final ExecutorService pool;
     private final Map<String, QueueWorker> workers = new ConcurrentHashMap<String, QueueWorker>();
+    private final Map<String, ListenerGroup> groups = new ConcurrentHashMap<String, ListenerGroup>();
 
-    private volatile Connection connection;
-    private final ConcurrentHashMap<String, Publisher<com.google.protobuf.Message>> publishers =
-            new ConcurrentHashMap<String, Publisher<com.google.protobuf.Message>>();
+    private volatile ConnectionShard[] shards = {new ConnectionShard(0, 1)};
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final ConcurrentHashMap<String, PublisherPool> publishers = new ConcurrentHashMap<String, PublisherPool>();
+    private volatile int publisherChannels = DEFAULT_PUBLISHER_CHANNELS;
+    private volatile PublisherStriping publisherStriping = PublisherStriping.THREAD_AFFINITY;
+    private int asyncPublishThreads = DEFAULT_ASYNC_PUBLISH_THREADS;
+    private int asyncPublishBufferSize = DEFAULT_ASYNC_PUBLISH_BUFFER_SIZE;
+    private int asyncPublishMaxOutstanding = ConfirmingPublisherImpl.DEFAULT_MAX_OUTSTANDING;
+    private volatile AsyncPublisher asyncPublisher;
+    /* Not the manager's monitor, which is held while reconnecting */
+    private final Object asyncPublisherLock = new Object();
 
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private Future<Object> connectionThreadFuture;
     private volatile boolean connectionThreadShutdown = false;
+    /* Set by drain(), so drained workers aren't started again */
+    private volatile boolean draining = false;
+    private final AtomicLong drainHandled = new AtomicLong();
+    private final AtomicLong drainRequeued = new AtomicLong();
     private volatile ExtensionRegistry extensionRegistry;
+    private volatile ConnectionTuning connectionTuning = ConnectionTuning.DEFAULT;
 
     /**
      * Creates an {@link AmqpConnectionManager} which will perform operations
@@ -81,8 +130,38 @@ public class AmqpConnectionManager {
      * @param retry The connection retry interval.
      */
     public AmqpConnectionManager(AmqpServerUri uri, long retry) {
-        this.retry = retry;
-        this.uri = uri;
+        this(Collections.singletonList(uri), retry);
+    }
+
+    /**
+     * Creates an {@link AmqpConnectionManager} which connects to one of the
+     * specified AMQP servers (for example the nodes of a cluster), with the
+     * default retry interval of {@link #DEFAULT_RETRY_INTERVAL}.
+     *
+     * @param uris The AMQP server uris.
+     * @see #AmqpConnectionManager(List, long)
+     */
+    public AmqpConnectionManager(List<AmqpServerUri> uris) {
+        this(uris, DEFAULT_RETRY_INTERVAL);
+    }
+
+    /**
+     * Creates an {@link AmqpConnectionManager} which connects to one of the
+     * specified AMQP servers (for example the nodes of a cluster). Before
+     * connecting, each server is probed once for the time taken to connect
+     * and complete the handshake, and the fastest server which is up is
+     * used. A server which can't be connected to, or whose connection is
+     * lost, is skipped for the retry interval, doubling with each further
+     * failure up to {@link #DEFAULT_MAX_RETRY_INTERVAL} (with random jitter),
+     * so the manager fails over to the other servers straight away. Workers
+     * and publishers are restored on the new server.
+     *
+     * @param uris  The AMQP server uris, in order of preference until their
+     *              latency is known.
+     * @param retry The initial connection retry interval.
+     */
+    public AmqpConnectionManager(List<AmqpServerUri> uris, long retry) {
+        this.endpoints = new EndpointSelector(uris, retry, DEFAULT_MAX_RETRY_INTERVAL, new Random());
         this.pool = Executors.newCachedThreadPool();
         this.ecs = new ExecutorCompletionService<Object>(this.pool);
     }
@@ -91,11 +170,194 @@ public class AmqpConnectionManager {
         this.extensionRegistry = extensionRegistry;
     }
 
-    private Channel openChannel() throws AmqpException {
-        if (this.connection == null) {
-            throw new AmqpException("Not connected to message broker");
+    /**
+     * Sets the settings of the connections to the servers, such as
+     * {@link QueueConfig#getConnectionTuning()}. The properties of each
+     * server's URI override these settings. Applies from the next
+     * (re)connect.
+     *
+     * @param connectionTuning The connection settings.
+     */
+    public void setConnectionTuning(ConnectionTuning connectionTuning) {
+        if (connectionTuning == null) {
+            throw new NullPointerException();
+        }
+        this.connectionTuning = connectionTuning;
+    }
+
+    private ConnectionFactory newConnectionFactory() {
+        final ConnectionFactory factory = ConnectionFactory.newInstance();
+        factory.setConnectionTuning(this.connectionTuning);
+        return factory;
+    }
+
+    /**
+     * Sets the number of connections to the server. Each connection is read
+     * by its own I/O thread, so with several connections throughput isn't
+     * limited by a single socket. Each queue worker is assigned to the
+     * connection with the fewest workers, and each exchange's publisher pool
+     * (see {@link #setPublisherChannels(int)}) gets that many channels on
+     * every connection. A connection which fails is reconnected without
+     * disturbing the others. Must be called before {@link #init()} and before
+     * adding listeners.
+     *
+     * @param connections The number of connections.
+     */
+    public synchronized void setConnections(int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("Connections must be positive");
+        }
+        if (this.connectionThreadFuture != null || !this.workers.isEmpty()) {
+            throw new IllegalStateException("Connections must be set before init()");
+        }
+        final ConnectionShard[] shards = new ConnectionShard[connections];
+        for (int i = 0; i < connections; i++) {
+            shards[i] = new ConnectionShard(i, connections);
+        }
+        this.shards = shards;
+    }
+
+    /**
+     * Returns the number of connections to the server.
+     *
+     * @return The number of connections.
+     */
+    public int getConnections() {
+        return this.shards.length;
+    }
+
+    /**
+     * Returns the state of each connection to the server.
+     *
+     * @return The statistics of each connection, in order.
+     */
+    public List<ShardStatistics> getShardStatistics() {
+        final ConnectionShard[] shards = this.shards;
+        final List<ShardStatistics> statistics = new ArrayList<ShardStatistics>(shards.length);
+        for (ConnectionShard shard : shards) {
+            int workers = 0;
+            long bufferedBytes = 0;
+            for (QueueWorker worker : this.workers.values()) {
+                if (worker.getShard() == shard) {
+                    workers++;
+                    bufferedBytes += worker.getBufferedBytes();
+                }
+            }
+            int publishers = 0;
+            for (PublisherPool pool : this.publishers.values()) {
+                publishers += pool.count(shard.getIndex(), shards.length);
+            }
+            final TopologyCache topology = shard.getTopology();
+            statistics.add(new ShardStatistics(shard.getIndex(), shard.isOpen(), shard.getUri(),
+                    shard.getConnects(), shard.getChannelsOpened(), workers, publishers, bufferedBytes,
+                    topology.getDeclarations(), topology.getRestoreNanos()));
+        }
+        return statistics;
+    }
+
+    /**
+     * Returns the connection with the fewest queue workers.
+     */
+    private ConnectionShard leastLoadedShard() {
+        final ConnectionShard[] shards = this.shards;
+        if (shards.length == 1) {
+            return shards[0];
+        }
+        final int[] counts = new int[shards.length];
+        for (QueueWorker worker : this.workers.values()) {
+            counts[worker.getShard().getIndex()]++;
+        }
+        int least = 0;
+        for (int i = 1; i < counts.length; i++) {
+            if (counts[i] < counts[least]) {
+                least = i;
+            }
+        }
+        return shards[least];
+    }
+
+    /**
+     * Returns the next connection in turn, for publishers which aren't pooled.
+     */
+    private ConnectionShard nextShard() {
+        final ConnectionShard[] shards = this.shards;
+        return shards[(this.nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /**
+     * Sets the number of channels (each with its own publisher) used to
+     * publish to each exchange on each connection. Publishing threads are
+     * spread across the channels so they don't serialize on a single channel.
+     * This should be set before publishing to an exchange for the first time.
+     *
+     * @param publisherChannels The number of publisher channels per exchange.
+     */
+    public void setPublisherChannels(int publisherChannels) {
+        if (publisherChannels <= 0) {
+            throw new IllegalArgumentException("Publisher channels must be positive");
+        }
+        this.publisherChannels = publisherChannels;
+    }
+
+    /**
+     * Sets how publishing threads are assigned to publisher channels.
+     *
+     * @param publisherStriping The publisher striping mode.
+     */
+    public void setPublisherStriping(PublisherStriping publisherStriping) {
+        if (publisherStriping == null) {
+            throw new NullPointerException();
+        }
+        this.publisherStriping = publisherStriping;
+    }
+
+    /**
+     * Sets the number of I/O threads which write messages published with
+     * {@link #publishAsync(ExchangeConfiguration, String, com.google.protobuf.Message)}.
+     * Must be called before the first asynchronous publish.
+     *
+     * @param asyncPublishThreads The number of asynchronous publisher threads.
+     */
+    public void setAsyncPublishThreads(int asyncPublishThreads) {
+        if (asyncPublishThreads <= 0) {
+            throw new IllegalArgumentException("Asynchronous publish threads must be positive");
+        }
+        synchronized (this.asyncPublisherLock) {
+            this.asyncPublishThreads = asyncPublishThreads;
+        }
+    }
+
+    /**
+     * Sets the number of messages which can be buffered for each asynchronous
+     * publisher thread before
+     * {@link #publishAsync(ExchangeConfiguration, String, com.google.protobuf.Message)}
+     * starts to fail. Must be called before the first asynchronous publish.
+     *
+     * @param asyncPublishBufferSize The buffer size (rounded up to a power of two).
+     */
+    public void setAsyncPublishBufferSize(int asyncPublishBufferSize) {
+        if (asyncPublishBufferSize <= 0) {
+            throw new IllegalArgumentException("Asynchronous publish buffer size must be positive");
+        }
+        synchronized (this.asyncPublisherLock) {
+            this.asyncPublishBufferSize = asyncPublishBufferSize;
+        }
+    }
+
+    /**
+     * Sets the maximum number of unconfirmed messages for each exchange written
+     * by an asynchronous publisher thread. Must be called before the first
+     * asynchronous publish.
+     *
+     * @param asyncPublishMaxOutstanding The maximum number of unconfirmed messages.
+     */
+    public void setAsyncPublishMaxOutstanding(int asyncPublishMaxOutstanding) {
+        if (asyncPublishMaxOutstanding <= 0) {
+            throw new IllegalArgumentException("Maximum outstanding messages must be positive");
+        }
+        synchronized (this.asyncPublisherLock) {
+            this.asyncPublishMaxOutstanding = asyncPublishMaxOutstanding;
         }
-        return this.connection.openChannel();
     }
 
     private static void getFuture(Future<?> future) {
@@ -123,11 +385,65 @@ public class AmqpConnectionManager {
         if (config == null || listener == null) {
             throw new NullPointerException();
         }
+        return addWorker(config, listener, null);
+    }
+
+    /**
+     * Adds listeners for the specified queue configuration, consuming from
+     * the queue with the number of workers given by the configuration's
+     * {@link ConcurrencyPolicy} (or a single worker if it has none).
+     *
+     * @param config  Queue configuration which contains the queue and queue
+     *                bindings.
+     * @param factory Creates the listener for each worker.
+     * @return Unique identifier for the listeners (used to disable them with
+     *         {@link #removeListener(String)}.
+     */
+    public String addListener(QueueConfiguration config, QueueListenerFactory factory) {
+        if (config == null || factory == null) {
+            throw new NullPointerException();
+        }
+        final ConcurrencyPolicy policy = config.getConcurrencyPolicy();
+        return addListener(config, factory, (policy != null) ? policy : new ConcurrencyPolicy(1));
+    }
+
+    /**
+     * Adds listeners for the specified queue configuration, consuming from
+     * the queue with a number of workers within the bounds of the policy.
+     * Each worker has its own channel and listener.
+     *
+     * @param config  Queue configuration which contains the queue and queue
+     *                bindings.
+     * @param factory Creates the listener for each worker.
+     * @param policy  Bounds on the number of workers.
+     * @return Unique identifier for the listeners (used to disable them with
+     *         {@link #removeListener(String)}.
+     */
+    public String addListener(final QueueConfiguration config, QueueListenerFactory factory,
+                              ConcurrencyPolicy policy) {
+        if (config == null || factory == null || policy == null) {
+            throw new NullPointerException();
+        }
+        final String uuid = UUID.randomUUID().toString();
+        final ListenerGroup group = new ListenerGroup(uuid, config, factory, policy,
+                ListenerGroup.DEFAULT_INTERVAL_MILLIS) {
+            @Override
+            protected String startWorker(QueueListener listener) {
+                return addWorker(config, listener, this);
+            }
+        };
+        this.groups.put(uuid, group);
+        group.start();
+        return uuid;
+    }
+
+    private String addWorker(QueueConfiguration config, QueueListener listener, ListenerGroup group) {
         final String uuid = UUID.randomUUID().toString();
-        final QueueWorker worker = new QueueWorker(uuid, config, listener, this);
+        final ConnectionShard shard = leastLoadedShard();
+        final QueueWorker worker = new QueueWorker(uuid, config, listener, this, group, shard);
         this.workers.put(uuid, worker);
         // If we're already running throw it in the pool
-        if (this.connection != null) {
+        if (shard.isConnected() && !this.draining) {
             boolean succeeded = false;
             try {
                 worker.setFuture(this.ecs.submit(worker));
@@ -143,12 +459,20 @@ public class AmqpConnectionManager {
     }
 
     /**
-     * Removes and stops the listener with the specified identifier.
+     * Removes and stops the listener (or all the listeners added with a
+     * {@link QueueListenerFactory}) with the specified identifier.
      *
      * @param listenerId The identifier of the listener (as returned by
      *                   {@link #addListener(QueueConfiguration, QueueListener)}).
      */
     public void removeListener(String listenerId) {
+        final ListenerGroup group = this.groups.remove(listenerId);
+        if (group != null) {
+            for (String workerId : group.remove()) {
+                removeListener(workerId);
+            }
+            return;
+        }
         final QueueWorker worker = this.workers.get(listenerId);
         if (worker != null) {
             worker.shutdown();
@@ -162,6 +486,23 @@ public class AmqpConnectionManager {
         }
     }
 
+    /**
+     * Returns the total size of the messages received but not yet consumed
+     * by the workers of each queue, for sizing heaps and tuning buffer
+     * limits (see {@link BufferPolicy}).
+     *
+     * @return The number of buffered bytes, by queue name.
+     */
+    public Map<String, Long> getBufferedBytes() {
+        final Map<String, Long> buffered = new TreeMap<String, Long>();
+        for (QueueWorker worker : this.workers.values()) {
+            final String name = worker.getConfig().getQueue().getName();
+            final Long total = buffered.get(name);
+            buffered.put(name, worker.getBufferedBytes() + ((total != null) ? total : 0L));
+        }
+        return buffered;
+    }
+
     private static void closeQuietly(Closeable closeable) {
         if (closeable != null) {
             try {
@@ -172,22 +513,46 @@ public class AmqpConnectionManager {
         }
     }
 
+    private static void flushQuietly(Object publisher) {
+        if (publisher instanceof Flushable) {
+            try {
+                ((Flushable) publisher).flush();
+            } catch (Exception e) {
+                log.warn("Failed to send batched messages from {}: {}", publisher, e.getLocalizedMessage());
+            }
+        }
+    }
+
     private Publisher<com.google.protobuf.Message> getPublisher(ExchangeConfiguration config) throws AmqpException {
         if (config == null) {
             throw new NullPointerException();
         }
         Exchange exchange = config.getExchange();
-        Publisher<com.google.protobuf.Message> pub = this.publishers.get(exchange.getName());
+        final ConnectionShard[] shards = this.shards;
+        PublisherPool pool = this.publishers.get(exchange.getName());
+        if (pool == null) {
+            /* Slot i is on connection i % shards */
+            pool = new PublisherPool(this.publisherChannels * shards.length, this.publisherStriping);
+            PublisherPool previous = this.publishers.putIfAbsent(exchange.getName(), pool);
+            if (previous != null) {
+                pool = previous;
+            }
+        }
+        final int slot = pool.slot();
+        Publisher<com.google.protobuf.Message> pub = pool.get(slot);
         if (pub == null) {
-            Channel channel = this.openChannel();
+            final ConnectionShard shard = shards[slot % shards.length];
+            Channel channel = shard.openChannel();
             try {
-                channel.declareExchange(exchange);
+                shard.getTopology().declareExchange(channel, exchange);
                 pub = channel.createPublisher(exchange, new ProtobufConverter(config.getMessages()));
-                Publisher<com.google.protobuf.Message> previous = this.publishers.putIfAbsent(exchange.getName(), pub);
-                if (previous != null) {
-                    pub = previous;
+                if (!pool.setIfEmpty(slot, pub)) {
                     closeQuietly(channel);
                     channel = null;
+                    pub = pool.get(slot);
+                    if (pub == null) {
+                        throw new AmqpException("Publisher for " + exchange.getName() + " was closed");
+                    }
                 }
             } catch (AmqpException e) {
                 closeQuietly(channel);
@@ -201,12 +566,27 @@ public class AmqpConnectionManager {
     }
 
     private void removePublisher(ExchangeConfiguration config, Publisher<com.google.protobuf.Message> publisher) {
+        invalidate(config.getExchange());
         if (publisher != null) {
-            this.publishers.remove(config.getIdentifier(), publisher);
+            final PublisherPool pool = this.publishers.get(config.getExchange().getName());
+            if (pool != null) {
+                pool.remove(publisher);
+            }
+            flushQuietly(publisher);
             closeQuietly(publisher.getChannel());
         }
     }
 
+    /**
+     * Forgets the exchange on every connection, so the next publisher created
+     * for it declares it again in case it was deleted.
+     */
+    void invalidate(Exchange exchange) {
+        for (ConnectionShard shard : this.shards) {
+            shard.getTopology().invalidate(exchange);
+        }
+    }
+
     /**
      * Publishes the message to the specified exchange with the given routing
      * key. If the exchange does not exist it is created.
@@ -233,6 +613,44 @@ public class AmqpConnectionManager {
         }
     }
 
+    /**
+     * Publishes the message to the specified exchange without waiting for it to
+     * be written. The message is added to a bounded buffer and serialized and
+     * written by a background publisher thread using publisher confirms.
+     * Messages published by the same thread are written in order.
+     *
+     * @param config     The configuration for the exchange (including the exchange and
+     *                   the types of protobuf messages which can be published to the
+     *                   exchange).
+     * @param routingKey The routing key to be used for the message.
+     * @param message    The message to publish.
+     * @return A future which completes when the broker confirms the message. If
+     *         the message can't be written or is rejected by the broker,
+     *         {@link Future#get()} throws an exception wrapping an
+     *         {@link AmqpException}.
+     * @throws AmqpException If the buffer is full or the connection manager has
+     *                       been shut down. The caller should slow down or
+     *                       fall back to {@link #publish(ExchangeConfiguration, String, com.google.protobuf.Message)}.
+     */
+    public Future<Void> publishAsync(ExchangeConfiguration config, String routingKey,
+                                     com.google.protobuf.Message message) throws AmqpException {
+        AsyncPublisher publisher = this.asyncPublisher;
+        if (publisher == null) {
+            synchronized (this.asyncPublisherLock) {
+                if (this.connectionThreadShutdown) {
+                    throw new AmqpException("Connection manager has been shut down");
+                }
+                publisher = this.asyncPublisher;
+                if (publisher == null) {
+                    publisher = new AsyncPublisher(this, this.asyncPublishThreads, this.asyncPublishBufferSize,
+                            this.asyncPublishMaxOutstanding);
+                    this.asyncPublisher = publisher;
+                }
+            }
+        }
+        return publisher.publish(config, routingKey, message);
+    }
+
     /**
      * Creates a batch publisher for the specified exchange.
      *
@@ -240,7 +658,8 @@ public class AmqpConnectionManager {
      * @return A batch publisher for the exchange. It must be closed with
      *         {@link BatchPublisher#close()} when it is no longer needed.
      * @throws AmqpException If an exception occurs.
-     * @deprecated Batch publishing API needs rework.
+     * @deprecated Batch publishing API needs rework. Use
+     *             {@link #createConfirmingPublisher(ExchangeConfiguration, int)}.
      */
     public BatchPublisher<com.google.protobuf.Message> createBatchPublisher(
             ExchangeConfiguration config) throws AmqpException {
@@ -250,11 +669,48 @@ public class AmqpConnectionManager {
         Channel channel = null;
         Exchange exchange = config.getExchange();
         try {
-            channel = this.openChannel();
-            channel.declareExchange(exchange);
+            final ConnectionShard shard = this.nextShard();
+            channel = shard.openChannel();
+            shard.getTopology().declareExchange(channel, exchange);
             return channel.createBatchPublisher(exchange, new ProtobufConverter(config.getMessages()));
         } catch (AmqpException e) {
             closeQuietly(channel);
+            invalidate(exchange);
+            throw e;
+        } catch (RuntimeException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a publisher for the specified exchange which uses publisher
+     * confirms to reliably deliver messages without a round trip to the broker
+     * for every message or batch.
+     *
+     * @param config         Exchange configuration.
+     * @param maxOutstanding The maximum number of unconfirmed messages before
+     *                       publishing blocks.
+     * @return A confirming publisher for the exchange. It must be closed with
+     *         {@link ConfirmingPublisher#close()} when it is no longer needed.
+     * @throws AmqpException If an exception occurs.
+     */
+    public ConfirmingPublisher<com.google.protobuf.Message> createConfirmingPublisher(
+            ExchangeConfiguration config, int maxOutstanding) throws AmqpException {
+        if (config == null) {
+            throw new NullPointerException();
+        }
+        Channel channel = null;
+        Exchange exchange = config.getExchange();
+        try {
+            final ConnectionShard shard = this.nextShard();
+            channel = shard.openChannel();
+            shard.getTopology().declareExchange(channel, exchange);
+            return channel.createConfirmingPublisher(exchange, new ProtobufConverter(config.getMessages()),
+                    maxOutstanding);
+        } catch (AmqpException e) {
+            closeQuietly(channel);
+            invalidate(exchange);
             throw e;
         } catch (RuntimeException e) {
             closeQuietly(channel);
@@ -288,11 +744,21 @@ public class AmqpConnectionManager {
     private void runInternal() throws Exception {
         while (!connectionThreadShutdown) {
             try {
-                if (this.connection == null || !this.connection.isOpen()) {
-                    reconnect();
+                boolean connected = true;
+                for (ConnectionShard shard : this.shards) {
+                    if (!shard.isOpen() && !reconnect(shard)) {
+                        connected = false;
+                    }
+                }
+                final Future<Object> future;
+                if (connected) {
+                    // We wait up to 5 minutes before validating the AMQP connection (needed when only publishers)
+                    future = ecs.poll(5, TimeUnit.MINUTES);
+                } else {
+                    final long delay = Math.max(1, this.endpoints.getRetryDelayMillis());
+                    log.debug("Will retry connection in {} ms", delay);
+                    future = ecs.poll(delay, TimeUnit.MILLISECONDS);
                 }
-                // We wait up to 5 minutes before validating the AMQP connection (needed when only publishers)
-                Future<Object> future = ecs.poll(5, TimeUnit.MINUTES);
                 if (future == null) {
                     continue;
                 }
@@ -313,8 +779,10 @@ public class AmqpConnectionManager {
                         log.debug("Queue worker completed successfully: {}", worker.getWorkerId());
                         this.workers.remove(worker.getWorkerId());
                     } catch (ExecutionException e) {
-                        if (this.connection.isOpen()) {
+                        if (worker.getShard().isOpen() && !this.draining) {
                             log.info("Restarting single worker due to exception: {}", e.getLocalizedMessage());
+                            /* Declare the queue again in case it was deleted */
+                            worker.getShard().getTopology().invalidate(worker.getConfig());
                             worker.reset();
                             worker.setFuture(this.ecs.submit(worker));
                         }
@@ -328,15 +796,48 @@ public class AmqpConnectionManager {
                 Thread.currentThread().interrupt();
             }
         }
-        disconnect();
+        for (ConnectionShard shard : this.shards) {
+            disconnect(shard);
+        }
+        this.publishers.clear();
+    }
+
+    private String describe(ConnectionShard shard, AmqpServerUri uri) {
+        return (this.shards.length == 1) ? String.valueOf(uri) : uri + " (" + shard + ")";
+    }
+
+    /**
+     * Connects to each server whose latency isn't known yet, recording the
+     * time taken (or the failure).
+     */
+    private void probeEndpoints() {
+        final ConnectionFactory factory = newConnectionFactory();
+        for (AmqpServerUri uri : this.endpoints.unprobed()) {
+            final long start = System.nanoTime();
+            try {
+                final Connection connection = factory.newConnection(uri);
+                final long latency = System.nanoTime() - start;
+                closeQuietly(connection);
+                this.endpoints.connected(uri, latency);
+                log.info("Probed message broker at {}: connected in {} ms", uri,
+                        TimeUnit.NANOSECONDS.toMillis(latency));
+            } catch (AmqpException e) {
+                this.endpoints.failed(uri);
+                log.info("Probed message broker at {}: unable to connect: {}", uri, e.getLocalizedMessage());
+            }
+        }
     }
 
     // NOTE: This should *only* be called from the background thread (runInternal)
-    private synchronized void disconnect() {
-        if (this.connection != null) {
+    private synchronized void disconnect(ConnectionShard shard) {
+        final Connection connection = shard.getConnection();
+        if (connection != null) {
             try {
-                /* Stop the workers if they are running */
+                /* Stop the workers on the connection if they are running */
                 for (QueueWorker worker : workers.values()) {
+                    if (worker.getShard() != shard) {
+                        continue;
+                    }
                     worker.shutdown();
 
                     final Future<Object> future = worker.getFuture();
@@ -348,46 +849,89 @@ public class AmqpConnectionManager {
                     worker.reset();
                 }
 
-                /* Close and remove publishers */
-                final Iterator<Publisher<com.google.protobuf.Message>> publisherIt =
-                        this.publishers.values().iterator();
-                while (publisherIt.hasNext()) {
-                    final Publisher publisher = publisherIt.next();
-                    publisherIt.remove();
-                    closeQuietly(publisher.getChannel());
+                /* Close and remove publishers on the connection */
+                for (PublisherPool pool : this.publishers.values()) {
+                    for (Publisher<com.google.protobuf.Message> publisher : pool.clear(shard.getIndex(),
+                            this.shards.length)) {
+                        flushQuietly(publisher);
+                        closeQuietly(publisher.getChannel());
+                    }
                 }
             } finally {
-                closeQuietly(this.connection);
-                this.connection = null;
-                this.publishers.clear();
-                log.info("Disconnected from message broker at {}", this.uri);
+                closeQuietly(connection);
+                shard.clearConnection();
+                log.info("Disconnected from message broker at {}", describe(shard, shard.getUri()));
             }
         }
     }
 
-    // NOTE: This should *only* be called from the background thread (runInternal)
-    private synchronized boolean connect() {
-        log.info("Attempting to connect to message broker at {}", this.uri);
+    /**
+     * Declares the queues, exchanges and bindings of the connection's workers
+     * in one pipelined batch, instead of each worker declaring them with a
+     * round trip per declaration. If the batch fails the workers declare them
+     * as before.
+     */
+    private void restoreTopology(ConnectionShard shard) {
+        final List<QueueConfiguration> configs = new ArrayList<QueueConfiguration>();
+        for (QueueWorker worker : this.workers.values()) {
+            if (worker.getShard() == shard) {
+                configs.add(worker.getConfig());
+            }
+        }
+        if (configs.isEmpty()) {
+            return;
+        }
+        Channel channel = null;
         try {
-            this.connection = ConnectionFactory.newInstance().newConnection(this.uri);
+            channel = shard.openChannel();
+            final TopologyCache topology = shard.getTopology();
+            final int declared = topology.declareAll(channel, configs);
+            log.info("Declared {} exchanges, queues and bindings at {} in {} ms", new Object[]{declared,
+                    describe(shard, shard.getUri()), TimeUnit.NANOSECONDS.toMillis(topology.getRestoreNanos())});
         } catch (AmqpException e) {
-            log.debug("Unable to connect: {}", e.getLocalizedMessage());
-            return false;
+            log.info("Unable to declare queues in a batch, workers will declare them: {}", e.getLocalizedMessage());
+        } finally {
+            closeQuietly(channel);
         }
-        log.info("Connected to message broker at {}", this.uri);
-        for (QueueWorker worker : this.workers.values()) {
-            worker.setFuture(this.ecs.submit(worker));
+    }
+
+    // NOTE: This should *only* be called from the background thread (runInternal)
+    private synchronized boolean connect(ConnectionShard shard) {
+        if (this.endpoints.getEndpoints().size() > 1) {
+            probeEndpoints();
         }
-        return true;
+        for (AmqpServerUri uri : this.endpoints.candidates()) {
+            log.info("Attempting to connect to message broker at {}", describe(shard, uri));
+            final long start = System.nanoTime();
+            try {
+                shard.setConnection(newConnectionFactory().newConnection(uri), uri);
+            } catch (AmqpException e) {
+                log.debug("Unable to connect: {}", e.getLocalizedMessage());
+                this.endpoints.failed(uri);
+                continue;
+            }
+            this.endpoints.connected(uri, System.nanoTime() - start);
+            log.info("Connected to message broker at {}", describe(shard, uri));
+            restoreTopology(shard);
+            for (QueueWorker worker : this.workers.values()) {
+                if (worker.getShard() == shard && !this.draining) {
+                    worker.setFuture(this.ecs.submit(worker));
+                }
+            }
+            return true;
+        }
+        return false;
     }
 
     // NOTE: This should *only* be called from the background thread (runInternal)
-    private synchronized void reconnect() throws InterruptedException {
-        this.disconnect();
-        while (!this.connect()) {
-            log.debug("Will retry connection in {} seconds", TimeUnit.MILLISECONDS.toSeconds(retry));
-            Thread.sleep(retry);
+    private synchronized boolean reconnect(ConnectionShard shard) {
+        if (shard.isConnected()) {
+            /* The connection was lost, so prefer the other servers for now */
+            log.warn("Lost connection to message broker at {}", describe(shard, shard.getUri()));
+            this.endpoints.failed(shard.getUri());
         }
+        this.disconnect(shard);
+        return this.connect(shard);
     }
 
     private static void shutdownExecutorService(ExecutorService service) {
@@ -403,13 +947,130 @@ public class AmqpConnectionManager {
         }
     }
 
+    /**
+     * Drains the {@link AmqpConnectionManager} and then shuts it down. Each
+     * worker cancels its consumer so the broker stops delivering to it, and
+     * its listener handles the messages already buffered. Messages not
+     * handled before the timeout are re-queued in bulk rather than
+     * redelivered when the channel closes. The asynchronous publish buffers
+     * are then written and their confirms awaited before the connections are
+     * closed. The messages still in flight are logged while draining.
+     *
+     * @param timeout The maximum time to wait for the workers, and then for
+     *                the asynchronous publishes.
+     * @param unit    Unit of time.
+     * @return The messages handled, re-queued and published while draining.
+     * @see #drain(long, long, TimeUnit)
+     */
+    public DrainStatistics drain(long timeout, TimeUnit unit) {
+        return drain(timeout, timeout, unit);
+    }
+
+    /**
+     * Drains the {@link AmqpConnectionManager} and then shuts it down, with
+     * separate time limits for the workers and for the asynchronous
+     * publishes, which include those made by the listeners while draining.
+     * Publishes still buffered when the publish timeout expires are dropped.
+     *
+     * @param timeout        The maximum time to wait for the workers.
+     * @param publishTimeout The maximum time to then wait for the
+     *                       asynchronous publishes to be written.
+     * @param unit           Unit of time.
+     * @return The messages handled, re-queued and published while draining.
+     * @see #drain(long, TimeUnit)
+     */
+    public DrainStatistics drain(long timeout, long publishTimeout, TimeUnit unit) {
+        final long start = System.nanoTime();
+        final long deadline = start + unit.toNanos(timeout);
+        log.info("Draining {} workers...", this.workers.size());
+        this.draining = true;
+        for (QueueWorker worker : this.workers.values()) {
+            worker.drain(deadline);
+        }
+        final boolean complete = awaitWorkers(deadline);
+
+        final AsyncPublisher publisher;
+        synchronized (this.asyncPublisherLock) {
+            this.connectionThreadShutdown = true;
+            publisher = this.asyncPublisher;
+        }
+        int flushed = 0;
+        int dropped = 0;
+        int unconfirmed = 0;
+        if (publisher != null) {
+            final int buffered = publisher.getBufferedCount();
+            log.info("Draining: writing {} buffered publishes", buffered);
+            publisher.shutdown(publishTimeout, unit);
+            /* Publishes the flushers failed on stopping, or left behind if they didn't stop */
+            dropped = publisher.getDroppedCount() + publisher.getBufferedCount();
+            flushed = Math.max(0, buffered - dropped);
+            unconfirmed = publisher.getUnconfirmedCount();
+        }
+        shutdown();
+        final DrainStatistics statistics = new DrainStatistics(this.drainHandled.get(), this.drainRequeued.get(),
+                flushed, dropped, unconfirmed, complete, System.nanoTime() - start);
+        log.info("Drained: {}", statistics);
+        return statistics;
+    }
+
+    /**
+     * Waits for the draining workers to stop, periodically logging the
+     * messages still in flight.
+     *
+     * @return True if the workers stopped before the deadline.
+     */
+    private boolean awaitWorkers(long deadline) {
+        long nextReport = System.nanoTime();
+        while (true) {
+            int running = 0;
+            long buffered = 0;
+            for (QueueWorker worker : this.workers.values()) {
+                if (worker.isRunning()) {
+                    running++;
+                    buffered += worker.getBufferedMessages();
+                }
+            }
+            if (running == 0) {
+                return true;
+            }
+            final long now = System.nanoTime();
+            if (now - deadline >= 0) {
+                log.warn("Timed out draining {} workers with {} messages buffered", running, buffered);
+                return false;
+            }
+            if (now - nextReport >= 0) {
+                final AsyncPublisher publisher = this.asyncPublisher;
+                log.info("Draining: {} workers running, {} messages buffered, {} handled, {} publishes buffered",
+                        new Object[]{running, buffered, this.drainHandled.get(),
+                                (publisher != null) ? publisher.getBufferedCount() : 0});
+                nextReport = now + DRAIN_REPORT_INTERVAL_NANOS;
+            }
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
     /**
      * Shuts down the {@link AmqpConnectionManager}. The connection to the
      * server is shut down and any consumers are stopped.
+     *
+     * @see #drain(long, TimeUnit)
      */
     public void shutdown() {
         log.info("Shutting down...");
-        this.connectionThreadShutdown = true;
+        final AsyncPublisher publisher;
+        synchronized (this.asyncPublisherLock) {
+            this.connectionThreadShutdown = true;
+            publisher = this.asyncPublisher;
+        }
+        if (publisher != null) {
+            /* Write buffered messages while the connection is still open */
+            publisher.shutdown(POOL_SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+        }
         if (this.connectionThreadFuture != null) {
             this.connectionThreadFuture.cancel(true);
         }
@@ -428,14 +1089,24 @@ public class AmqpConnectionManager {
         private Future<Object> future;
         private volatile boolean shutdown = false;
         private volatile Thread runningThread = null;
+        private volatile Consumer<?> consumer = null;
+        /* Set by drain(); the worker is only interrupted while waiting for a message */
+        private volatile boolean draining = false;
+        private volatile long drainDeadline;
+        private boolean waiting = false;
+        /* The workers sharing the listener's queue, or null */
+        private final ListenerGroup group;
+        private final ConnectionShard shard;
 
         private QueueWorker(String workerId, QueueConfiguration config, QueueListener listener,
-                            AmqpConnectionManager manager) {
+                            AmqpConnectionManager manager, ListenerGroup group, ConnectionShard shard) {
             super(config.getQueue().getName());
             this.workerId = workerId;
             this.manager = manager;
             this.config = config;
             this.listener = listener;
+            this.group = group;
+            this.shard = shard;
         }
 
         /**
@@ -456,6 +1127,15 @@ public class AmqpConnectionManager {
             return config;
         }
 
+        /**
+         * Returns the connection the worker's channel is opened on.
+         *
+         * @return The connection the worker is assigned to.
+         */
+        public ConnectionShard getShard() {
+            return shard;
+        }
+
         /**
          * Returns the future object (or null if the worker hasn't been started).
          *
@@ -474,6 +1154,35 @@ public class AmqpConnectionManager {
             this.future = future;
         }
 
+        /**
+         * Returns the size of the messages buffered by the worker's consumer.
+         *
+         * @return The number of buffered bytes, or zero if the worker isn't running.
+         */
+        public long getBufferedBytes() {
+            final Consumer<?> current = this.consumer;
+            return (current != null) ? current.getBufferedBytes() : 0L;
+        }
+
+        /**
+         * Returns the number of messages buffered by the worker's consumer.
+         *
+         * @return The number of buffered messages, or zero if the worker isn't running.
+         */
+        public int getBufferedMessages() {
+            final Consumer<?> current = this.consumer;
+            return (current != null) ? current.getBufferedMessages() : 0;
+        }
+
+        /**
+         * Returns true if the worker has been started and hasn't stopped.
+         *
+         * @return True if the worker is running.
+         */
+        public synchronized boolean isRunning() {
+            return this.future != null && !this.future.isDone();
+        }
+
         /**
          * After a worker has been run, it should be reset to allow to be submitted again.
          */
@@ -525,13 +1234,19 @@ public class AmqpConnectionManager {
             if (this.shutdown) {
                 throw new IllegalStateException("This worker has already been shut down");
             }
+            if (this.draining) {
+                this.runningThread = null;
+                return null;
+            }
             Channel channel = null;
             Consumer<com.google.protobuf.Message> consumer = null;
+            ExecutorService decodeExecutor = null;
             try {
-                channel = manager.openChannel();
+                channel = this.shard.openChannel();
+                final TopologyCache topology = this.shard.getTopology();
                 this.listener.configureChannel(channel);
                 try {
-                    channel.declareQueue(config.getQueue());
+                    topology.declareQueue(channel, config.getQueue());
                 } catch (AmqpException e) {
                     /**
                      * Here we handle the case where we redeclare a queue with different properties.
@@ -544,44 +1259,229 @@ public class AmqpConnectionManager {
                     }
                     closeQuietly(channel);
                     channel = null;
-                    channel = manager.openChannel();
+                    channel = this.shard.openChannel();
                     this.listener.configureChannel(channel);
                 }
                 for (Binding binding : config.getBindings()) {
-                    channel.declareExchange(binding.getExchange());
-                    channel.bindQueue(binding);
+                    topology.declareExchange(channel, binding.getExchange());
+                    topology.bindQueue(channel, binding);
                 }
                 final ProtobufConverter converter = new ProtobufConverter(this.config.getMessages());
                 if (manager.extensionRegistry != null) {
                     converter.setExtensionRegistry(manager.extensionRegistry);
                 }
-                consumer = channel.createConsumer(this.config.getQueue(), converter);
+                PrefetchPolicy prefetchPolicy = this.config.getPrefetchPolicy();
+                if (prefetchPolicy != null) {
+                    final PrefetchPolicy limited = prefetchPolicy.limit(this.listener.getMaxPrefetchCount());
+                    if (limited != prefetchPolicy) {
+                        log.warn("Limiting {} of queue {} to the listener's maximum prefetch count {}",
+                                new Object[]{prefetchPolicy, config.getQueue().getName(), limited.getMax()});
+                        prefetchPolicy = limited;
+                    }
+                }
+                PrefetchController prefetch = null;
+                if (prefetchPolicy != null) {
+                    prefetch = new PrefetchController(channel, prefetchPolicy);
+                    prefetch.start();
+                }
+                if (this.config.getDecodeThreads() > 0) {
+                    decodeExecutor = newDecodeExecutor();
+                }
+                if (prefetchPolicy != null) {
+                    /* Buffer the largest prefetch window the controller can set */
+                    consumer = channel.createConsumer(this.config.getQueue(), converter, decodeExecutor,
+                            prefetchPolicy.getMax());
+                } else if (decodeExecutor != null) {
+                    consumer = channel.createConsumer(this.config.getQueue(), converter, decodeExecutor);
+                } else {
+                    consumer = channel.createConsumer(this.config.getQueue(), converter);
+                }
+                consumer.setMessageFilter(this.listener.getMessageFilter());
+                consumer.setLazyDecoding(this.listener.isLazyDecoding());
+                consumer.setBufferPolicy(this.config.getBufferPolicy());
+                this.consumer = consumer;
                 this.listener.setConsumer(consumer);
                 log.info("Worker started, consuming messages on queue: {}", config.getQueue().getName());
                 Message<com.google.protobuf.Message> message;
-                while (!this.shutdown) {
+                long intervalStart = System.nanoTime();
+                long busyNanos = 0;
+                while (!this.shutdown && !this.draining) {
                     try {
-                        while ((message = consumer.nextMessage(listener.getTimeout(), TimeUnit.MILLISECONDS)) != null) {
+                        boolean emptied = true;
+                        while ((message = nextMessage(consumer)) != null) {
+                            final long start = System.nanoTime();
                             this.listener.receive(message, consumer);
+                            final long elapsed = System.nanoTime() - start;
+                            if (prefetch != null) {
+                                prefetch.messageProcessed(elapsed);
+                            }
+                            busyNanos += elapsed;
+                            if (this.group != null && start - intervalStart >= intervalNanos()) {
+                                /* Report the utilization of a busy worker */
+                                emptied = false;
+                                break;
+                            }
+                        }
+                        if (emptied) {
+                            this.listener.queueEmptied();
+                        }
+                        final long now = System.nanoTime();
+                        if (this.group != null && now - intervalStart >= intervalNanos()) {
+                            final double utilization = (double) busyNanos / (now - intervalStart);
+                            intervalStart = now;
+                            busyNanos = 0;
+                            if (this.group.sample(this.workerId, utilization, channel)) {
+                                log.debug("Stopping idle worker for queue: {}", config.getQueue().getName());
+                                return null;
+                            }
                         }
-                        this.listener.queueEmptied();
                     } catch (MessageDecoderException e) {
                         // Unsupported message in this queue - reject the message
                         log.warn("Failed to decode message in queue", e);
                         consumer.rejectMessage(e.getRawMessage(), false);
+                    } catch (MessageBodyException e) {
+                        // Message decoded lazily by the listener - reject the message
+                        log.warn("Failed to decode message in queue", e.getCause());
+                        consumer.rejectMessage(e.getCause().getRawMessage(), false);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                     }
                 }
+                if (this.draining && !this.shutdown) {
+                    drainConsumer(consumer);
+                }
                 return null;
             } finally {
                 log.debug("Stopping worker for queue: {}", config.getQueue().getName());
                 cancelQuietly(consumer);
+                if (this.listener instanceof PartitionedQueueListener) {
+                    /* Settle messages being handled while the channel is open */
+                    ((PartitionedQueueListener) this.listener).shutdown();
+                }
                 closeQuietly(channel);
+                if (decodeExecutor != null) {
+                    decodeExecutor.shutdownNow();
+                }
+                this.consumer = null;
                 this.runningThread = null;
             }
         }
 
+        /**
+         * Waits for the next message, which is the only time
+         * {@link #drain(long)} interrupts the worker.
+         *
+         * @return The message, or null on timeout or if draining.
+         */
+        private Message<com.google.protobuf.Message> nextMessage(Consumer<com.google.protobuf.Message> consumer)
+                throws AmqpException, InterruptedException {
+            synchronized (this) {
+                if (this.draining) {
+                    return null;
+                }
+                this.waiting = true;
+            }
+            try {
+                return consumer.nextMessage(getTimeout(), TimeUnit.MILLISECONDS);
+            } finally {
+                synchronized (this) {
+                    this.waiting = false;
+                    if (this.draining) {
+                        /* Clear an interrupt which raced with the message arriving */
+                        Thread.interrupted();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Cancels the consumer and passes the messages it has buffered to the
+         * listener until the drain deadline, then re-queues the rest with as
+         * few rejections as possible.
+         */
+        private void drainConsumer(Consumer<com.google.protobuf.Message> consumer) throws Exception {
+            /* Clear the interrupt which woke the worker */
+            Thread.interrupted();
+            consumer.cancel();
+            long handled = 0;
+            int requeued = 0;
+            try {
+                while (!this.shutdown && System.nanoTime() - this.drainDeadline < 0) {
+                    try {
+                        final Message<com.google.protobuf.Message> message = consumer.pollMessage();
+                        if (message == null) {
+                            break;
+                        }
+                        this.listener.receive(message, consumer);
+                        handled++;
+                    } catch (MessageDecoderException e) {
+                        log.warn("Failed to decode message in queue", e);
+                        consumer.rejectMessage(e.getRawMessage(), false);
+                    } catch (MessageBodyException e) {
+                        log.warn("Failed to decode message in queue", e.getCause());
+                        consumer.rejectMessage(e.getCause().getRawMessage(), false);
+                    }
+                }
+                this.listener.queueEmptied();
+                requeued = consumer.requeueBuffered();
+            } catch (InterruptedException e) {
+                /* Shut down; the channel closing re-queues the rest */
+                Thread.currentThread().interrupt();
+            } finally {
+                this.manager.drainHandled.addAndGet(handled);
+                this.manager.drainRequeued.addAndGet(requeued);
+                log.info("Drained queue {}: {} messages handled, {} re-queued",
+                        new Object[]{config.getQueue().getName(), handled, requeued});
+            }
+        }
+
+        /**
+         * Returns the listener's timeout, bounded by the scaling interval so
+         * idle workers in a group report their utilization.
+         */
+        private int getTimeout() {
+            final int timeout = this.listener.getTimeout();
+            if (this.group == null) {
+                return timeout;
+            }
+            final int interval = (int) this.group.getIntervalMillis();
+            return (timeout <= 0) ? interval : Math.min(timeout, interval);
+        }
+
+        private long intervalNanos() {
+            return TimeUnit.MILLISECONDS.toNanos(this.group.getIntervalMillis());
+        }
+
+        private ExecutorService newDecodeExecutor() {
+            final String prefix = config.getQueue().getName() + "-decode-";
+            return Executors.newFixedThreadPool(config.getDecodeThreads(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        /**
+         * Stops the worker consuming, interrupting it only while it waits
+         * for a message so listener callbacks aren't interrupted. The worker
+         * then handles the messages already buffered until the deadline.
+         *
+         * @param deadline The {@link System#nanoTime()} by which to stop.
+         */
+        public synchronized void drain(long deadline) {
+            this.drainDeadline = deadline;
+            this.draining = true;
+            final Thread thread = this.runningThread;
+            if (thread != null && this.waiting) {
+                thread.interrupt();
+            }
+        }
+
         public void shutdown() {
             this.shutdown = true;
             if (this.runningThread != null) {
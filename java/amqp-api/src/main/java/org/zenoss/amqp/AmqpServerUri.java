@@ -12,11 +12,14 @@ package org.zenoss.amqp;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,6 +42,7 @@ public class AmqpServerUri {
     public static final String SCHEME_AMQPS = "amqps";
     public static final int DEFAULT_PORT = 5672;
     public static final int DEFAULT_SSL_PORT = 5671;
+    private static final Pattern HOST_WITH_PORT = Pattern.compile("[^:]+:\\d+");
     private final boolean isSsl;
     private final String hostname;
     private final int port;
@@ -212,9 +216,36 @@ public class AmqpServerUri {
         return sb.toString();
     }
 
+    /**
+     * Parses a list of URIs separated by commas or whitespace, for example
+     * the nodes of a broker cluster.
+     * 
+     * @param uris
+     *            The URIs.
+     * @return The parsed URIs, in order.
+     * @throws URISyntaxException
+     *             If a URI is invalid.
+     * @throws IllegalArgumentException
+     *             If there are no URIs or a URI is missing required
+     *             information.
+     */
+    public static List<AmqpServerUri> parseList(String uris)
+            throws URISyntaxException {
+        final List<AmqpServerUri> parsed = new ArrayList<AmqpServerUri>();
+        for (String uri : uris.trim().split("[,\\s]+")) {
+            if (!uri.isEmpty()) {
+                parsed.add(new AmqpServerUri(uri));
+            }
+        }
+        if (parsed.isEmpty()) {
+            throw new IllegalArgumentException("No AMQP URIs specified");
+        }
+        return parsed;
+    }
+
     /**
      * Creates a {@link AmqpServerUri} from the specified global configuration
-     * settings.
+     * settings. If amqphost lists several hosts, the first is used.
      * 
      * @param globalProps
      *            The contents of the global.conf file on the system. This
@@ -229,27 +260,57 @@ public class AmqpServerUri {
      */
     public static AmqpServerUri createFromGlobalConf(Properties globalProps,
             String defaultUri) throws URISyntaxException {
-        final String uri;
+        return createAllFromGlobalConf(globalProps, defaultUri).get(0);
+    }
+
+    /**
+     * Creates a {@link AmqpServerUri} for each broker listed in the specified
+     * global configuration settings. The amqphost property may list several
+     * hosts separated by commas (for example
+     * <code>amqphost=rabbit1,rabbit2:5673</code>); hosts without a port use
+     * amqpport. The other settings apply to every host.
+     * 
+     * @param globalProps
+     *            The contents of the global.conf file on the system. This
+     *            configuration file should contain the properties amqpusessl,
+     *            amqphost, amqpuser, amqppassword, amqpvhost, and amqpport.
+     * @param defaultUris
+     *            The URIs (see {@link #parseList(String)}) to use as a
+     *            fallback in case the properties cannot be loaded in the
+     *            global.conf file.
+     * @return The URIs from the global configuration if it is non-empty,
+     *         otherwise the defaults.
+     * @throws URISyntaxException
+     */
+    public static List<AmqpServerUri> createAllFromGlobalConf(
+            Properties globalProps, String defaultUris)
+            throws URISyntaxException {
         if (globalProps.isEmpty()) {
-            uri = defaultUri;
-        } else {
-            String scheme = SCHEME_AMQP;
-            int port = DEFAULT_PORT;
-            if ("1".equals(globalProps.getProperty("amqpusessl"))) {
-                scheme = SCHEME_AMQPS;
-                port = DEFAULT_SSL_PORT;
+            return parseList(defaultUris);
+        }
+        String scheme = SCHEME_AMQP;
+        int port = DEFAULT_PORT;
+        if ("1".equals(globalProps.getProperty("amqpusessl"))) {
+            scheme = SCHEME_AMQPS;
+            port = DEFAULT_SSL_PORT;
+        }
+        String hosts = globalProps.getProperty("amqphost", "localhost");
+        String user = globalProps.getProperty("amqpuser", "");
+        String pass = globalProps.getProperty("amqppassword", "");
+        String vhost = globalProps.getProperty("amqpvhost", "/");
+        String strPort = globalProps.getProperty("amqpport");
+        if (strPort != null) {
+            try {
+                port = Integer.valueOf(strPort);
+            } catch (NumberFormatException nfe) {
+                logger.warn("Invalid port number: {}", strPort);
             }
-            String host = globalProps.getProperty("amqphost", "localhost");
-            String user = globalProps.getProperty("amqpuser", "");
-            String pass = globalProps.getProperty("amqppassword", "");
-            String vhost = globalProps.getProperty("amqpvhost", "/");
-            String strPort = globalProps.getProperty("amqpport");
-            if (strPort != null) {
-                try {
-                    port = Integer.valueOf(strPort);
-                } catch (NumberFormatException nfe) {
-                    logger.warn("Invalid port number: {}", strPort);
-                }
+        }
+        final List<AmqpServerUri> uris = new ArrayList<AmqpServerUri>();
+        for (String host : hosts.split(",")) {
+            host = host.trim();
+            if (host.isEmpty()) {
+                continue;
             }
             StringBuilder uriBuilder = new StringBuilder();
             uriBuilder.append(scheme).append("://");
@@ -260,9 +321,16 @@ public class AmqpServerUri {
                 }
                 uriBuilder.append('@');
             }
-            uriBuilder.append(host).append(':').append(port).append(vhost);
-            uri = uriBuilder.toString();
+            uriBuilder.append(host);
+            if (!HOST_WITH_PORT.matcher(host).matches()) {
+                uriBuilder.append(':').append(port);
+            }
+            uriBuilder.append(vhost);
+            uris.add(new AmqpServerUri(uriBuilder.toString()));
+        }
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("No AMQP hosts specified");
         }
-        return new AmqpServerUri(uri);
+        return uris;
     }
 }
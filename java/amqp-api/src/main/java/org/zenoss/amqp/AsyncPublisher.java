@@ -0,0 +1,352 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.amqp.impl.MpscRingBuffer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes messages for {@link AmqpConnectionManager#publishAsync} on
+ * dedicated I/O threads. Callers only add the message to a bounded
+ * {@link MpscRingBuffer}; a flusher thread drains the buffer in batches,
+ * serializes each message and writes it with a {@link ConfirmingPublisher}.
+ * Each publishing thread always uses the same flusher so its messages stay in
+ * order.
+ */
+class AsyncPublisher {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncPublisher.class);
+
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long CLOSE_CONFIRM_WAIT_SECONDS = 5;
+
+    private final AmqpConnectionManager manager;
+    private final Flusher[] flushers;
+    private final int maxOutstanding;
+    private final ExecutorService executor;
+    /* Messages written but not confirmed when the flushers stopped */
+    private final AtomicInteger unconfirmed = new AtomicInteger();
+    /* Buffered messages failed without being written when the flushers stopped */
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    AsyncPublisher(AmqpConnectionManager manager, int threads, int bufferSize, int maxOutstanding) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Flusher threads must be positive");
+        }
+        this.manager = manager;
+        this.maxOutstanding = maxOutstanding;
+        this.flushers = new Flusher[threads];
+        this.executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            this.flushers[i] = new Flusher("AmqpAsyncPublisher-" + i, bufferSize);
+            this.executor.submit(this.flushers[i]);
+        }
+    }
+
+    /**
+     * Queues the message to be published.
+     *
+     * @param config     The exchange configuration.
+     * @param routingKey The routing key.
+     * @param message    The message.
+     * @return A future which completes when the broker confirms the message.
+     * @throws AmqpException If the publish buffer is full or the publisher has
+     *                       been shut down.
+     */
+    Future<Void> publish(ExchangeConfiguration config, String routingKey,
+                         com.google.protobuf.Message message) throws AmqpException {
+        if (config == null || message == null) {
+            throw new NullPointerException();
+        }
+        final Flusher flusher = this.flushers[(int) (Thread.currentThread().getId() % this.flushers.length)];
+        if (flusher.shutdown) {
+            throw new AmqpException("Asynchronous publisher has been shut down");
+        }
+        final PendingPublish pending = new PendingPublish(config, routingKey, message);
+        if (!flusher.buffer.offer(pending)) {
+            throw new AmqpException("Publish buffer is full (" + flusher.buffer.capacity() + " messages)");
+        }
+        if (flusher.finished) {
+            /* The flusher may have drained its buffer for the last time before the offer */
+            pending.fail(new AmqpException("Asynchronous publisher has been shut down"));
+        }
+        flusher.wakeup();
+        return pending;
+    }
+
+    /**
+     * Returns the number of messages waiting to be written.
+     *
+     * @return The number of buffered messages.
+     */
+    int getBufferedCount() {
+        int count = 0;
+        for (Flusher flusher : this.flushers) {
+            count += flusher.buffer.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of messages written but not confirmed by the broker
+     * when the flusher threads stopped.
+     *
+     * @return The number of unconfirmed messages.
+     */
+    int getUnconfirmedCount() {
+        return this.unconfirmed.get();
+    }
+
+    /**
+     * Returns the number of buffered messages failed without being written
+     * when the flusher threads stopped.
+     *
+     * @return The number of dropped messages.
+     */
+    int getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Stops the flusher threads after writing the messages already in their
+     * buffers.
+     *
+     * @param timeout The maximum time to wait for the buffers to be written.
+     * @param unit    Unit of time.
+     */
+    void shutdown(long timeout, TimeUnit unit) {
+        for (Flusher flusher : this.flushers) {
+            flusher.shutdown = true;
+            flusher.wakeup();
+        }
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(timeout, unit)) {
+                log.warn("Timed out writing {} buffered messages", getBufferedCount());
+                this.executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.executor.shutdownNow();
+        }
+    }
+
+    private class Flusher extends ThreadRenamingCallable<Object> {
+        private final MpscRingBuffer<PendingPublish> buffer;
+        private final Map<String, ConfirmingPublisher<com.google.protobuf.Message>> publishers =
+                new HashMap<String, ConfirmingPublisher<com.google.protobuf.Message>>();
+        private volatile Thread thread = null;
+        private volatile boolean waiting = false;
+        private volatile boolean shutdown = false;
+        private volatile boolean finished = false;
+
+        private Flusher(String name, int bufferSize) {
+            super(name);
+            this.buffer = new MpscRingBuffer<PendingPublish>(bufferSize);
+        }
+
+        private void wakeup() {
+            if (this.waiting) {
+                final Thread t = this.thread;
+                if (t != null) {
+                    LockSupport.unpark(t);
+                }
+            }
+        }
+
+        @Override
+        protected Object doCall() throws Exception {
+            this.thread = Thread.currentThread();
+            final List<PendingPublish> batch = new ArrayList<PendingPublish>(MAX_BATCH_SIZE);
+            try {
+                while (true) {
+                    if (this.buffer.drainTo(batch, MAX_BATCH_SIZE) == 0) {
+                        if (this.shutdown || Thread.currentThread().isInterrupted()) {
+                            break;
+                        }
+                        this.waiting = true;
+                        if (this.buffer.isEmpty() && !this.shutdown) {
+                            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                        }
+                        this.waiting = false;
+                        continue;
+                    }
+                    for (PendingPublish pending : batch) {
+                        write(pending);
+                    }
+                    batch.clear();
+                }
+            } finally {
+                /* Set before the last drain: a publish which doesn't see it is drained below */
+                this.finished = true;
+                final AmqpException failure = new AmqpException("Asynchronous publisher has been shut down");
+                for (PendingPublish pending : batch) {
+                    if (pending.fail(failure)) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                PendingPublish pending;
+                while ((pending = this.buffer.poll()) != null) {
+                    if (pending.fail(failure)) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                for (ConfirmingPublisher<com.google.protobuf.Message> publisher : this.publishers.values()) {
+                    try {
+                        publisher.waitForConfirms(CLOSE_CONFIRM_WAIT_SECONDS, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        log.debug("Failed waiting for confirms: {}", e.getLocalizedMessage());
+                    }
+                    unconfirmed.addAndGet(publisher.getOutstandingCount());
+                    closeQuietly(publisher);
+                }
+                this.publishers.clear();
+            }
+            return null;
+        }
+
+        private void write(PendingPublish pending) throws InterruptedException {
+            final Exchange exchange = pending.config.getExchange();
+            ConfirmingPublisher<com.google.protobuf.Message> publisher = null;
+            try {
+                publisher = this.publishers.get(exchange.getName());
+                if (publisher == null) {
+                    publisher = manager.createConfirmingPublisher(pending.config, maxOutstanding);
+                    this.publishers.put(exchange.getName(), publisher);
+                }
+                pending.setConfirmation(publisher.publishAsync(pending.message, pending.routingKey));
+            } catch (AmqpException e) {
+                pending.fail(e);
+                if (publisher != null) {
+                    this.publishers.remove(exchange.getName());
+                    closeQuietly(publisher);
+                    manager.invalidate(exchange);
+                }
+            } catch (RuntimeException e) {
+                pending.fail(new AmqpException(e));
+            }
+        }
+    }
+
+    private static void closeQuietly(ConfirmingPublisher<?> publisher) {
+        try {
+            publisher.close();
+        } catch (IOException e) {
+            log.debug("Failed to close publisher: {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * A message waiting in the buffer. It is returned to the caller as its
+     * future, and delegates to the publisher's confirmation future once the
+     * message has been written.
+     */
+    private static class PendingPublish implements Future<Void> {
+        private final ExchangeConfiguration config;
+        private final String routingKey;
+        private final com.google.protobuf.Message message;
+        private Future<Void> confirmation = null;
+        private AmqpException failure = null;
+
+        private PendingPublish(ExchangeConfiguration config, String routingKey,
+                               com.google.protobuf.Message message) {
+            this.config = config;
+            this.routingKey = routingKey;
+            this.message = message;
+        }
+
+        private synchronized void setConfirmation(Future<Void> confirmation) {
+            this.confirmation = confirmation;
+            notifyAll();
+        }
+
+        private synchronized boolean fail(AmqpException failure) {
+            if (this.confirmation == null && this.failure == null) {
+                this.failure = failure;
+                notifyAll();
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized boolean written() {
+            return this.confirmation != null || this.failure != null;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return this.failure != null || (this.confirmation != null && this.confirmation.isDone());
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            final Future<Void> future;
+            synchronized (this) {
+                while (!written()) {
+                    wait();
+                }
+                if (this.failure != null) {
+                    throw new ExecutionException(this.failure);
+                }
+                future = this.confirmation;
+            }
+            return future.get();
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            final Future<Void> future;
+            synchronized (this) {
+                long remaining = unit.toNanos(timeout);
+                while (!written()) {
+                    if (remaining <= 0) {
+                        throw new TimeoutException();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    remaining = deadline - System.nanoTime();
+                }
+                if (this.failure != null) {
+                    throw new ExecutionException(this.failure);
+                }
+                future = this.confirmation;
+            }
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+    }
+}
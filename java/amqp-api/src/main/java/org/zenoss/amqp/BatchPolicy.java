@@ -0,0 +1,104 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+/**
+ * Limits on a batch of messages: the maximum number of messages, the maximum
+ * size in bytes and how long the first message may wait for the batch to
+ * fill.
+ * <p/>
+ * When an exchange has a batch policy, protobuf messages of the same type
+ * published with the same routing key are packed into a single AMQP message.
+ * The body is the length-delimited messages (as written by
+ * <code>Message.writeDelimitedTo</code>) and the {@link #HEADER_MESSAGE_COUNT}
+ * header contains the number of messages. Consumers unpack batches so each
+ * message is received separately. Batching is only understood by the Java
+ * clients, and a published message is only sent when its batch is flushed.
+ * <p/>
+ * A {@link BatchingQueueListener} uses the same limits to decide when to
+ * process the messages it has received.
+ */
+public class BatchPolicy {
+
+    /**
+     * Message header containing the number of messages packed in a batch.
+     */
+    public static final String HEADER_MESSAGE_COUNT = "X-Message-Count";
+
+    /**
+     * Default maximum size (in bytes) of a batch.
+     */
+    public static final int DEFAULT_MAX_BYTES = 128 * 1024;
+
+    /**
+     * Default time (in milliseconds) the first message of a batch waits for
+     * the batch to fill.
+     */
+    public static final long DEFAULT_LINGER_MILLIS = 20;
+
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long lingerMillis;
+
+    /**
+     * Creates a batch policy.
+     *
+     * @param maxMessages  The maximum number of messages in a batch.
+     * @param maxBytes     The maximum size of a batch in bytes. A batch is sent
+     *                     early rather than exceed this size, unless it holds a
+     *                     single larger message.
+     * @param lingerMillis The maximum time in milliseconds the first message of
+     *                     a batch waits before the batch is sent.
+     * @throws IllegalArgumentException If any limit isn't positive.
+     */
+    public BatchPolicy(int maxMessages, int maxBytes, long lingerMillis) throws IllegalArgumentException {
+        if (maxMessages <= 0 || maxBytes <= 0 || lingerMillis <= 0) {
+            throw new IllegalArgumentException("Batch limits must be positive");
+        }
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * Returns the maximum number of messages in a batch.
+     *
+     * @return The maximum number of messages in a batch.
+     */
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * Returns the maximum size of a batch in bytes.
+     *
+     * @return The maximum size of a batch in bytes.
+     */
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the maximum time in milliseconds the first message of a batch
+     * waits before the batch is sent.
+     *
+     * @return The maximum time the first message of a batch waits.
+     */
+    public long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchPolicy [maxMessages=%d, maxBytes=%d, lingerMillis=%d]", maxMessages, maxBytes,
+                lingerMillis);
+    }
+}
@@ -5,6 +5,7 @@ import com.google.protobuf.Message;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * **************************************************************************
@@ -22,7 +23,15 @@ public abstract class BatchingQueueListener extends QueueListener {
     private static final int DEFAULT_PREFETCH_SIZE = 0;
     private static final int DEFAULT_PREFETCH_COUNT = 100;
 
+    private int maxBytes = BatchPolicy.DEFAULT_MAX_BYTES;
+    private long lingerMillis = BatchPolicy.DEFAULT_LINGER_MILLIS;
+
     private List<org.zenoss.amqp.Message<Message>> batch = new ArrayList<org.zenoss.amqp.Message<Message>>(batchSize);
+    private int batchBytes = 0;
+    private long batchStartNanos = 0;
+
+    private final Histogram batchSizes = new Histogram("batch size");
+    private final Histogram batchWaits = new Histogram("batch wait (ms)");
 
     /**
      * Set the size of batches to read for this listener
@@ -33,16 +42,83 @@ public abstract class BatchingQueueListener extends QueueListener {
         this.batchSize = batchSize;
     }
 
+    /**
+     * Set the limits on batches read by this listener. A batch is processed
+     * when it reaches the maximum number of messages or size (the total
+     * serialized size of its messages), or when its first message has waited
+     * for the linger time, whichever comes first. The size limit doesn't
+     * apply to a listener which decodes lazily, as bodies aren't read until
+     * the batch is handled.
+     *
+     * @param policy The batch limits.
+     */
+    public void setBatchPolicy(BatchPolicy policy) {
+        this.batchSize = policy.getMaxMessages();
+        this.maxBytes = policy.getMaxBytes();
+        this.lingerMillis = policy.getLingerMillis();
+    }
+
+    /**
+     * Returns the limits on batches read by this listener.
+     *
+     * @return The batch limits.
+     */
+    public BatchPolicy getBatchPolicy() {
+        return new BatchPolicy(batchSize, maxBytes, lingerMillis);
+    }
+
+    /**
+     * Returns the histogram of the number of messages in each batch
+     * processed.
+     *
+     * @return The batch size histogram.
+     */
+    public Histogram getBatchSizeHistogram() {
+        return batchSizes;
+    }
+
+    /**
+     * Returns the histogram of the time (in milliseconds) the first message of
+     * each batch waited before the batch was processed.
+     *
+     * @return The batch wait histogram.
+     */
+    public Histogram getBatchWaitHistogram() {
+        return batchWaits;
+    }
+
     protected void configureChannel(Channel channel) throws AmqpException {
         /* Set a default QOS on the channel */
         channel.setQos(DEFAULT_PREFETCH_SIZE, Math.min(DEFAULT_PREFETCH_COUNT, batchSize));
     }
 
+    /**
+     * Returns the queue reading timeout. While a batch is waiting to be
+     * processed, this is no longer than the time left until the batch's first
+     * message has waited for the linger time, so the batch is processed by
+     * {@link #queueEmptied()} even if no more messages arrive.
+     *
+     * @return timeout (in milliseconds)
+     */
+    @Override
+    public int getTimeout() {
+        final int timeout = super.getTimeout();
+        if (batch.isEmpty()) {
+            return timeout;
+        }
+        final long remaining = Math.max(1, lingerMillis - elapsedMillis());
+        return (int) ((timeout > 0) ? Math.min(timeout, remaining) : remaining);
+    }
+
+    private long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batchStartNanos);
+    }
+
     /**
      * Method which is called when a message is is received on the queue. The
      * default behavior of this method is to enqueue the message for handling
-     * when the batch reaches {@link #batchSize}, then call {@Link #handleBatch} if
-     * necessary.
+     * when the batch reaches {@link #batchSize} (or its size or linger limit),
+     * then call {@Link #handleBatch} if necessary.
      *
      * @param message The message received by the consumer.
      * @throws Exception If an exception is thrown when processing a message, it is
@@ -50,23 +126,38 @@ public abstract class BatchingQueueListener extends QueueListener {
      */
     @Override
     protected void receive(final org.zenoss.amqp.Message<Message> message) throws Exception {
+        /* Decode (if not lazy) before the message joins the batch, so a failure leaves it to the worker */
+        final Message body = isLazyDecoding() ? null : message.getBody();
+        if (batch.isEmpty()) {
+            batchStartNanos = System.nanoTime();
+        }
         batch.add(message);
-        if (batch.size() >= batchSize) {
+        if (body != null) {
+            batchBytes += body.getSerializedSize();
+        }
+        if (batch.size() >= batchSize || batchBytes >= maxBytes || elapsedMillis() >= lingerMillis) {
             this.processBatch();
         }
     }
 
-     private void processBatch() throws Exception {
-     try {
-     this.handle(batch);
-     } finally {
-     batch.clear();
-     }
-     }
+    private void processBatch() throws Exception {
+        if (!batch.isEmpty()) {
+            batchSizes.record(batch.size());
+            batchWaits.record(elapsedMillis());
+        }
+        try {
+            this.handle(batch);
+        } finally {
+            batch.clear();
+            batchBytes = 0;
+        }
+    }
 
-     /**
+    /**
      * Method that processes the queued batch of messages. By default, this just
-     * calls {@Link #handle} on each message. This method is responsible for
+     * calls {@Link #handle} on each message, then rejects the failed messages
+     * and acknowledges the rest with {@link #failed(Collection)} and
+     * {@link #handled(Collection)}. This method is responsible for
      * acknowledging or rejecting every message in the Iterable.
      */
     protected void handle(Collection<org.zenoss.amqp.Message<Message>> messages) throws Exception {
@@ -80,20 +171,21 @@ public abstract class BatchingQueueListener extends QueueListener {
             lastException = e;
         }
 
-        for (org.zenoss.amqp.Message<Message> message : succeeded) {
+        /* Reject first so the acknowledgments can be combined into as few frames as possible */
+        if (!failed.isEmpty()) {
             try {
-                this.handled(message);
+                this.failed(failed);
             } catch (AmqpException e) {
-                //failed to acknowledge the message, but it has been processed
-                lastException = e;
+                //failed to un-ack the messages, and they have not been processed
             }
         }
 
-        for (org.zenoss.amqp.Message<Message> message : failed) {
+        if (!succeeded.isEmpty()) {
             try {
-                this.failed(message);
+                this.handled(succeeded);
             } catch (AmqpException e) {
-                //failed to un-ack the message, and it has not been processed
+                //failed to acknowledge the messages, but they have been processed
+                lastException = e;
             }
         }
 
@@ -0,0 +1,100 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+/**
+ * Limits on the deliveries a {@link Consumer} buffers before they are
+ * consumed. The prefetch count only limits the number of unacknowledged
+ * messages, so a burst of large messages can use a lot of memory; when either
+ * limit is reached the consumer is cancelled, and it consumes from the queue
+ * again once the buffer has drained to half of both limits. Deliveries which
+ * were already sent by the broker when the consumer was cancelled are still
+ * buffered, so the limits can be exceeded by up to the prefetch count.
+ * <p/>
+ * The limits are read from <code>queue.&lt;identifier&gt;.buffer_max_messages</code>
+ * and <code>queue.&lt;identifier&gt;.buffer_max_bytes</code> in messaging.conf.
+ */
+public class BufferPolicy {
+
+    /**
+     * Default maximum number of buffered messages.
+     */
+    public static final int DEFAULT_MAX_MESSAGES = 1024;
+
+    /**
+     * Default maximum size of the buffered message bodies.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final int maxMessages;
+    private final long maxBytes;
+
+    /**
+     * Creates a buffer policy.
+     *
+     * @param maxMessages The maximum number of buffered messages.
+     * @param maxBytes    The maximum size of the buffered message bodies.
+     * @throws IllegalArgumentException If a limit isn't positive.
+     */
+    public BufferPolicy(int maxMessages, long maxBytes) throws IllegalArgumentException {
+        if (maxMessages <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Buffer limits must be positive");
+        }
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the maximum number of buffered messages.
+     *
+     * @return The maximum number of buffered messages.
+     */
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * Returns the maximum size of the buffered message bodies.
+     *
+     * @return The maximum number of buffered bytes.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns whether a consumer buffering the specified messages should
+     * stop consuming.
+     *
+     * @param messages The number of buffered messages.
+     * @param bytes    The size of the buffered messages.
+     * @return True if either limit has been reached.
+     */
+    public boolean isFull(int messages, long bytes) {
+        return messages >= maxMessages || bytes >= maxBytes;
+    }
+
+    /**
+     * Returns whether a consumer which stopped consuming should resume.
+     *
+     * @param messages The number of buffered messages.
+     * @param bytes    The size of the buffered messages.
+     * @return True if the buffer has drained to half of both limits.
+     */
+    public boolean isDrained(int messages, long bytes) {
+        return messages <= maxMessages / 2 && bytes <= maxBytes / 2;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPolicy [maxMessages=%d, maxBytes=%d]", maxMessages, maxBytes);
+    }
+}
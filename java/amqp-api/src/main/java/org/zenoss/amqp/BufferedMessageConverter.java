@@ -0,0 +1,54 @@
+/*****************************************************************************
+ * 
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ * 
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ * 
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+/**
+ * A {@link MessageConverter} which can write a message into a caller supplied
+ * buffer. Publishers use it to serialize messages into a reused buffer when
+ * the message is compressed, so only the compressed body is allocated.
+ * 
+ * @param <T>
+ *            The underlying type of a message body.
+ */
+public interface BufferedMessageConverter<T> extends MessageConverter<T> {
+    /**
+     * Prepares a message to be written with
+     * {@link #writeTo(Object, byte[], int)}, setting its properties.
+     * 
+     * @param message
+     *            The message body type.
+     * @param propertyBuilder
+     *            Message property builder, or null if the properties are
+     *            not required.
+     * @return The number of bytes the message will be written as.
+     * @throws Exception
+     *             If the message cannot be converted.
+     */
+    public int prepare(T message, MessagePropertiesBuilder propertyBuilder)
+            throws Exception;
+
+    /**
+     * Writes a message prepared with
+     * {@link #prepare(Object, MessagePropertiesBuilder)} into the buffer.
+     * 
+     * @param message
+     *            The message body type.
+     * @param buffer
+     *            The buffer to write to.
+     * @param offset
+     *            The offset in the buffer to start writing at. The buffer
+     *            must have room for the number of bytes returned by
+     *            <code>prepare</code>.
+     * @throws Exception
+     *             If the message cannot be converted.
+     */
+    public void writeTo(T message, byte[] buffer, int offset) throws Exception;
+}
@@ -11,6 +11,8 @@
 package org.zenoss.amqp;
 
 import java.io.Closeable;
+import java.util.Collection;
+import java.util.concurrent.Executor;
 
 /**
  * Represents an AMQP channel which is opened on a {@link Connection} and used
@@ -47,6 +49,18 @@ public interface Channel extends Closeable {
      */
     public void deleteQueue(Queue queue) throws AmqpException;
 
+    /**
+     * Returns the number of messages ready for delivery in the specified
+     * queue, using a passive declare.
+     *
+     * @param queue
+     *            Message queue to check.
+     * @return The number of messages in the queue.
+     * @throws AmqpException
+     *             If the queue doesn't exist (which closes the channel).
+     */
+    public int getMessageCount(Queue queue) throws AmqpException;
+
     /**
      * Purges any items on the specified queue.
      * 
@@ -95,7 +109,11 @@ public interface Channel extends Closeable {
     /**
      * Creates a publisher which can be used to publish messages to the exchange
      * with the routing key. Messages are converted to the byte[] encoding via
-     * the specified message converter.
+     * the specified message converter. If the exchange has a
+     * {@link BatchPolicy} and the converter is a
+     * {@link BufferedMessageConverter}, messages are packed into batches and
+     * the publisher implements {@link java.io.Flushable} to send waiting
+     * batches.
      * 
      * @param <T>
      *            Underlying type of message body.
@@ -147,6 +165,50 @@ public interface Channel extends Closeable {
     public <T> BatchPublisher<T> createBatchPublisher(Exchange exchange,
             MessageConverter<T> converter) throws AmqpException;
 
+    /**
+     * Creates a publisher which uses publisher confirms to reliably publish
+     * messages to the exchange. Messages are expected to already contain
+     * byte[] encoded message bodies. The channel is placed in confirm mode and
+     * cannot be used for transactions.
+     * 
+     * @param exchange
+     *            Exchange to publish messages to.
+     * @param maxOutstanding
+     *            The maximum number of unconfirmed messages before publishing
+     *            blocks.
+     * @return A publisher which can be used to publish messages to the
+     *         exchange.
+     * @throws AmqpException
+     *             If the publisher cannot be created.
+     */
+    public ConfirmingPublisher<byte[]> createConfirmingPublisher(
+            Exchange exchange, int maxOutstanding) throws AmqpException;
+
+    /**
+     * Creates a publisher which uses publisher confirms to reliably publish
+     * messages to the exchange. Messages are converted to the byte[] encoding
+     * via the specified message converter. The channel is placed in confirm
+     * mode and cannot be used for transactions.
+     * 
+     * @param <T>
+     *            Underlying type of message body.
+     * @param exchange
+     *            Exchange to publish messages to.
+     * @param converter
+     *            Message converter which knows how to convert the message body
+     *            to its byte[] encoding.
+     * @param maxOutstanding
+     *            The maximum number of unconfirmed messages before publishing
+     *            blocks.
+     * @return A publisher which can be used to publish messages to the
+     *         exchange.
+     * @throws AmqpException
+     *             If the publisher cannot be created.
+     */
+    public <T> ConfirmingPublisher<T> createConfirmingPublisher(
+            Exchange exchange, MessageConverter<T> converter,
+            int maxOutstanding) throws AmqpException;
+
     /**
      * Creates the binding of queue to exchange with the routing key.
      * 
@@ -158,6 +220,28 @@ public interface Channel extends Closeable {
      */
     public void bindQueue(Binding binding) throws AmqpException;
 
+    /**
+     * Declares the exchanges, then the queues, then the bindings without
+     * waiting for the server to reply to each declaration (the AMQP
+     * <code>nowait</code> flag); only the last declaration waits for a reply.
+     * The server handles a channel's declarations in order and closes the
+     * channel if one fails, so when this returns all of them have succeeded.
+     * This restores a large topology in about one round trip.
+     * 
+     * @param exchanges
+     *            Exchanges to define.
+     * @param queues
+     *            Message queues to define.
+     * @param bindings
+     *            Bindings of queues to exchanges.
+     * @throws AmqpException
+     *             If a declaration fails, in which case the channel is
+     *             closed and it isn't known which declarations succeeded.
+     */
+    public void declareTopology(Collection<Exchange> exchanges,
+            Collection<Queue> queues, Collection<Binding> bindings)
+            throws AmqpException;
+
     /**
      * Deletes the binding of queue to exchange with routing key.
      * 
@@ -237,6 +321,88 @@ public interface Channel extends Closeable {
     public <T> Consumer<T> createConsumer(Queue queue,
             MessageConverter<T> converter, boolean noAck);
 
+    /**
+     * Creates a consumer to consume messages from the queue which
+     * decompresses and decodes the message bodies on the specified executor,
+     * so several messages can be decoded in parallel. Messages are still
+     * returned in the order they were received.
+     *
+     * @param <T>
+     *            The underlying message body data type.
+     * @param queue
+     *            The queue to consume from.
+     * @param converter
+     *            The converter used to decode the message body.
+     * @param decodeExecutor
+     *            The executor which decodes messages.
+     * @return The consumer used to consume messages from the queue. All
+     *         messages should be acknowledged with a call to
+     *         {@link Consumer#ackMessage(Message)} or
+     *         {@link Consumer#rejectMessage(Message, boolean)}
+     * @throws AmqpException
+     *             If the consumer cannot be created.
+     */
+    public <T> Consumer<T> createConsumer(Queue queue,
+            MessageConverter<T> converter, Executor decodeExecutor) throws AmqpException;
+
+    /**
+     * Creates a consumer to consume messages from the queue which buffers
+     * the specified number of deliveries. By default consumers buffer
+     * at least 1024 deliveries so the prefetch count can be
+     * raised at runtime; a channel hosting many consumers with a small,
+     * fixed prefetch count can use smaller buffers to save memory. The
+     * capacity should be at least the prefetch count, otherwise deliveries
+     * which don't fit overflow into an unbounded queue and the consumer is
+     * paused until they have been consumed.
+     *
+     * @param <T>
+     *            The underlying message body data type.
+     * @param queue
+     *            The queue to consume from.
+     * @param converter
+     *            The converter used to decode the message body.
+     * @param capacity
+     *            The number of deliveries buffered before the consumer is
+     *            paused (rounded up to a power of two).
+     * @return The consumer used to consume messages from the queue. All
+     *         messages should be acknowledged with a call to
+     *         {@link Consumer#ackMessage(Message)} or
+     *         {@link Consumer#rejectMessage(Message, boolean)}
+     * @throws AmqpException
+     *             If the consumer cannot be created.
+     */
+    public <T> Consumer<T> createConsumer(Queue queue,
+            MessageConverter<T> converter, int capacity) throws AmqpException;
+
+    /**
+     * Creates a consumer to consume messages from the queue which buffers
+     * the specified number of deliveries (see
+     * {@link #createConsumer(Queue, MessageConverter, int)}) and, if an
+     * executor is given, decodes the message bodies on it (see
+     * {@link #createConsumer(Queue, MessageConverter, Executor)}).
+     *
+     * @param <T>
+     *            The underlying message body data type.
+     * @param queue
+     *            The queue to consume from.
+     * @param converter
+     *            The converter used to decode the message body.
+     * @param decodeExecutor
+     *            The executor which decodes messages, or null to decode on
+     *            the consuming thread.
+     * @param capacity
+     *            The number of deliveries buffered before the consumer is
+     *            paused (rounded up to a power of two).
+     * @return The consumer used to consume messages from the queue. All
+     *         messages should be acknowledged with a call to
+     *         {@link Consumer#ackMessage(Message)} or
+     *         {@link Consumer#rejectMessage(Message, boolean)}
+     * @throws AmqpException
+     *             If the consumer cannot be created.
+     */
+    public <T> Consumer<T> createConsumer(Queue queue,
+            MessageConverter<T> converter, Executor decodeExecutor, int capacity) throws AmqpException;
+
     /**
      * Returns true if the channel has enabled transactions via a call to
      * {@link #enableTransactions()}.
@@ -0,0 +1,57 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.io.IOException;
+
+/**
+ * Compresses and decompresses message bodies for one
+ * <code>content-encoding</code>. Codecs are registered in a
+ * {@link CompressionCodecRegistry}; publishers look up the codec for the
+ * exchange's {@link Exchange.Compression} and consumers look up the codec
+ * matching the content encoding of each received message.
+ * <p/>
+ * Implementations must be thread-safe.
+ */
+public interface CompressionCodec {
+
+    /**
+     * Returns the <code>content-encoding</code> set on messages compressed
+     * with this codec.
+     *
+     * @return The content encoding.
+     */
+    public String getContentEncoding();
+
+    /**
+     * Compresses the data.
+     *
+     * @param data   The data to compress.
+     * @param offset Offset of the data in the array.
+     * @param length Length of the data.
+     * @return The compressed data, or null if the compressed data would not be
+     *         smaller than the original data (in which case the message is sent
+     *         uncompressed).
+     * @throws IOException If the data cannot be compressed.
+     */
+    public byte[] compress(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Decompresses the data.
+     *
+     * @param data   The compressed data.
+     * @param offset Offset of the data in the array.
+     * @param length Length of the data.
+     * @return The decompressed data.
+     * @throws IOException If the data is not valid for this codec.
+     */
+    public byte[] decompress(byte[] data, int offset, int length) throws IOException;
+}
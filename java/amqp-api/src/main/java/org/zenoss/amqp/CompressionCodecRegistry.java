@@ -0,0 +1,128 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.zenoss.amqp.impl.DeflateCompressionCodec;
+import org.zenoss.amqp.impl.DeflateDictionaryCompressionCodec;
+import org.zenoss.amqp.impl.LzfCompressionCodec;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of {@link CompressionCodec} instances keyed by content encoding
+ * (case-insensitive). The registry used by a connection is set with
+ * {@link ConnectionFactory#setCodecRegistry(CompressionCodecRegistry)}.
+ */
+public class CompressionCodecRegistry {
+
+    private static final CompressionCodecRegistry DEFAULT = newDefaultRegistry();
+
+    /**
+     * Returns the shared registry used by connection factories unless another
+     * registry is configured. It contains the built-in codecs; codecs
+     * registered with it are available to every connection using it.
+     *
+     * @return The default codec registry.
+     */
+    public static CompressionCodecRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Creates a new registry containing the built-in codecs for each
+     * {@link Exchange.Compression} type.
+     *
+     * @return A new registry containing the built-in codecs.
+     */
+    public static CompressionCodecRegistry newDefaultRegistry() {
+        CompressionCodecRegistry registry = new CompressionCodecRegistry();
+        registry.register(new DeflateCompressionCodec());
+        registry.register(new LzfCompressionCodec());
+        registry.register(new DeflateDictionaryCompressionCodec());
+        return registry;
+    }
+
+    private final ConcurrentHashMap<String, CompressionCodec> codecs =
+            new ConcurrentHashMap<String, CompressionCodec>();
+
+    /**
+     * Registers a codec, replacing any codec previously registered for the same
+     * content encoding.
+     *
+     * @param codec The codec to register.
+     */
+    public void register(CompressionCodec codec) {
+        if (codec == null || codec.getContentEncoding() == null) {
+            throw new NullPointerException();
+        }
+        this.codecs.put(key(codec.getContentEncoding()), codec);
+    }
+
+    /**
+     * Returns the codec for the content encoding.
+     *
+     * @param contentEncoding The content encoding.
+     * @return The codec for the content encoding, or null if there is no
+     *         codec registered for it.
+     */
+    public CompressionCodec getCodec(String contentEncoding) {
+        if (contentEncoding == null) {
+            return null;
+        }
+        return this.codecs.get(key(contentEncoding));
+    }
+
+    /**
+     * Returns the codec used to publish messages with the specified
+     * compression.
+     *
+     * @param compression The exchange compression.
+     * @return The codec for the compression, or null if the compression is
+     *         {@link Exchange.Compression#NONE}.
+     * @throws AmqpException If there is no codec registered for the compression.
+     */
+    public CompressionCodec getCodec(Exchange.Compression compression) throws AmqpException {
+        if (compression == null || compression.getContentEncoding() == null) {
+            return null;
+        }
+        final CompressionCodec codec = getCodec(compression.getContentEncoding());
+        if (codec == null) {
+            throw new AmqpException("No codec registered for content encoding: " +
+                    compression.getContentEncoding());
+        }
+        return codec;
+    }
+
+    /**
+     * Returns the codec used for {@link Exchange.Compression#DEFLATE_DICTIONARY},
+     * which is where compression dictionaries are added and activated.
+     *
+     * @return The dictionary compression codec.
+     * @throws AmqpException If no dictionary codec is registered.
+     */
+    public DictionaryCompressionCodec getDictionaryCodec() throws AmqpException {
+        final CompressionCodec codec = getCodec(Exchange.Compression.DEFLATE_DICTIONARY);
+        if (!(codec instanceof DictionaryCompressionCodec)) {
+            throw new AmqpException("Codec does not support dictionaries: " + codec);
+        }
+        return (DictionaryCompressionCodec) codec;
+    }
+
+    private static String key(String contentEncoding) {
+        return contentEncoding.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CompressionCodecRegistry [codecs=%s]", codecs.keySet());
+    }
+}
@@ -0,0 +1,172 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+
+/**
+ * A preset dictionary used by {@link DictionaryCompressionCodec}. The
+ * dictionary contains strings which occur in many messages (event classes,
+ * agent names, detail keys) so that even small messages can be compressed by
+ * referring to them. Dictionaries are created with
+ * {@link CompressionDictionaryTrainer} from captured message bodies.
+ * <p/>
+ * The dictionary identifier is sent with every message compressed with it, so
+ * it must be unique for each version of a dictionary.
+ */
+public class CompressionDictionary {
+
+    /**
+     * The largest useful dictionary. Deflate can only refer back 32KB, so only
+     * the end of a larger dictionary would be used.
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private final String id;
+    private final byte[] bytes;
+    private final int checksum;
+
+    /**
+     * Creates a dictionary.
+     *
+     * @param id    The unique identifier of the dictionary.
+     * @param bytes The contents of the dictionary. The most frequently used
+     *              strings should be at the end.
+     * @throws IllegalArgumentException If the dictionary is empty or larger
+     *                                  than {@link #MAX_SIZE}.
+     */
+    public CompressionDictionary(String id, byte[] bytes) throws IllegalArgumentException {
+        if (id == null || bytes == null) {
+            throw new NullPointerException();
+        }
+        if (id.trim().isEmpty()) {
+            throw new IllegalArgumentException("Dictionary identifier must not be empty");
+        }
+        if (bytes.length == 0 || bytes.length > MAX_SIZE) {
+            throw new IllegalArgumentException("Dictionary size must be between 1 and " + MAX_SIZE + " bytes");
+        }
+        this.id = id;
+        this.bytes = bytes.clone();
+        final Adler32 adler = new Adler32();
+        adler.update(this.bytes);
+        this.checksum = (int) adler.getValue();
+    }
+
+    /**
+     * Loads a dictionary from a file. The identifier of the dictionary is the
+     * name of the file without its extension.
+     *
+     * @param file The dictionary file.
+     * @return The dictionary.
+     * @throws IOException If the file can't be read.
+     */
+    public static CompressionDictionary load(File file) throws IOException {
+        String id = file.getName();
+        final int dot = id.lastIndexOf('.');
+        if (dot > 0) {
+            id = id.substring(0, dot);
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            return load(id, is);
+        } finally {
+            if (is != null) {
+                is.close();
+            }
+        }
+    }
+
+    /**
+     * Loads a dictionary from a stream. The stream is not closed.
+     *
+     * @param id The unique identifier of the dictionary.
+     * @param is The stream containing the dictionary contents.
+     * @return The dictionary.
+     * @throws IOException If the stream can't be read.
+     */
+    public static CompressionDictionary load(String id, InputStream is) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(MAX_SIZE);
+        final byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) >= 0) {
+            bos.write(buf, 0, n);
+        }
+        return new CompressionDictionary(id, bos.toByteArray());
+    }
+
+    /**
+     * Saves the dictionary contents to a file.
+     *
+     * @param file The file to write.
+     * @throws IOException If the file can't be written.
+     */
+    public void save(File file) throws IOException {
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(file);
+            os.write(this.bytes);
+        } finally {
+            if (os != null) {
+                os.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the unique identifier of the dictionary.
+     *
+     * @return The unique identifier of the dictionary.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns a copy of the dictionary contents.
+     *
+     * @return The dictionary contents.
+     */
+    public byte[] getBytes() {
+        return bytes.clone();
+    }
+
+    /**
+     * Returns the size of the dictionary in bytes.
+     *
+     * @return The size of the dictionary.
+     */
+    public int getSize() {
+        return bytes.length;
+    }
+
+    /**
+     * Returns the Adler-32 checksum of the dictionary, which zlib stores in
+     * data compressed with it.
+     *
+     * @return The Adler-32 checksum of the dictionary.
+     */
+    public int getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CompressionDictionary [id=%s, size=%d, checksum=%08x]", id, bytes.length, checksum);
+    }
+}
@@ -0,0 +1,220 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Builds a {@link CompressionDictionary} from sample message bodies.
+ * <p/>
+ * Every 8 byte substring of the samples is counted once per sample it occurs
+ * in. Fixed size segments of the samples are then chosen greedily by the total
+ * count of the substrings they contain which aren't already in the
+ * dictionary, until the dictionary is full. Substrings which only occur in a
+ * single sample are ignored. The best segments are placed at the end of the
+ * dictionary, where deflate can refer to them most cheaply.
+ * <p/>
+ * A trained dictionary isn't registered anywhere: save it, and add it to the
+ * {@link DictionaryCompressionCodec} of the {@link CompressionCodecRegistry}
+ * used by the connections which need it.
+ */
+public class CompressionDictionaryTrainer {
+
+    /**
+     * Default size of a trained dictionary.
+     */
+    public static final int DEFAULT_SIZE = 16 * 1024;
+
+    private static final int GRAM_LENGTH = 8;
+    private static final int SEGMENT_LENGTH = 32;
+    private static final int SEGMENT_STEP = SEGMENT_LENGTH / 2;
+    private static final int MIN_SAMPLES = 2;
+    private static final long MAX_SAMPLE_BYTES = 64L * 1024 * 1024;
+
+    private final List<byte[]> samples = new ArrayList<byte[]>();
+    private long sampleBytes = 0;
+
+    /**
+     * Adds a sample message body. Samples beyond a total of 64MB are ignored.
+     *
+     * @param sample The message body.
+     * @return True if the sample was added.
+     */
+    public boolean addSample(byte[] sample) {
+        if (sample == null) {
+            throw new NullPointerException();
+        }
+        if (sampleBytes + sample.length > MAX_SAMPLE_BYTES) {
+            return false;
+        }
+        samples.add(sample);
+        sampleBytes += sample.length;
+        return true;
+    }
+
+    /**
+     * Returns the number of samples added.
+     *
+     * @return The number of samples.
+     */
+    public int getSampleCount() {
+        return samples.size();
+    }
+
+    /**
+     * Trains a dictionary from the samples.
+     *
+     * @param id   The identifier of the dictionary.
+     * @param size The maximum size of the dictionary.
+     * @return The dictionary.
+     * @throws IllegalStateException If the samples don't have enough in common
+     *                               to build a dictionary.
+     */
+    public CompressionDictionary train(String id, int size) throws IllegalStateException {
+        if (size <= 0 || size > CompressionDictionary.MAX_SIZE) {
+            throw new IllegalArgumentException("Dictionary size must be between 1 and " +
+                    CompressionDictionary.MAX_SIZE);
+        }
+        final Map<Long, int[]> frequencies = countGrams();
+
+        /* Score each distinct segment, best first */
+        final PriorityQueue<Segment> queue = new PriorityQueue<Segment>();
+        final Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+        for (byte[] sample : samples) {
+            for (int start = 0; start + GRAM_LENGTH <= sample.length; start += SEGMENT_STEP) {
+                final int end = Math.min(start + SEGMENT_LENGTH, sample.length);
+                if (seen.add(ByteBuffer.wrap(sample, start, end - start).slice())) {
+                    final Segment segment = new Segment(sample, start, end);
+                    segment.score = segment.score(frequencies, null);
+                    if (segment.score > 0) {
+                        queue.add(segment);
+                    }
+                }
+            }
+        }
+
+        /* Greedily choose segments. Scores only decrease as grams are covered, so
+           a segment whose updated score is still the best can be chosen without
+           rescoring the others. */
+        final Set<Long> covered = new HashSet<Long>();
+        final List<Segment> chosen = new ArrayList<Segment>();
+        int total = 0;
+        while (total < size && !queue.isEmpty()) {
+            final Segment segment = queue.poll();
+            final long score = segment.score(frequencies, covered);
+            if (score <= 0) {
+                continue;
+            }
+            if (score < segment.score && !queue.isEmpty() && score < queue.peek().score) {
+                segment.score = score;
+                queue.add(segment);
+                continue;
+            }
+            segment.cover(covered);
+            chosen.add(segment);
+            total += segment.end - segment.start;
+        }
+        if (chosen.isEmpty()) {
+            throw new IllegalStateException("Samples have no content in common");
+        }
+
+        /* Best segments last, truncated from the front to the requested size */
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(total);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            final Segment segment = chosen.get(i);
+            bos.write(segment.sample, segment.start, segment.end - segment.start);
+        }
+        byte[] bytes = bos.toByteArray();
+        if (bytes.length > size) {
+            bytes = Arrays.copyOfRange(bytes, bytes.length - size, bytes.length);
+        }
+        return new CompressionDictionary(id, bytes);
+    }
+
+    /**
+     * Returns the number of samples each 8 byte substring occurs in.
+     */
+    private Map<Long, int[]> countGrams() {
+        final Map<Long, int[]> frequencies = new HashMap<Long, int[]>();
+        final Set<Long> inSample = new HashSet<Long>();
+        for (byte[] sample : samples) {
+            inSample.clear();
+            for (int i = 0; i + GRAM_LENGTH <= sample.length; i++) {
+                final Long gram = gram(sample, i);
+                if (inSample.add(gram)) {
+                    final int[] count = frequencies.get(gram);
+                    if (count == null) {
+                        frequencies.put(gram, new int[]{1});
+                    } else {
+                        count[0]++;
+                    }
+                }
+            }
+        }
+        return frequencies;
+    }
+
+    private static long gram(byte[] data, int offset) {
+        long gram = 0;
+        for (int i = 0; i < GRAM_LENGTH; i++) {
+            gram = (gram << 8) | (data[offset + i] & 255);
+        }
+        return gram;
+    }
+
+    private static class Segment implements Comparable<Segment> {
+        private final byte[] sample;
+        private final int start;
+        private final int end;
+        private long score;
+
+        private Segment(byte[] sample, int start, int end) {
+            this.sample = sample;
+            this.start = start;
+            this.end = end;
+        }
+
+        private long score(Map<Long, int[]> frequencies, Set<Long> covered) {
+            long score = 0;
+            final Set<Long> counted = new HashSet<Long>();
+            for (int i = start; i + GRAM_LENGTH <= end; i++) {
+                final Long gram = gram(sample, i);
+                if ((covered == null || !covered.contains(gram)) && counted.add(gram)) {
+                    final int count = frequencies.get(gram)[0];
+                    if (count >= MIN_SAMPLES) {
+                        score += count;
+                    }
+                }
+            }
+            return score;
+        }
+
+        private void cover(Set<Long> covered) {
+            for (int i = start; i + GRAM_LENGTH <= end; i++) {
+                covered.add(gram(sample, i));
+            }
+        }
+
+        @Override
+        public int compareTo(Segment other) {
+            return (score > other.score) ? -1 : ((score < other.score) ? 1 : 0);
+        }
+    }
+}
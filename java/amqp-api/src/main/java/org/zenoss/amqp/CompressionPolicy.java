@@ -0,0 +1,279 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a message published to an exchange is worth compressing.
+ * Messages smaller than the minimum size are never compressed. For larger
+ * messages the policy keeps a running estimate of the compression ratio for
+ * each message type (the full name of the protobuf message) and stops
+ * compressing a type once the estimated saving falls below the minimum gain.
+ * A disabled type is still sampled periodically so it is re-enabled if its
+ * messages become more compressible.
+ * <p/>
+ * The policy also counts its decisions and the bytes saved. It is shared by
+ * every publisher to the exchange and is thread-safe.
+ */
+public class CompressionPolicy {
+
+    /**
+     * Default minimum message size (in bytes) which is compressed.
+     */
+    public static final int DEFAULT_MIN_SIZE = 256;
+
+    /**
+     * Default minimum fraction of the message size which compression must save.
+     */
+    public static final double DEFAULT_MIN_GAIN = 0.05;
+
+    /* Weight of the newest sample in the running ratio estimate */
+    private static final double SMOOTHING = 0.1;
+
+    /* Number of samples of a type before it can be disabled */
+    private static final int WARMUP_SAMPLES = 8;
+
+    /* While a type is disabled, one in this many of its messages is compressed */
+    private static final int PROBE_INTERVAL = 64;
+
+    private final int minSize;
+    private final double minGain;
+    private final ConcurrentHashMap<String, RatioEstimate> estimates = new ConcurrentHashMap<String, RatioEstimate>();
+
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong ineffectiveCount = new AtomicLong();
+    private final AtomicLong skippedSizeCount = new AtomicLong();
+    private final AtomicLong skippedRatioCount = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    /**
+     * Creates a policy with the default minimum size and minimum gain.
+     */
+    public CompressionPolicy() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_MIN_GAIN);
+    }
+
+    /**
+     * Creates a policy with the specified minimum size and minimum gain.
+     *
+     * @param minSize The minimum size of a message (in bytes) which is
+     *                compressed.
+     * @param minGain The minimum fraction of the message size (0.0 - 1.0) which
+     *                compression must save on average for a message type to
+     *                stay compressed. Zero compresses every type.
+     */
+    public CompressionPolicy(int minSize, double minGain) {
+        if (minSize < 0) {
+            throw new IllegalArgumentException("Minimum size must not be negative");
+        }
+        if (minGain < 0.0 || minGain >= 1.0) {
+            throw new IllegalArgumentException("Minimum gain must be between 0.0 and 1.0");
+        }
+        this.minSize = minSize;
+        this.minGain = minGain;
+    }
+
+    /**
+     * Returns true if a message of the specified type and size should be
+     * compressed. If this returns true, the caller must report the outcome
+     * with {@link #recordResult(String, int, int)}.
+     *
+     * @param type   The message type.
+     * @param length The size of the uncompressed message.
+     * @return True if the message should be compressed.
+     */
+    public boolean shouldCompress(String type, int length) {
+        if (length < this.minSize) {
+            this.skippedSizeCount.incrementAndGet();
+            return false;
+        }
+        if (this.minGain > 0.0) {
+            final RatioEstimate estimate = this.estimates.get(key(type));
+            if (estimate != null && !estimate.shouldCompress(this.minGain)) {
+                this.skippedRatioCount.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the result of compressing a message.
+     *
+     * @param type             The message type.
+     * @param length           The size of the uncompressed message.
+     * @param compressedLength The size of the compressed message, or
+     *                         <code>length</code> if compression didn't make the
+     *                         message smaller (it was sent uncompressed).
+     */
+    public void recordResult(String type, int length, int compressedLength) {
+        if (compressedLength < length) {
+            this.compressedCount.incrementAndGet();
+        } else {
+            this.ineffectiveCount.incrementAndGet();
+            compressedLength = length;
+        }
+        this.uncompressedBytes.addAndGet(length);
+        this.compressedBytes.addAndGet(compressedLength);
+
+        if (this.minGain > 0.0 && length > 0) {
+            final String key = key(type);
+            RatioEstimate estimate = this.estimates.get(key);
+            if (estimate == null) {
+                estimate = new RatioEstimate();
+                final RatioEstimate previous = this.estimates.putIfAbsent(key, estimate);
+                if (previous != null) {
+                    estimate = previous;
+                }
+            }
+            estimate.update((double) compressedLength / length);
+        }
+    }
+
+    private static String key(String type) {
+        return (type == null) ? "" : type;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public double getMinGain() {
+        return minGain;
+    }
+
+    /**
+     * Returns the estimated compression ratio (compressed size divided by
+     * original size) of messages of the specified type.
+     *
+     * @param type The message type.
+     * @return The estimated ratio, or {@link Double#NaN} if no messages of the
+     *         type have been compressed.
+     */
+    public double getEstimatedRatio(String type) {
+        final RatioEstimate estimate = this.estimates.get(key(type));
+        return (estimate == null) ? Double.NaN : estimate.getRatio();
+    }
+
+    /**
+     * Returns the number of messages which were sent compressed.
+     *
+     * @return The number of messages which were sent compressed.
+     */
+    public long getCompressedCount() {
+        return compressedCount.get();
+    }
+
+    /**
+     * Returns the number of messages which were compressed but sent
+     * uncompressed because compression didn't make them smaller.
+     *
+     * @return The number of ineffective compression attempts.
+     */
+    public long getIneffectiveCount() {
+        return ineffectiveCount.get();
+    }
+
+    /**
+     * Returns the number of messages which were not compressed because they
+     * were smaller than the minimum size.
+     *
+     * @return The number of messages skipped due to their size.
+     */
+    public long getSkippedSizeCount() {
+        return skippedSizeCount.get();
+    }
+
+    /**
+     * Returns the number of messages which were not compressed because their
+     * type doesn't compress well enough.
+     *
+     * @return The number of messages skipped due to their compression ratio.
+     */
+    public long getSkippedRatioCount() {
+        return skippedRatioCount.get();
+    }
+
+    /**
+     * Returns the total size of the messages which compression was attempted on.
+     *
+     * @return The total size before compression.
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * Returns the total size of the messages which compression was attempted
+     * on, as they were sent.
+     *
+     * @return The total size after compression.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * Returns the number of bytes saved by compression.
+     *
+     * @return The number of bytes saved by compression.
+     */
+    public long getSavedBytes() {
+        return getUncompressedBytes() - getCompressedBytes();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CompressionPolicy [minSize=%d, minGain=%s, compressed=%d, ineffective=%d, " +
+                "skippedSize=%d, skippedRatio=%d, savedBytes=%d]", minSize, minGain, getCompressedCount(),
+                getIneffectiveCount(), getSkippedSizeCount(), getSkippedRatioCount(), getSavedBytes());
+    }
+
+    /**
+     * Exponentially weighted moving average of the compression ratio of one
+     * message type.
+     */
+    private static class RatioEstimate {
+        private double ratio = 1.0;
+        private int samples = 0;
+        private int skipped = 0;
+
+        private synchronized void update(double sample) {
+            if (samples == 0) {
+                ratio = sample;
+            } else {
+                ratio += SMOOTHING * (sample - ratio);
+            }
+            if (samples < WARMUP_SAMPLES) {
+                samples++;
+            }
+        }
+
+        private synchronized boolean shouldCompress(double minGain) {
+            if (samples < WARMUP_SAMPLES || (1.0 - ratio) >= minGain) {
+                return true;
+            }
+            /* Periodically sample a disabled type */
+            if (++skipped >= PROBE_INTERVAL) {
+                skipped = 0;
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized double getRatio() {
+            return ratio;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+/**
+ * Bounds on the number of workers consuming from a queue for a listener added
+ * with {@link AmqpConnectionManager#addListener(QueueConfiguration, QueueListenerFactory)}.
+ * Each worker has its own channel, consumer and listener. The minimum number
+ * of workers is started with the listener; when the minimum and maximum
+ * differ, a worker is added while the workers are busy and messages are
+ * waiting in the queue, and removed again while the workers are mostly idle.
+ * <p/>
+ * The bounds are read from <code>queue.&lt;identifier&gt;.concurrency_min</code>
+ * and <code>queue.&lt;identifier&gt;.concurrency_max</code> in messaging.conf.
+ */
+public class ConcurrencyPolicy {
+
+    /**
+     * Default minimum number of workers.
+     */
+    public static final int DEFAULT_MIN = 1;
+
+    private final int min;
+    private final int max;
+
+    /**
+     * Creates a policy for a fixed number of workers.
+     *
+     * @param workers The number of workers.
+     * @throws IllegalArgumentException If the number isn't positive.
+     */
+    public ConcurrencyPolicy(int workers) throws IllegalArgumentException {
+        this(workers, workers);
+    }
+
+    /**
+     * Creates a policy for a number of workers which changes with the load.
+     *
+     * @param min The minimum number of workers.
+     * @param max The maximum number of workers.
+     * @throws IllegalArgumentException If the minimum isn't positive or is
+     *                                  greater than the maximum.
+     */
+    public ConcurrencyPolicy(int min, int max) throws IllegalArgumentException {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("Concurrency bounds must be positive with min <= max");
+        }
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Returns the minimum number of workers.
+     *
+     * @return The minimum number of workers.
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the maximum number of workers.
+     *
+     * @return The maximum number of workers.
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Returns whether the number of workers changes with the load.
+     *
+     * @return True if the minimum and maximum differ.
+     */
+    public boolean isElastic() {
+        return min != max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConcurrencyPolicy [min=%d, max=%d]", min, max);
+    }
+}
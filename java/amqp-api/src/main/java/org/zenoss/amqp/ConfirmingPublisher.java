@@ -0,0 +1,105 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.io.Closeable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An interface which is used to reliably publish messages to an exchange using
+ * publisher confirms. Unlike {@link BatchPublisher}, publishing does not wait
+ * for a round trip to the broker. Instead each message is assigned a future
+ * which completes when the broker acknowledges or rejects the message, and the
+ * number of unconfirmed messages is capped so a slow broker applies
+ * backpressure to the publishing threads.
+ * <p/>
+ * Messages published with {@link #publish(Object, String)} are also tracked;
+ * use {@link #confirmOutstanding()} or {@link #waitForConfirms(long, TimeUnit)}
+ * to verify that they were delivered.
+ *
+ * @param <T> The underlying type of the message body.
+ */
+public interface ConfirmingPublisher<T> extends Publisher<T>, Closeable {
+
+    /**
+     * Publishes the message body to the exchange with the specified routing
+     * key. If the maximum number of unconfirmed messages has been reached, this
+     * call blocks until the broker confirms an earlier message.
+     *
+     * @param body       Message body.
+     * @param routingKey The routing key to use to publish the message.
+     * @return A future which completes when the broker confirms the message.
+     *         If the broker rejects the message, {@link Future#get()} throws
+     *         an exception wrapping an {@link AmqpException}.
+     * @throws AmqpException        If the message can't be published.
+     * @throws InterruptedException If interrupted waiting for an earlier
+     *                              message to be confirmed.
+     */
+    public Future<Void> publishAsync(T body, String routingKey)
+            throws AmqpException, InterruptedException;
+
+    /**
+     * Publishes the message to the exchange with the specified message
+     * properties and routing key. If the maximum number of unconfirmed
+     * messages has been reached, this call blocks until the broker confirms an
+     * earlier message.
+     *
+     * @param body              The body of the message to publish.
+     * @param propertiesBuilder A builder containing properties for the message.
+     * @param routingKey        The routing key to use to publish the message.
+     * @return A future which completes when the broker confirms the message.
+     * @throws AmqpException        If the message can't be published.
+     * @throws InterruptedException If interrupted waiting for an earlier
+     *                              message to be confirmed.
+     */
+    public Future<Void> publishAsync(T body, MessagePropertiesBuilder propertiesBuilder,
+                                     String routingKey) throws AmqpException, InterruptedException;
+
+    /**
+     * Returns a future which completes when every message published before
+     * this call has been confirmed. The future fails if any of those messages
+     * was rejected by the broker.
+     *
+     * @return A future for all currently outstanding messages.
+     */
+    public Future<Void> confirmOutstanding();
+
+    /**
+     * Waits for every message published before this call to be confirmed.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit    Unit of time.
+     * @throws AmqpException        If any of the messages was rejected by the
+     *                              broker or the channel was closed.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws TimeoutException     If the messages weren't confirmed in time.
+     */
+    public void waitForConfirms(long timeout, TimeUnit unit)
+            throws AmqpException, InterruptedException, TimeoutException;
+
+    /**
+     * Returns the number of messages published which have not yet been
+     * confirmed by the broker.
+     *
+     * @return The number of unconfirmed messages.
+     */
+    public int getOutstandingCount();
+
+    /**
+     * Returns the maximum number of unconfirmed messages allowed before
+     * publishing blocks.
+     *
+     * @return The maximum number of unconfirmed messages.
+     */
+    public int getMaxOutstanding();
+}
@@ -27,6 +27,57 @@ public abstract class ConnectionFactory {
         return new ConnectionFactoryImpl();
     }
 
+    private volatile CompressionCodecRegistry codecRegistry = CompressionCodecRegistry.getDefault();
+
+    /**
+     * Returns the registry of compression codecs used by connections created
+     * by this factory.
+     *
+     * @return The compression codec registry.
+     */
+    public CompressionCodecRegistry getCodecRegistry() {
+        return codecRegistry;
+    }
+
+    /**
+     * Sets the registry of compression codecs used by connections created by
+     * this factory. Defaults to {@link CompressionCodecRegistry#getDefault()}.
+     *
+     * @param codecRegistry The compression codec registry.
+     */
+    public void setCodecRegistry(CompressionCodecRegistry codecRegistry) {
+        if (codecRegistry == null) {
+            throw new NullPointerException();
+        }
+        this.codecRegistry = codecRegistry;
+    }
+
+    private volatile ConnectionTuning connectionTuning = ConnectionTuning.DEFAULT;
+
+    /**
+     * Returns the settings of connections created by this factory. The
+     * properties of each server's URI override these settings.
+     *
+     * @return The connection settings.
+     */
+    public ConnectionTuning getConnectionTuning() {
+        return connectionTuning;
+    }
+
+    /**
+     * Sets the settings of connections created by this factory. Defaults to
+     * {@link ConnectionTuning#DEFAULT}.
+     *
+     * @param connectionTuning The connection settings.
+     * @see QueueConfig#getConnectionTuning()
+     */
+    public void setConnectionTuning(ConnectionTuning connectionTuning) {
+        if (connectionTuning == null) {
+            throw new NullPointerException();
+        }
+        this.connectionTuning = connectionTuning;
+    }
+
     /**
      * Creates a new {@link Connection} to the specified {@link AmqpServerUri}.
      * 
@@ -0,0 +1,132 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One of the connections of an {@link AmqpConnectionManager} (see
+ * {@link AmqpConnectionManager#setConnections(int)}). Each connection is read
+ * by its own I/O thread and is reconnected independently of the others; the
+ * channels of the workers and publishers assigned to it are opened on it.
+ */
+class ConnectionShard {
+
+    private final int index;
+    private final int count;
+    private volatile Connection connection;
+    private volatile AmqpServerUri uri;
+    private volatile TopologyCache topology = new TopologyCache();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong channelsOpened = new AtomicLong();
+
+    ConnectionShard(int index, int count) {
+        this.index = index;
+        this.count = count;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns the broker the shard is (or was last) connected to.
+     *
+     * @return The broker, or null if the shard hasn't connected.
+     */
+    AmqpServerUri getUri() {
+        return uri;
+    }
+
+    /**
+     * Returns the exchanges, queues and bindings declared on the current
+     * connection.
+     *
+     * @return The topology cache of the current connection.
+     */
+    TopologyCache getTopology() {
+        return topology;
+    }
+
+    /**
+     * Sets the connection after connecting, with an empty topology cache.
+     *
+     * @param connection The connection.
+     * @param uri        The broker connected to.
+     */
+    void setConnection(Connection connection, AmqpServerUri uri) {
+        this.uri = uri;
+        this.topology = new TopologyCache();
+        this.connection = connection;
+        this.connects.incrementAndGet();
+    }
+
+    /**
+     * Clears the connection after disconnecting.
+     */
+    void clearConnection() {
+        this.connection = null;
+    }
+
+    /**
+     * Returns true if the shard has a connection (which may have been closed
+     * by the broker since).
+     *
+     * @return True if the shard has a connection.
+     */
+    boolean isConnected() {
+        return this.connection != null;
+    }
+
+    /**
+     * Returns true if the shard has an open connection.
+     *
+     * @return True if the shard has an open connection.
+     */
+    boolean isOpen() {
+        final Connection current = this.connection;
+        return current != null && current.isOpen();
+    }
+
+    /**
+     * Opens a channel on the shard's connection.
+     *
+     * @return The channel.
+     * @throws AmqpException If the shard isn't connected or the channel
+     *                       can't be opened.
+     */
+    Channel openChannel() throws AmqpException {
+        final Connection current = this.connection;
+        if (current == null) {
+            throw new AmqpException("Not connected to message broker");
+        }
+        final Channel channel = current.openChannel();
+        this.channelsOpened.incrementAndGet();
+        return channel;
+    }
+
+    long getConnects() {
+        return connects.get();
+    }
+
+    long getChannelsOpened() {
+        return channelsOpened.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connection %d/%d", index + 1, count);
+    }
+}
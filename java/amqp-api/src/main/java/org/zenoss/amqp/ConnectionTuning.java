@@ -0,0 +1,306 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * Settings of the connections created by a {@link ConnectionFactory}: the
+ * AMQP frame and channel limits and heartbeat, and the TCP socket options.
+ * <p/>
+ * Settings are read from <code>connection.&lt;key&gt;</code> in
+ * messaging.conf (see {@link QueueConfig#getConnectionTuning()}) and can be
+ * overridden for one server by its URI query properties, for example
+ * <code>amqp://localhost/zenoss?frame_max=131072;send_buffer=1048576</code>.
+ * The keys are <code>frame_max</code>, <code>channel_max</code>,
+ * <code>heartbeat</code> (seconds), <code>send_buffer</code> and
+ * <code>receive_buffer</code> (bytes), <code>tcp_nodelay</code>, and
+ * <code>connection_timeout</code> and <code>shutdown_timeout</code>
+ * (milliseconds).
+ */
+public class ConnectionTuning {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionTuning.class);
+
+    public static final String FRAME_MAX = "frame_max";
+    public static final String CHANNEL_MAX = "channel_max";
+    public static final String HEARTBEAT = "heartbeat";
+    public static final String SEND_BUFFER = "send_buffer";
+    public static final String RECEIVE_BUFFER = "receive_buffer";
+    public static final String TCP_NODELAY = "tcp_nodelay";
+    public static final String CONNECTION_TIMEOUT = "connection_timeout";
+    public static final String SHUTDOWN_TIMEOUT = "shutdown_timeout";
+
+    /**
+     * The defaults: no client limits on frame size or channels, the
+     * heartbeat from global.conf, the operating system's socket buffer
+     * sizes, TCP_NODELAY on, and no connection or shutdown timeout.
+     */
+    public static final ConnectionTuning DEFAULT = new Builder().build();
+
+    private final int frameMax;
+    private final int channelMax;
+    private final int heartbeat;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final boolean tcpNoDelay;
+    private final int connectionTimeout;
+    private final int shutdownTimeout;
+
+    private ConnectionTuning(Builder builder) {
+        this.frameMax = builder.frameMax;
+        this.channelMax = builder.channelMax;
+        this.heartbeat = builder.heartbeat;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.connectionTimeout = builder.connectionTimeout;
+        this.shutdownTimeout = builder.shutdownTimeout;
+    }
+
+    /**
+     * Returns the largest frame size requested from the server.
+     *
+     * @return The frame size in bytes, or zero for no limit.
+     */
+    public int getFrameMax() {
+        return frameMax;
+    }
+
+    /**
+     * Returns the largest number of channels requested from the server.
+     *
+     * @return The number of channels, or zero for no limit.
+     */
+    public int getChannelMax() {
+        return channelMax;
+    }
+
+    /**
+     * Returns the heartbeat interval requested from the server.
+     *
+     * @return The interval in seconds, zero to disable heartbeats, or -1 to
+     *         use <code>amqpheartbeat</code> from global.conf.
+     */
+    public int getHeartbeat() {
+        return heartbeat;
+    }
+
+    /**
+     * Returns the socket send buffer size.
+     *
+     * @return The size in bytes, or zero for the system default.
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Returns the socket receive buffer size.
+     *
+     * @return The size in bytes, or zero for the system default.
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Returns whether Nagle's algorithm is disabled on the socket.
+     *
+     * @return True if TCP_NODELAY is set.
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Returns how long to wait for the TCP connection to be established.
+     *
+     * @return The timeout in milliseconds, or zero to wait indefinitely.
+     */
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * Returns how long to wait for the server to acknowledge the connection
+     * closing.
+     *
+     * @return The timeout in milliseconds, or -1 to wait indefinitely.
+     */
+    public int getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    /**
+     * Returns these settings overridden by any valid settings in the
+     * properties. Invalid values are logged and ignored.
+     *
+     * @param properties Properties (such as those of an {@link AmqpServerUri}
+     *                   or <code>connection.*</code> in messaging.conf)
+     *                   keyed by the names above.
+     * @return The settings.
+     */
+    public ConnectionTuning with(Map<String, String> properties) {
+        final Builder builder = new Builder(this);
+        final Integer frameMax = parseInt(properties, FRAME_MAX, 0);
+        if (frameMax != null) {
+            builder.frameMax(frameMax);
+        }
+        final Integer channelMax = parseInt(properties, CHANNEL_MAX, 0);
+        if (channelMax != null) {
+            builder.channelMax(channelMax);
+        }
+        final Integer heartbeat = parseInt(properties, HEARTBEAT, -1);
+        if (heartbeat != null) {
+            builder.heartbeat(heartbeat);
+        }
+        final Integer sendBufferSize = parseInt(properties, SEND_BUFFER, 0);
+        if (sendBufferSize != null) {
+            builder.sendBufferSize(sendBufferSize);
+        }
+        final Integer receiveBufferSize = parseInt(properties, RECEIVE_BUFFER, 0);
+        if (receiveBufferSize != null) {
+            builder.receiveBufferSize(receiveBufferSize);
+        }
+        final String tcpNoDelay = properties.get(TCP_NODELAY);
+        if (tcpNoDelay != null) {
+            builder.tcpNoDelay(Boolean.parseBoolean(tcpNoDelay.trim()));
+        }
+        final Integer connectionTimeout = parseInt(properties, CONNECTION_TIMEOUT, 0);
+        if (connectionTimeout != null) {
+            builder.connectionTimeout(connectionTimeout);
+        }
+        final Integer shutdownTimeout = parseInt(properties, SHUTDOWN_TIMEOUT, -1);
+        if (shutdownTimeout != null) {
+            builder.shutdownTimeout(shutdownTimeout);
+        }
+        return builder.build();
+    }
+
+    private static Integer parseInt(Map<String, String> properties, String key, int min) {
+        final String value = properties.get(key);
+        if (value == null) {
+            return null;
+        }
+        try {
+            final int parsed = Integer.parseInt(value.trim());
+            if (parsed >= min) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Logged below
+        }
+        logger.warn("Invalid connection setting {}: {}", key, value);
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConnectionTuning [frameMax=%d, channelMax=%d, heartbeat=%d, sendBufferSize=%d, " +
+                "receiveBufferSize=%d, tcpNoDelay=%s, connectionTimeout=%d, shutdownTimeout=%d]", frameMax,
+                channelMax, heartbeat, sendBufferSize, receiveBufferSize, tcpNoDelay, connectionTimeout,
+                shutdownTimeout);
+    }
+
+    /**
+     * Builds {@link ConnectionTuning} settings, starting from the defaults.
+     */
+    public static class Builder {
+        private int frameMax = 0;
+        private int channelMax = 0;
+        private int heartbeat = -1;
+        private int sendBufferSize = 0;
+        private int receiveBufferSize = 0;
+        private boolean tcpNoDelay = true;
+        private int connectionTimeout = 0;
+        private int shutdownTimeout = -1;
+
+        public Builder() {
+        }
+
+        /**
+         * Creates a builder starting from existing settings.
+         *
+         * @param tuning The settings.
+         */
+        public Builder(ConnectionTuning tuning) {
+            this.frameMax = tuning.frameMax;
+            this.channelMax = tuning.channelMax;
+            this.heartbeat = tuning.heartbeat;
+            this.sendBufferSize = tuning.sendBufferSize;
+            this.receiveBufferSize = tuning.receiveBufferSize;
+            this.tcpNoDelay = tuning.tcpNoDelay;
+            this.connectionTimeout = tuning.connectionTimeout;
+            this.shutdownTimeout = tuning.shutdownTimeout;
+        }
+
+        public Builder frameMax(int frameMax) {
+            this.frameMax = frameMax;
+            return this;
+        }
+
+        public Builder channelMax(int channelMax) {
+            this.channelMax = channelMax;
+            return this;
+        }
+
+        public Builder heartbeat(int heartbeat) {
+            this.heartbeat = heartbeat;
+            return this;
+        }
+
+        public Builder sendBufferSize(int sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+            return this;
+        }
+
+        public Builder receiveBufferSize(int receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        public Builder connectionTimeout(int connectionTimeout) {
+            this.connectionTimeout = connectionTimeout;
+            return this;
+        }
+
+        public Builder shutdownTimeout(int shutdownTimeout) {
+            this.shutdownTimeout = shutdownTimeout;
+            return this;
+        }
+
+        /**
+         * Returns the settings.
+         *
+         * @return The settings.
+         * @throws IllegalArgumentException If a setting is out of range.
+         */
+        public ConnectionTuning build() throws IllegalArgumentException {
+            if (frameMax < 0 || channelMax < 0 || sendBufferSize < 0 || receiveBufferSize < 0
+                    || connectionTimeout < 0) {
+                throw new IllegalArgumentException("Connection settings must not be negative");
+            }
+            if (heartbeat < -1 || shutdownTimeout < -1) {
+                throw new IllegalArgumentException("Heartbeat and shutdown timeout must be -1 or more");
+            }
+            return new ConnectionTuning(this);
+        }
+    }
+}
@@ -10,6 +10,7 @@
 
 package org.zenoss.amqp;
 
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -48,6 +49,30 @@ public interface Consumer<T> {
     public Message<T> nextMessage(long waitTime, TimeUnit unit)
             throws AmqpException, InterruptedException;
 
+    /**
+     * Returns the next message if one has already been received, without
+     * waiting. Used with {@link #setReadyListener(Runnable)} to consume
+     * without a thread waiting for each consumer.
+     *
+     * @return The next message, or null if none has been received.
+     * @throws AmqpException
+     *             If an error occurs reading from the queue (including the
+     *             channel being shut down or the consumer being cancelled).
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    public Message<T> pollMessage() throws AmqpException, InterruptedException;
+
+    /**
+     * Sets a callback run when a message arrives, or when the consumer is
+     * shut down or cancelled, after which {@link #pollMessage()} returns the
+     * message or throws. The callback is run on the connection's thread and
+     * must not block. Must be set before the first message is consumed.
+     *
+     * @param readyListener
+     *            The callback, or null.
+     */
+    public void setReadyListener(Runnable readyListener);
+
     /**
      * Cancels the consumer so the server sends no more messages to the client.
      * 
@@ -92,4 +117,90 @@ public interface Consumer<T> {
      */
     public void rejectMessage(Message<?> message, boolean requeue)
             throws AmqpException;
+
+    /**
+     * Acknowledges several messages. Messages received consecutively are
+     * acknowledged with a single acknowledgment where possible.
+     *
+     * @param messages
+     *            Messages to acknowledge.
+     * @throws AmqpException
+     *             If an error occurs sending the acknowledgments.
+     */
+    public void ackMessages(Collection<? extends Message<?>> messages) throws AmqpException;
+
+    /**
+     * Rejects several messages. Messages received consecutively are rejected
+     * together where possible, so rejecting failed messages before
+     * acknowledging the rest of a batch lets the acknowledgments be combined.
+     *
+     * @param messages
+     *            Messages to reject.
+     * @param requeue
+     *            Whether the messages should be re-queued.
+     * @throws AmqpException
+     *             If an error occurs rejecting the messages.
+     */
+    public void rejectMessages(Collection<? extends Message<?>> messages, boolean requeue)
+            throws AmqpException;
+
+    /**
+     * Re-queues the deliveries received but not yet consumed, with as few
+     * rejections as possible, so they are delivered to another consumer. The
+     * consumer should be cancelled first so no more are received. Nothing is
+     * re-queued if messages are acknowledged automatically.
+     *
+     * @return The number of deliveries re-queued.
+     * @throws AmqpException
+     *             If an error occurs rejecting the deliveries.
+     * @throws InterruptedException
+     *             If interrupted waiting for deliveries being decoded.
+     */
+    public int requeueBuffered() throws AmqpException, InterruptedException;
+
+    /**
+     * Sets a filter which acknowledges or rejects unwanted messages before
+     * they are decoded. Must be set before the first message is consumed.
+     *
+     * @param filter
+     *            The filter, or null to return all messages.
+     */
+    public void setMessageFilter(MessageFilter filter);
+
+    /**
+     * Sets whether message bodies are decoded when {@link Message#getBody()}
+     * is first called, instead of when the message is received. Messages
+     * which can't be decoded then throw a {@link MessageBodyException} from
+     * {@link Message#getBody()}. Messages unpacked from a batch are always
+     * decoded when the batch is received. Must be set before the first
+     * message is consumed.
+     *
+     * @param lazyDecoding
+     *            Whether message bodies are decoded lazily.
+     */
+    public void setLazyDecoding(boolean lazyDecoding);
+
+    /**
+     * Sets limits on the deliveries buffered by the consumer, which stops
+     * consuming from the queue while they are exceeded.
+     *
+     * @param bufferPolicy
+     *            The buffer limits, or null to only limit the number of
+     *            buffered deliveries by the channel's prefetch count.
+     */
+    public void setBufferPolicy(BufferPolicy bufferPolicy);
+
+    /**
+     * Returns the number of deliveries received but not yet consumed.
+     *
+     * @return The number of buffered deliveries.
+     */
+    public int getBufferedMessages();
+
+    /**
+     * Returns the total size of the deliveries received but not yet consumed.
+     *
+     * @return The number of buffered bytes.
+     */
+    public long getBufferedBytes();
 }
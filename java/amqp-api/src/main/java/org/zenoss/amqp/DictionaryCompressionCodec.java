@@ -0,0 +1,111 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * A {@link CompressionCodec} which compresses with a preset
+ * {@link CompressionDictionary}. Publishers compress with the active
+ * dictionary and send its identifier in the {@link #HEADER_DICTIONARY_ID}
+ * header; consumers decompress with the dictionary named by the header.
+ * <p/>
+ * To rotate dictionaries safely, add the new dictionary on every consumer
+ * first, then make it active on the publishers, and only remove the old
+ * dictionary once messages compressed with it have been consumed.
+ */
+public interface DictionaryCompressionCodec extends CompressionCodec {
+
+    /**
+     * Message header containing the identifier of the dictionary a message
+     * was compressed with.
+     */
+    public static final String HEADER_DICTIONARY_ID = "X-Compression-Dictionary";
+
+    /**
+     * Adds a dictionary which can be used to decompress messages (replacing
+     * any dictionary with the same identifier).
+     *
+     * @param dictionary The dictionary.
+     */
+    public void addDictionary(CompressionDictionary dictionary);
+
+    /**
+     * Removes a dictionary. The active dictionary can't be removed.
+     *
+     * @param id The dictionary identifier.
+     * @return The removed dictionary, or null if it wasn't found.
+     * @throws IllegalStateException If the dictionary is the active dictionary.
+     */
+    public CompressionDictionary removeDictionary(String id) throws IllegalStateException;
+
+    /**
+     * Returns the dictionary with the specified identifier.
+     *
+     * @param id The dictionary identifier.
+     * @return The dictionary, or null if it wasn't found.
+     */
+    public CompressionDictionary getDictionary(String id);
+
+    /**
+     * Returns all dictionaries which can be used to decompress messages.
+     *
+     * @return All known dictionaries.
+     */
+    public Collection<CompressionDictionary> getDictionaries();
+
+    /**
+     * Sets the dictionary used to compress messages. The dictionary is added
+     * if it hasn't been already.
+     *
+     * @param dictionary The dictionary, or null to compress without a
+     *                   dictionary.
+     */
+    public void setActiveDictionary(CompressionDictionary dictionary);
+
+    /**
+     * Returns the dictionary used to compress messages.
+     *
+     * @return The active dictionary, or null if messages are compressed
+     *         without a dictionary.
+     */
+    public CompressionDictionary getActiveDictionary();
+
+    /**
+     * Compresses the data with the specified dictionary.
+     *
+     * @param data       The data to compress.
+     * @param offset     Offset of the data in the array.
+     * @param length     Length of the data.
+     * @param dictionary The dictionary, or null to compress without a
+     *                   dictionary.
+     * @return The compressed data, or null if the compressed data would not be
+     *         smaller than the original data.
+     * @throws IOException If the data cannot be compressed.
+     */
+    public byte[] compress(byte[] data, int offset, int length, CompressionDictionary dictionary)
+            throws IOException;
+
+    /**
+     * Decompresses the data with the specified dictionary.
+     *
+     * @param data       The compressed data.
+     * @param offset     Offset of the data in the array.
+     * @param length     Length of the data.
+     * @param dictionary The dictionary, or null to find the dictionary by the
+     *                   checksum stored in the compressed data.
+     * @return The decompressed data.
+     * @throws IOException If the data is invalid or the dictionary is unknown.
+     */
+    public byte[] decompress(byte[] data, int offset, int length, CompressionDictionary dictionary)
+            throws IOException;
+}
@@ -0,0 +1,117 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of draining an {@link AmqpConnectionManager} before it shuts
+ * down.
+ *
+ * @see AmqpConnectionManager#drain(long, TimeUnit)
+ */
+public class DrainStatistics {
+
+    private final long handledMessages;
+    private final long requeuedMessages;
+    private final int flushedPublishes;
+    private final int droppedPublishes;
+    private final int unconfirmedPublishes;
+    private final boolean complete;
+    private final long drainNanos;
+
+    DrainStatistics(long handledMessages, long requeuedMessages, int flushedPublishes, int droppedPublishes,
+                    int unconfirmedPublishes, boolean complete, long drainNanos) {
+        this.handledMessages = handledMessages;
+        this.requeuedMessages = requeuedMessages;
+        this.flushedPublishes = flushedPublishes;
+        this.droppedPublishes = droppedPublishes;
+        this.unconfirmedPublishes = unconfirmedPublishes;
+        this.complete = complete;
+        this.drainNanos = drainNanos;
+    }
+
+    /**
+     * Returns the number of buffered messages handled by the listeners after
+     * their consumers were cancelled.
+     *
+     * @return The number of messages handled while draining.
+     */
+    public long getHandledMessages() {
+        return handledMessages;
+    }
+
+    /**
+     * Returns the number of buffered messages re-queued because they couldn't
+     * be handled in time.
+     *
+     * @return The number of messages re-queued.
+     */
+    public long getRequeuedMessages() {
+        return requeuedMessages;
+    }
+
+    /**
+     * Returns the number of asynchronous publishes which were still buffered
+     * when the listeners had drained and were then written.
+     *
+     * @return The number of publishes flushed.
+     */
+    public int getFlushedPublishes() {
+        return flushedPublishes;
+    }
+
+    /**
+     * Returns the number of asynchronous publishes which weren't written
+     * before the publish timeout. Their futures fail.
+     *
+     * @return The number of publishes dropped.
+     */
+    public int getDroppedPublishes() {
+        return droppedPublishes;
+    }
+
+    /**
+     * Returns the number of asynchronous publishes which weren't confirmed by
+     * the broker before the connection was closed.
+     *
+     * @return The number of unconfirmed publishes.
+     */
+    public int getUnconfirmedPublishes() {
+        return unconfirmedPublishes;
+    }
+
+    /**
+     * Returns true if every worker stopped before the timeout.
+     *
+     * @return True if the drain completed in time.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns the time taken to drain.
+     *
+     * @param unit The unit of the result.
+     * @return The time taken.
+     */
+    public long getDrainTime(TimeUnit unit) {
+        return unit.convert(drainNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DrainStatistics [handledMessages=%d, requeuedMessages=%d, flushedPublishes=%d, " +
+                "droppedPublishes=%d, unconfirmedPublishes=%d, complete=%s, drainMillis=%d]", handledMessages,
+                requeuedMessages, flushedPublishes, droppedPublishes, unconfirmedPublishes, complete, getDrainTime(TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,228 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses which of the brokers in a cluster to connect to. Endpoints are
+ * tried fastest first, by the time it took to connect to them (TCP connect
+ * plus the AMQP handshake), smoothed over recent connects; endpoints which
+ * haven't been connected to yet are tried in the configured order before
+ * slower ones. An endpoint which fails to connect, or whose connection is
+ * lost, is skipped for an exponentially growing, jittered interval so
+ * clients fail over to the other endpoints straight away and don't all
+ * retry a recovering broker at once.
+ */
+class EndpointSelector {
+
+    /**
+     * Default longest interval an endpoint is skipped after failures.
+     */
+    static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000;
+
+    /* Weight of the latest connect latency in the smoothed latency */
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    private final List<Endpoint> endpoints;
+    private final long baseBackoffNanos;
+    private final long maxBackoffNanos;
+    private final Random random;
+
+    private static class Endpoint {
+        private final AmqpServerUri uri;
+        private final int order;
+        /* Smoothed connect latency, or -1 if never connected */
+        private long latencyNanos = -1;
+        private int failures = 0;
+        private long retryAt = 0;
+
+        private Endpoint(AmqpServerUri uri, int order) {
+            this.uri = uri;
+            this.order = order;
+        }
+    }
+
+    /**
+     * Creates a selector for the endpoints.
+     *
+     * @param uris              The endpoints, in order of preference until
+     *                          their latency is known.
+     * @param baseBackoffMillis The interval an endpoint is skipped after its
+     *                          first failure.
+     * @param maxBackoffMillis  The longest interval an endpoint is skipped.
+     * @param random            Source of the backoff jitter.
+     */
+    EndpointSelector(List<AmqpServerUri> uris, long baseBackoffMillis, long maxBackoffMillis, Random random) {
+        if (uris == null || random == null) {
+            throw new NullPointerException();
+        }
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
+        this.endpoints = new ArrayList<Endpoint>(uris.size());
+        for (AmqpServerUri uri : uris) {
+            this.endpoints.add(new Endpoint(uri, this.endpoints.size()));
+        }
+        this.baseBackoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, baseBackoffMillis));
+        this.maxBackoffNanos = Math.max(this.baseBackoffNanos, TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis));
+        this.random = random;
+    }
+
+    /**
+     * Returns the endpoints.
+     *
+     * @return The endpoints, in the configured order.
+     */
+    synchronized List<AmqpServerUri> getEndpoints() {
+        final List<AmqpServerUri> uris = new ArrayList<AmqpServerUri>(this.endpoints.size());
+        for (Endpoint endpoint : this.endpoints) {
+            uris.add(endpoint.uri);
+        }
+        return uris;
+    }
+
+    /**
+     * Returns the endpoints which aren't backing off after a failure, in the
+     * order they should be tried.
+     *
+     * @return The endpoints to try, which may be empty.
+     */
+    synchronized List<AmqpServerUri> candidates() {
+        final long now = System.nanoTime();
+        final List<Endpoint> available = new ArrayList<Endpoint>(this.endpoints.size());
+        for (Endpoint endpoint : this.endpoints) {
+            if (endpoint.failures == 0 || now - endpoint.retryAt >= 0) {
+                available.add(endpoint);
+            }
+        }
+        Collections.sort(available, new Comparator<Endpoint>() {
+            @Override
+            public int compare(Endpoint e1, Endpoint e2) {
+                /* Untried endpoints first, in order, then by latency */
+                final boolean untried1 = e1.latencyNanos < 0;
+                final boolean untried2 = e2.latencyNanos < 0;
+                if (untried1 || untried2) {
+                    if (untried1 && untried2) {
+                        return e1.order - e2.order;
+                    }
+                    return untried1 ? -1 : 1;
+                }
+                if (e1.latencyNanos != e2.latencyNanos) {
+                    return (e1.latencyNanos < e2.latencyNanos) ? -1 : 1;
+                }
+                return e1.order - e2.order;
+            }
+        });
+        final List<AmqpServerUri> uris = new ArrayList<AmqpServerUri>(available.size());
+        for (Endpoint endpoint : available) {
+            uris.add(endpoint.uri);
+        }
+        return uris;
+    }
+
+    /**
+     * Returns the endpoints whose latency isn't known yet and which aren't
+     * backing off after a failure.
+     *
+     * @return The endpoints to probe, in the configured order.
+     */
+    synchronized List<AmqpServerUri> unprobed() {
+        final long now = System.nanoTime();
+        final List<AmqpServerUri> uris = new ArrayList<AmqpServerUri>();
+        for (Endpoint endpoint : this.endpoints) {
+            if (endpoint.latencyNanos < 0 && (endpoint.failures == 0 || now - endpoint.retryAt >= 0)) {
+                uris.add(endpoint.uri);
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * Returns how long until an endpoint can be tried again.
+     *
+     * @return The delay in milliseconds, zero if an endpoint can be tried now.
+     */
+    synchronized long getRetryDelayMillis() {
+        final long now = System.nanoTime();
+        long delay = Long.MAX_VALUE;
+        for (Endpoint endpoint : this.endpoints) {
+            if (endpoint.failures == 0) {
+                return 0;
+            }
+            delay = Math.min(delay, Math.max(0, endpoint.retryAt - now));
+        }
+        return TimeUnit.NANOSECONDS.toMillis(delay);
+    }
+
+    /**
+     * Records a successful connect, clearing the endpoint's failures.
+     *
+     * @param uri          The endpoint.
+     * @param latencyNanos The time taken to connect.
+     */
+    synchronized void connected(AmqpServerUri uri, long latencyNanos) {
+        final Endpoint endpoint = find(uri);
+        if (endpoint != null) {
+            endpoint.failures = 0;
+            endpoint.latencyNanos = (endpoint.latencyNanos < 0) ? latencyNanos :
+                    (long) (LATENCY_WEIGHT * latencyNanos + (1 - LATENCY_WEIGHT) * endpoint.latencyNanos);
+        }
+    }
+
+    /**
+     * Records a failed connect or a lost connection, skipping the endpoint
+     * for a random interval of between half and all of
+     * <code>base * 2^(failures - 1)</code>, up to the maximum.
+     *
+     * @param uri The endpoint.
+     */
+    synchronized void failed(AmqpServerUri uri) {
+        final Endpoint endpoint = find(uri);
+        if (endpoint != null) {
+            endpoint.failures++;
+            final int shift = Math.min(endpoint.failures - 1, 30);
+            final long backoff = Math.min(this.maxBackoffNanos, this.baseBackoffNanos << shift);
+            final long jittered = backoff / 2 + (long) (this.random.nextDouble() * (backoff / 2));
+            endpoint.retryAt = System.nanoTime() + jittered;
+        }
+    }
+
+    /**
+     * Returns the smoothed connect latency of the endpoint.
+     *
+     * @param uri The endpoint.
+     * @return The latency in nanoseconds, or -1 if it hasn't been connected to.
+     */
+    synchronized long getLatencyNanos(AmqpServerUri uri) {
+        final Endpoint endpoint = find(uri);
+        return (endpoint != null) ? endpoint.latencyNanos : -1;
+    }
+
+    private Endpoint find(AmqpServerUri uri) {
+        for (Endpoint endpoint : this.endpoints) {
+            if (endpoint.uri.equals(uri)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("EndpointSelector [endpoints=%s]", getEndpoints());
+    }
+}
@@ -83,11 +83,41 @@ public class Exchange {
     }
 
     /**
-     * Types of compression available
+     * Types of compression available. Each type is implemented by the
+     * {@link CompressionCodec} registered for its content encoding.
      */
     public enum Compression {
-        NONE,
-        DEFLATE
+        NONE(null),
+        /**
+         * Zlib compression, supported by all clients.
+         */
+        DEFLATE("deflate"),
+        /**
+         * LZF compression, which is much faster than deflate but compresses
+         * less. Only supported by the Java clients.
+         */
+        LZF("x-lzf"),
+        /**
+         * Zlib compression with a preset dictionary (see
+         * {@link DictionaryCompressionCodec}). Only supported by the Java
+         * clients.
+         */
+        DEFLATE_DICTIONARY("x-deflate-dict");
+
+        private final String contentEncoding;
+
+        private Compression(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+
+        /**
+         * Returns the content encoding of messages compressed with this type.
+         *
+         * @return The content encoding, or null for {@link #NONE}.
+         */
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
     }
 
     private final String name;
@@ -95,6 +125,8 @@ public class Exchange {
     private final boolean durable;
     private final boolean autoDelete;
     private final Compression compression;
+    private final CompressionPolicy compressionPolicy;
+    private final BatchPolicy batchPolicy;
     private final MessageDeliveryMode deliveryMode;
     private final Map<String, Object> arguments;
 
@@ -193,6 +225,74 @@ public class Exchange {
                     Map<String, Object> arguments, MessageDeliveryMode deliveryMode, 
                     Compression compression)
             throws NullPointerException {
+        this(name, type, durable, autoDelete, arguments, deliveryMode, compression, null);
+    }
+
+    /**
+     * Create an exchange with the specified name, type, durable, autoDelete,
+     * optional arguments and compression policy.
+     *
+     * @param name
+     *            The name of the exchange.
+     * @param type
+     *            The type of the exchange.
+     * @param durable
+     *            If the exchange should persist following a restart.
+     * @param autoDelete
+     *            If the exchange should automatically be deleted when no longer
+     *            in use.
+     * @param arguments
+     *            Optional arguments used when defining the exchange.
+     * @param deliveryMode
+     *            The delivery mode of messages published to this exchange (persistent/nonpersistent)
+     * @param compression
+     *            The type of compression desired.
+     * @param compressionPolicy
+     *            Decides which messages are compressed. If null, a policy with
+     *            the default settings is used.
+     * @throws NullPointerException
+     *             If the exchange name or type is null.
+     */
+    public Exchange(String name, Type type, boolean durable, boolean autoDelete,
+                    Map<String, Object> arguments, MessageDeliveryMode deliveryMode,
+                    Compression compression, CompressionPolicy compressionPolicy)
+            throws NullPointerException {
+        this(name, type, durable, autoDelete, arguments, deliveryMode, compression, compressionPolicy, null);
+    }
+
+    /**
+     * Create an exchange with the specified name, type, durable, autoDelete,
+     * optional arguments, compression policy and batch policy.
+     *
+     * @param name
+     *            The name of the exchange.
+     * @param type
+     *            The type of the exchange.
+     * @param durable
+     *            If the exchange should persist following a restart.
+     * @param autoDelete
+     *            If the exchange should automatically be deleted when no longer
+     *            in use.
+     * @param arguments
+     *            Optional arguments used when defining the exchange.
+     * @param deliveryMode
+     *            The delivery mode of messages published to this exchange (persistent/nonpersistent)
+     * @param compression
+     *            The type of compression desired.
+     * @param compressionPolicy
+     *            Decides which messages are compressed. If null, a policy with
+     *            the default settings is used.
+     * @param batchPolicy
+     *            Limits on batches of messages packed into a single AMQP
+     *            message, or null to publish each message separately.
+     * @throws NullPointerException
+     *             If the exchange name or type is null.
+     */
+    public Exchange(String name, Type type, boolean durable, boolean autoDelete,
+                    Map<String, Object> arguments, MessageDeliveryMode deliveryMode,
+                    Compression compression, CompressionPolicy compressionPolicy,
+                    BatchPolicy batchPolicy)
+            throws NullPointerException {
         if (name == null || type == null) {
             throw new NullPointerException();
         }
@@ -205,6 +305,11 @@ public class Exchange {
             compression = Compression.NONE;
         }
         this.compression = compression;
+        if (compressionPolicy == null) {
+            compressionPolicy = new CompressionPolicy();
+        }
+        this.compressionPolicy = compressionPolicy;
+        this.batchPolicy = batchPolicy;
         if (arguments == null || arguments.isEmpty()) {
             this.arguments = Collections.emptyMap();
         } else {
@@ -260,6 +365,26 @@ public class Exchange {
         return compression;
     }
 
+    /**
+     * Returns the policy which decides which messages published to the
+     * exchange are compressed, and counts the results.
+     *
+     * @return The compression policy.
+     */
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /**
+     * Returns the limits on batches of messages packed into a single AMQP
+     * message.
+     *
+     * @return The batch policy, or null if messages are published separately.
+     */
+    public BatchPolicy getBatchPolicy() {
+        return batchPolicy;
+    }
+
     /**
      * Returns an immutable map of arguments used to create the exchange.
      * 
@@ -279,6 +404,9 @@ public class Exchange {
         sb.append(",durable=").append(durable);
         sb.append(",autodelete=").append(autoDelete);
         sb.append(",compression=").append(compression.name());
+        if (batchPolicy != null) {
+            sb.append(",batchPolicy=").append(batchPolicy);
+        }
         if (!arguments.isEmpty()) {
             sb.append(",arguments=").append(this.arguments);
         }
@@ -0,0 +1,141 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values with power of two buckets: bucket 0
+ * counts zero, and bucket <i>n</i> counts values from 2<sup><i>n</i>-1</sup>
+ * to 2<sup><i>n</i></sup>-1. Percentiles are reported as the upper bound of
+ * the bucket they fall in, so they are accurate to within a factor of two.
+ * Values can be recorded and read from any thread.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates an empty histogram.
+     *
+     * @param name The name of the histogram (used in {@link #toString()}).
+     */
+    public Histogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value The value.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long previous;
+        while (value > (previous = max.get())) {
+            if (max.compareAndSet(previous, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of values recorded.
+     *
+     * @return The number of values recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the mean of the values recorded.
+     *
+     * @return The mean, or zero if no values have been recorded.
+     */
+    public double getMean() {
+        final long n = count.get();
+        return (n == 0) ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Returns the largest value recorded.
+     *
+     * @return The largest value, or zero if no values have been recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket containing the specified
+     * percentile of the values recorded.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The approximate percentile, or zero if no values have been
+     *         recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    private static long upperBound(int bucket) {
+        return (bucket == 0) ? 0 : (bucket == BUCKETS - 1) ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [count=%d, mean=%.1f, p50=%d, p99=%d, max=%d]", name, getCount(), getMean(),
+                getPercentile(50), getPercentile(99), getMax());
+    }
+}
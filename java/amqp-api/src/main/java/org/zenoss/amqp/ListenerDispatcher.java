@@ -0,0 +1,366 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import com.google.protobuf.ExtensionRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves many queue listeners from one channel with a small, fixed pool of
+ * dispatcher threads. Listeners added with
+ * {@link AmqpConnectionManager#addListener(QueueConfiguration, QueueListener)}
+ * each have a worker thread waiting for messages, which doesn't scale to
+ * thousands of (for example per-device) queues.
+ * <p/>
+ * Each listener's consumer runs a callback on the connection thread when a
+ * message arrives, which puts the listener on the dispatchers' shared ready
+ * queue unless it is already there. A dispatcher thread then handles up to
+ * {@link #getBatchSize()} of the listener's messages before giving other
+ * listeners a turn. A listener is only handled by one thread at a time, so
+ * its messages are handled in order and listeners don't need to be
+ * thread-safe; {@link QueueListener#queueEmptied()} is called each time a
+ * listener's buffered messages have been handled.
+ * <p/>
+ * The prefetch count is set with <code>basic.qos</code> on the channel.
+ * Brokers before RabbitMQ 3.3 (and the AMQP 0-9-1 specification) apply it
+ * to the channel as a whole, so all the listeners share one window of
+ * unacknowledged messages and a busy queue can use all of it; RabbitMQ 3.3
+ * and later apply it to each consumer. Either way each consumer buffers at
+ * most that many messages, so the memory used by each listener is bounded;
+ * {@link #getBufferedBytes()} reports it. Listeners which need a window of
+ * their own should be added to a dispatcher on a separate channel. If the
+ * channel is shut down the listeners stop, and must be added to a new
+ * dispatcher.
+ */
+public class ListenerDispatcher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ListenerDispatcher.class);
+
+    /**
+     * Default prefetch count of the channel (of each consumer on RabbitMQ 3.3
+     * and later).
+     */
+    public static final int DEFAULT_PREFETCH_COUNT = 16;
+
+    /**
+     * Default number of messages handled for a listener before other
+     * listeners get a turn.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 32;
+
+    private static final int PREFETCH_SIZE = 0;
+    private static final AtomicInteger dispatcherCount = new AtomicInteger();
+
+    private final Channel channel;
+    private final int prefetchCount;
+    private final int batchSize;
+    private final ExecutorService dispatchers;
+    private final Map<String, Dispatch> listeners = new ConcurrentHashMap<String, Dispatch>();
+    private volatile ExtensionRegistry extensionRegistry;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a dispatcher on the channel with the default prefetch count
+     * and batch size.
+     *
+     * @param channel The channel which hosts the consumers.
+     * @param threads The number of dispatcher threads.
+     * @throws AmqpException If the prefetch count can't be set.
+     */
+    public ListenerDispatcher(Channel channel, int threads) throws AmqpException {
+        this(channel, threads, DEFAULT_PREFETCH_COUNT, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a dispatcher on the channel.
+     *
+     * @param channel       The channel which hosts the consumers.
+     * @param threads       The number of dispatcher threads.
+     * @param prefetchCount The prefetch count of the channel, shared by all
+     *                      its consumers unless the broker applies it to
+     *                      each consumer (RabbitMQ 3.3 and later).
+     * @param batchSize     The number of messages handled for a listener
+     *                      before other listeners get a turn.
+     * @throws AmqpException If the prefetch count can't be set.
+     */
+    public ListenerDispatcher(Channel channel, int threads, int prefetchCount, int batchSize)
+            throws AmqpException {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        if (threads <= 0 || prefetchCount <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Threads, prefetch count and batch size must be positive");
+        }
+        this.channel = channel;
+        this.prefetchCount = prefetchCount;
+        this.batchSize = batchSize;
+        this.channel.setQos(PREFETCH_SIZE, prefetchCount);
+        final String prefix = "ListenerDispatcher-" + dispatcherCount.incrementAndGet() + "-";
+        this.dispatchers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void setExtensionRegistry(ExtensionRegistry extensionRegistry) {
+        this.extensionRegistry = extensionRegistry;
+    }
+
+    /**
+     * Declares the queue (and its bindings) and starts consuming from it with
+     * the listener.
+     *
+     * @param config   Queue configuration which contains the queue and queue
+     *                 bindings.
+     * @param listener Queue listener which is called when messages are
+     *                 consumed from the queue.
+     * @return Unique identifier for this listener (used to remove it with
+     *         {@link #removeListener(String)}.
+     * @throws AmqpException If the queue can't be declared.
+     */
+    public String addListener(QueueConfiguration config, QueueListener listener) throws AmqpException {
+        if (config == null || listener == null) {
+            throw new NullPointerException();
+        }
+        if (this.closed) {
+            throw new AmqpException("Dispatcher is closed");
+        }
+        this.channel.declareQueue(config.getQueue());
+        for (Binding binding : config.getBindings()) {
+            this.channel.declareExchange(binding.getExchange());
+            this.channel.bindQueue(binding);
+        }
+        final ProtobufConverter converter = new ProtobufConverter(config.getMessages());
+        if (this.extensionRegistry != null) {
+            converter.setExtensionRegistry(this.extensionRegistry);
+        }
+        final Consumer<com.google.protobuf.Message> consumer = this.channel.createConsumer(config.getQueue(),
+                converter, this.prefetchCount);
+        consumer.setMessageFilter(listener.getMessageFilter());
+        consumer.setLazyDecoding(listener.isLazyDecoding());
+        consumer.setBufferPolicy(config.getBufferPolicy());
+        listener.setConsumer(consumer);
+        final String uuid = UUID.randomUUID().toString();
+        final Dispatch dispatch = new Dispatch(uuid, config.getQueue().getName(), listener, consumer);
+        consumer.setReadyListener(dispatch);
+        this.listeners.put(uuid, dispatch);
+        /* The first poll starts consuming */
+        dispatch.run();
+        return uuid;
+    }
+
+    /**
+     * Cancels the consumer of the listener with the specified identifier.
+     * Messages it has buffered but not handled are re-queued when the
+     * channel is closed.
+     *
+     * @param listenerId The identifier of the listener (as returned by
+     *                   {@link #addListener(QueueConfiguration, QueueListener)}).
+     */
+    public void removeListener(String listenerId) {
+        final Dispatch dispatch = this.listeners.remove(listenerId);
+        if (dispatch == null) {
+            logger.info("Unknown listener: {}", listenerId);
+            return;
+        }
+        dispatch.stop();
+    }
+
+    /**
+     * Returns the number of listeners.
+     *
+     * @return The number of listeners.
+     */
+    public int getListenerCount() {
+        return this.listeners.size();
+    }
+
+    /**
+     * Returns the number of messages handled for a listener before other
+     * listeners get a turn.
+     *
+     * @return The batch size.
+     */
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    /**
+     * Returns the total size of the messages received but not yet handled
+     * by each listener.
+     *
+     * @return The number of buffered bytes, by listener identifier.
+     */
+    public Map<String, Long> getBufferedBytes() {
+        final Map<String, Long> buffered = new TreeMap<String, Long>();
+        for (Dispatch dispatch : this.listeners.values()) {
+            buffered.put(dispatch.id, dispatch.consumer.getBufferedBytes());
+        }
+        return buffered;
+    }
+
+    /**
+     * Cancels all consumers and stops the dispatcher threads, waiting for
+     * the messages being handled. The channel isn't closed.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        for (String id : this.listeners.keySet()) {
+            removeListener(id);
+        }
+        this.dispatchers.shutdown();
+        try {
+            if (!this.dispatchers.awaitTermination(30, TimeUnit.SECONDS)) {
+                this.dispatchers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            this.dispatchers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A listener and its consumer, which is queued for a dispatcher thread
+     * when the consumer has messages.
+     */
+    private class Dispatch implements Runnable {
+        private final String id;
+        private final String queueName;
+        private final QueueListener listener;
+        private final Consumer<com.google.protobuf.Message> consumer;
+        /* Set while queued or running, so only one thread handles the listener */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean stopped = false;
+
+        private Dispatch(String id, String queueName, QueueListener listener,
+                         Consumer<com.google.protobuf.Message> consumer) {
+            this.id = id;
+            this.queueName = queueName;
+            this.listener = listener;
+            this.consumer = consumer;
+        }
+
+        /**
+         * Called on the connection thread when the consumer has a message.
+         */
+        @Override
+        public void run() {
+            if (this.stopped || !this.scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                dispatchers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                /* The dispatcher is closing */
+                this.scheduled.set(false);
+            }
+        }
+
+        private void dispatch() {
+            boolean more = false;
+            try {
+                more = handleMessages();
+            } finally {
+                this.scheduled.set(false);
+            }
+            /* Messages which arrived after the last poll, before the flag was cleared */
+            if (more || this.consumer.getBufferedMessages() > 0) {
+                run();
+            }
+        }
+
+        /**
+         * Handles up to a batch of messages, returning true if there may be
+         * more.
+         */
+        private boolean handleMessages() {
+            for (int i = 0; i < batchSize && !this.stopped; i++) {
+                final Message<com.google.protobuf.Message> message;
+                try {
+                    message = this.consumer.pollMessage();
+                } catch (MessageDecoderException e) {
+                    logger.warn("Failed to decode message in queue", e);
+                    rejectQuietly(e.getRawMessage());
+                    continue;
+                } catch (AmqpException e) {
+                    logger.warn("Stopping listener on queue {}: {}", this.queueName, e.getLocalizedMessage());
+                    listeners.remove(this.id);
+                    this.stopped = true;
+                    return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return true;
+                }
+                if (message == null) {
+                    try {
+                        this.listener.queueEmptied();
+                    } catch (Exception e) {
+                        logger.warn("Listener failed when queue {} was emptied", this.queueName, e);
+                    }
+                    return false;
+                }
+                try {
+                    this.listener.receive(message, this.consumer);
+                } catch (MessageBodyException e) {
+                    logger.warn("Failed to decode message in queue", e.getCause());
+                    rejectQuietly(e.getCause().getRawMessage());
+                } catch (Exception e) {
+                    /* The listener has rejected the message */
+                    logger.warn("Failed to handle message in queue {}", this.queueName, e);
+                }
+            }
+            return !this.stopped;
+        }
+
+        private void rejectQuietly(Message<?> message) {
+            try {
+                this.consumer.rejectMessage(message, false);
+            } catch (AmqpException e) {
+                logger.debug("Failed to reject message: {}", e.getLocalizedMessage());
+            }
+        }
+
+        private void stop() {
+            this.stopped = true;
+            try {
+                this.consumer.cancel();
+            } catch (AmqpException e) {
+                logger.debug("Failed to cancel consumer: {}", e.getLocalizedMessage());
+            }
+        }
+    }
+}
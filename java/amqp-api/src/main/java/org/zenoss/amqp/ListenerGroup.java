@@ -0,0 +1,169 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The workers consuming from a queue for one listener, within the bounds of a
+ * {@link ConcurrencyPolicy}.
+ * <p/>
+ * Each worker reports the fraction of time its listener was busy once per
+ * scaling interval. When a busy worker finds more messages waiting in the
+ * queue (by a passive declare) than there are workers, a worker is added; a
+ * mostly idle worker is removed. The number of workers changes at most once
+ * per interval.
+ */
+abstract class ListenerGroup {
+
+    private static final Logger logger = LoggerFactory.getLogger(ListenerGroup.class);
+
+    /**
+     * Default interval between changes to the number of workers.
+     */
+    static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+    static final double SCALE_UP_UTILIZATION = 0.8;
+    static final double SCALE_DOWN_UTILIZATION = 0.2;
+
+    private final String groupId;
+    private final QueueConfiguration config;
+    private final QueueListenerFactory factory;
+    private final ConcurrencyPolicy policy;
+    private final long intervalMillis;
+    private final Set<String> workerIds = new LinkedHashSet<String>();
+    private long lastScaled = System.nanoTime();
+    private boolean removed = false;
+
+    ListenerGroup(String groupId, QueueConfiguration config, QueueListenerFactory factory,
+                  ConcurrencyPolicy policy, long intervalMillis) {
+        if (groupId == null || config == null || factory == null || policy == null) {
+            throw new NullPointerException();
+        }
+        this.groupId = groupId;
+        this.config = config;
+        this.factory = factory;
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Starts a worker for the listener.
+     *
+     * @param listener The listener.
+     * @return The worker identifier.
+     */
+    protected abstract String startWorker(QueueListener listener);
+
+    /**
+     * Starts the minimum number of workers.
+     */
+    synchronized void start() {
+        while (this.workerIds.size() < this.policy.getMin()) {
+            addWorker();
+        }
+    }
+
+    private void addWorker() {
+        this.workerIds.add(startWorker(this.factory.newListener()));
+        this.lastScaled = System.nanoTime();
+    }
+
+    /**
+     * Marks the group removed, returning the workers to stop.
+     *
+     * @return The identifiers of the workers.
+     */
+    synchronized List<String> remove() {
+        this.removed = true;
+        final List<String> ids = new ArrayList<String>(this.workerIds);
+        this.workerIds.clear();
+        return ids;
+    }
+
+    /**
+     * Returns the number of workers.
+     *
+     * @return The number of workers.
+     */
+    synchronized int getWorkerCount() {
+        return this.workerIds.size();
+    }
+
+    /**
+     * Returns how often workers report their utilization. Workers with an
+     * idle listener should wait at most this long for a message.
+     *
+     * @return The interval in milliseconds.
+     */
+    long getIntervalMillis() {
+        return this.intervalMillis;
+    }
+
+    /**
+     * Records the utilization of a worker's listener, adding or removing a
+     * worker if needed.
+     *
+     * @param workerId    The worker.
+     * @param utilization The fraction of the last interval spent handling
+     *                    messages.
+     * @param channel     The worker's channel, used to check the queue depth.
+     * @return True if the worker should stop.
+     * @throws AmqpException If the queue depth can't be read.
+     */
+    boolean sample(String workerId, double utilization, Channel channel) throws AmqpException {
+        if (utilization >= SCALE_UP_UTILIZATION) {
+            if (!canScaleUp()) {
+                return false;
+            }
+            final int depth = channel.getMessageCount(this.config.getQueue());
+            synchronized (this) {
+                if (canScaleUp() && depth > this.workerIds.size()) {
+                    logger.info("Adding worker {} to queue {} with {} messages waiting",
+                            new Object[]{this.workerIds.size() + 1, this.config.getQueue().getName(), depth});
+                    addWorker();
+                }
+            }
+        } else if (utilization <= SCALE_DOWN_UTILIZATION) {
+            synchronized (this) {
+                if (this.workerIds.size() > this.policy.getMin() && isIntervalElapsed()
+                        && this.workerIds.remove(workerId)) {
+                    logger.info("Removing idle worker from queue {}, {} remaining",
+                            this.config.getQueue().getName(), this.workerIds.size());
+                    this.lastScaled = System.nanoTime();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private synchronized boolean canScaleUp() {
+        return !this.removed && this.workerIds.size() < this.policy.getMax() && isIntervalElapsed();
+    }
+
+    private boolean isIntervalElapsed() {
+        return System.nanoTime() - this.lastScaled >= TimeUnit.MILLISECONDS.toNanos(this.intervalMillis);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ListenerGroup [id=%s, queue=%s, policy=%s]", groupId,
+                config.getQueue().getName(), policy);
+    }
+}
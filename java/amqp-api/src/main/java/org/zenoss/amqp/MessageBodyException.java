@@ -0,0 +1,44 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+/**
+ * Thrown by {@link Message#getBody()} when a message received by a consumer
+ * with lazy decoding can't be decoded. Unlike messages which are decoded when
+ * they are received, the failure can only be reported once the body is read,
+ * so the {@link MessageDecoderException} is wrapped in an unchecked exception.
+ *
+ * @see Consumer#setLazyDecoding(boolean)
+ */
+public class MessageBodyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a {@link MessageBodyException} for a decoding failure.
+     *
+     * @param cause
+     *            The decoding failure.
+     */
+    public MessageBodyException(MessageDecoderException cause) {
+        super(cause);
+    }
+
+    /**
+     * Returns the decoding failure, with the raw message.
+     *
+     * @return The decoding failure.
+     */
+    @Override
+    public MessageDecoderException getCause() {
+        return (MessageDecoderException) super.getCause();
+    }
+}
@@ -0,0 +1,54 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+/**
+ * Decides whether a delivery is passed on by a {@link Consumer}, using only
+ * its properties and envelope. Unwanted messages are acknowledged or rejected
+ * by the consumer without decompressing or decoding their bodies, which saves
+ * the decoding cost for listeners which only want some of the messages routed
+ * to their queue (for example on a queue bound to a fanout exchange).
+ *
+ * @see PropertyMessageFilter
+ */
+public interface MessageFilter {
+
+    /**
+     * What the consumer does with a delivery.
+     */
+    public enum Action {
+        /**
+         * Decode the message and return it from the consumer.
+         */
+        ACCEPT,
+
+        /**
+         * Acknowledge the message without decoding it.
+         */
+        ACK,
+
+        /**
+         * Reject the message (without re-queueing) without decoding it.
+         */
+        REJECT
+    }
+
+    /**
+     * Filters a delivery. Called on the thread consuming the messages.
+     *
+     * @param properties
+     *            The properties of the delivery.
+     * @param envelope
+     *            The envelope of the delivery.
+     * @return What to do with the delivery.
+     */
+    public Action filter(MessageProperties properties, MessageEnvelope envelope);
+}
@@ -12,6 +12,8 @@ import com.google.common.base.Joiner;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 public class MessagingProperties {
@@ -50,6 +52,23 @@ public class MessagingProperties {
         return getProperty("exchange", identifier, key, defaultValue);
     }
 
+    /**
+     * Returns the <code>connection.*</code> properties, keyed by the part of
+     * the name after <code>connection.</code>.
+     *
+     * @return The connection properties.
+     */
+    public Map<String, String> getConnectionProperties() {
+        final String prefix = "connection.";
+        final Map<String, String> result = new HashMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(prefix)) {
+                result.put(name.substring(prefix.length()), properties.getProperty(name).trim());
+            }
+        }
+        return result;
+    }
+
     private String getProperty(String type, String identifier, String key, String defaultValue) {
         // Get configured value
         String result = properties.getProperty(
@@ -0,0 +1,296 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue listener which handles messages on several threads ("lanes") while
+ * keeping the order of messages with the same partition key. Each message is
+ * assigned to a lane by the hash of the key returned by
+ * {@link #getPartitionKey(com.google.protobuf.Message)} (for example an event
+ * fingerprint or element UUID), and each lane handles its messages in the
+ * order they were received. Messages with a null key are handled on the first
+ * lane.
+ * <p/>
+ * Messages are acknowledged (or rejected) in the order they were received:
+ * a message is only settled once every message received before it has been
+ * handled, so a delivery is never acknowledged ahead of work which came
+ * before it. A message whose handling fails is rejected without being
+ * re-queued, and the failure is re-thrown from the next call to
+ * {@link #receive(Message)} or {@link #queueEmptied()} so the worker
+ * restarts, as with {@link QueueListener}. {@link #handled(Message)} and
+ * {@link #failed(Message)} are not called.
+ * <p/>
+ * The lane threads are started with the first message and stopped by
+ * {@link #shutdown()}, which {@link AmqpConnectionManager} calls when a worker
+ * stops consuming, so messages being handled are settled before the channel
+ * is closed.
+ */
+public abstract class PartitionedQueueListener extends QueueListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionedQueueListener.class);
+
+    private static final int DEFAULT_PREFETCH_SIZE = 0;
+    /* Messages per lane which may be waiting to be handled or settled */
+    private static final int DEFAULT_MESSAGES_PER_LANE = 16;
+    private static final long SHUTDOWN_WAIT_SECONDS = 30;
+
+    /**
+     * A received message waiting to be settled.
+     */
+    private static final class Pending {
+        private final Message<com.google.protobuf.Message> message;
+        private final Consumer<com.google.protobuf.Message> consumer;
+        private boolean done = false;
+        private boolean succeeded = false;
+
+        private Pending(Message<com.google.protobuf.Message> message, Consumer<com.google.protobuf.Message> consumer) {
+            this.message = message;
+            this.consumer = consumer;
+        }
+    }
+
+    private final int lanes;
+    private final int maxOutstanding;
+    private final Semaphore outstanding;
+    private ExecutorService[] executors = null;
+    /* Messages in the order they were received; guarded by itself */
+    private final ArrayDeque<Pending> window = new ArrayDeque<Pending>();
+    private volatile Exception failure = null;
+
+    /**
+     * Creates a listener which handles messages on the specified number of
+     * lanes.
+     *
+     * @param lanes The number of threads handling messages.
+     */
+    protected PartitionedQueueListener(int lanes) {
+        this(lanes, lanes * DEFAULT_MESSAGES_PER_LANE);
+    }
+
+    /**
+     * Creates a listener which handles messages on the specified number of
+     * lanes.
+     *
+     * @param lanes          The number of threads handling messages.
+     * @param maxOutstanding The maximum number of messages received but not
+     *                       yet settled. Also used as the channel's prefetch
+     *                       count.
+     */
+    protected PartitionedQueueListener(int lanes, int maxOutstanding) {
+        if (lanes <= 0 || maxOutstanding <= 0) {
+            throw new IllegalArgumentException("Lanes and outstanding messages must be positive");
+        }
+        this.lanes = lanes;
+        this.maxOutstanding = maxOutstanding;
+        this.outstanding = new Semaphore(maxOutstanding);
+    }
+
+    /**
+     * Returns the key which determines the lane a message is handled on.
+     * Messages with equal keys are handled in the order they were received.
+     *
+     * @param message The message.
+     * @return The partition key, or null.
+     */
+    protected abstract Object getPartitionKey(com.google.protobuf.Message message);
+
+    /**
+     * Returns the number of lanes messages are handled on.
+     *
+     * @return The number of lanes.
+     */
+    public int getLanes() {
+        return lanes;
+    }
+
+    @Override
+    protected void configureChannel(Channel channel) throws AmqpException {
+        channel.setQos(DEFAULT_PREFETCH_SIZE, this.maxOutstanding);
+    }
+
+    /**
+     * Returns the maximum number of outstanding messages, as more couldn't
+     * be received until some are settled.
+     */
+    @Override
+    public int getMaxPrefetchCount() {
+        return this.maxOutstanding;
+    }
+
+    @Override
+    protected void receive(final Message<com.google.protobuf.Message> message,
+                           final Consumer<com.google.protobuf.Message> consumer) throws Exception {
+        this.setConsumer(consumer);
+        throwFailure();
+        /* Before the message enters the window: a body which can't be decoded must not block later acks */
+        final Object key = getPartitionKey(message.getBody());
+        this.outstanding.acquire();
+        final Pending pending = new Pending(message, consumer);
+        synchronized (this.window) {
+            this.window.add(pending);
+        }
+        try {
+            lane(key).execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean succeeded = false;
+                    try {
+                        handle(pending.message.getBody());
+                        succeeded = true;
+                    } catch (Exception e) {
+                        logger.warn("Failed to handle message", e);
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    } finally {
+                        complete(pending, succeeded);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            complete(pending, false);
+            throw e;
+        }
+    }
+
+    @Override
+    protected void receive(final Message<com.google.protobuf.Message> message) throws Exception {
+        receive(message, this.consumer);
+    }
+
+    @Override
+    public void queueEmptied() throws Exception {
+        throwFailure();
+    }
+
+    private void throwFailure() throws Exception {
+        final Exception e = this.failure;
+        if (e != null) {
+            this.failure = null;
+            throw e;
+        }
+    }
+
+    private synchronized ExecutorService lane(Object key) {
+        if (this.executors == null) {
+            this.executors = new ExecutorService[this.lanes];
+            for (int i = 0; i < this.lanes; i++) {
+                final String name = getClass().getSimpleName() + "-lane-" + i;
+                this.executors[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+        if (key == null) {
+            return this.executors[0];
+        }
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return this.executors[(h & Integer.MAX_VALUE) % this.lanes];
+    }
+
+    /**
+     * Marks a message as handled, then settles every message at the start of
+     * the window which has been handled. Consecutive messages with the same
+     * outcome are settled together.
+     */
+    private void complete(Pending pending, boolean succeeded) {
+        synchronized (this.window) {
+            pending.succeeded = succeeded;
+            pending.done = true;
+            final List<Message<com.google.protobuf.Message>> run = new ArrayList<Message<com.google.protobuf.Message>>();
+            Pending runStart = null;
+            Pending first;
+            int drained = 0;
+            while ((first = this.window.peek()) != null && first.done) {
+                this.window.poll();
+                drained++;
+                if (runStart != null && (first.consumer != runStart.consumer || first.succeeded != runStart.succeeded)) {
+                    settle(runStart, run);
+                    run.clear();
+                }
+                if (run.isEmpty()) {
+                    runStart = first;
+                }
+                run.add(first.message);
+            }
+            if (!run.isEmpty()) {
+                settle(runStart, run);
+            }
+            this.outstanding.release(drained);
+        }
+    }
+
+    private void settle(Pending runStart, List<Message<com.google.protobuf.Message>> run) {
+        try {
+            if (runStart.succeeded) {
+                runStart.consumer.ackMessages(run);
+            } else {
+                runStart.consumer.rejectMessages(run, false);
+            }
+        } catch (AmqpException e) {
+            /* The channel has closed; the messages will be delivered again */
+            logger.debug("Failed to settle messages: {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Stops the lane threads after the messages already received have been
+     * handled. The lanes are started again if another message is received.
+     */
+    public void shutdown() {
+        final ExecutorService[] stopping;
+        synchronized (this) {
+            stopping = this.executors;
+            this.executors = null;
+        }
+        if (stopping == null) {
+            return;
+        }
+        for (ExecutorService executor : stopping) {
+            executor.shutdown();
+        }
+        try {
+            for (ExecutorService executor : stopping) {
+                if (!executor.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (ExecutorService executor : stopping) {
+                executor.shutdownNow();
+            }
+        }
+        /* Forget messages which weren't handled; they are delivered again when the channel closes */
+        synchronized (this.window) {
+            this.outstanding.release(this.window.size());
+            this.window.clear();
+        }
+    }
+}
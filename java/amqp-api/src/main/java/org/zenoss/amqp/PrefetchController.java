@@ -0,0 +1,144 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the prefetch count of a queue worker's channel within the bounds of
+ * a {@link PrefetchPolicy}.
+ * <p/>
+ * The worker reports how long each message took to process, and the round
+ * trip time to the broker is measured by timing the (synchronous)
+ * <code>basic.qos</code> calls which set the prefetch count. While the count
+ * doesn't change, it is re-sent every few seconds to keep measuring the
+ * round trip as network latency changes. To keep the worker busy, enough
+ * messages must be in flight to cover a round trip while the messages
+ * already received are processed, so the target prefetch count is twice the
+ * round trip time divided by the processing time, plus one. The
+ * count is only changed when the target differs from it by more than a
+ * quarter, at most every quarter of a second.
+ * <p/>
+ * This class is not thread-safe; it is used by a single worker thread.
+ */
+class PrefetchController {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrefetchController.class);
+
+    private static final int PREFETCH_SIZE = 0;
+    private static final int MIN_SAMPLES = 8;
+    private static final long MIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long DEFAULT_ROUND_TRIP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double HEADROOM = 2.0;
+    /* Weight of a new sample in the moving averages */
+    private static final double ALPHA = 0.2;
+
+    private final Channel channel;
+    private final PrefetchPolicy policy;
+    private final long roundTripIntervalNanos;
+    private int prefetchCount = 0;
+    private double processingNanos = 0;
+    private double roundTripNanos = 0;
+    private int samples = 0;
+    private long lastAdjusted = 0;
+    private long lastRoundTrip = 0;
+
+    PrefetchController(Channel channel, PrefetchPolicy policy) {
+        this(channel, policy, DEFAULT_ROUND_TRIP_INTERVAL_NANOS);
+    }
+
+    PrefetchController(Channel channel, PrefetchPolicy policy, long roundTripIntervalNanos) {
+        if (channel == null || policy == null) {
+            throw new NullPointerException();
+        }
+        this.channel = channel;
+        this.policy = policy;
+        this.roundTripIntervalNanos = roundTripIntervalNanos;
+    }
+
+    /**
+     * Sets the initial prefetch count (the policy's minimum), measuring the
+     * first round trip time.
+     *
+     * @throws AmqpException If the prefetch count can't be set.
+     */
+    void start() throws AmqpException {
+        setPrefetchCount(policy.getMin());
+    }
+
+    /**
+     * Records the time taken to process a message, adjusting the prefetch
+     * count if needed.
+     *
+     * @param nanos The processing time in nanoseconds.
+     * @throws AmqpException If the prefetch count can't be changed.
+     */
+    void messageProcessed(long nanos) throws AmqpException {
+        processingNanos = average(processingNanos, Math.max(1, nanos));
+        samples++;
+        final long now = System.nanoTime();
+        if (samples >= MIN_SAMPLES && now - lastAdjusted >= MIN_INTERVAL_NANOS) {
+            samples = 0;
+            lastAdjusted = now;
+            final int target = target(roundTripNanos, processingNanos);
+            if (Math.abs(target - prefetchCount) * 4 > prefetchCount) {
+                logger.debug("Changing prefetch count from {} to {} (round trip {}us, processing {}us)",
+                        new Object[]{prefetchCount, target, (long) roundTripNanos / 1000,
+                                (long) processingNanos / 1000});
+                setPrefetchCount(target);
+            } else if (now - lastRoundTrip >= roundTripIntervalNanos) {
+                /* Re-send the unchanged count to measure the round trip again */
+                setPrefetchCount(prefetchCount);
+            }
+        }
+    }
+
+    /**
+     * Returns the prefetch count needed to cover the round trip time.
+     */
+    int target(double roundTripNanos, double processingNanos) {
+        final double inFlight = HEADROOM * roundTripNanos / Math.max(1.0, processingNanos) + 1;
+        return policy.clamp((int) Math.min(Integer.MAX_VALUE, Math.ceil(inFlight)));
+    }
+
+    private void setPrefetchCount(int count) throws AmqpException {
+        final long start = System.nanoTime();
+        channel.setQos(PREFETCH_SIZE, count);
+        lastRoundTrip = System.nanoTime();
+        roundTripNanos = average(roundTripNanos, lastRoundTrip - start);
+        prefetchCount = count;
+    }
+
+    private static double average(double current, double sample) {
+        return (current == 0) ? sample : current + ALPHA * (sample - current);
+    }
+
+    /**
+     * Returns the current prefetch count.
+     *
+     * @return The prefetch count.
+     */
+    int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * Returns the average round trip time to the broker.
+     *
+     * @return The round trip time in nanoseconds.
+     */
+    long getRoundTripNanos() {
+        return (long) roundTripNanos;
+    }
+}
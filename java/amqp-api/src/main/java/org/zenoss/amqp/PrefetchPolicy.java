@@ -0,0 +1,106 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+/**
+ * Bounds on the prefetch count of a queue's consumers. When a queue has a
+ * prefetch policy, its workers adjust the channel's prefetch count (QoS) at
+ * runtime instead of keeping the count set by
+ * {@link QueueListener#configureChannel(Channel)}: the count is raised until
+ * enough messages are in flight to cover the round trip to the broker while
+ * the previous messages are processed, and lowered again when processing
+ * slows down, so slow listeners don't hold messages other consumers could
+ * process.
+ * <p/>
+ * The bounds are read from <code>queue.&lt;identifier&gt;.prefetch_min</code>
+ * and <code>queue.&lt;identifier&gt;.prefetch_max</code> in messaging.conf.
+ * Each worker's consumer buffers up to the maximum number of deliveries, so
+ * the count can be raised without the buffer overflowing.
+ * The bounds are limited to the listener's
+ * {@link QueueListener#getMaxPrefetchCount()}, if it has one.
+ */
+public class PrefetchPolicy {
+
+    /**
+     * Default minimum prefetch count.
+     */
+    public static final int DEFAULT_MIN = 1;
+
+    /**
+     * Default maximum prefetch count.
+     */
+    public static final int DEFAULT_MAX = 1000;
+
+    private final int min;
+    private final int max;
+
+    /**
+     * Creates a prefetch policy.
+     *
+     * @param min The minimum prefetch count.
+     * @param max The maximum prefetch count.
+     * @throws IllegalArgumentException If the minimum isn't positive or is
+     *                                  greater than the maximum.
+     */
+    public PrefetchPolicy(int min, int max) throws IllegalArgumentException {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("Prefetch bounds must be positive with min <= max");
+        }
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Returns the minimum prefetch count.
+     *
+     * @return The minimum prefetch count.
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the maximum prefetch count.
+     *
+     * @return The maximum prefetch count.
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Limits a prefetch count to the bounds of this policy.
+     *
+     * @param prefetchCount The prefetch count.
+     * @return The prefetch count within the bounds.
+     */
+    public int clamp(int prefetchCount) {
+        return Math.max(min, Math.min(max, prefetchCount));
+    }
+
+    /**
+     * Returns this policy with its bounds limited to a maximum prefetch count.
+     *
+     * @param maxPrefetchCount The maximum prefetch count.
+     * @return The limited policy, or this policy if it is within the limit.
+     */
+    public PrefetchPolicy limit(int maxPrefetchCount) {
+        if (maxPrefetchCount <= 0 || max <= maxPrefetchCount) {
+            return this;
+        }
+        return new PrefetchPolicy(Math.min(min, maxPrefetchCount), maxPrefetchCount);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PrefetchPolicy [min=%d, max=%d]", min, max);
+    }
+}
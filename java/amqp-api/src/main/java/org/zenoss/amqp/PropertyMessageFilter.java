@@ -0,0 +1,169 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.zenoss.protobufs.ProtobufConstants;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link MessageFilter} which accepts messages by routing key, type name and
+ * header values. Each kind of criteria is optional; a message is accepted when
+ * it matches one of the values of every kind which was specified, and
+ * acknowledged or rejected otherwise. For example, to only decode events from
+ * a queue which also receives heartbeats:
+ * <pre>
+ * new PropertyMessageFilter(MessageFilter.Action.ACK)
+ *         .withRoutingKey("zenoss.zenevent.#")
+ *         .withType("org.zenoss.protobufs.zep.Event");
+ * </pre>
+ */
+public class PropertyMessageFilter implements MessageFilter {
+
+    private final Action unmatched;
+    private final Map<String, String[]> routingKeys = new LinkedHashMap<String, String[]>();
+    private final Set<String> types = new HashSet<String>();
+    private final Map<String, Set<String>> headers = new LinkedHashMap<String, Set<String>>();
+
+    /**
+     * Creates a filter which accepts all messages until criteria are added.
+     *
+     * @param unmatched
+     *            What to do with messages which don't match the criteria.
+     * @throws IllegalArgumentException
+     *             If <code>unmatched</code> is {@link Action#ACCEPT}.
+     */
+    public PropertyMessageFilter(Action unmatched) throws IllegalArgumentException {
+        if (unmatched == null || unmatched == Action.ACCEPT) {
+            throw new IllegalArgumentException("Unmatched messages must be acknowledged or rejected");
+        }
+        this.unmatched = unmatched;
+    }
+
+    /**
+     * Accepts messages published with a routing key matching the pattern,
+     * using the syntax of topic exchange bindings (<code>*</code> matches
+     * one word and <code>#</code> matches zero or more words).
+     *
+     * @param pattern
+     *            The routing key pattern.
+     * @return This filter.
+     */
+    public PropertyMessageFilter withRoutingKey(String pattern) {
+        this.routingKeys.put(pattern, pattern.split("\\.", -1));
+        return this;
+    }
+
+    /**
+     * Accepts messages of the specified type, which is the full name of the
+     * protobuf (or the AMQP <code>type</code> property of messages which
+     * aren't protobufs).
+     *
+     * @param typeNames
+     *            The type names.
+     * @return This filter.
+     */
+    public PropertyMessageFilter withType(String... typeNames) {
+        this.types.addAll(Arrays.asList(typeNames));
+        return this;
+    }
+
+    /**
+     * Accepts messages with a header set to one of the values (compared as
+     * strings).
+     *
+     * @param name
+     *            The header name.
+     * @param values
+     *            The header values.
+     * @return This filter.
+     */
+    public PropertyMessageFilter withHeader(String name, Object... values) {
+        Set<String> strings = this.headers.get(name);
+        if (strings == null) {
+            strings = new HashSet<String>();
+            this.headers.put(name, strings);
+        }
+        for (Object value : values) {
+            strings.add(String.valueOf(value));
+        }
+        return this;
+    }
+
+    @Override
+    public Action filter(MessageProperties properties, MessageEnvelope envelope) {
+        return matches(properties, envelope) ? Action.ACCEPT : this.unmatched;
+    }
+
+    private boolean matches(MessageProperties properties, MessageEnvelope envelope) {
+        if (!this.routingKeys.isEmpty() && !matchesRoutingKey(envelope.getRoutingKey())) {
+            return false;
+        }
+        final Map<String, Object> messageHeaders = properties.getHeaders();
+        if (!this.types.isEmpty()) {
+            final Object fullName = (messageHeaders == null) ? null :
+                    messageHeaders.get(ProtobufConstants.HEADER_PROTOBUF_FULLNAME);
+            final String type = (fullName != null) ? fullName.toString() : properties.getType();
+            if (!this.types.contains(type)) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : this.headers.entrySet()) {
+            final Object value = (messageHeaders == null) ? null : messageHeaders.get(entry.getKey());
+            if (value == null || !entry.getValue().contains(value.toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesRoutingKey(String routingKey) {
+        if (routingKey == null) {
+            return false;
+        }
+        final String[] words = routingKey.split("\\.", -1);
+        for (String[] pattern : this.routingKeys.values()) {
+            if (matches(pattern, 0, words, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] words, int w) {
+        while (p < pattern.length) {
+            if ("#".equals(pattern[p])) {
+                for (int i = w; i <= words.length; i++) {
+                    if (matches(pattern, p + 1, words, i)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (w == words.length || !("*".equals(pattern[p]) || pattern[p].equals(words[w]))) {
+                return false;
+            }
+            p++;
+            w++;
+        }
+        return w == words.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PropertyMessageFilter [routingKeys=%s, types=%s, headers=%s, unmatched=%s]",
+                routingKeys.keySet(), types, headers, unmatched);
+    }
+}
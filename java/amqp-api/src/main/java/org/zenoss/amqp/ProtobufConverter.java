@@ -15,6 +15,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.ExtensionRegistry;
 import org.zenoss.protobufs.ProtobufConstants;
 
@@ -29,7 +30,7 @@ import com.google.protobuf.Message;
  * {@link Descriptor#getFullName()} in order to be properly decoded by the
  * receiver.
  */
-public class ProtobufConverter implements MessageConverter<Message> {
+public class ProtobufConverter implements BufferedMessageConverter<Message> {
 
     private final Map<String, Message> messagesByFullName;
     private volatile ExtensionRegistry extensionRegistry;
@@ -107,14 +108,31 @@ public class ProtobufConverter implements MessageConverter<Message> {
     @Override
     public byte[] toBytes(Message message,
             MessagePropertiesBuilder propertyBuilder) throws Exception {
+        prepare(message, propertyBuilder);
+        return message.toByteArray();
+    }
+
+    @Override
+    public int prepare(Message message,
+            MessagePropertiesBuilder propertyBuilder) throws Exception {
         String messageFullName = message.getDescriptorForType().getFullName();
         if (!messagesByFullName.containsKey(messageFullName)) {
             throw new IllegalArgumentException("Protobuf converter was passed a message of type " +
                     messageFullName + " but can't handle it");
         }
-        propertyBuilder.setContentType(ProtobufConstants.CONTENT_TYPE_PROTOBUF);
-        propertyBuilder.addHeader(ProtobufConstants.HEADER_PROTOBUF_FULLNAME, message
-                .getDescriptorForType().getFullName());
-        return message.toByteArray();
+        if (propertyBuilder != null) {
+            propertyBuilder.setContentType(ProtobufConstants.CONTENT_TYPE_PROTOBUF);
+            propertyBuilder.addHeader(ProtobufConstants.HEADER_PROTOBUF_FULLNAME, messageFullName);
+        }
+        return message.getSerializedSize();
+    }
+
+    @Override
+    public void writeTo(Message message, byte[] buffer, int offset)
+            throws Exception {
+        final int size = message.getSerializedSize();
+        final CodedOutputStream output = CodedOutputStream.newInstance(buffer, offset, size);
+        message.writeTo(output);
+        output.checkNoSpaceLeft();
     }
 }
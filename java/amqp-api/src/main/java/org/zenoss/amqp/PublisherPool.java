@@ -0,0 +1,151 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed number of publishers for one exchange, each on its own channel.
+ * Publishing threads are spread across the publishers so they don't all
+ * contend for the lock on a single channel.
+ */
+class PublisherPool {
+
+    private final AtomicReferenceArray<Publisher<com.google.protobuf.Message>> publishers;
+    private final AmqpConnectionManager.PublisherStriping striping;
+    private final AtomicInteger next = new AtomicInteger();
+
+    PublisherPool(int size, AmqpConnectionManager.PublisherStriping striping) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive");
+        }
+        if (striping == null) {
+            throw new NullPointerException();
+        }
+        this.publishers = new AtomicReferenceArray<Publisher<com.google.protobuf.Message>>(size);
+        this.striping = striping;
+    }
+
+    /**
+     * Returns the slot which should be used by the calling thread.
+     *
+     * @return The slot which should be used by the calling thread.
+     */
+    int slot() {
+        final int size = publishers.length();
+        if (size == 1) {
+            return 0;
+        }
+        if (striping == AmqpConnectionManager.PublisherStriping.ROUND_ROBIN) {
+            return (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        }
+        return (int) (Thread.currentThread().getId() % size);
+    }
+
+    /**
+     * Returns the publisher in the slot, or null if it hasn't been created.
+     *
+     * @param slot The slot.
+     * @return The publisher in the slot, or null if it hasn't been created.
+     */
+    Publisher<com.google.protobuf.Message> get(int slot) {
+        return publishers.get(slot);
+    }
+
+    /**
+     * Sets the publisher in the slot if it is empty.
+     *
+     * @param slot      The slot.
+     * @param publisher The publisher.
+     * @return True if the publisher was set, false if another thread already
+     *         created a publisher for the slot.
+     */
+    boolean setIfEmpty(int slot, Publisher<com.google.protobuf.Message> publisher) {
+        return publishers.compareAndSet(slot, null, publisher);
+    }
+
+    /**
+     * Removes the publisher if it occupies any slot in the pool.
+     *
+     * @param publisher The publisher to remove.
+     * @return True if the publisher was removed.
+     */
+    boolean remove(Publisher<com.google.protobuf.Message> publisher) {
+        for (int i = 0; i < publishers.length(); i++) {
+            if (publishers.compareAndSet(i, publisher, null)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all publishers from the pool.
+     *
+     * @return The removed publishers.
+     */
+    List<Publisher<com.google.protobuf.Message>> clear() {
+        final List<Publisher<com.google.protobuf.Message>> removed =
+                new ArrayList<Publisher<com.google.protobuf.Message>>(publishers.length());
+        for (int i = 0; i < publishers.length(); i++) {
+            final Publisher<com.google.protobuf.Message> publisher = publishers.getAndSet(i, null);
+            if (publisher != null) {
+                removed.add(publisher);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the publishers in the slots on one connection of a sharded
+     * connection manager, where slot <code>i</code> is on connection
+     * <code>i % shards</code>.
+     *
+     * @param shard  The connection.
+     * @param shards The number of connections.
+     * @return The removed publishers.
+     */
+    List<Publisher<com.google.protobuf.Message>> clear(int shard, int shards) {
+        final List<Publisher<com.google.protobuf.Message>> removed = new ArrayList<Publisher<com.google.protobuf.Message>>();
+        for (int i = shard; i < publishers.length(); i += shards) {
+            final Publisher<com.google.protobuf.Message> publisher = publishers.getAndSet(i, null);
+            if (publisher != null) {
+                removed.add(publisher);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the number of publishers in the slots on one connection (see
+     * {@link #clear(int, int)}).
+     *
+     * @param shard  The connection.
+     * @param shards The number of connections.
+     * @return The number of publishers.
+     */
+    int count(int shard, int shards) {
+        int count = 0;
+        for (int i = shard; i < publishers.length(); i += shards) {
+            if (publishers.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        return publishers.length();
+    }
+}
@@ -31,6 +31,8 @@ import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -120,6 +122,9 @@ public class QueueConfig {
     private final Map<String, ExchangeNode> exchangesById = new LinkedHashMap<String, ExchangeNode>();
     private final Map<String, QueueNode> queuesById = new LinkedHashMap<String, QueueNode>();
     private final MessagingProperties properties = new MessagingProperties();
+    /* Compression policies (and their statistics) are shared by all configurations for an exchange */
+    private final ConcurrentMap<String, CompressionPolicy> compressionPolicies =
+            new ConcurrentHashMap<String, CompressionPolicy>();
 
     /**
      * Creates a queue configuration from the specified file.
@@ -163,10 +168,12 @@ public class QueueConfig {
 
     public void loadProperties(InputStream is) throws IOException {
         properties.load(is);
+        compressionPolicies.clear();
     }
 
     public void loadProperties(Properties p) {
         properties.load(p);
+        compressionPolicies.clear();
     }
 
     protected void load(InputStream is) throws IOException {
@@ -371,7 +378,80 @@ public class QueueConfig {
             Binding binding = new Binding(queue, exchange.getExchange(), routingKey, bindingArguments);
             replacedBindings.add(binding);
         }
-        return new QueueConfiguration(queueNode.identifier, queue, replacedBindings, messagesById.values());
+        return new QueueConfiguration(queueNode.identifier, queue, replacedBindings, messagesById.values(),
+                getPrefetchPolicy(identifier), getDecodeThreads(identifier), getBufferPolicy(identifier),
+                getConcurrencyPolicy(identifier));
+    }
+
+    /**
+     * Returns the connection settings from the <code>connection.*</code>
+     * properties, for {@link ConnectionFactory#setConnectionTuning(ConnectionTuning)}.
+     * Invalid settings are logged and ignored.
+     *
+     * @return The connection settings.
+     */
+    public ConnectionTuning getConnectionTuning() {
+        return ConnectionTuning.DEFAULT.with(properties.getConnectionProperties());
+    }
+
+    private int getDecodeThreads(String identifier) {
+        try {
+            return Math.max(0, Integer.parseInt(properties.getQueueProperty(identifier, "decode_threads", "0").trim()));
+        } catch (NumberFormatException e) {
+            // Invalid entry in config file.
+            logger.warn("Invalid decode_threads for queue {}: {}", identifier, e.getLocalizedMessage());
+            return 0;
+        }
+    }
+
+    private ConcurrencyPolicy getConcurrencyPolicy(String identifier) {
+        final String min = properties.getQueueProperty(identifier, "concurrency_min", null);
+        final String max = properties.getQueueProperty(identifier, "concurrency_max", null);
+        if (min == null && max == null) {
+            return null;
+        }
+        try {
+            final int minWorkers = (min != null) ? Integer.parseInt(min.trim()) : ConcurrencyPolicy.DEFAULT_MIN;
+            return new ConcurrencyPolicy(minWorkers, (max != null) ? Integer.parseInt(max.trim()) : minWorkers);
+        } catch (IllegalArgumentException e) {
+            // Invalid entry in config file.
+            logger.warn("Invalid concurrency policy for queue {}: {}", identifier, e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private BufferPolicy getBufferPolicy(String identifier) {
+        final String maxMessages = properties.getQueueProperty(identifier, "buffer_max_messages", null);
+        final String maxBytes = properties.getQueueProperty(identifier, "buffer_max_bytes", null);
+        if (maxMessages == null && maxBytes == null) {
+            return null;
+        }
+        try {
+            return new BufferPolicy(
+                    (maxMessages != null) ? Integer.parseInt(maxMessages.trim()) : BufferPolicy.DEFAULT_MAX_MESSAGES,
+                    (maxBytes != null) ? Long.parseLong(maxBytes.trim()) : BufferPolicy.DEFAULT_MAX_BYTES);
+        } catch (IllegalArgumentException e) {
+            // Invalid entry in config file.
+            logger.warn("Invalid buffer policy for queue {}: {}", identifier, e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private PrefetchPolicy getPrefetchPolicy(String identifier) {
+        final String min = properties.getQueueProperty(identifier, "prefetch_min", null);
+        final String max = properties.getQueueProperty(identifier, "prefetch_max", null);
+        if (min == null && max == null) {
+            return null;
+        }
+        try {
+            return new PrefetchPolicy(
+                    (min != null) ? Integer.parseInt(min.trim()) : PrefetchPolicy.DEFAULT_MIN,
+                    (max != null) ? Integer.parseInt(max.trim()) : PrefetchPolicy.DEFAULT_MAX);
+        } catch (IllegalArgumentException e) {
+            // Invalid entry in config file.
+            logger.warn("Invalid prefetch policy for queue {}: {}", identifier, e.getLocalizedMessage());
+            return null;
+        }
     }
 
     /**
@@ -384,6 +464,49 @@ public class QueueConfig {
         return getExchange(identifier, Collections.<String, String>emptyMap());
     }
 
+    private CompressionPolicy getCompressionPolicy(String identifier, String exchangeName) {
+        CompressionPolicy policy = compressionPolicies.get(exchangeName);
+        if (policy == null) {
+            int minSize = CompressionPolicy.DEFAULT_MIN_SIZE;
+            double minGain = CompressionPolicy.DEFAULT_MIN_GAIN;
+            try {
+                minSize = Integer.parseInt(properties.getExchangeProperty(identifier, "compression_min_size",
+                        String.valueOf(minSize)).trim());
+                minGain = Double.parseDouble(properties.getExchangeProperty(identifier, "compression_min_gain",
+                        String.valueOf(minGain)).trim());
+                policy = new CompressionPolicy(minSize, minGain);
+            } catch (IllegalArgumentException e) {
+                // Invalid entry in config file.
+                logger.warn("Invalid compression policy for exchange {}: {}", identifier, e.getLocalizedMessage());
+                policy = new CompressionPolicy();
+            }
+            final CompressionPolicy previous = compressionPolicies.putIfAbsent(exchangeName, policy);
+            if (previous != null) {
+                policy = previous;
+            }
+        }
+        return policy;
+    }
+
+    private BatchPolicy getBatchPolicy(String identifier) {
+        try {
+            final int maxMessages = Integer.parseInt(properties.getExchangeProperty(identifier,
+                    "batch_max_messages", "0").trim());
+            if (maxMessages <= 1) {
+                return null;
+            }
+            final int maxBytes = Integer.parseInt(properties.getExchangeProperty(identifier, "batch_max_bytes",
+                    String.valueOf(BatchPolicy.DEFAULT_MAX_BYTES)).trim());
+            final long lingerMillis = Long.parseLong(properties.getExchangeProperty(identifier, "batch_linger_ms",
+                    String.valueOf(BatchPolicy.DEFAULT_LINGER_MILLIS)).trim());
+            return new BatchPolicy(maxMessages, maxBytes, lingerMillis);
+        } catch (IllegalArgumentException e) {
+            // Invalid entry in config file.
+            logger.warn("Invalid batch policy for exchange {}: {}", identifier, e.getLocalizedMessage());
+            return null;
+        }
+    }
+
     /**
      * Returns the exchange configuration with the specified identifier with all replacement values
      * substituted in the configuration with the specified values.
@@ -418,7 +541,8 @@ public class QueueConfig {
         }
 
         Exchange exchange = new Exchange(name, exchangeNode.type, exchangeNode.durable,
-                exchangeNode.autoDelete, arguments, deliveryMode, compression);
+                exchangeNode.autoDelete, arguments, deliveryMode, compression,
+                getCompressionPolicy(identifier, name), getBatchPolicy(identifier));
         List<Message> messages = new ArrayList<Message>(exchangeNode.contentTypeIds.size());
         for (String messageId : exchangeNode.contentTypeIds) {
             messages.add(loadMessageFromContentTypeId(messageId));
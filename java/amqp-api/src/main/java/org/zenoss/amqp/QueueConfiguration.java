@@ -26,6 +26,10 @@ public class QueueConfiguration {
     private final Queue queue;
     private final List<Binding> bindings;
     private final List<Message> messages;
+    private final PrefetchPolicy prefetchPolicy;
+    private final int decodeThreads;
+    private final BufferPolicy bufferPolicy;
+    private final ConcurrencyPolicy concurrencyPolicy;
 
     /**
      * Creates a new {@link QueueConfiguration} with the specified queue, list
@@ -41,6 +45,109 @@ public class QueueConfiguration {
      */
     public QueueConfiguration(String identifier, Queue queue, Collection<Binding> bindings,
                               Collection<Message> messages) {
+        this(identifier, queue, bindings, messages, null);
+    }
+
+    /**
+     * Creates a new {@link QueueConfiguration} with the specified queue, list
+     * of bindings, list of messages and prefetch policy.
+     *
+     * @param identifier The identifier for the queue in the .qjs file.
+     * @param queue
+     *            Queue.
+     * @param bindings
+     *            List of bindings.
+     * @param messages
+     *            List of messages consumed from the queue.
+     * @param prefetchPolicy
+     *            Bounds on the prefetch count adjusted at runtime, or null to
+     *            keep the prefetch count set by the queue listener.
+     */
+    public QueueConfiguration(String identifier, Queue queue, Collection<Binding> bindings,
+                              Collection<Message> messages, PrefetchPolicy prefetchPolicy) {
+        this(identifier, queue, bindings, messages, prefetchPolicy, 0);
+    }
+
+    /**
+     * Creates a new {@link QueueConfiguration} with the specified queue, list
+     * of bindings, list of messages, prefetch policy and number of decoding
+     * threads.
+     *
+     * @param identifier The identifier for the queue in the .qjs file.
+     * @param queue
+     *            Queue.
+     * @param bindings
+     *            List of bindings.
+     * @param messages
+     *            List of messages consumed from the queue.
+     * @param prefetchPolicy
+     *            Bounds on the prefetch count adjusted at runtime, or null to
+     *            keep the prefetch count set by the queue listener.
+     * @param decodeThreads
+     *            Number of threads decoding messages for each worker, or zero
+     *            to decode messages on the worker thread.
+     */
+    public QueueConfiguration(String identifier, Queue queue, Collection<Binding> bindings,
+                              Collection<Message> messages, PrefetchPolicy prefetchPolicy, int decodeThreads) {
+        this(identifier, queue, bindings, messages, prefetchPolicy, decodeThreads, null);
+    }
+
+    /**
+     * Creates a new {@link QueueConfiguration} with the specified queue, list
+     * of bindings, list of messages, prefetch policy, number of decoding
+     * threads and consumer buffer limits.
+     *
+     * @param identifier The identifier for the queue in the .qjs file.
+     * @param queue
+     *            Queue.
+     * @param bindings
+     *            List of bindings.
+     * @param messages
+     *            List of messages consumed from the queue.
+     * @param prefetchPolicy
+     *            Bounds on the prefetch count adjusted at runtime, or null to
+     *            keep the prefetch count set by the queue listener.
+     * @param decodeThreads
+     *            Number of threads decoding messages for each worker, or zero
+     *            to decode messages on the worker thread.
+     * @param bufferPolicy
+     *            Limits on the messages buffered by each worker's consumer,
+     *            or null to only limit them by the prefetch count.
+     */
+    public QueueConfiguration(String identifier, Queue queue, Collection<Binding> bindings,
+                              Collection<Message> messages, PrefetchPolicy prefetchPolicy, int decodeThreads,
+                              BufferPolicy bufferPolicy) {
+        this(identifier, queue, bindings, messages, prefetchPolicy, decodeThreads, bufferPolicy, null);
+    }
+
+    /**
+     * Creates a new {@link QueueConfiguration} with the specified queue, list
+     * of bindings, list of messages, prefetch policy, number of decoding
+     * threads, consumer buffer limits and number of workers.
+     *
+     * @param identifier The identifier for the queue in the .qjs file.
+     * @param queue
+     *            Queue.
+     * @param bindings
+     *            List of bindings.
+     * @param messages
+     *            List of messages consumed from the queue.
+     * @param prefetchPolicy
+     *            Bounds on the prefetch count adjusted at runtime, or null to
+     *            keep the prefetch count set by the queue listener.
+     * @param decodeThreads
+     *            Number of threads decoding messages for each worker, or zero
+     *            to decode messages on the worker thread.
+     * @param bufferPolicy
+     *            Limits on the messages buffered by each worker's consumer,
+     *            or null to only limit them by the prefetch count.
+     * @param concurrencyPolicy
+     *            Bounds on the number of workers consuming from the queue for
+     *            a listener, or null for a single worker.
+     */
+    public QueueConfiguration(String identifier, Queue queue, Collection<Binding> bindings,
+                              Collection<Message> messages, PrefetchPolicy prefetchPolicy, int decodeThreads,
+                              BufferPolicy bufferPolicy, ConcurrencyPolicy concurrencyPolicy) {
         if (identifier == null || queue == null || bindings == null || messages == null) {
             throw new NullPointerException();
         }
@@ -48,6 +155,10 @@ public class QueueConfiguration {
         this.queue = queue;
         this.bindings = new ArrayList<Binding>(bindings);
         this.messages = new ArrayList<Message>(messages);
+        this.prefetchPolicy = prefetchPolicy;
+        this.decodeThreads = Math.max(0, decodeThreads);
+        this.bufferPolicy = bufferPolicy;
+        this.concurrencyPolicy = concurrencyPolicy;
     }
 
     /**
@@ -87,6 +198,49 @@ public class QueueConfiguration {
         return Collections.unmodifiableList(this.messages);
     }
 
+    /**
+     * Returns the bounds on the prefetch count of the queue's consumers.
+     *
+     * @return The prefetch policy, or null if the prefetch count is set by
+     *         the queue listener.
+     */
+    public PrefetchPolicy getPrefetchPolicy() {
+        return prefetchPolicy;
+    }
+
+    /**
+     * Returns the number of threads decoding (decompressing and parsing)
+     * messages for each worker consuming from the queue. Messages are still
+     * handled in the order they were received.
+     *
+     * @return The number of decoding threads, or zero if messages are
+     *         decoded on the worker thread.
+     */
+    public int getDecodeThreads() {
+        return decodeThreads;
+    }
+
+    /**
+     * Returns the limits on the messages buffered by the consumers of the
+     * queue.
+     *
+     * @return The buffer policy, or null if buffered messages are only
+     *         limited by the prefetch count.
+     */
+    public BufferPolicy getBufferPolicy() {
+        return bufferPolicy;
+    }
+
+    /**
+     * Returns the bounds on the number of workers consuming from the queue
+     * for a listener created by a {@link QueueListenerFactory}.
+     *
+     * @return The concurrency policy, or null for a single worker.
+     */
+    public ConcurrencyPolicy getConcurrencyPolicy() {
+        return concurrencyPolicy;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -102,6 +256,18 @@ public class QueueConfiguration {
             sb.append(messages.get(i).getDescriptorForType().getFullName());
         }
         sb.append(']');
+        if (prefetchPolicy != null) {
+            sb.append(",prefetchPolicy=").append(prefetchPolicy);
+        }
+        if (decodeThreads > 0) {
+            sb.append(",decodeThreads=").append(decodeThreads);
+        }
+        if (bufferPolicy != null) {
+            sb.append(",bufferPolicy=").append(bufferPolicy);
+        }
+        if (concurrencyPolicy != null) {
+            sb.append(",concurrencyPolicy=").append(concurrencyPolicy);
+        }
         return sb.toString();
     }
 }
@@ -10,6 +10,8 @@
 
 package org.zenoss.amqp;
 
+import java.util.Collection;
+
 /**
  * Abstract class which is called back when a message is read from a queue.
  */
@@ -26,6 +28,16 @@ public abstract class QueueListener {
         channel.setQos(DEFAULT_PREFETCH_SIZE, DEFAULT_PREFETCH_COUNT);
     }
 
+    /**
+     * Returns the largest prefetch count this listener can use, which limits
+     * a queue's {@link PrefetchPolicy}, or zero (the default) for no limit.
+     *
+     * @return The maximum prefetch count, or zero.
+     */
+    public int getMaxPrefetchCount() {
+        return 0;
+    }
+
     /**
      * @param consumer
      *            The consumer which receives the messages.
@@ -51,6 +63,31 @@ public abstract class QueueListener {
         this.timeout = timeout;
     }
 
+    /**
+     * Returns a filter which acknowledges or rejects unwanted messages before
+     * they are decoded, or null (the default) to receive all messages.
+     *
+     * @return The message filter, or null.
+     */
+    public MessageFilter getMessageFilter() {
+        return null;
+    }
+
+    /**
+     * Returns whether message bodies are decoded when first read instead of
+     * when they are received (false by default). Listeners which only read
+     * the properties of some messages can enable this to skip decoding them.
+     * A message which can't be decoded throws a {@link MessageBodyException}
+     * when its body is read; the exception should be allowed to propagate
+     * from {@link #receive(Message)} without settling the message, which the
+     * queue worker then rejects.
+     *
+     * @return Whether message bodies are decoded lazily.
+     */
+    public boolean isLazyDecoding() {
+        return false;
+    }
+
     /**
      * Method which is called when a message is is received on the queue. The
      * default behavior of this method is to acknowledge the message when the
@@ -69,6 +106,9 @@ public abstract class QueueListener {
         try {
             handle(message.getBody());
             handled(message);
+        } catch (MessageBodyException e) {
+            /* Rejected by the queue worker */
+            throw e;
         } catch (Exception e) {
             failed(message);
             throw e;
@@ -119,6 +159,32 @@ public abstract class QueueListener {
         this.consumer.rejectMessage(message, false);
     }
 
+    /**
+     * Acknowledge these messages. Messages received consecutively are
+     * acknowledged together. This doesn't call {@link #handled(Message)}:
+     * a subclass which acts on each acknowledged message must override this
+     * method too, as {@link BatchingQueueListener} acknowledges its batches
+     * with it.
+     * @param messages
+     * @throws AmqpException
+     */
+    protected void handled(final Collection<? extends Message<?>> messages) throws AmqpException {
+        this.consumer.ackMessages(messages);
+    }
+
+    /**
+     * Reject these messages, do not re-queue. Messages received
+     * consecutively are rejected together. This doesn't call
+     * {@link #failed(Message)}: a subclass which acts on each rejected
+     * message must override this method too, as
+     * {@link BatchingQueueListener} rejects its failed messages with it.
+     * @param messages
+     * @throws AmqpException
+     */
+    protected void failed(final Collection<? extends Message<?>> messages) throws AmqpException {
+        this.consumer.rejectMessages(messages, false);
+    }
+
     /**
      * Reject this message and requeue
      * @param message
@@ -0,0 +1,28 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+/**
+ * Creates the listeners for the workers consuming from a queue concurrently.
+ * A {@link QueueListener} is bound to the consumer of the worker which calls
+ * it, so each worker needs its own listener.
+ *
+ * @see AmqpConnectionManager#addListener(QueueConfiguration, QueueListenerFactory)
+ */
+public interface QueueListenerFactory {
+
+    /**
+     * Creates a listener for a new worker.
+     *
+     * @return The listener.
+     */
+    public QueueListener newListener();
+}
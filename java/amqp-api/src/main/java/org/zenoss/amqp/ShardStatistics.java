@@ -0,0 +1,151 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the state of one of the connections of an
+ * {@link AmqpConnectionManager}.
+ *
+ * @see AmqpConnectionManager#getShardStatistics()
+ */
+public class ShardStatistics {
+
+    private final int shard;
+    private final boolean connected;
+    private final AmqpServerUri broker;
+    private final long connects;
+    private final long channelsOpened;
+    private final int workers;
+    private final int publishers;
+    private final long bufferedBytes;
+    private final long declarations;
+    private final long topologyRestoreNanos;
+
+    ShardStatistics(int shard, boolean connected, AmqpServerUri broker, long connects, long channelsOpened,
+                    int workers, int publishers, long bufferedBytes, long declarations,
+                    long topologyRestoreNanos) {
+        this.shard = shard;
+        this.connected = connected;
+        this.broker = broker;
+        this.connects = connects;
+        this.channelsOpened = channelsOpened;
+        this.workers = workers;
+        this.publishers = publishers;
+        this.bufferedBytes = bufferedBytes;
+        this.declarations = declarations;
+        this.topologyRestoreNanos = topologyRestoreNanos;
+    }
+
+    /**
+     * Returns the index of the connection, from zero.
+     *
+     * @return The index of the connection.
+     */
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * Returns true if the connection is open.
+     *
+     * @return True if the connection is open.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Returns the broker the connection is (or was last) connected to.
+     *
+     * @return The broker, or null if it hasn't connected.
+     */
+    public AmqpServerUri getBroker() {
+        return broker;
+    }
+
+    /**
+     * Returns the number of times the connection has been established,
+     * including reconnects.
+     *
+     * @return The number of connects.
+     */
+    public long getConnects() {
+        return connects;
+    }
+
+    /**
+     * Returns the number of channels opened on the connection.
+     *
+     * @return The number of channels opened.
+     */
+    public long getChannelsOpened() {
+        return channelsOpened;
+    }
+
+    /**
+     * Returns the number of queue workers assigned to the connection.
+     *
+     * @return The number of workers.
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Returns the number of pooled publishers open on the connection.
+     *
+     * @return The number of publishers.
+     */
+    public int getPublishers() {
+        return publishers;
+    }
+
+    /**
+     * Returns the total size of the messages buffered by the workers on the
+     * connection.
+     *
+     * @return The number of buffered bytes.
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * Returns the number of exchange, queue and binding declarations sent on
+     * the current connection. Each is declared at most once per connection.
+     *
+     * @return The number of declarations.
+     */
+    public long getDeclarations() {
+        return declarations;
+    }
+
+    /**
+     * Returns the time taken to declare the queues, exchanges and bindings of
+     * the connection's workers in one batch when it connected.
+     *
+     * @param unit The unit of the result.
+     * @return The time taken, or -1 if the batch hasn't completed.
+     */
+    public long getTopologyRestoreTime(TimeUnit unit) {
+        return (topologyRestoreNanos < 0) ? -1 : unit.convert(topologyRestoreNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ShardStatistics [shard=%d, connected=%s, broker=%s, connects=%d, " +
+                "channelsOpened=%d, workers=%d, publishers=%d, bufferedBytes=%d, declarations=%d, " +
+                "topologyRestoreMillis=%d]", shard, connected, broker, connects, channelsOpened, workers,
+                publishers, bufferedBytes, declarations, getTopologyRestoreTime(TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,203 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The exchanges, queues and bindings declared on one connection, so each is
+ * declared at most once per connection instead of each time a publisher is
+ * created or a queue worker (re)starts. A new cache is used for each
+ * connection, and {@link #declareAll(Channel, Collection)} declares the
+ * topology of all of a connection's queues in one pipelined batch when it
+ * connects.
+ * <p/>
+ * Auto-delete and exclusive queues, auto-delete exchanges and their bindings
+ * are never cached, since the server can delete them while the connection is
+ * open.
+ */
+class TopologyCache {
+
+    private final Set<String> declared = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong declarations = new AtomicLong();
+    private volatile long restoreNanos = -1;
+
+    private static String key(Exchange exchange) {
+        return "exchange " + exchange.getName() + " " + exchange.getType().getName() + " "
+                + exchange.isDurable() + " " + exchange.getArguments();
+    }
+
+    private static String key(Queue queue) {
+        return "queue " + queue.getName() + " " + queue.isDurable() + " " + queue.getArguments();
+    }
+
+    private static String key(Binding binding) {
+        return "binding " + binding.getQueue().getName() + " " + binding.getExchange().getName() + " "
+                + binding.getRoutingKey() + " " + binding.getArguments();
+    }
+
+    private static boolean isCacheable(Exchange exchange) {
+        return !exchange.isAutoDelete();
+    }
+
+    private static boolean isCacheable(Queue queue) {
+        return !queue.isAutoDelete() && !queue.isExclusive();
+    }
+
+    private static boolean isCacheable(Binding binding) {
+        return isCacheable(binding.getQueue()) && isCacheable(binding.getExchange());
+    }
+
+    /**
+     * Declares the exchange on the channel unless it has already been
+     * declared on the connection.
+     *
+     * @param channel  A channel on the connection.
+     * @param exchange The exchange.
+     * @throws AmqpException If the exchange can't be declared.
+     */
+    void declareExchange(Channel channel, Exchange exchange) throws AmqpException {
+        if (!isCacheable(exchange) || !this.declared.contains(key(exchange))) {
+            channel.declareExchange(exchange);
+            this.declarations.incrementAndGet();
+            if (isCacheable(exchange)) {
+                this.declared.add(key(exchange));
+            }
+        }
+    }
+
+    /**
+     * Declares the queue on the channel unless it has already been declared
+     * on the connection.
+     *
+     * @param channel A channel on the connection.
+     * @param queue   The queue.
+     * @throws AmqpException If the queue can't be declared.
+     */
+    void declareQueue(Channel channel, Queue queue) throws AmqpException {
+        if (!isCacheable(queue) || !this.declared.contains(key(queue))) {
+            channel.declareQueue(queue);
+            this.declarations.incrementAndGet();
+            if (isCacheable(queue)) {
+                this.declared.add(key(queue));
+            }
+        }
+    }
+
+    /**
+     * Creates the binding on the channel unless it has already been created
+     * on the connection.
+     *
+     * @param channel A channel on the connection.
+     * @param binding The binding.
+     * @throws AmqpException If the binding can't be created.
+     */
+    void bindQueue(Channel channel, Binding binding) throws AmqpException {
+        if (!isCacheable(binding) || !this.declared.contains(key(binding))) {
+            channel.bindQueue(binding);
+            this.declarations.incrementAndGet();
+            if (isCacheable(binding)) {
+                this.declared.add(key(binding));
+            }
+        }
+    }
+
+    /**
+     * Declares the queues of the configurations, with their bindings and
+     * exchanges, in one pipelined batch (see
+     * {@link Channel#declareTopology(Collection, Collection, Collection)}),
+     * recording the time taken. Only cacheable objects are declared.
+     *
+     * @param channel A channel on the connection.
+     * @param configs The queue configurations.
+     * @return The number of exchanges, queues and bindings declared.
+     * @throws AmqpException If a declaration fails. The channel is closed
+     *                       and nothing is cached.
+     */
+    int declareAll(Channel channel, Collection<QueueConfiguration> configs) throws AmqpException {
+        final long start = System.nanoTime();
+        final Map<String, Exchange> exchanges = new LinkedHashMap<String, Exchange>();
+        final Map<String, Queue> queues = new LinkedHashMap<String, Queue>();
+        final Map<String, Binding> bindings = new LinkedHashMap<String, Binding>();
+        for (QueueConfiguration config : configs) {
+            final Queue queue = config.getQueue();
+            if (!isCacheable(queue)) {
+                continue;
+            }
+            queues.put(key(queue), queue);
+            for (Binding binding : config.getBindings()) {
+                if (isCacheable(binding)) {
+                    exchanges.put(key(binding.getExchange()), binding.getExchange());
+                    bindings.put(key(binding), binding);
+                }
+            }
+        }
+        channel.declareTopology(exchanges.values(), queues.values(), bindings.values());
+        final List<String> keys = new ArrayList<String>(exchanges.size() + queues.size() + bindings.size());
+        keys.addAll(exchanges.keySet());
+        keys.addAll(queues.keySet());
+        keys.addAll(bindings.keySet());
+        this.declared.addAll(keys);
+        this.declarations.addAndGet(keys.size());
+        this.restoreNanos = System.nanoTime() - start;
+        return keys.size();
+    }
+
+    /**
+     * Forgets the queue and its bindings, so they are declared again (for
+     * example after a worker consuming from the queue fails, in case the
+     * queue was deleted).
+     *
+     * @param config The queue configuration.
+     */
+    void invalidate(QueueConfiguration config) {
+        this.declared.remove(key(config.getQueue()));
+        for (Binding binding : config.getBindings()) {
+            this.declared.remove(key(binding));
+        }
+    }
+
+    /**
+     * Forgets the exchange, so it is declared again (for example after a
+     * publisher to the exchange fails, in case the exchange was deleted).
+     *
+     * @param exchange The exchange.
+     */
+    void invalidate(Exchange exchange) {
+        this.declared.remove(key(exchange));
+    }
+
+    /**
+     * Returns the number of declarations sent on the connection.
+     *
+     * @return The number of declarations.
+     */
+    long getDeclarations() {
+        return this.declarations.get();
+    }
+
+    /**
+     * Returns the time taken by {@link #declareAll(Channel, Collection)}.
+     *
+     * @return The time in nanoseconds, or -1 if it hasn't completed.
+     */
+    long getRestoreNanos() {
+        return this.restoreNanos;
+    }
+}
@@ -0,0 +1,103 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import org.zenoss.amqp.MessageEnvelope;
+import org.zenoss.amqp.MessageProperties;
+
+import java.util.BitSet;
+
+/**
+ * A message unpacked from a batch (see {@link org.zenoss.amqp.BatchPolicy}).
+ * All messages from a batch share the batch's delivery tag, so the delivery is
+ * only acknowledged or rejected once every message in it has been.
+ *
+ * @param <T> The underlying type of the message body.
+ */
+class BatchedMessage<T> extends DefaultMessage<T> {
+
+    /**
+     * Tracks which messages of a batch have been acknowledged or rejected.
+     */
+    static final class Batch {
+        private final int count;
+        private final BitSet settled;
+        private int remaining;
+        private boolean rejected = false;
+        private boolean requeue = false;
+
+        Batch(int count) {
+            this.count = count;
+            this.settled = new BitSet(count);
+            this.remaining = count;
+        }
+
+        /**
+         * Records that a message was acknowledged or rejected.
+         *
+         * @return True if this was the last message of the batch to be
+         *         settled, so the delivery should now be acknowledged or
+         *         rejected.
+         */
+        synchronized boolean settle(int index, boolean ack, boolean requeue) {
+            if (this.settled.get(index)) {
+                return false;
+            }
+            this.settled.set(index);
+            if (!ack) {
+                this.rejected = true;
+                this.requeue |= requeue;
+            }
+            return --this.remaining == 0;
+        }
+
+        /**
+         * Returns true if any message in the batch was rejected.
+         */
+        synchronized boolean isRejected() {
+            return rejected;
+        }
+
+        /**
+         * Returns true if any message in the batch was rejected and
+         * re-queued, in which case the whole batch is re-queued.
+         */
+        synchronized boolean isRequeue() {
+            return requeue;
+        }
+
+        int getCount() {
+            return count;
+        }
+    }
+
+    private final Batch batch;
+    private final int index;
+
+    BatchedMessage(T body, MessageProperties properties, MessageEnvelope envelope, Batch batch, int index) {
+        super(body, properties, envelope);
+        this.batch = batch;
+        this.index = index;
+    }
+
+    /**
+     * Records that this message was acknowledged or rejected.
+     *
+     * @return True if the delivery should now be acknowledged or rejected.
+     */
+    boolean settle(boolean ack, boolean requeue) {
+        return this.batch.settle(this.index, ack, requeue);
+    }
+
+    Batch getBatch() {
+        return batch;
+    }
+}
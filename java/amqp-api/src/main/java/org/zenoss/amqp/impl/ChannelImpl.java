@@ -11,26 +11,57 @@
 package org.zenoss.amqp.impl;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.zenoss.amqp.AmqpException;
 import org.zenoss.amqp.BatchPublisher;
+import org.zenoss.amqp.BufferedMessageConverter;
 import org.zenoss.amqp.Binding;
 import org.zenoss.amqp.Channel;
+import org.zenoss.amqp.CompressionCodecRegistry;
+import org.zenoss.amqp.ConfirmingPublisher;
 import org.zenoss.amqp.Consumer;
 import org.zenoss.amqp.Exchange;
 import org.zenoss.amqp.MessageConverter;
 import org.zenoss.amqp.Publisher;
 import org.zenoss.amqp.Queue;
 
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Method;
 import com.rabbitmq.client.ShutdownSignalException;
 
 class ChannelImpl implements Channel {
 
     private com.rabbitmq.client.Channel wrapped;
     private volatile boolean transactionsEnabled = false;
+    private volatile boolean confirmsEnabled = false;
+    private volatile int prefetchCount = 0;
+    /* Delivery tags acknowledged or rejected; guarded by this */
+    private final DeliveryTagTracker deliveryTags = new DeliveryTagTracker();
+
+    private final CompressionCodecRegistry codecRegistry;
 
     ChannelImpl(com.rabbitmq.client.Channel wrapped) {
+        this(wrapped, CompressionCodecRegistry.getDefault());
+    }
+
+    ChannelImpl(com.rabbitmq.client.Channel wrapped, CompressionCodecRegistry codecRegistry) {
         this.wrapped = wrapped;
+        this.codecRegistry = codecRegistry;
+    }
+
+    /**
+     * Returns the compression codecs used by publishers and consumers on this
+     * channel.
+     *
+     * @return The compression codec registry.
+     */
+    CompressionCodecRegistry getCodecRegistry() {
+        return codecRegistry;
     }
 
     @Override
@@ -55,6 +86,17 @@ class ChannelImpl implements Channel {
         }
     }
 
+    @Override
+    public synchronized int getMessageCount(Queue queue) throws AmqpException {
+        try {
+            return this.wrapped.queueDeclarePassive(queue.getName()).getMessageCount();
+        } catch (IOException e) {
+            throw new AmqpException(e);
+        } catch (ShutdownSignalException e) {
+            throw new AmqpException(e);
+        }
+    }
+
     @Override
     public synchronized void deleteQueue(Queue queue) throws AmqpException {
         try {
@@ -112,6 +154,9 @@ class ChannelImpl implements Channel {
     @Override
     public <T> Publisher<T> createPublisher(Exchange exchange,
             MessageConverter<T> converter) throws AmqpException {
+        if (exchange.getBatchPolicy() != null && converter instanceof BufferedMessageConverter) {
+            return new CoalescingPublisherImpl<T>(this, exchange, (BufferedMessageConverter<T>) converter);
+        }
         return new PublisherImpl<T>(this, exchange, converter);
     }
 
@@ -127,6 +172,18 @@ class ChannelImpl implements Channel {
         return new BatchPublisherImpl<T>(this, exchange, converter);
     }
 
+    @Override
+    public ConfirmingPublisher<byte[]> createConfirmingPublisher(Exchange exchange, int maxOutstanding)
+            throws AmqpException {
+        return new ConfirmingPublisherImpl<byte[]>(this, exchange, maxOutstanding);
+    }
+
+    @Override
+    public <T> ConfirmingPublisher<T> createConfirmingPublisher(Exchange exchange,
+            MessageConverter<T> converter, int maxOutstanding) throws AmqpException {
+        return new ConfirmingPublisherImpl<T>(this, exchange, converter, maxOutstanding);
+    }
+
     @Override
     public synchronized void bindQueue(Binding binding) throws AmqpException {
         try {
@@ -140,6 +197,67 @@ class ChannelImpl implements Channel {
         }
     }
 
+    @Override
+    public synchronized void declareTopology(Collection<Exchange> exchanges,
+            Collection<Queue> queues, Collection<Binding> bindings)
+            throws AmqpException {
+        final List<Method> methods = new ArrayList<Method>(
+                exchanges.size() + queues.size() + bindings.size());
+        for (Exchange exchange : exchanges) {
+            methods.add(new AMQP.Exchange.Declare.Builder()
+                    .exchange(exchange.getName())
+                    .type(exchange.getType().getName())
+                    .durable(exchange.isDurable())
+                    .autoDelete(exchange.isAutoDelete())
+                    .arguments(exchange.getArguments()).nowait().build());
+        }
+        for (Queue queue : queues) {
+            methods.add(new AMQP.Queue.Declare.Builder().queue(queue.getName())
+                    .durable(queue.isDurable()).exclusive(queue.isExclusive())
+                    .autoDelete(queue.isAutoDelete())
+                    .arguments(queue.getArguments()).nowait().build());
+        }
+        for (Binding binding : bindings) {
+            methods.add(new AMQP.Queue.Bind.Builder()
+                    .queue(binding.getQueue().getName())
+                    .exchange(binding.getExchange().getName())
+                    .routingKey(binding.getRoutingKey())
+                    .arguments(binding.getArguments()).nowait().build());
+        }
+        if (methods.isEmpty()) {
+            return;
+        }
+        try {
+            for (Method method : methods.subList(0, methods.size() - 1)) {
+                this.wrapped.asyncRpc(method);
+            }
+        } catch (IOException e) {
+            throw new AmqpException(e);
+        } catch (ShutdownSignalException e) {
+            throw new AmqpException(e);
+        }
+        /* Waiting for the last reply confirms the earlier declarations */
+        if (!bindings.isEmpty()) {
+            Binding last = null;
+            for (Binding binding : bindings) {
+                last = binding;
+            }
+            bindQueue(last);
+        } else if (!queues.isEmpty()) {
+            Queue last = null;
+            for (Queue queue : queues) {
+                last = queue;
+            }
+            declareQueue(last);
+        } else {
+            Exchange last = null;
+            for (Exchange exchange : exchanges) {
+                last = exchange;
+            }
+            declareExchange(last);
+        }
+    }
+
     @Override
     public synchronized void unbindQueue(Binding binding) throws AmqpException {
         try {
@@ -171,6 +289,9 @@ class ChannelImpl implements Channel {
 
     @Override
     public synchronized void enableTransactions() throws AmqpException {
+        if (this.confirmsEnabled) {
+            throw new AmqpException("Cannot enable transactions on a channel in confirm mode");
+        }
         try {
             this.wrapped.txSelect();
             this.transactionsEnabled = true;
@@ -181,9 +302,33 @@ class ChannelImpl implements Channel {
         }
     }
 
+    /**
+     * Enables publisher confirms on the channel. A channel in confirm mode
+     * cannot also use transactions.
+     *
+     * @throws AmqpException If confirms cannot be enabled.
+     */
+    synchronized void enableConfirms() throws AmqpException {
+        if (this.confirmsEnabled) {
+            return;
+        }
+        if (this.transactionsEnabled) {
+            throw new AmqpException("Cannot enable confirms on a transactional channel");
+        }
+        try {
+            this.wrapped.confirmSelect();
+            this.confirmsEnabled = true;
+        } catch (IOException e) {
+            throw new AmqpException(e);
+        } catch (ShutdownSignalException e) {
+            throw new AmqpException(e);
+        }
+    }
+
     public synchronized void ackMessage(long deliveryTag) throws AmqpException {
         try {
             this.wrapped.basicAck(deliveryTag, false);
+            this.deliveryTags.settle(deliveryTag);
         } catch (IOException e) {
             throw new AmqpException(e);
         } catch (ShutdownSignalException e) {
@@ -195,6 +340,67 @@ class ChannelImpl implements Channel {
             throws AmqpException {
         try {
             this.wrapped.basicReject(deliveryTag, requeue);
+            this.deliveryTags.settle(deliveryTag);
+        } catch (IOException e) {
+            throw new AmqpException(e);
+        } catch (ShutdownSignalException e) {
+            throw new AmqpException(e);
+        }
+    }
+
+    /**
+     * Acknowledges several deliveries. Runs of tags which follow every
+     * lower settled tag are acknowledged with a single <code>multiple</code>
+     * acknowledgment; other tags are acknowledged individually.
+     *
+     * @param deliveryTags The delivery tags (sorted in place).
+     * @param count        The number of tags in the array.
+     * @throws AmqpException If the deliveries can't be acknowledged.
+     */
+    synchronized void ackMessages(long[] deliveryTags, int count) throws AmqpException {
+        settleMessages(deliveryTags, count, true, false);
+    }
+
+    /**
+     * Rejects several deliveries, using <code>basic.nack</code> with the
+     * <code>multiple</code> flag for runs of tags which follow every lower
+     * settled tag.
+     *
+     * @param deliveryTags The delivery tags (sorted in place).
+     * @param count        The number of tags in the array.
+     * @param requeue      True to re-queue the deliveries.
+     * @throws AmqpException If the deliveries can't be rejected.
+     */
+    synchronized void rejectMessages(long[] deliveryTags, int count, boolean requeue) throws AmqpException {
+        settleMessages(deliveryTags, count, false, requeue);
+    }
+
+    private void settleMessages(long[] tags, int count, boolean ack, boolean requeue) throws AmqpException {
+        Arrays.sort(tags, 0, count);
+        try {
+            long run = -1;
+            long previous = -1;
+            for (int i = 0; i < count; i++) {
+                final long tag = tags[i];
+                if (tag == previous) {
+                    continue;
+                }
+                previous = tag;
+                if (this.deliveryTags.isNext(tag)) {
+                    this.deliveryTags.settle(tag);
+                    run = tag;
+                    continue;
+                }
+                if (run >= 0) {
+                    settle(run, true, ack, requeue);
+                    run = -1;
+                }
+                settle(tag, false, ack, requeue);
+                this.deliveryTags.settle(tag);
+            }
+            if (run >= 0) {
+                settle(run, true, ack, requeue);
+            }
         } catch (IOException e) {
             throw new AmqpException(e);
         } catch (ShutdownSignalException e) {
@@ -202,6 +408,16 @@ class ChannelImpl implements Channel {
         }
     }
 
+    private void settle(long tag, boolean multiple, boolean ack, boolean requeue) throws IOException {
+        if (ack) {
+            this.wrapped.basicAck(tag, multiple);
+        } else if (multiple) {
+            this.wrapped.basicNack(tag, true, requeue);
+        } else {
+            this.wrapped.basicReject(tag, requeue);
+        }
+    }
+
     @Override
     public synchronized void commitTransaction() throws AmqpException {
         try {
@@ -224,6 +440,15 @@ class ChannelImpl implements Channel {
         }
     }
 
+    /**
+     * Returns the prefetch count last set with {@link #setQos(int, int)}.
+     *
+     * @return The prefetch count, or zero if it is unlimited.
+     */
+    int getPrefetchCount() {
+        return prefetchCount;
+    }
+
     com.rabbitmq.client.Channel getWrapped() {
         return wrapped;
     }
@@ -240,10 +465,35 @@ class ChannelImpl implements Channel {
         return new ConsumerImpl<T>(this, queue, noAck, converter);
     }
 
+    @Override
+    public <T> Consumer<T> createConsumer(Queue queue,
+            MessageConverter<T> converter, Executor decodeExecutor) throws AmqpException {
+        if (decodeExecutor == null) {
+            throw new NullPointerException();
+        }
+        return new ConsumerImpl<T>(this, queue, false, converter, decodeExecutor);
+    }
+
+    @Override
+    public <T> Consumer<T> createConsumer(Queue queue,
+            MessageConverter<T> converter, int capacity) throws AmqpException {
+        return createConsumer(queue, converter, null, capacity);
+    }
+
+    @Override
+    public <T> Consumer<T> createConsumer(Queue queue,
+            MessageConverter<T> converter, Executor decodeExecutor, int capacity) throws AmqpException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        return new ConsumerImpl<T>(this, queue, false, converter, decodeExecutor, capacity);
+    }
+
     @Override
     public synchronized void setQos(int prefetchSize, int prefetchCount) throws AmqpException {
         try {
             this.wrapped.basicQos(prefetchSize, prefetchCount, false);
+            this.prefetchCount = prefetchCount;
         } catch (IOException e) {
             throw new AmqpException(e);
         } catch (ShutdownSignalException e) {
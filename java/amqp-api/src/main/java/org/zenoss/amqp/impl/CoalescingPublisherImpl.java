@@ -0,0 +1,292 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.amqp.AmqpException;
+import org.zenoss.amqp.BatchPolicy;
+import org.zenoss.amqp.BufferedMessageConverter;
+import org.zenoss.amqp.Exchange;
+import org.zenoss.amqp.MessagePropertiesBuilder;
+import org.zenoss.protobufs.ProtobufConstants;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publisher which packs protobuf messages of the same type published with the
+ * same routing key into a single AMQP message, as described by
+ * {@link BatchPolicy}. A batch is sent when it reaches the policy's message
+ * count or size, or when its first message has waited for the linger time.
+ * A batch holding a single message is sent as an ordinary message.
+ * <p/>
+ * Messages published with a properties builder are sent immediately (after
+ * any batch for the same routing key, to keep them in order).
+ * <p/>
+ * A batch sent when its linger time expires has no caller to report a
+ * failure to, so the failure is thrown by the next call to publish or flush.
+ */
+class CoalescingPublisherImpl<T> extends PublisherImpl<T> implements Flushable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoalescingPublisherImpl.class);
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    /* Sends batches whose linger time has expired, shared by all publishers */
+    private static final ScheduledExecutorService LINGER_TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "zenoss-amqp-batch-linger");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Messages waiting to be sent for one routing key and message type.
+     */
+    private static final class Batch {
+        private final String routingKey;
+        private final String type;
+        private byte[] buffer;
+        private int length = 0;
+        private int count = 0;
+        /* Offset of the first message after its length prefix */
+        private int firstOffset = 0;
+
+        private Batch(String routingKey, String type, byte[] buffer) {
+            this.routingKey = routingKey;
+            this.type = type;
+            this.buffer = buffer;
+        }
+    }
+
+    private final BatchPolicy policy;
+    private final BufferedMessageConverter<T> bufferedConverter;
+    /* Batches by routing key and message type; guarded by this */
+    private final Map<String, Map<String, Batch>> batches = new HashMap<String, Map<String, Batch>>();
+    private byte[] spareBuffer = null;
+    /* Failure sending a batch whose linger time expired; guarded by this */
+    private AmqpException lingerFailure = null;
+
+    CoalescingPublisherImpl(ChannelImpl channel, Exchange exchange, BufferedMessageConverter<T> converter) {
+        super(channel, exchange, converter);
+        if (exchange.getBatchPolicy() == null) {
+            throw new IllegalArgumentException("Exchange has no batch policy: " + exchange.getName());
+        }
+        this.policy = exchange.getBatchPolicy();
+        this.bufferedConverter = converter;
+    }
+
+    @Override
+    public void publish(T body, MessagePropertiesBuilder propertiesBuilder,
+                        String routingKey) throws AmqpException {
+        if (propertiesBuilder != null || !(body instanceof com.google.protobuf.Message)) {
+            synchronized (this) {
+                checkLingerFailure();
+                sendBatches(routingKey);
+                super.publish(body, propertiesBuilder, routingKey);
+            }
+            return;
+        }
+        final String type = ((com.google.protobuf.Message) body).getDescriptorForType().getFullName();
+        try {
+            final int size = this.bufferedConverter.prepare(body, null);
+            final int prefixLength = varintSize(size);
+            synchronized (this) {
+                checkLingerFailure();
+                Batch batch = batchFor(routingKey, type);
+                if (batch.count > 0 && batch.length + prefixLength + size > this.policy.getMaxBytes()) {
+                    send(batch);
+                    batch = batchFor(routingKey, type);
+                }
+                append(batch, body, size, prefixLength);
+                if (batch.count == 1) {
+                    scheduleLinger(batch);
+                }
+                if (batch.count >= this.policy.getMaxMessages() || batch.length >= this.policy.getMaxBytes()) {
+                    send(batch);
+                }
+            }
+        } catch (AmqpException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AmqpException(e);
+        }
+    }
+
+    /**
+     * Sends all batches waiting to be sent.
+     *
+     * @throws IOException If a batch can't be sent, or a batch whose linger
+     *                     time expired couldn't be sent.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        try {
+            checkLingerFailure();
+            for (Batch batch : allBatches()) {
+                send(batch);
+            }
+        } catch (AmqpException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Throws the failure to send a batch when its linger time expired, once.
+     */
+    private void checkLingerFailure() throws AmqpException {
+        final AmqpException failure = this.lingerFailure;
+        if (failure != null) {
+            this.lingerFailure = null;
+            throw failure;
+        }
+    }
+
+    private List<Batch> allBatches() {
+        final List<Batch> all = new ArrayList<Batch>();
+        for (Map<String, Batch> byType : this.batches.values()) {
+            all.addAll(byType.values());
+        }
+        return all;
+    }
+
+    private void sendBatches(String routingKey) throws AmqpException {
+        final Map<String, Batch> byType = this.batches.get(routingKey);
+        if (byType != null) {
+            for (Batch batch : new ArrayList<Batch>(byType.values())) {
+                send(batch);
+            }
+        }
+    }
+
+    private Batch batchFor(String routingKey, String type) {
+        Map<String, Batch> byType = this.batches.get(routingKey);
+        if (byType == null) {
+            byType = new HashMap<String, Batch>();
+            this.batches.put(routingKey, byType);
+        }
+        Batch batch = byType.get(type);
+        if (batch == null) {
+            byte[] buffer = this.spareBuffer;
+            this.spareBuffer = null;
+            if (buffer == null) {
+                buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, this.policy.getMaxBytes())];
+            }
+            batch = new Batch(routingKey, type, buffer);
+            byType.put(type, batch);
+        }
+        return batch;
+    }
+
+    private void append(Batch batch, T body, int size, int prefixLength) throws Exception {
+        final int required = batch.length + prefixLength + size;
+        if (required > batch.buffer.length) {
+            batch.buffer = Arrays.copyOf(batch.buffer, Math.max(required, batch.buffer.length << 1));
+        }
+        int position = batch.length;
+        int value = size;
+        while ((value & ~0x7f) != 0) {
+            batch.buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        batch.buffer[position++] = (byte) value;
+        this.bufferedConverter.writeTo(body, batch.buffer, position);
+        if (batch.count == 0) {
+            batch.firstOffset = position;
+        }
+        batch.length = position + size;
+        batch.count++;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private void scheduleLinger(final Batch batch) {
+        LINGER_TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CoalescingPublisherImpl.this) {
+                    /* The batch may already have been sent (and replaced) */
+                    final Map<String, Batch> byType = batches.get(batch.routingKey);
+                    if (byType == null || byType.get(batch.type) != batch) {
+                        return;
+                    }
+                    try {
+                        send(batch);
+                    } catch (AmqpException e) {
+                        logger.warn("Failed to send batch of {} messages to exchange {}: {}",
+                                new Object[]{batch.count, exchange.getName(), e.getLocalizedMessage()});
+                        if (lingerFailure == null) {
+                            lingerFailure = new AmqpException("Failed to send batch of " + batch.count +
+                                    " messages to exchange " + exchange.getName(), e);
+                        }
+                    }
+                }
+            }
+        }, this.policy.getLingerMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a batch and removes it. The batch is removed even if it can't be
+     * sent.
+     */
+    private void send(Batch batch) throws AmqpException {
+        final Map<String, Batch> byType = this.batches.get(batch.routingKey);
+        byType.remove(batch.type);
+        if (byType.isEmpty()) {
+            this.batches.remove(batch.routingKey);
+        }
+        try {
+            final MessagePropertiesBuilder propertiesBuilder = MessagePropertiesBuilder.newBuilder();
+            propertiesBuilder.setContentType(ProtobufConstants.CONTENT_TYPE_PROTOBUF);
+            propertiesBuilder.addHeader(ProtobufConstants.HEADER_PROTOBUF_FULLNAME, batch.type);
+            final EncodedMessage encoded;
+            if (batch.count == 1) {
+                encoded = encodeSerialized(batch.type, batch.buffer, batch.firstOffset,
+                        batch.length - batch.firstOffset, true, propertiesBuilder);
+            } else {
+                propertiesBuilder.addHeader(BatchPolicy.HEADER_MESSAGE_COUNT, batch.count);
+                encoded = encodeSerialized(batch.type, batch.buffer, 0, batch.length, true, propertiesBuilder);
+            }
+            synchronized (this.channel) {
+                this.channel.getWrapped().basicPublish(exchange.getName(), batch.routingKey,
+                        encoded.properties, encoded.body);
+            }
+        } catch (AmqpException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AmqpException(e);
+        } finally {
+            if (batch.buffer.length / 2 <= this.policy.getMaxBytes()) {
+                this.spareBuffer = batch.buffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import org.zenoss.amqp.AmqpException;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future which is completed when the broker acknowledges (or rejects) a
+ * published message. Confirmation futures cannot be canceled.
+ */
+class ConfirmFuture implements Future<Void> {
+
+    private boolean done = false;
+    private AmqpException failure = null;
+
+    /**
+     * Marks the message as confirmed by the broker.
+     */
+    synchronized void succeed() {
+        if (!done) {
+            this.done = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks the message as failed.
+     *
+     * @param cause The reason the message was not confirmed.
+     */
+    synchronized void fail(AmqpException cause) {
+        if (!done) {
+            this.done = true;
+            this.failure = cause;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized Void get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + remaining;
+        while (!done) {
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ConfirmFuture [done=%s, failure=%s]", done, failure);
+    }
+}
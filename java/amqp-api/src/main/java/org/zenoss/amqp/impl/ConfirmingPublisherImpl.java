@@ -0,0 +1,292 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.zenoss.amqp.AmqpException;
+import org.zenoss.amqp.ConfirmingPublisher;
+import org.zenoss.amqp.Exchange;
+import org.zenoss.amqp.MessageConverter;
+import org.zenoss.amqp.MessagePropertiesBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Publisher which uses publisher confirms (<code>confirm.select</code>) instead
+ * of transactions. Outstanding publish sequence numbers are tracked in a
+ * {@link LongSequenceMap} and the futures for each message (or each batch of
+ * messages) are completed from the broker's <code>basic.ack</code> and
+ * <code>basic.nack</code> callbacks.
+ */
+public class ConfirmingPublisherImpl<T> extends PublisherImpl<T> implements ConfirmingPublisher<T>,
+        ConfirmListener, ShutdownListener {
+
+    /**
+     * The default maximum number of unconfirmed messages.
+     */
+    public static final int DEFAULT_MAX_OUTSTANDING = 1000;
+
+    private final int maxOutstanding;
+    private final Object lock = new Object();
+    private final LongSequenceMap<ConfirmFuture> outstanding;
+    private final List<BatchFuture> batches = new ArrayList<BatchFuture>();
+    private int reserved = 0;
+    private long lastSequence = 0;
+    private AmqpException closedCause = null;
+
+    ConfirmingPublisherImpl(ChannelImpl channel, Exchange exchange, int maxOutstanding) throws AmqpException {
+        this(channel, exchange, null, maxOutstanding);
+    }
+
+    ConfirmingPublisherImpl(ChannelImpl channel, Exchange exchange,
+                            MessageConverter<T> converter, int maxOutstanding) throws AmqpException {
+        super(channel, exchange, converter);
+        if (maxOutstanding <= 0) {
+            throw new IllegalArgumentException("Maximum outstanding messages must be positive");
+        }
+        this.maxOutstanding = maxOutstanding;
+        this.outstanding = new LongSequenceMap<ConfirmFuture>(Math.min(maxOutstanding, 1024));
+        this.channel.enableConfirms();
+        this.channel.getWrapped().setConfirmListener(this);
+        this.channel.getWrapped().addShutdownListener(this);
+    }
+
+    @Override
+    public void publish(T body, MessagePropertiesBuilder propertiesBuilder,
+                        String routingKey) throws AmqpException {
+        try {
+            publishAsync(body, propertiesBuilder, routingKey);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmqpException(e);
+        }
+    }
+
+    @Override
+    public Future<Void> publishAsync(T body, String routingKey) throws AmqpException, InterruptedException {
+        return publishAsync(body, null, routingKey);
+    }
+
+    @Override
+    public Future<Void> publishAsync(T body, MessagePropertiesBuilder propertiesBuilder,
+                                     String routingKey) throws AmqpException, InterruptedException {
+        final EncodedMessage encoded;
+        try {
+            encoded = encode(body, propertiesBuilder);
+        } catch (Exception e) {
+            throw new AmqpException(e);
+        }
+
+        reserve();
+        final ConfirmFuture future = new ConfirmFuture();
+        boolean registered = false;
+        boolean sent = false;
+        long sequence = 0;
+        try {
+            synchronized (this.channel) {
+                sequence = this.channel.getWrapped().getNextPublishSeqNo();
+                synchronized (lock) {
+                    checkOpen();
+                    this.reserved--;
+                    this.outstanding.put(sequence, future);
+                    this.lastSequence = sequence;
+                    registered = true;
+                }
+                this.channel.getWrapped().basicPublish(exchange.getName(), routingKey, encoded.properties,
+                        encoded.body);
+                sent = true;
+            }
+        } catch (IOException e) {
+            throw new AmqpException(e);
+        } catch (ShutdownSignalException e) {
+            throw new AmqpException(e);
+        } finally {
+            if (!sent) {
+                synchronized (lock) {
+                    if (registered) {
+                        this.outstanding.remove(sequence);
+                    } else {
+                        this.reserved--;
+                    }
+                    lock.notifyAll();
+                }
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Blocks until there is room for another unconfirmed message.
+     */
+    private void reserve() throws AmqpException, InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                checkOpen();
+                if (this.outstanding.size() + this.reserved < this.maxOutstanding) {
+                    this.reserved++;
+                    return;
+                }
+                lock.wait();
+            }
+        }
+    }
+
+    private void checkOpen() throws AmqpException {
+        if (this.closedCause != null) {
+            throw new AmqpException("Channel is closed", this.closedCause);
+        }
+    }
+
+    @Override
+    public Future<Void> confirmOutstanding() {
+        synchronized (lock) {
+            final BatchFuture batch = new BatchFuture(this.lastSequence);
+            if (this.closedCause != null) {
+                batch.fail(this.closedCause);
+            } else if (this.outstanding.isEmpty() || this.outstanding.firstKey() > this.lastSequence) {
+                batch.succeed();
+            } else {
+                this.batches.add(batch);
+            }
+            return batch;
+        }
+    }
+
+    @Override
+    public void waitForConfirms(long timeout, TimeUnit unit)
+            throws AmqpException, InterruptedException, TimeoutException {
+        try {
+            confirmOutstanding().get(timeout, unit);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AmqpException) {
+                throw (AmqpException) e.getCause();
+            }
+            throw new AmqpException(e.getCause());
+        }
+    }
+
+    @Override
+    public int getOutstandingCount() {
+        synchronized (lock) {
+            return this.outstanding.size();
+        }
+    }
+
+    @Override
+    public int getMaxOutstanding() {
+        return this.maxOutstanding;
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        confirmed(deliveryTag, multiple, null);
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        confirmed(deliveryTag, multiple, new AmqpException("Message rejected by broker: " + deliveryTag));
+    }
+
+    private void confirmed(long deliveryTag, boolean multiple, AmqpException failure) {
+        final List<ConfirmFuture> completed = new ArrayList<ConfirmFuture>(multiple ? 16 : 1);
+        final List<BatchFuture> completedBatches = new ArrayList<BatchFuture>();
+        synchronized (lock) {
+            /* The lowest sequence number affected by this confirmation */
+            long lowest = deliveryTag;
+            if (multiple) {
+                if (!this.outstanding.isEmpty()) {
+                    lowest = this.outstanding.firstKey();
+                }
+                this.outstanding.removeThrough(deliveryTag, completed);
+            } else {
+                final ConfirmFuture future = this.outstanding.remove(deliveryTag);
+                if (future != null) {
+                    completed.add(future);
+                }
+            }
+            for (Iterator<BatchFuture> it = this.batches.iterator(); it.hasNext(); ) {
+                final BatchFuture batch = it.next();
+                if (failure != null && !completed.isEmpty() && lowest <= batch.lastSequence) {
+                    batch.failure = failure;
+                }
+                if (this.outstanding.isEmpty() || this.outstanding.firstKey() > batch.lastSequence) {
+                    it.remove();
+                    completedBatches.add(batch);
+                }
+            }
+            lock.notifyAll();
+        }
+        for (ConfirmFuture future : completed) {
+            if (failure == null) {
+                future.succeed();
+            } else {
+                future.fail(failure);
+            }
+        }
+        for (BatchFuture batch : completedBatches) {
+            batch.complete();
+        }
+    }
+
+    @Override
+    public void shutdownCompleted(ShutdownSignalException cause) {
+        final List<ConfirmFuture> failed = new ArrayList<ConfirmFuture>();
+        final List<BatchFuture> failedBatches;
+        final AmqpException failure = new AmqpException("Channel closed before messages were confirmed", cause);
+        synchronized (lock) {
+            this.closedCause = failure;
+            this.outstanding.clear(failed);
+            failedBatches = new ArrayList<BatchFuture>(this.batches);
+            this.batches.clear();
+            lock.notifyAll();
+        }
+        for (ConfirmFuture future : failed) {
+            future.fail(failure);
+        }
+        for (BatchFuture batch : failedBatches) {
+            batch.fail(failure);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    /**
+     * Future for all messages up to and including a publish sequence number.
+     */
+    private static class BatchFuture extends ConfirmFuture {
+        private final long lastSequence;
+        private AmqpException failure;
+
+        private BatchFuture(long lastSequence) {
+            this.lastSequence = lastSequence;
+        }
+
+        private void complete() {
+            if (failure != null) {
+                fail(failure);
+            } else {
+                succeed();
+            }
+        }
+    }
+}
@@ -14,6 +14,7 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.Socket;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +22,7 @@ import org.zenoss.amqp.AmqpException;
 import org.zenoss.amqp.AmqpServerUri;
 import org.zenoss.amqp.Connection;
 import org.zenoss.amqp.ConnectionFactory;
+import org.zenoss.amqp.ConnectionTuning;
 import org.zenoss.utils.Zenoss;
 
 import java.util.Properties;
@@ -29,10 +31,13 @@ public class ConnectionFactoryImpl extends ConnectionFactory {
 
     private static final Logger logger = LoggerFactory.getLogger(ConnectionFactoryImpl.class);
 
-    private static int DEFAULT_HEARTBEAT = -1;
-
-    static {
-        // Attempt to load the default heartbeat from the global.conf file on the system
+    /**
+     * Returns the heartbeat from the global.conf file on the system. It is
+     * read for each connection, so changes apply when reconnecting.
+     *
+     * @return The heartbeat in seconds, or -1 if it isn't configured.
+     */
+    private static int loadGlobalHeartbeat() {
         BufferedInputStream bis = null;
         try {
             File globalConf = new File(Zenoss.zenPath("etc", "global.conf"));
@@ -42,7 +47,7 @@ public class ConnectionFactoryImpl extends ConnectionFactory {
                 props.load(bis);
                 String amqpHeartbeatStrVal = props.getProperty("amqpheartbeat");
                 if (amqpHeartbeatStrVal != null) {
-                    DEFAULT_HEARTBEAT = Integer.parseInt(amqpHeartbeatStrVal.trim());
+                    return Integer.parseInt(amqpHeartbeatStrVal.trim());
                 }
             }
         } catch (Exception e) {
@@ -56,11 +61,24 @@ public class ConnectionFactoryImpl extends ConnectionFactory {
                 }
             }
         }
+        return -1;
     }
 
     @Override
     public Connection newConnection(AmqpServerUri uri) throws AmqpException {
-        com.rabbitmq.client.ConnectionFactory factory = new com.rabbitmq.client.ConnectionFactory();
+        final ConnectionTuning tuning = getConnectionTuning().with(uri.getProperties());
+        com.rabbitmq.client.ConnectionFactory factory = new com.rabbitmq.client.ConnectionFactory() {
+            @Override
+            protected void configureSocket(Socket socket) throws IOException {
+                socket.setTcpNoDelay(tuning.isTcpNoDelay());
+                if (tuning.getSendBufferSize() > 0) {
+                    socket.setSendBufferSize(tuning.getSendBufferSize());
+                }
+                if (tuning.getReceiveBufferSize() > 0) {
+                    socket.setReceiveBufferSize(tuning.getReceiveBufferSize());
+                }
+            }
+        };
         factory.setHost(uri.getHostname());
         factory.setPort(uri.getPort());
         if (uri.getUsername() != null) {
@@ -77,19 +95,21 @@ public class ConnectionFactoryImpl extends ConnectionFactory {
                 throw new AmqpException(e);
             }
         }
-        // TODO: Support these parameters via AmqpServerUri?
-        // factory.setRequestedChannelMax(?);
-        // factory.setRequestedFrameMax(?);
+        factory.setRequestedChannelMax(tuning.getChannelMax());
+        factory.setRequestedFrameMax(tuning.getFrameMax());
+        factory.setConnectionTimeout(tuning.getConnectionTimeout());
 
-        if (DEFAULT_HEARTBEAT > 0) {
-            logger.info("Setting AMQP connection heartbeat to {}", DEFAULT_HEARTBEAT);
-            factory.setRequestedHeartbeat(DEFAULT_HEARTBEAT);
+        final int heartbeat = (tuning.getHeartbeat() >= 0) ? tuning.getHeartbeat() : loadGlobalHeartbeat();
+        if (heartbeat > 0) {
+            logger.info("Setting AMQP connection heartbeat to {}", heartbeat);
+            factory.setRequestedHeartbeat(heartbeat);
         } else {
             logger.info("No AMQP connection heartbeat");
         }
+        logger.debug("Connecting to {} with {}", uri, tuning);
         // factory.setClientProperties(?);
         try {
-            return new ConnectionImpl(factory.newConnection());
+            return new ConnectionImpl(factory.newConnection(), getCodecRegistry(), tuning.getShutdownTimeout());
         } catch (IOException e) {
             throw new AmqpException(e);
         }
@@ -15,6 +15,7 @@ import java.util.Map;
 
 import org.zenoss.amqp.AmqpException;
 import org.zenoss.amqp.Channel;
+import org.zenoss.amqp.CompressionCodecRegistry;
 import org.zenoss.amqp.Connection;
 
 import com.rabbitmq.client.ShutdownSignalException;
@@ -22,15 +23,20 @@ import com.rabbitmq.client.ShutdownSignalException;
 class ConnectionImpl implements Connection {
 
     private com.rabbitmq.client.Connection wrapped;
+    private final CompressionCodecRegistry codecRegistry;
+    private final int shutdownTimeout;
 
-    ConnectionImpl(com.rabbitmq.client.Connection wrapped) {
+    ConnectionImpl(com.rabbitmq.client.Connection wrapped, CompressionCodecRegistry codecRegistry,
+                   int shutdownTimeout) {
         this.wrapped = wrapped;
+        this.codecRegistry = codecRegistry;
+        this.shutdownTimeout = shutdownTimeout;
     }
 
     @Override
     public void close() throws IOException {
         try {
-            this.wrapped.close();
+            this.wrapped.close(this.shutdownTimeout);
         } catch (ShutdownSignalException e) {
             throw new IOException(e);
         }
@@ -39,7 +45,7 @@ class ConnectionImpl implements Connection {
     @Override
     public Channel openChannel() throws AmqpException {
         try {
-            return new ChannelImpl(this.wrapped.createChannel());
+            return new ChannelImpl(this.wrapped.createChannel(), this.codecRegistry);
         } catch (IOException e) {
             throw new AmqpException(e);
         } catch (ShutdownSignalException e) {
@@ -10,53 +10,80 @@
 
 package org.zenoss.amqp.impl;
 
-import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.QueueingConsumer.Delivery;
 import com.rabbitmq.client.ShutdownSignalException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zenoss.amqp.AmqpException;
+import org.zenoss.amqp.BatchPolicy;
+import org.zenoss.amqp.BufferPolicy;
 import org.zenoss.amqp.Channel;
+import org.zenoss.amqp.CompressionCodec;
+import org.zenoss.amqp.CompressionDictionary;
 import org.zenoss.amqp.Consumer;
+import org.zenoss.amqp.DictionaryCompressionCodec;
 import org.zenoss.amqp.Message;
 import org.zenoss.amqp.MessageConverter;
 import org.zenoss.amqp.MessageDecoderException;
 import org.zenoss.amqp.MessageEnvelope;
+import org.zenoss.amqp.MessageFilter;
 import org.zenoss.amqp.MessageProperties;
 import org.zenoss.amqp.Queue;
 
-import java.io.ByteArrayOutputStream;
+import com.google.protobuf.CodedInputStream;
+
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.InflaterOutputStream;
 
 class ConsumerImpl<T> implements Consumer<T> {
 
     private static final Logger logger = LoggerFactory.getLogger(ConsumerImpl.class);
 
     static byte[] deflateDecompress(byte[] compressed) throws IOException {
-        // Assume the decompressed size is 2x compressed
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(compressed.length * 2);
-        InflaterOutputStream ios = null;
-        try {
-            ios = new InflaterOutputStream(bos);
-            ios.write(compressed);
-            ios.close();
-            ios = null;
-            return bos.toByteArray();
-        } finally {
-            if (ios != null) {
-                ios.close();
-            }
-        }
+        return DeflateCodec.forCurrentThread().decompress(compressed, 0, compressed.length);
     }
 
+    /* Deliveries decoded ahead of the one being returned when decoding in parallel */
+    static final int DECODE_AHEAD = 64;
+
     private final ChannelImpl channel;
     private final Queue queue;
     private final boolean noAck;
     private final MessageConverter<T> converter;
-    private QueueingConsumer consumer;
+    private final PushConsumer consumer;
     private volatile String consumerTag;
+    /* Messages unpacked from a batch which haven't been returned yet */
+    private final ArrayDeque<Message<T>> unpacked = new ArrayDeque<Message<T>>();
+    /* Decodes deliveries in parallel, or null to decode on the consuming thread */
+    private final Executor decodeExecutor;
+    /* Deliveries being decoded, in the order they were received */
+    private final ArrayDeque<FutureTask<Collection<Message<T>>>> decoding =
+            new ArrayDeque<FutureTask<Collection<Message<T>>>>();
+    /* Acknowledges or rejects unwanted deliveries before they are decoded */
+    private volatile MessageFilter filter;
+    private volatile boolean lazyDecoding = false;
+    /* Limits on buffered deliveries, and whether they cancelled the consumer */
+    private volatile BufferPolicy bufferPolicy;
+    private volatile boolean paused = false;
+    private volatile boolean cancelled = false;
+    private final LazyMessage.Decoder<T> decoder = new LazyMessage.Decoder<T>() {
+        @Override
+        public T decode(byte[] body, MessageProperties properties, MessageEnvelope envelope)
+                throws MessageDecoderException {
+            return decodeBody(body, properties, envelope);
+        }
+    };
 
     ConsumerImpl(ChannelImpl channel, Queue queue, boolean noAck) {
         this(channel, queue, noAck, null);
@@ -64,11 +91,24 @@ class ConsumerImpl<T> implements Consumer<T> {
 
     ConsumerImpl(ChannelImpl channel, Queue queue, boolean noAck,
                  MessageConverter<T> converter) {
+        this(channel, queue, noAck, converter, null);
+    }
+
+    ConsumerImpl(ChannelImpl channel, Queue queue, boolean noAck,
+                 MessageConverter<T> converter, Executor decodeExecutor) {
+        /* Buffer a full prefetch window so the connection thread never waits on the consumer */
+        this(channel, queue, noAck, converter, decodeExecutor,
+                Math.max(PushConsumer.DEFAULT_CAPACITY, channel.getPrefetchCount()));
+    }
+
+    ConsumerImpl(ChannelImpl channel, Queue queue, boolean noAck,
+                 MessageConverter<T> converter, Executor decodeExecutor, int capacity) {
         this.channel = channel;
         this.queue = queue;
         this.noAck = noAck;
         this.converter = converter;
-        this.consumer = new QueueingConsumer(this.channel.getWrapped());
+        this.decodeExecutor = decodeExecutor;
+        this.consumer = new PushConsumer(this.channel.getWrapped(), capacity);
     }
 
     @Override
@@ -79,74 +119,422 @@ class ConsumerImpl<T> implements Consumer<T> {
     @Override
     public Message<T> nextMessage(long waitTime, TimeUnit unit) throws AmqpException, InterruptedException {
         final long timeInMillis = unit.toMillis(waitTime);
+        final Message<T> next = this.unpacked.poll();
+        if (next != null) {
+            return next;
+        }
         if (consumerTag == null) {
-            synchronized (this.channel) {
+            consume();
+        }
+        try {
+            if (this.decodeExecutor == null) {
+                final Delivery delivery = nextAccepted(timeInMillis);
+                if (delivery == null) {
+                    return null;
+                }
+                return first(createMessages(delivery));
+            }
+            if (this.decoding.isEmpty()) {
+                final Delivery delivery = nextAccepted(timeInMillis);
+                if (delivery == null) {
+                    return null;
+                }
+                decodeAsync(delivery);
+            }
+            Delivery delivery;
+            while (this.decoding.size() < DECODE_AHEAD && (delivery = consumer.poll()) != null) {
+                checkBuffer();
+                if (accept(delivery)) {
+                    decodeAsync(delivery);
+                }
+            }
+            return first(decoded());
+        } catch (ShutdownSignalException e) {
+            throw new AmqpException(e);
+        } catch (PushConsumer.ConsumerCancelledException e) {
+            throw new AmqpException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Message<T> pollMessage() throws AmqpException, InterruptedException {
+        final Message<T> next = this.unpacked.poll();
+        if (next != null) {
+            return next;
+        }
+        if (consumerTag == null) {
+            consume();
+        }
+        try {
+            if (!this.decoding.isEmpty()) {
+                return first(decoded());
+            }
+            while (true) {
+                checkBuffer();
+                final Delivery delivery = consumer.poll();
+                if (delivery == null) {
+                    consumer.checkActive();
+                    return null;
+                }
+                if (accept(delivery)) {
+                    return first(createMessages(delivery));
+                }
+            }
+        } catch (ShutdownSignalException e) {
+            throw new AmqpException(e);
+        } catch (PushConsumer.ConsumerCancelledException e) {
+            throw new AmqpException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void setReadyListener(Runnable readyListener) {
+        this.consumer.setReadyListener(readyListener);
+    }
+
+    /**
+     * Starts (or resumes) consuming unless the consumer has been cancelled.
+     * Checked under the channel lock, so a concurrent {@link #cancel()}
+     * either sees the new consumer tag or prevents it.
+     */
+    private void consume() throws AmqpException {
+        synchronized (this.channel) {
+            if (this.cancelled) {
+                return;
+            }
+            try {
+                consumerTag = this.channel.getWrapped().basicConsume(
+                        queue.getName(), this.noAck, consumer);
+            } catch (IOException e) {
+                throw new AmqpException(e);
+            }
+            this.paused = false;
+        }
+    }
+
+    /**
+     * Cancels the consumer when deliveries overflow the ring or the buffered
+     * deliveries reach the limits of the buffer policy, and consumes again
+     * once they have drained (out of the overflow to half the ring, and to
+     * half the limits).
+     */
+    private void checkBuffer() throws AmqpException {
+        if (this.cancelled) {
+            return;
+        }
+        final BufferPolicy policy = this.bufferPolicy;
+        final int messages = this.consumer.getBufferedCount();
+        final long bytes = this.consumer.getBufferedBytes();
+        if (!this.paused) {
+            if (this.consumer.isOverflowing() || (policy != null && policy.isFull(messages, bytes))) {
+                logger.debug("Pausing consumer on queue {} with {} messages ({} bytes) buffered",
+                        new Object[]{queue.getName(), messages, bytes});
                 try {
-                    consumerTag = this.channel.getWrapped().basicConsume(
-                            queue.getName(), this.noAck, consumer);
+                    synchronized (this.channel) {
+                        if (this.cancelled) {
+                            return;
+                        }
+                        this.channel.getWrapped().basicCancel(consumerTag);
+                        this.paused = true;
+                    }
                 } catch (IOException e) {
                     throw new AmqpException(e);
                 }
             }
+        } else if (!this.consumer.isOverflowing() && messages <= this.consumer.getCapacity() / 2
+                && (policy == null || policy.isDrained(messages, bytes))) {
+            logger.debug("Resuming consumer on queue {}", queue.getName());
+            consume();
         }
-        try {
-            final Delivery delivery;
+    }
+
+    /**
+     * Waits for the next delivery accepted by the filter, settling the
+     * deliveries it doesn't accept.
+     */
+    private Delivery nextAccepted(long timeInMillis) throws AmqpException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeInMillis;
+        long remaining = timeInMillis;
+        while (true) {
+            checkBuffer();
+            final Delivery delivery = consumer.nextDelivery(remaining);
+            if (delivery == null || accept(delivery)) {
+                return delivery;
+            }
             if (timeInMillis > 0) {
-                delivery = consumer.nextDelivery(timeInMillis);
-                if (delivery == null) {
+                remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
                     return null;
                 }
+            }
+        }
+    }
+
+    /**
+     * Returns whether the filter accepts a delivery, acknowledging or
+     * rejecting it if not.
+     */
+    private boolean accept(Delivery delivery) throws AmqpException {
+        final MessageFilter filter = this.filter;
+        if (filter == null) {
+            return true;
+        }
+        final MessageFilter.Action action = filter.filter(new BasicPropertiesWrapper(delivery.getProperties()),
+                new EnvelopeWrapper(delivery.getEnvelope()));
+        if (action == MessageFilter.Action.ACCEPT) {
+            return true;
+        }
+        if (!this.noAck) {
+            final long deliveryTag = delivery.getEnvelope().getDeliveryTag();
+            if (action == MessageFilter.Action.REJECT) {
+                this.channel.rejectMessage(deliveryTag, false);
             } else {
-                delivery = consumer.nextDelivery();
+                this.channel.ackMessage(deliveryTag);
             }
-            return createMessage(delivery);
-        } catch (ShutdownSignalException e) {
-            throw new AmqpException(e);
         }
+        return false;
     }
 
-    @SuppressWarnings("unchecked")
-    private Message<T> createMessage(Delivery delivery) throws AmqpException {
-        final T body;
-        final byte[] rawBody;
+    private void decodeAsync(final Delivery delivery) {
+        final FutureTask<Collection<Message<T>>> task = new FutureTask<Collection<Message<T>>>(
+                new Callable<Collection<Message<T>>>() {
+                    @Override
+                    public Collection<Message<T>> call() throws AmqpException {
+                        return createMessages(delivery);
+                    }
+                });
+        this.decoding.add(task);
+        try {
+            this.decodeExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Waits for the oldest delivery being decoded. It is only removed once
+     * decoded, so an interrupted wait doesn't lose it.
+     */
+    private Collection<Message<T>> decoded() throws AmqpException, InterruptedException {
+        final FutureTask<Collection<Message<T>>> task = this.decoding.peek();
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof AmqpException) {
+                throw (AmqpException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new AmqpException(cause);
+        } finally {
+            if (task.isDone()) {
+                this.decoding.poll();
+            }
+        }
+    }
+
+    /**
+     * Returns the first message, queueing the rest (unpacked from a batch)
+     * to be returned by the following calls to
+     * {@link #nextMessage(long, TimeUnit)}.
+     */
+    private Message<T> first(Collection<Message<T>> messages) {
+        final Iterator<Message<T>> it = messages.iterator();
+        final Message<T> first = it.next();
+        while (it.hasNext()) {
+            this.unpacked.add(it.next());
+        }
+        return first;
+    }
+
+    private static byte[] decompress(CompressionCodec codec, byte[] body, MessageProperties properties)
+            throws IOException {
+        if (codec instanceof DictionaryCompressionCodec) {
+            final DictionaryCompressionCodec dictionaryCodec = (DictionaryCompressionCodec) codec;
+            final Object id = (properties.getHeaders() == null) ? null :
+                    properties.getHeaders().get(DictionaryCompressionCodec.HEADER_DICTIONARY_ID);
+            CompressionDictionary dictionary = null;
+            if (id != null) {
+                dictionary = dictionaryCodec.getDictionary(id.toString());
+                if (dictionary == null) {
+                    throw new IOException("Unknown compression dictionary: " + id);
+                }
+            }
+            return dictionaryCodec.decompress(body, 0, body.length, dictionary);
+        }
+        return codec.decompress(body, 0, body.length);
+    }
+
+    /**
+     * Decodes a delivery into its message, or the messages of a batch. May be
+     * called from any thread.
+     */
+    private Collection<Message<T>> createMessages(Delivery delivery) throws AmqpException {
         final MessageProperties properties = new BasicPropertiesWrapper(
                 delivery.getProperties());
         final MessageEnvelope envelope = new EnvelopeWrapper(
                 delivery.getEnvelope());
-        if ("deflate".equalsIgnoreCase(properties.getContentEncoding())) {
-            try {
-                rawBody = deflateDecompress(delivery.getBody());
-            } catch (IOException e) {
-                logger.warn("Failed to decompress message", e);
-                // Throw MessageDecoderException so we don't loop attempting to read invalid message
-                throw new MessageDecoderException(
-                        DefaultMessage.newMessage(delivery.getBody(), properties, envelope), e);
-            }
+        final int count = messageCount(delivery.getBody(), properties, envelope);
+        if (count > 0) {
+            return unpack(rawBody(delivery.getBody(), properties, envelope), count, properties, envelope);
+        }
+        final Message<T> message;
+        if (this.lazyDecoding) {
+            message = new LazyMessage<T>(this.decoder, delivery.getBody(), properties, envelope);
         } else {
-            rawBody = delivery.getBody();
+            message = DefaultMessage.newMessage(decodeBody(delivery.getBody(), properties, envelope),
+                    properties, envelope);
         }
+        return Collections.singletonList(message);
+    }
+
+    /**
+     * Returns the decompressed body of a delivery.
+     */
+    private byte[] rawBody(byte[] body, MessageProperties properties, MessageEnvelope envelope)
+            throws MessageDecoderException {
+        final CompressionCodec codec = this.channel.getCodecRegistry().getCodec(properties.getContentEncoding());
+        if (codec == null) {
+            return body;
+        }
+        try {
+            return decompress(codec, body, properties);
+        } catch (IOException e) {
+            logger.warn("Failed to decompress message", e);
+            // Throw MessageDecoderException so we don't loop attempting to read invalid message
+            throw new MessageDecoderException(
+                    DefaultMessage.newMessage(body, properties, envelope), e);
+        }
+    }
+
+    /**
+     * Decompresses and converts the body of a delivery which isn't a batch.
+     */
+    @SuppressWarnings("unchecked")
+    private T decodeBody(byte[] body, MessageProperties properties, MessageEnvelope envelope)
+            throws MessageDecoderException {
+        final byte[] rawBody = rawBody(body, properties, envelope);
         if (converter == null) {
-            body = (T) rawBody;
+            return (T) rawBody;
+        }
+        final T decoded;
+        try {
+            decoded = converter.fromBytes(rawBody, properties);
+        } catch (Exception e) {
+            /* Throw exception with original received message on failure */
+            throw new MessageDecoderException(DefaultMessage.newMessage(
+                    rawBody, properties, envelope), e);
+        }
+        /* Throw exception if we failed to convert the message */
+        if (decoded == null) {
+            throw new MessageDecoderException(DefaultMessage.newMessage(
+                    rawBody, properties, envelope));
+        }
+        return decoded;
+    }
+
+    /**
+     * Returns the number of messages packed in the delivery, or zero if it
+     * isn't a batch.
+     *
+     * @throws MessageDecoderException If the count is malformed or negative.
+     */
+    private static int messageCount(byte[] body, MessageProperties properties, MessageEnvelope envelope)
+            throws MessageDecoderException {
+        final Object count = (properties.getHeaders() == null) ? null :
+                properties.getHeaders().get(BatchPolicy.HEADER_MESSAGE_COUNT);
+        if (count == null) {
+            return 0;
+        }
+        int parsed = -1;
+        if (count instanceof Number) {
+            parsed = ((Number) count).intValue();
         } else {
             try {
-                body = converter.fromBytes(rawBody, properties);
-            } catch (Exception e) {
-                /* Throw exception with original received message on failure */
-                throw new MessageDecoderException(DefaultMessage.newMessage(
-                        rawBody, properties, envelope), e);
+                parsed = Integer.parseInt(count.toString().trim());
+            } catch (NumberFormatException e) {
+                // Rejected below
+            }
+        }
+        if (parsed < 0) {
+            throw new MessageDecoderException(DefaultMessage.newMessage(body, properties, envelope),
+                    "Invalid " + BatchPolicy.HEADER_MESSAGE_COUNT + " header: " + count);
+        }
+        return parsed;
+    }
+
+    /**
+     * Unpacks a batch of length-delimited messages. If any message in the
+     * batch can't be decoded the whole batch is rejected.
+     */
+    @SuppressWarnings("unchecked")
+    private Collection<Message<T>> unpack(byte[] rawBody, int count, MessageProperties properties, MessageEnvelope envelope)
+            throws MessageDecoderException {
+        /* Each message has at least a length prefix, which bounds an untrusted count */
+        if (count > rawBody.length) {
+            throw new MessageDecoderException(DefaultMessage.newMessage(rawBody, properties, envelope),
+                    "Batch of " + rawBody.length + " bytes can't hold " + count + " messages");
+        }
+        final BatchedMessage.Batch batch = new BatchedMessage.Batch(count);
+        final ArrayDeque<Message<T>> messages = new ArrayDeque<Message<T>>(count);
+        try {
+            final CodedInputStream input = CodedInputStream.newInstance(rawBody);
+            input.setSizeLimit(rawBody.length);
+            for (int i = 0; i < count; i++) {
+                final byte[] bytes = input.readRawBytes(input.readRawVarint32());
+                final T body = (converter == null) ? (T) bytes : converter.fromBytes(bytes, properties);
+                if (body == null) {
+                    throw new IOException("Failed to convert message " + i + " of batch");
+                }
+                messages.add(new BatchedMessage<T>(body, properties, envelope, batch, i));
             }
-            /* Throw exception if we failed to convert the message */
-            if (body == null) {
-                throw new MessageDecoderException(DefaultMessage.newMessage(
-                        rawBody, properties, envelope));
+            if (!input.isAtEnd()) {
+                throw new IOException("Unexpected data after " + count + " messages in batch");
             }
+        } catch (Exception e) {
+            throw new MessageDecoderException(DefaultMessage.newMessage(rawBody, properties, envelope), e);
         }
-        return DefaultMessage.newMessage(body, properties, envelope);
+        return messages;
+    }
+
+    @Override
+    public void setMessageFilter(MessageFilter filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public void setLazyDecoding(boolean lazyDecoding) {
+        this.lazyDecoding = lazyDecoding;
+    }
+
+    @Override
+    public void setBufferPolicy(BufferPolicy bufferPolicy) {
+        this.bufferPolicy = bufferPolicy;
+    }
+
+    @Override
+    public int getBufferedMessages() {
+        return this.consumer.getBufferedCount();
+    }
+
+    @Override
+    public long getBufferedBytes() {
+        return this.consumer.getBufferedBytes();
     }
 
     @Override
     public void cancel() throws AmqpException {
+        if (this.cancelled) {
+            return;
+        }
+        this.cancelled = true;
         synchronized (this.channel) {
+            if (this.paused || this.consumerTag == null) {
+                /* Already cancelled to drain the buffer, or never started */
+                return;
+            }
             try {
                 this.channel.getWrapped().basicCancel(consumerTag);
             } catch (IOException e) {
@@ -170,6 +558,10 @@ class ConsumerImpl<T> implements Consumer<T> {
     @Override
     public void ackMessage(Message<?> message) throws AmqpException {
         if (!this.noAck) {
+            if (message instanceof BatchedMessage) {
+                settle((BatchedMessage<?>) message, true, false);
+                return;
+            }
             this.channel.ackMessage(message.getEnvelope().getDeliveryTag());
         }
     }
@@ -177,7 +569,107 @@ class ConsumerImpl<T> implements Consumer<T> {
     @Override
     public void rejectMessage(Message<?> message, boolean requeue)
             throws AmqpException {
+        if (message instanceof BatchedMessage) {
+            settle((BatchedMessage<?>) message, false, requeue);
+            return;
+        }
         this.channel.rejectMessage(message.getEnvelope().getDeliveryTag(),
                 requeue);
     }
+
+    /**
+     * Acknowledges or rejects a batch once all of its messages have been.
+     * The batch is rejected if any message was, and re-queued if any message
+     * was re-queued (so messages which were handled are delivered again).
+     */
+    private void settle(BatchedMessage<?> message, boolean ack, boolean requeue) throws AmqpException {
+        if (message.settle(ack, requeue)) {
+            settleBatch(message);
+        }
+    }
+
+    private void settleBatch(BatchedMessage<?> message) throws AmqpException {
+        final BatchedMessage.Batch batch = message.getBatch();
+        if (batch.isRejected()) {
+            this.channel.rejectMessage(message.getEnvelope().getDeliveryTag(), batch.isRequeue());
+        } else if (!this.noAck) {
+            this.channel.ackMessage(message.getEnvelope().getDeliveryTag());
+        }
+    }
+
+    @Override
+    public void ackMessages(Collection<? extends Message<?>> messages) throws AmqpException {
+        if (!this.noAck) {
+            settleMessages(messages, true, false);
+        }
+    }
+
+    @Override
+    public void rejectMessages(Collection<? extends Message<?>> messages, boolean requeue)
+            throws AmqpException {
+        settleMessages(messages, false, requeue);
+    }
+
+    @Override
+    public int requeueBuffered() throws AmqpException, InterruptedException {
+        if (this.noAck) {
+            return 0;
+        }
+        final List<Message<?>> messages = new ArrayList<Message<?>>(this.unpacked);
+        this.unpacked.clear();
+        while (!this.decoding.isEmpty()) {
+            try {
+                messages.addAll(decoded());
+            } catch (MessageDecoderException e) {
+                messages.add(e.getRawMessage());
+            }
+        }
+        final long[] tags = new long[this.consumer.getBufferedCount()];
+        int count = 0;
+        Delivery delivery;
+        while (count < tags.length && (delivery = this.consumer.poll()) != null) {
+            tags[count++] = delivery.getEnvelope().getDeliveryTag();
+        }
+        if (!messages.isEmpty()) {
+            settleMessages(messages, false, true);
+        }
+        if (count > 0) {
+            this.channel.rejectMessages(tags, count, true);
+        }
+        return messages.size() + count;
+    }
+
+    /**
+     * Collects the delivery tags of the messages so the channel can settle
+     * consecutive deliveries together. A batch whose outcome differs from
+     * the requested one (because another of its messages was rejected) is
+     * settled on its own.
+     */
+    private void settleMessages(Collection<? extends Message<?>> messages, boolean ack, boolean requeue)
+            throws AmqpException {
+        final long[] tags = new long[messages.size()];
+        int count = 0;
+        for (Message<?> message : messages) {
+            if (message instanceof BatchedMessage) {
+                final BatchedMessage<?> batched = (BatchedMessage<?>) message;
+                if (!batched.settle(ack, requeue)) {
+                    continue;
+                }
+                final BatchedMessage.Batch batch = batched.getBatch();
+                if (batch.isRejected() == ack || (!ack && batch.isRequeue() != requeue)) {
+                    settleBatch(batched);
+                    continue;
+                }
+            }
+            tags[count++] = message.getEnvelope().getDeliveryTag();
+        }
+        if (count == 0) {
+            return;
+        }
+        if (ack) {
+            this.channel.ackMessages(tags, count);
+        } else {
+            this.channel.rejectMessages(tags, count, requeue);
+        }
+    }
 }
@@ -0,0 +1,200 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Zlib ("deflate" content encoding) compression which reuses its
+ * {@link Deflater}, {@link Inflater} and output buffer between messages.
+ * Creating a <code>Deflater</code> allocates native zlib state, so instead of
+ * creating a stream (and its buffers) for every message each thread keeps one
+ * codec and resets it.
+ * <p/>
+ * Instances are not thread-safe; use {@link #forCurrentThread()}.
+ */
+class DeflateCodec {
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    /* Don't hold on to buffers grown for unusually large messages */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<DeflateCodec> CODECS = new ThreadLocal<DeflateCodec>() {
+        @Override
+        protected DeflateCodec initialValue() {
+            return new DeflateCodec();
+        }
+    };
+
+    /**
+     * Returns the codec for the calling thread.
+     *
+     * @return The codec for the calling thread.
+     */
+    static DeflateCodec forCurrentThread() {
+        return CODECS.get();
+    }
+
+    private final Deflater deflater = new Deflater();
+    private final Inflater inflater = new Inflater();
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    /**
+     * Compresses the data.
+     *
+     * @param data   The data to compress.
+     * @param offset Offset of the data in the array.
+     * @param length Length of the data.
+     * @return The compressed data.
+     */
+    byte[] compress(byte[] data, int offset, int length) {
+        final int compressedLength = deflate(data, offset, length, Integer.MAX_VALUE, null);
+        return result(compressedLength);
+    }
+
+    /**
+     * Compresses the data, giving up as soon as the compressed form is no
+     * smaller than the original.
+     *
+     * @param data   The data to compress.
+     * @param offset Offset of the data in the array.
+     * @param length Length of the data.
+     * @return The compressed data, or null if compression doesn't save space.
+     */
+    byte[] compressIfSmaller(byte[] data, int offset, int length) {
+        return compressIfSmaller(data, offset, length, null);
+    }
+
+    /**
+     * Compresses the data using a preset dictionary, giving up as soon as the
+     * compressed form is no smaller than the original.
+     *
+     * @param data       The data to compress.
+     * @param offset     Offset of the data in the array.
+     * @param length     Length of the data.
+     * @param dictionary The preset dictionary, or null to compress without one.
+     * @return The compressed data, or null if compression doesn't save space.
+     */
+    byte[] compressIfSmaller(byte[] data, int offset, int length, byte[] dictionary) {
+        final int compressedLength = deflate(data, offset, length, length - 1, dictionary);
+        return (compressedLength < 0) ? null : result(compressedLength);
+    }
+
+    /**
+     * Decompresses the data.
+     *
+     * @param data   The compressed data.
+     * @param offset Offset of the data in the array.
+     * @param length Length of the data.
+     * @return The decompressed data.
+     * @throws IOException If the data is not valid zlib data.
+     */
+    byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        return decompress(data, offset, length, null);
+    }
+
+    /**
+     * Decompresses data which may have been compressed with a preset
+     * dictionary.
+     *
+     * @param data       The compressed data.
+     * @param offset     Offset of the data in the array.
+     * @param length     Length of the data.
+     * @param dictionary The preset dictionary, or null if none is expected.
+     * @return The decompressed data.
+     * @throws IOException If the data is not valid zlib data or requires a
+     *                     different dictionary.
+     */
+    byte[] decompress(byte[] data, int offset, int length, byte[] dictionary) throws IOException {
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        int total = 0;
+        try {
+            while (!inflater.finished()) {
+                if (total == buffer.length) {
+                    grow(total);
+                }
+                final int n = inflater.inflate(buffer, total, buffer.length - total);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null) {
+                            throw new IOException("Compressed data requires a preset dictionary");
+                        }
+                        /* Throws IllegalArgumentException if the dictionary's checksum doesn't match */
+                        inflater.setDictionary(dictionary);
+                        dictionary = null;
+                        continue;
+                    }
+                    if (inflater.needsInput()) {
+                        throw new IOException("Unexpected end of compressed data");
+                    }
+                }
+                total += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data: " + e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Compressed data requires a different preset dictionary", e);
+        }
+        return result(total);
+    }
+
+    /**
+     * Compresses into the buffer.
+     *
+     * @return The compressed length, or -1 if it would exceed maxLength.
+     */
+    private int deflate(byte[] data, int offset, int length, int maxLength, byte[] dictionary) {
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        /* Size for a typical compression ratio rather than doubling repeatedly for large messages */
+        final int expected = Math.min(Math.min(MAX_RETAINED_BUFFER_SIZE, (length >> 2) + 64),
+                (maxLength == Integer.MAX_VALUE) ? Integer.MAX_VALUE : maxLength + 1);
+        if (buffer.length < expected) {
+            buffer = new byte[expected];
+        }
+        int total = 0;
+        while (!deflater.finished()) {
+            if (total == buffer.length) {
+                if (total >= maxLength) {
+                    return -1;
+                }
+                grow(total);
+            }
+            total += deflater.deflate(buffer, total, buffer.length - total);
+            if (total > maxLength) {
+                return -1;
+            }
+        }
+        return total;
+    }
+
+    private void grow(int minCapacity) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, minCapacity + 1));
+    }
+
+    private byte[] result(int length) {
+        final byte[] result = Arrays.copyOf(buffer, length);
+        if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+        return result;
+    }
+}
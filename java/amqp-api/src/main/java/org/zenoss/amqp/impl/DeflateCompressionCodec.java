@@ -0,0 +1,39 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import org.zenoss.amqp.CompressionCodec;
+
+import java.io.IOException;
+
+/**
+ * Zlib compression using the "deflate" content encoding. This is the format
+ * understood by the Python clients.
+ */
+public class DeflateCompressionCodec implements CompressionCodec {
+
+    public static final String CONTENT_ENCODING = "deflate";
+
+    @Override
+    public String getContentEncoding() {
+        return CONTENT_ENCODING;
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+        return DeflateCodec.forCurrentThread().compressIfSmaller(data, offset, length);
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        return DeflateCodec.forCurrentThread().decompress(data, offset, length);
+    }
+}
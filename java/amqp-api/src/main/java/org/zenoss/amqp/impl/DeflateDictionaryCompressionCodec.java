@@ -0,0 +1,163 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import org.zenoss.amqp.CompressionDictionary;
+import org.zenoss.amqp.DictionaryCompressionCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Zlib compression with a preset dictionary, using the "x-deflate-dict"
+ * content encoding. The compressed data is a standard zlib stream (which
+ * records the checksum of its dictionary), so it can be decompressed by any
+ * zlib implementation which has the dictionary. Only the Java clients
+ * currently support it.
+ */
+public class DeflateDictionaryCompressionCodec implements DictionaryCompressionCodec {
+
+    public static final String CONTENT_ENCODING = "x-deflate-dict";
+
+    /* Set in the zlib header flags when a preset dictionary is used */
+    private static final int ZLIB_FDICT = 0x20;
+
+    /**
+     * A dictionary and its contents (copied once so they aren't copied for
+     * every message).
+     */
+    private static class Entry {
+        private final CompressionDictionary dictionary;
+        private final byte[] bytes;
+
+        private Entry(CompressionDictionary dictionary) {
+            this.dictionary = dictionary;
+            this.bytes = dictionary.getBytes();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> dictionaries = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<Integer, Entry> dictionariesByChecksum = new ConcurrentHashMap<Integer, Entry>();
+    private volatile Entry active = null;
+
+    @Override
+    public String getContentEncoding() {
+        return CONTENT_ENCODING;
+    }
+
+    @Override
+    public synchronized void addDictionary(CompressionDictionary dictionary) {
+        addEntry(dictionary);
+    }
+
+    private Entry addEntry(CompressionDictionary dictionary) {
+        final Entry entry = new Entry(dictionary);
+        final Entry previous = this.dictionaries.put(dictionary.getId(), entry);
+        if (previous != null) {
+            this.dictionariesByChecksum.remove(previous.dictionary.getChecksum(), previous);
+        }
+        this.dictionariesByChecksum.put(dictionary.getChecksum(), entry);
+        return entry;
+    }
+
+    @Override
+    public synchronized CompressionDictionary removeDictionary(String id) throws IllegalStateException {
+        final Entry current = this.active;
+        if (current != null && current.dictionary.getId().equals(id)) {
+            throw new IllegalStateException("Can't remove the active dictionary: " + id);
+        }
+        final Entry entry = this.dictionaries.remove(id);
+        if (entry == null) {
+            return null;
+        }
+        this.dictionariesByChecksum.remove(entry.dictionary.getChecksum(), entry);
+        return entry.dictionary;
+    }
+
+    @Override
+    public CompressionDictionary getDictionary(String id) {
+        final Entry entry = this.dictionaries.get(id);
+        return (entry == null) ? null : entry.dictionary;
+    }
+
+    @Override
+    public Collection<CompressionDictionary> getDictionaries() {
+        final Collection<CompressionDictionary> result = new ArrayList<CompressionDictionary>();
+        for (Entry entry : this.dictionaries.values()) {
+            result.add(entry.dictionary);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void setActiveDictionary(CompressionDictionary dictionary) {
+        if (dictionary == null) {
+            this.active = null;
+            return;
+        }
+        Entry entry = this.dictionaries.get(dictionary.getId());
+        if (entry == null || entry.dictionary != dictionary) {
+            entry = addEntry(dictionary);
+        }
+        this.active = entry;
+    }
+
+    @Override
+    public CompressionDictionary getActiveDictionary() {
+        final Entry entry = this.active;
+        return (entry == null) ? null : entry.dictionary;
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) throws IOException {
+        return compress(data, offset, length, getActiveDictionary());
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length, CompressionDictionary dictionary)
+            throws IOException {
+        return DeflateCodec.forCurrentThread().compressIfSmaller(data, offset, length, bytes(dictionary));
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        return decompress(data, offset, length, null);
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length, CompressionDictionary dictionary)
+            throws IOException {
+        byte[] dictionaryBytes = bytes(dictionary);
+        if (dictionaryBytes == null && length >= 6 && (data[offset + 1] & ZLIB_FDICT) != 0) {
+            final int checksum = ((data[offset + 2] & 255) << 24) | ((data[offset + 3] & 255) << 16)
+                    | ((data[offset + 4] & 255) << 8) | (data[offset + 5] & 255);
+            final Entry entry = this.dictionariesByChecksum.get(checksum);
+            if (entry == null) {
+                throw new IOException(String.format("Unknown compression dictionary (checksum %08x)", checksum));
+            }
+            dictionaryBytes = entry.bytes;
+        }
+        return DeflateCodec.forCurrentThread().decompress(data, offset, length, dictionaryBytes);
+    }
+
+    private byte[] bytes(CompressionDictionary dictionary) {
+        if (dictionary == null) {
+            return null;
+        }
+        final Entry entry = this.dictionaries.get(dictionary.getId());
+        if (entry != null && entry.dictionary == dictionary) {
+            return entry.bytes;
+        }
+        return dictionary.getBytes();
+    }
+}
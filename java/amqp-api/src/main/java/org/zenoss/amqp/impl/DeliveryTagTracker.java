@@ -0,0 +1,110 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+/**
+ * Tracks which delivery tags on a channel have been acknowledged or
+ * rejected, to decide when an acknowledgment can use the AMQP
+ * <code>multiple</code> flag. Delivery tags on a channel start at 1 and
+ * increase by one with each delivery, so a tag can be settled with
+ * <code>multiple</code> when every lower tag has already been settled (or is
+ * being settled by the same frame).
+ * <p/>
+ * Settled tags above the lowest unsettled tag are kept in a bit set ring of
+ * <code>long</code> words. If the lowest unsettled tag falls too far behind
+ * (for example when a no-ack consumer shares the channel) tracking stops and
+ * every tag must be settled on its own.
+ * <p/>
+ * This class is not thread-safe.
+ */
+class DeliveryTagTracker {
+
+    private static final int INITIAL_WORDS = 4;
+    /* Largest number of tags tracked above the lowest unsettled tag */
+    static final int MAX_WINDOW = 1 << 16;
+
+    private long base = 1;
+    private long[] words = new long[INITIAL_WORDS];
+    private boolean disabled = false;
+
+    /**
+     * Returns true if every tag lower than the specified tag has been
+     * settled and the tag itself has not.
+     *
+     * @param tag The delivery tag.
+     * @return True if the tag is the lowest unsettled tag.
+     */
+    boolean isNext(long tag) {
+        return !disabled && tag == base;
+    }
+
+    /**
+     * Records that a delivery tag has been acknowledged or rejected.
+     *
+     * @param tag The delivery tag.
+     */
+    void settle(long tag) {
+        if (disabled || tag < base) {
+            return;
+        }
+        if (tag - base >= capacity()) {
+            if (tag - base >= MAX_WINDOW) {
+                disabled = true;
+                return;
+            }
+            grow(tag);
+        }
+        set(tag);
+        while (isSet(base)) {
+            clear(base);
+            base++;
+        }
+    }
+
+    private int capacity() {
+        return words.length << 6;
+    }
+
+    private int index(long tag) {
+        return (int) (tag & (capacity() - 1));
+    }
+
+    private boolean isSet(long tag) {
+        final int i = index(tag);
+        return (words[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private void set(long tag) {
+        final int i = index(tag);
+        words[i >>> 6] |= (1L << i);
+    }
+
+    private void clear(long tag) {
+        final int i = index(tag);
+        words[i >>> 6] &= ~(1L << i);
+    }
+
+    private void grow(long tag) {
+        int length = words.length;
+        while ((long) (length << 6) <= tag - base) {
+            length <<= 1;
+        }
+        final long[] old = words;
+        final int oldCapacity = capacity();
+        words = new long[length];
+        for (long t = base; t < base + oldCapacity; t++) {
+            final int i = (int) (t & (oldCapacity - 1));
+            if ((old[i >>> 6] & (1L << i)) != 0) {
+                set(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import org.zenoss.amqp.Message;
+import org.zenoss.amqp.MessageBodyException;
+import org.zenoss.amqp.MessageDecoderException;
+import org.zenoss.amqp.MessageEnvelope;
+import org.zenoss.amqp.MessageProperties;
+
+/**
+ * Message whose body is decompressed and decoded when it is first read, so
+ * listeners which only use the properties or envelope of a message don't pay
+ * for decoding it.
+ *
+ * @param <T>
+ *            Type of message body.
+ */
+class LazyMessage<T> implements Message<T> {
+
+    /**
+     * Decodes the body of a message.
+     */
+    interface Decoder<T> {
+        T decode(byte[] body, MessageProperties properties, MessageEnvelope envelope)
+                throws MessageDecoderException;
+    }
+
+    private final Decoder<T> decoder;
+    private final MessageProperties properties;
+    private final MessageEnvelope envelope;
+    /* The raw body, released once decoded */
+    private byte[] rawBody;
+    private T body;
+
+    LazyMessage(Decoder<T> decoder, byte[] rawBody, MessageProperties properties, MessageEnvelope envelope) {
+        this.decoder = decoder;
+        this.rawBody = rawBody;
+        this.properties = properties;
+        this.envelope = envelope;
+    }
+
+    @Override
+    public MessageEnvelope getEnvelope() {
+        return this.envelope;
+    }
+
+    @Override
+    public MessageProperties getProperties() {
+        return this.properties;
+    }
+
+    /**
+     * Decodes the body on the first call and returns the cached body after.
+     *
+     * @throws MessageBodyException
+     *             If the body can't be decoded.
+     */
+    @Override
+    public synchronized T getBody() throws MessageBodyException {
+        if (this.body == null) {
+            try {
+                this.body = this.decoder.decode(this.rawBody, this.properties, this.envelope);
+            } catch (MessageDecoderException e) {
+                throw new MessageBodyException(e);
+            }
+            this.rawBody = null;
+        }
+        return this.body;
+    }
+
+    /**
+     * Returns whether the body has been decoded.
+     *
+     * @return Whether the body has been decoded.
+     */
+    synchronized boolean isDecoded() {
+        return this.body != null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Message [body=%s, properties=%s, envelope=%s]",
+                (body != null) ? body : "<not decoded>", properties, envelope);
+    }
+}
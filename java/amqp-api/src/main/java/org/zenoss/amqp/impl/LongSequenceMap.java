@@ -0,0 +1,254 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+/**
+ * Map of strictly ascending <code>long</code> keys (publish sequence numbers or
+ * delivery tags) to values. Keys are stored in a primitive ring buffer so
+ * tracking outstanding messages does not box every key, and the sorted order
+ * allows "everything up to and including N" operations (as used by AMQP
+ * <code>multiple</code> acknowledgments) to run from the head of the buffer.
+ * <p/>
+ * This class is not thread-safe.
+ *
+ * @param <V> The type of the mapped values.
+ */
+class LongSequenceMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int head = 0;
+    private int size = 0;
+
+    LongSequenceMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    LongSequenceMap(int initialCapacity) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+    }
+
+    private int physical(int index) {
+        return (head + index) & (keys.length - 1);
+    }
+
+    private void grow() {
+        final int capacity = keys.length << 1;
+        final long[] newKeys = new long[capacity];
+        final Object[] newValues = new Object[capacity];
+        for (int i = 0; i < size; i++) {
+            final int p = physical(i);
+            newKeys[i] = keys[p];
+            newValues[i] = values[p];
+        }
+        this.keys = newKeys;
+        this.values = newValues;
+        this.head = 0;
+    }
+
+    /**
+     * Returns the logical index of the key, or <code>-(insertion point) - 1</code>
+     * if the key is not present.
+     */
+    private int indexOf(long key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long midKey = keys[physical(mid)];
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Adds a key to the end of the map.
+     *
+     * @param key   The key, which must be greater than all keys in the map.
+     * @param value The value for the key.
+     * @throws IllegalArgumentException If the key is not greater than the last key.
+     */
+    void put(long key, V value) throws IllegalArgumentException {
+        if (size > 0 && key <= lastKey()) {
+            throw new IllegalArgumentException("Key " + key + " is not greater than " + lastKey());
+        }
+        if (size == keys.length) {
+            grow();
+        }
+        final int p = physical(size);
+        keys[p] = key;
+        values[p] = value;
+        size++;
+    }
+
+    /**
+     * Returns true if the map contains the key.
+     *
+     * @param key The key.
+     * @return True if the map contains the key.
+     */
+    boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Returns the value for the key, or null if it is not in the map.
+     *
+     * @param key The key.
+     * @return The value for the key, or null if it is not in the map.
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        final int index = indexOf(key);
+        return (index >= 0) ? (V) values[physical(index)] : null;
+    }
+
+    /**
+     * Removes the key from the map.
+     *
+     * @param key The key to remove.
+     * @return The removed value, or null if the key was not in the map.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        final int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        final V value = (V) values[physical(index)];
+        if (index == 0) {
+            values[head] = null;
+            head = physical(1);
+        } else {
+            /* Removals are almost always near the head, so shift the entries in front of it */
+            for (int i = index; i > 0; i--) {
+                final int to = physical(i);
+                final int from = physical(i - 1);
+                keys[to] = keys[from];
+                values[to] = values[from];
+            }
+            values[head] = null;
+            head = physical(1);
+        }
+        size--;
+        return value;
+    }
+
+    /**
+     * Removes all keys less than or equal to the specified key.
+     *
+     * @param key     The highest key to remove.
+     * @param removed If not null, the removed values are added to this collection.
+     * @return The number of removed keys.
+     */
+    @SuppressWarnings("unchecked")
+    int removeThrough(long key, Collection<? super V> removed) {
+        int count = 0;
+        while (size > 0 && keys[head] <= key) {
+            if (removed != null) {
+                removed.add((V) values[head]);
+            }
+            values[head] = null;
+            head = physical(1);
+            size--;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of keys in the map which are less than or equal to the
+     * specified key.
+     *
+     * @param key The key.
+     * @return The number of keys in the map less than or equal to the key.
+     */
+    int countThrough(long key) {
+        final int index = indexOf(key);
+        return (index >= 0) ? index + 1 : -(index + 1);
+    }
+
+    /**
+     * Returns the key at the specified position (0 is the lowest key).
+     *
+     * @param index Position in the map.
+     * @return The key at the position.
+     * @throws IndexOutOfBoundsException If the index is out of range.
+     */
+    long keyAt(int index) throws IndexOutOfBoundsException {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return keys[physical(index)];
+    }
+
+    /**
+     * Returns the lowest key in the map.
+     *
+     * @return The lowest key in the map.
+     * @throws NoSuchElementException If the map is empty.
+     */
+    long firstKey() throws NoSuchElementException {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return keys[head];
+    }
+
+    /**
+     * Returns the highest key in the map.
+     *
+     * @return The highest key in the map.
+     * @throws NoSuchElementException If the map is empty.
+     */
+    long lastKey() throws NoSuchElementException {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return keys[physical(size - 1)];
+    }
+
+    /**
+     * Removes all entries from the map.
+     *
+     * @param removed If not null, the removed values are added to this collection.
+     */
+    void clear(Collection<? super V> removed) {
+        if (size > 0) {
+            removeThrough(lastKey(), removed);
+        }
+        head = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,233 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import org.zenoss.amqp.CompressionCodec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Pure Java LZF compression using the "x-lzf" content encoding. LZF trades
+ * compression ratio for speed: it compresses several times faster than
+ * deflate, which makes it a better fit for high-rate exchanges where the CPU
+ * spent compressing costs more than the bandwidth saved.
+ * <p/>
+ * A compressed body is the uncompressed length as a 4 byte big-endian integer
+ * followed by a single block in the liblzf format:
+ * <ul>
+ * <li><code>000LLLLL</code>: a run of <code>L+1</code> literal bytes follows.</li>
+ * <li><code>LLLooooo oooooooo</code>: copy <code>L+2</code> bytes from
+ * <code>o+1</code> bytes back in the output.</li>
+ * <li><code>111ooooo LLLLLLLL oooooooo</code>: copy <code>L+9</code> bytes from
+ * <code>o+1</code> bytes back in the output.</li>
+ * </ul>
+ * This encoding is only understood by the Java clients.
+ */
+public class LzfCompressionCodec implements CompressionCodec {
+
+    public static final String CONTENT_ENCODING = "x-lzf";
+
+    private static final int HEADER_LENGTH = 4;
+    private static final int HASH_LOG = 14;
+    private static final int HASH_SIZE = 1 << HASH_LOG;
+    private static final int MAX_LITERAL = 32;
+    private static final int MAX_OFFSET = 1 << 13;
+    private static final int MAX_REF = (1 << 8) + (1 << 3);
+    private static final int MAX_DECOMPRESSED_LENGTH = 256 * 1024 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Per-thread hash table and output buffer. Stale hash table entries from
+     * earlier messages are harmless because every candidate match is verified.
+     */
+    private static class State {
+        private final int[] hashTable = new int[HASH_SIZE];
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    }
+
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    @Override
+    public String getContentEncoding() {
+        return CONTENT_ENCODING;
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+        /* Give up as soon as the output isn't smaller than the input */
+        final int limit = length - 1;
+        if (limit <= HEADER_LENGTH) {
+            return null;
+        }
+        final State state = STATE.get();
+        /* A single step writes at most 3 bytes past the limit check */
+        if (state.buffer.length < limit + 4) {
+            state.buffer = new byte[limit + 4];
+        }
+        final byte[] out = state.buffer;
+        out[0] = (byte) (length >>> 24);
+        out[1] = (byte) (length >>> 16);
+        out[2] = (byte) (length >>> 8);
+        out[3] = (byte) length;
+        final int compressedLength = compressBlock(data, offset, length, out, HEADER_LENGTH, limit,
+                state.hashTable);
+        final byte[] result = (compressedLength < 0) ? null : Arrays.copyOf(out, compressedLength);
+        if (state.buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            state.buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+        return result;
+    }
+
+    private static int hash(int h) {
+        return ((h * 57321) >>> 9) & (HASH_SIZE - 1);
+    }
+
+    /**
+     * Compresses a block.
+     *
+     * @return The end position in the output, or -1 if it would exceed limit.
+     */
+    private static int compressBlock(byte[] in, int inPos, int inLength, byte[] out, int outPos, int limit,
+                                     int[] hashTable) {
+        final int inEnd = inPos + inLength;
+        int literals = 0;
+        int literalPos = outPos++;
+        int p = inPos;
+        if (inLength >= 4) {
+            int future = ((in[p] & 255) << 8) | (in[p + 1] & 255);
+            while (p < inEnd - 2) {
+                if (outPos > limit) {
+                    return -1;
+                }
+                final byte p2 = in[p + 2];
+                future = (future << 8) | (p2 & 255);
+                final int slot = hash(future & 0xffffff);
+                final int ref = hashTable[slot];
+                hashTable[slot] = p;
+                final int distance = p - ref - 1;
+                if (ref >= inPos && ref < p && distance < MAX_OFFSET && in[ref + 2] == p2
+                        && in[ref + 1] == (byte) (future >>> 8) && in[ref] == (byte) (future >>> 16)) {
+                    int maxLength = Math.min(inEnd - p, MAX_REF);
+                    int matchLength = 3;
+                    while (matchLength < maxLength && in[ref + matchLength] == in[p + matchLength]) {
+                        matchLength++;
+                    }
+                    /* Close the current literal run */
+                    if (literals == 0) {
+                        outPos--;
+                    } else {
+                        out[literalPos] = (byte) (literals - 1);
+                    }
+                    final int len = matchLength - 2;
+                    if (len < 7) {
+                        out[outPos++] = (byte) ((distance >>> 8) + (len << 5));
+                    } else {
+                        out[outPos++] = (byte) ((distance >>> 8) + (7 << 5));
+                        out[outPos++] = (byte) (len - 7);
+                    }
+                    out[outPos++] = (byte) distance;
+                    literals = 0;
+                    literalPos = outPos++;
+                    p += matchLength;
+                    if (p >= inEnd - 2) {
+                        break;
+                    }
+                    future = ((in[p] & 255) << 8) | (in[p + 1] & 255);
+                } else {
+                    out[outPos++] = in[p++];
+                    if (++literals == MAX_LITERAL) {
+                        out[literalPos] = (byte) (MAX_LITERAL - 1);
+                        literals = 0;
+                        literalPos = outPos++;
+                    }
+                }
+            }
+        }
+        while (p < inEnd) {
+            if (outPos > limit) {
+                return -1;
+            }
+            out[outPos++] = in[p++];
+            if (++literals == MAX_LITERAL) {
+                out[literalPos] = (byte) (MAX_LITERAL - 1);
+                literals = 0;
+                literalPos = outPos++;
+            }
+        }
+        if (literals == 0) {
+            outPos--;
+        } else {
+            out[literalPos] = (byte) (literals - 1);
+        }
+        return (outPos > limit) ? -1 : outPos;
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        if (length < HEADER_LENGTH) {
+            throw new IOException("Compressed data is too short");
+        }
+        final int decompressedLength = ((data[offset] & 255) << 24) | ((data[offset + 1] & 255) << 16)
+                | ((data[offset + 2] & 255) << 8) | (data[offset + 3] & 255);
+        if (decompressedLength < 0 || decompressedLength > MAX_DECOMPRESSED_LENGTH) {
+            throw new IOException("Invalid decompressed length: " + decompressedLength);
+        }
+        final byte[] out = new byte[decompressedLength];
+        final int inEnd = offset + length;
+        int inPos = offset + HEADER_LENGTH;
+        int outPos = 0;
+        try {
+            while (inPos < inEnd) {
+                final int ctrl = data[inPos++] & 255;
+                if (ctrl < MAX_LITERAL) {
+                    final int run = ctrl + 1;
+                    if (inPos + run > inEnd) {
+                        throw new IOException("Unexpected end of compressed data");
+                    }
+                    System.arraycopy(data, inPos, out, outPos, run);
+                    inPos += run;
+                    outPos += run;
+                } else {
+                    int len = ctrl >>> 5;
+                    if (inPos + ((len == 7) ? 2 : 1) > inEnd) {
+                        throw new IOException("Unexpected end of compressed data");
+                    }
+                    if (len == 7) {
+                        len += data[inPos++] & 255;
+                    }
+                    len += 2;
+                    int ref = outPos - ((ctrl & 0x1f) << 8) - (data[inPos++] & 255) - 1;
+                    if (ref < 0) {
+                        throw new IOException("Invalid back reference in compressed data");
+                    }
+                    /* Byte by byte since the reference may overlap the output */
+                    for (int i = 0; i < len; i++) {
+                        out[outPos++] = out[ref++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid compressed data", e);
+        }
+        if (outPos != decompressedLength) {
+            throw new IOException("Expected " + decompressedLength + " bytes but decompressed " + outPos);
+        }
+        return out;
+    }
+}
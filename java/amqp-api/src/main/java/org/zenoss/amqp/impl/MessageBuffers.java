@@ -0,0 +1,58 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+/**
+ * Per-thread buffers which messages are serialized into before they are
+ * compressed, so a large message doesn't leave an uncompressed copy of itself
+ * as garbage every time it is published.
+ */
+final class MessageBuffers {
+
+    /**
+     * Buffers up to this size are kept for reuse. Larger buffers are
+     * allocated for a single message (and the thread's buffer isn't replaced,
+     * so one huge message doesn't pin its buffer).
+     */
+    static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    private static final int INITIAL_SIZE = 8192;
+
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_SIZE];
+        }
+    };
+
+    private MessageBuffers() {
+    }
+
+    /**
+     * Returns a buffer of at least the specified size for the calling thread.
+     * The buffer is only valid until the next call on the same thread.
+     *
+     * @param size The required size.
+     * @return A buffer of at least the specified size.
+     */
+    static byte[] forCurrentThread(int size) {
+        byte[] buffer = BUFFERS.get();
+        if (buffer.length < size) {
+            if (size > MAX_RETAINED_SIZE) {
+                return new byte[size];
+            }
+            /* Round up so slowly growing messages don't reallocate every time */
+            buffer = new byte[Math.min(Math.max(size, buffer.length << 1), MAX_RETAINED_SIZE)];
+            BUFFERS.set(buffer);
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,155 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue for many producer threads and a single consumer
+ * thread. Each slot carries a sequence number which tells producers when the
+ * slot is free and the consumer when it has been published, so neither side
+ * takes a lock and a full buffer is reported to the producer immediately
+ * instead of blocking it.
+ * <p/>
+ * {@link #offer(Object)} may be called from any thread. {@link #poll()} and
+ * {@link #drainTo(Collection, int)} must only be called from one thread at a
+ * time.
+ *
+ * @param <E> The type of elements in the buffer.
+ */
+public class MpscRingBuffer<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+
+    /**
+     * Creates a ring buffer which holds at least the specified number of
+     * elements (the capacity is rounded up to a power of two).
+     *
+     * @param capacity The minimum capacity of the buffer.
+     */
+    public MpscRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element to the buffer if there is room.
+     *
+     * @param element The element to add.
+     * @return True if the element was added, false if the buffer is full.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            final long position = tail.get();
+            final int index = (int) (position & mask);
+            final long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    /* Publish the element to the consumer */
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+            /* Another producer claimed the slot first - retry */
+        }
+    }
+
+    /**
+     * Removes and returns the element at the head of the buffer.
+     *
+     * @return The element at the head of the buffer, or null if it is empty.
+     */
+    public E poll() {
+        final long position = head;
+        final int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        final E element = elements.get(index);
+        elements.lazySet(index, null);
+        /* Free the slot for the producer one lap ahead */
+        sequences.lazySet(index, position + mask + 1);
+        head = position + 1;
+        return element;
+    }
+
+    /**
+     * Removes up to <code>maxElements</code> elements from the buffer.
+     *
+     * @param collection  The collection the removed elements are added to.
+     * @param maxElements The maximum number of elements to remove.
+     * @return The number of elements removed.
+     */
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+        int count = 0;
+        while (count < maxElements) {
+            final E element = poll();
+            if (element == null) {
+                break;
+            }
+            collection.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if the buffer is empty.
+     *
+     * @return True if the buffer is empty.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the approximate number of elements in the buffer.
+     *
+     * @return The approximate number of elements in the buffer.
+     */
+    public int size() {
+        final long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    /**
+     * Returns the maximum number of elements the buffer can hold.
+     *
+     * @return The capacity of the buffer.
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+}
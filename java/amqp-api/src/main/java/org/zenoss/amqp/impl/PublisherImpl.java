@@ -12,40 +12,40 @@ package org.zenoss.amqp.impl;
 
 import com.rabbitmq.client.AMQP.BasicProperties;
 import org.zenoss.amqp.AmqpException;
+import org.zenoss.amqp.BufferedMessageConverter;
 import org.zenoss.amqp.Channel;
 import org.zenoss.amqp.Exchange;
-import org.zenoss.amqp.Exchange.Compression;
+import org.zenoss.amqp.CompressionCodec;
+import org.zenoss.amqp.CompressionDictionary;
+import org.zenoss.amqp.CompressionPolicy;
+import org.zenoss.amqp.DictionaryCompressionCodec;
 import org.zenoss.amqp.MessageConverter;
 import org.zenoss.amqp.MessageProperties;
 import org.zenoss.amqp.MessagePropertiesBuilder;
+import org.zenoss.amqp.ProtobufConverter;
 import org.zenoss.amqp.Publisher;
+import org.zenoss.protobufs.ProtobufConstants;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.zip.DeflaterOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 class PublisherImpl<T> implements Publisher<T> {
 
     static byte[] deflateCompress(byte[] data) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length);
-        DeflaterOutputStream dos = null;
-        try {
-            dos = new DeflaterOutputStream(baos);
-            dos.write(data);
-            dos.close();
-            dos = null;
-            return baos.toByteArray();
-        } finally {
-            if (dos != null) {
-                dos.close();
-            }
-        }
+        return DeflateCodec.forCurrentThread().compress(data, 0, data.length);
     }
 
     protected final ChannelImpl channel;
     protected final Exchange exchange;
     protected final MessageConverter<T> converter;
 
+    /* Properties of protobuf messages published without a properties builder, by message type */
+    private final ConcurrentHashMap<String, PropertiesTemplate> templates =
+            new ConcurrentHashMap<String, PropertiesTemplate>();
 
     PublisherImpl(ChannelImpl channel, Exchange exchange) {
         this(channel, exchange, null);
@@ -66,40 +66,166 @@ class PublisherImpl<T> implements Publisher<T> {
     @Override
     public void publish(T body, MessagePropertiesBuilder propertiesBuilder,
                         String routingKey) throws AmqpException {
+        try {
+            final EncodedMessage encoded = encode(body, propertiesBuilder);
+            synchronized (this.channel) {
+                this.channel.getWrapped().basicPublish(exchange.getName(),
+                        routingKey, encoded.properties, encoded.body);
+            }
+        } catch (Exception e) {
+            throw new AmqpException(e);
+        }
+    }
+
+    /**
+     * The body and properties of a message ready to be sent to the broker.
+     */
+    static final class EncodedMessage {
+        final byte[] body;
+        final BasicProperties properties;
+
+        EncodedMessage(byte[] body, BasicProperties properties) {
+            this.body = body;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * Encodes a message to be sent to the broker, compressing it if
+     * configured on the exchange. Protobuf messages published without a
+     * properties builder reuse cached properties for their type, so no
+     * properties are built for them once the first message of the type has
+     * been published.
+     *
+     * @param body              The message body.
+     * @param propertiesBuilder The message properties, or null.
+     * @return The encoded message.
+     * @throws Exception If the message cannot be encoded.
+     */
+    EncodedMessage encode(T body, MessagePropertiesBuilder propertiesBuilder) throws Exception {
+        String templateType = null;
+        if (propertiesBuilder == null && this.converter instanceof ProtobufConverter
+                && body instanceof com.google.protobuf.Message) {
+            templateType = ((com.google.protobuf.Message) body).getDescriptorForType().getFullName();
+            final PropertiesTemplate template = this.templates.get(templateType);
+            if (template != null) {
+                return encode(body, null, template);
+            }
+        }
         if (propertiesBuilder == null) {
             propertiesBuilder = MessagePropertiesBuilder.newBuilder();
         }
+        final EncodedMessage encoded = encode(body, propertiesBuilder, null);
+        if (templateType != null) {
+            /* The converter accepted the type, so later messages can use the template */
+            this.templates.putIfAbsent(templateType, new PropertiesTemplate(templateType));
+        }
+        return encoded;
+    }
 
-        propertiesBuilder.setDeliveryMode(exchange.getDeliveryMode());
+    /**
+     * Encodes a message with either a properties builder or the properties
+     * template for its type.
+     */
+    @SuppressWarnings("unchecked")
+    private EncodedMessage encode(T body, MessagePropertiesBuilder propertiesBuilder, PropertiesTemplate template)
+            throws Exception {
+        if (propertiesBuilder != null) {
+            propertiesBuilder.setDeliveryMode(exchange.getDeliveryMode());
+        }
+        final boolean compressed = exchange.getCompression().getContentEncoding() != null;
+        final String type = (body instanceof com.google.protobuf.Message) ?
+                ((com.google.protobuf.Message) body).getDescriptorForType().getFullName() : null;
 
-        try {
-            byte[] rawBody;
-            if (converter != null) {
-                rawBody = this.converter.toBytes(body, propertiesBuilder);
-            } else {
-                rawBody = (byte[]) body;
+        final byte[] rawBody;
+        if (this.converter instanceof BufferedMessageConverter) {
+            final BufferedMessageConverter<T> bufferedConverter = (BufferedMessageConverter<T>) this.converter;
+            final int size = bufferedConverter.prepare(body, propertiesBuilder);
+            if (compressed) {
+                /* Serialize into the thread's buffer; it is only copied if it isn't compressed */
+                final byte[] buffer = MessageBuffers.forCurrentThread(size);
+                bufferedConverter.writeTo(body, buffer, 0);
+                return encodeSerialized(type, buffer, 0, size, true, propertiesBuilder, template);
             }
+            rawBody = new byte[size];
+            bufferedConverter.writeTo(body, rawBody, 0);
+        } else if (converter != null) {
+            rawBody = this.converter.toBytes(body, propertiesBuilder);
+        } else {
+            rawBody = (byte[]) body;
+        }
+        return encodeSerialized(type, rawBody, 0, rawBody.length, false, propertiesBuilder, template);
+    }
+
+    /**
+     * Encodes a serialized message body, compressing it if configured on the
+     * exchange.
+     *
+     * @param type              The protobuf message type, or null.
+     * @param data              The array containing the message body.
+     * @param offset            Offset of the message body in the array.
+     * @param length            Length of the message body.
+     * @param reusedBuffer      True if the array is reused after this call, so
+     *                          the body must be copied if it isn't compressed.
+     * @param propertiesBuilder The message properties.
+     * @return The encoded message.
+     * @throws Exception If the message cannot be encoded.
+     */
+    EncodedMessage encodeSerialized(String type, byte[] data, int offset, int length, boolean reusedBuffer,
+                                    MessagePropertiesBuilder propertiesBuilder) throws Exception {
+        propertiesBuilder.setDeliveryMode(exchange.getDeliveryMode());
+        return encodeSerialized(type, data, offset, length, reusedBuffer, propertiesBuilder, null);
+    }
 
-            if (Compression.DEFLATE == exchange.getCompression()) {
-                final byte[] compressedBody = deflateCompress(rawBody);
-                // Only send compressed if we saved space
-                if (compressedBody.length < rawBody.length) {
-                    rawBody = compressedBody;
-                    propertiesBuilder.setContentEncoding("deflate");
+    private EncodedMessage encodeSerialized(String type, byte[] data, int offset, int length, boolean reusedBuffer,
+                                            MessagePropertiesBuilder propertiesBuilder, PropertiesTemplate template)
+            throws Exception {
+        final CompressionCodec codec = this.channel.getCodecRegistry().getCodec(exchange.getCompression());
+        if (codec != null && exchange.getCompressionPolicy().shouldCompress(type, length)) {
+            final CompressionDictionary dictionary = activeDictionary(codec);
+            final byte[] compressedBody = compress(type, data, offset, length, codec, dictionary);
+            if (compressedBody != null) {
+                if (template != null) {
+                    return new EncodedMessage(compressedBody, template.getCompressed(codec, dictionary));
+                }
+                propertiesBuilder.setContentEncoding(codec.getContentEncoding());
+                if (dictionary != null) {
+                    propertiesBuilder.addHeader(DictionaryCompressionCodec.HEADER_DICTIONARY_ID, dictionary.getId());
                 }
+                return new EncodedMessage(compressedBody, convertProperties(propertiesBuilder.build()));
             }
+        }
+        final byte[] rawBody = (reusedBuffer || offset != 0 || length != data.length) ?
+                Arrays.copyOfRange(data, offset, offset + length) : data;
+        return new EncodedMessage(rawBody, (template != null) ? template.uncompressed :
+                convertProperties(propertiesBuilder.build()));
+    }
 
-            synchronized (this.channel) {
-                this.channel.getWrapped().basicPublish(exchange.getName(),
-                        routingKey, convertProperties(propertiesBuilder.build()),
-                        rawBody);
-            }
-        } catch (Exception e) {
-            throw new AmqpException(e);
+    private static CompressionDictionary activeDictionary(CompressionCodec codec) {
+        return (codec instanceof DictionaryCompressionCodec) ?
+                ((DictionaryCompressionCodec) codec).getActiveDictionary() : null;
+    }
+
+    /**
+     * Compresses the data, recording the result in the exchange's compression
+     * policy.
+     *
+     * @return The compressed body, or null if compression didn't save space.
+     */
+    private byte[] compress(String type, byte[] data, int offset, int length, CompressionCodec codec,
+                            CompressionDictionary dictionary) throws IOException {
+        final byte[] compressedBody;
+        if (codec instanceof DictionaryCompressionCodec) {
+            compressedBody = ((DictionaryCompressionCodec) codec).compress(data, offset, length, dictionary);
+        } else {
+            compressedBody = codec.compress(data, offset, length);
         }
+        exchange.getCompressionPolicy().recordResult(type, length,
+                (compressedBody != null) ? compressedBody.length : length);
+        return compressedBody;
     }
 
-    private BasicProperties convertProperties(MessageProperties properties) {
+    BasicProperties convertProperties(MessageProperties properties) {
         if (properties == null) {
             return null;
         }
@@ -124,6 +250,66 @@ class PublisherImpl<T> implements Publisher<T> {
         return props.build();
     }
 
+    /**
+     * Immutable properties of a protobuf message type as set by
+     * {@link ProtobufConverter}, for each content encoding the message may be
+     * sent with.
+     */
+    private final class PropertiesTemplate {
+        private final String type;
+        private final Map<String, Object> headers;
+        private final BasicProperties uncompressed;
+        private volatile BasicProperties compressed = null;
+        private volatile DictionaryTemplate dictionaryTemplate = null;
+
+        private PropertiesTemplate(String type) {
+            this.type = type;
+            this.headers = Collections.<String, Object>singletonMap(ProtobufConstants.HEADER_PROTOBUF_FULLNAME, type);
+            this.uncompressed = build(null, this.headers);
+        }
+
+        private BasicProperties getCompressed(CompressionCodec codec, CompressionDictionary dictionary) {
+            if (dictionary != null) {
+                DictionaryTemplate template = this.dictionaryTemplate;
+                if (template == null || template.dictionary != dictionary) {
+                    final Map<String, Object> dictionaryHeaders = new HashMap<String, Object>(this.headers);
+                    dictionaryHeaders.put(DictionaryCompressionCodec.HEADER_DICTIONARY_ID, dictionary.getId());
+                    template = new DictionaryTemplate(dictionary, build(codec.getContentEncoding(),
+                            Collections.unmodifiableMap(dictionaryHeaders)));
+                    this.dictionaryTemplate = template;
+                }
+                return template.properties;
+            }
+            BasicProperties properties = this.compressed;
+            if (properties == null || !codec.getContentEncoding().equals(properties.getContentEncoding())) {
+                properties = build(codec.getContentEncoding(), this.headers);
+                this.compressed = properties;
+            }
+            return properties;
+        }
+
+        private BasicProperties build(String contentEncoding, Map<String, Object> headers) {
+            final BasicProperties.Builder props = new BasicProperties.Builder();
+            props.contentType(ProtobufConstants.CONTENT_TYPE_PROTOBUF);
+            props.contentEncoding(contentEncoding);
+            props.headers(headers);
+            if (exchange.getDeliveryMode() != null) {
+                props.deliveryMode(exchange.getDeliveryMode().getMode());
+            }
+            return props.build();
+        }
+    }
+
+    private static final class DictionaryTemplate {
+        private final CompressionDictionary dictionary;
+        private final BasicProperties properties;
+
+        private DictionaryTemplate(CompressionDictionary dictionary, BasicProperties properties) {
+            this.dictionary = dictionary;
+            this.properties = properties;
+        }
+    }
+
     @Override
     public Exchange getExchange() {
         return this.exchange;
@@ -0,0 +1,241 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Receives deliveries from the RabbitMQ connection thread and hands them to
+ * the consuming thread through a preallocated {@link MpscRingBuffer}. Unlike
+ * <code>QueueingConsumer</code>, which locks a <code>LinkedBlockingQueue</code>
+ * and signals a condition for every delivery, the connection thread only
+ * unparks the consuming thread when it is waiting for a delivery, so a busy
+ * consumer drains a burst of deliveries without any handoff.
+ * <p/>
+ * The buffer should hold at least the channel's prefetch count. If it fills
+ * (prefetch is unlimited, or the consumer uses no-ack) deliveries overflow
+ * into an unbounded queue, and the consuming thread pauses the consumer (see
+ * {@link #isOverflowing()}) so there are only as many as the broker sent
+ * before the cancel. The connection thread never waits for room: it also
+ * reads the replies to every channel's RPCs, including the cancel.
+ */
+class PushConsumer extends DefaultConsumer {
+
+    /**
+     * Default minimum number of deliveries buffered.
+     */
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private final MpscRingBuffer<Delivery> deliveries;
+    /* Deliveries received after the ring filled; newer than those in the ring */
+    private final ConcurrentLinkedQueue<Delivery> overflow = new ConcurrentLinkedQueue<Delivery>();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private volatile Thread waiter = null;
+    private volatile Runnable readyListener = null;
+    private volatile ShutdownSignalException shutdown = null;
+    private volatile boolean cancelled = false;
+
+    PushConsumer(com.rabbitmq.client.Channel channel, int capacity) {
+        super(channel);
+        this.deliveries = new MpscRingBuffer<Delivery>(capacity);
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body)
+            throws IOException {
+        final Delivery delivery = new Delivery(envelope, properties, body);
+        this.bufferedBytes.addAndGet(body.length);
+        /* Once deliveries overflow, later ones must too to stay in order */
+        if (!this.overflow.isEmpty() || !this.deliveries.offer(delivery)) {
+            this.overflow.add(delivery);
+        }
+        wakeWaiter();
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        this.shutdown = sig;
+        wakeWaiter();
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) throws IOException {
+        /* The broker cancelled the consumer (e.g. the queue was deleted) */
+        this.cancelled = true;
+        wakeWaiter();
+    }
+
+    private void wakeWaiter() {
+        final Thread thread = this.waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        final Runnable listener = this.readyListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sets a callback run on the connection thread when a delivery arrives
+     * or the consumer is shut down or cancelled, for consuming without a
+     * waiting thread. It must not block.
+     *
+     * @param readyListener The callback, or null.
+     */
+    void setReadyListener(Runnable readyListener) {
+        this.readyListener = readyListener;
+    }
+
+    /**
+     * Throws if the consumer has been shut down or cancelled by the broker.
+     * Called when no deliveries are buffered.
+     *
+     * @throws ShutdownSignalException    If the channel has been shut down.
+     * @throws ConsumerCancelledException If the broker cancelled the consumer.
+     */
+    void checkActive() throws ShutdownSignalException, ConsumerCancelledException {
+        if (this.shutdown != null) {
+            throw this.shutdown;
+        }
+        if (this.cancelled) {
+            throw new ConsumerCancelledException();
+        }
+    }
+
+    /**
+     * Returns the next delivery, waiting for one to arrive if necessary.
+     * Deliveries received before the channel was shut down are returned
+     * before the shutdown is reported. Must only be called from one thread at
+     * a time.
+     *
+     * @param timeoutMillis The maximum time to wait, or zero to wait until a
+     *                      delivery arrives.
+     * @return The next delivery, or null if none arrived in time.
+     * @throws InterruptedException     If the thread is interrupted while
+     *                                  waiting.
+     * @throws ShutdownSignalException  If the channel has been shut down.
+     * @throws ConsumerCancelledException If the broker cancelled the consumer.
+     */
+    Delivery nextDelivery(long timeoutMillis) throws InterruptedException, ShutdownSignalException,
+            ConsumerCancelledException {
+        Delivery delivery = poll();
+        if (delivery != null) {
+            return delivery;
+        }
+        final long deadline = (timeoutMillis > 0) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+        this.waiter = Thread.currentThread();
+        try {
+            while (true) {
+                /* Check again after publishing the waiter so a wake-up can't be missed */
+                delivery = poll();
+                if (delivery != null) {
+                    return delivery;
+                }
+                if (this.shutdown != null) {
+                    throw this.shutdown;
+                }
+                if (this.cancelled) {
+                    throw new ConsumerCancelledException();
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (timeoutMillis > 0) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        } finally {
+            this.waiter = null;
+        }
+    }
+
+    /**
+     * Returns the next delivery if one has already arrived, without waiting.
+     *
+     * @return The next delivery, or null if none is buffered.
+     */
+    Delivery poll() {
+        Delivery delivery = this.deliveries.poll();
+        if (delivery == null) {
+            delivery = this.overflow.poll();
+        }
+        if (delivery != null) {
+            this.bufferedBytes.addAndGet(-delivery.getBody().length);
+        }
+        return delivery;
+    }
+
+    /**
+     * Returns the number of deliveries waiting to be consumed.
+     *
+     * @return The number of buffered deliveries.
+     */
+    int getBufferedCount() {
+        return this.deliveries.size() + this.overflow.size();
+    }
+
+    /**
+     * Returns the total size of the bodies of the deliveries waiting to be
+     * consumed.
+     *
+     * @return The number of buffered bytes.
+     */
+    long getBufferedBytes() {
+        return this.bufferedBytes.get();
+    }
+
+    /**
+     * Returns the number of deliveries the ring holds before they overflow.
+     *
+     * @return The capacity of the ring.
+     */
+    int getCapacity() {
+        return this.deliveries.capacity();
+    }
+
+    /**
+     * Returns true if deliveries didn't fit in the ring, so the consumer
+     * should be paused until the buffer drains.
+     *
+     * @return True if deliveries have overflowed the ring.
+     */
+    boolean isOverflowing() {
+        return !this.overflow.isEmpty();
+    }
+
+    /**
+     * Thrown when the broker cancels the consumer.
+     */
+    static class ConsumerCancelledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ConsumerCancelledException() {
+            super("Consumer was cancelled by the broker");
+        }
+    }
+}
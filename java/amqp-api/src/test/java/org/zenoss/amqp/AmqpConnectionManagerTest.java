@@ -0,0 +1,98 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import org.junit.Test;
+import org.zenoss.amqp.Exchange.Type;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for draining an AmqpConnectionManager.
+ */
+public class AmqpConnectionManagerTest {
+
+    private static final ExchangeConfiguration EXCHANGE = new ExchangeConfiguration("$test",
+            new Exchange("test", Type.TOPIC, false, true),
+            Collections.<com.google.protobuf.Message>singletonList(FileDescriptorProto.getDefaultInstance()));
+
+    @Test
+    public void testDrainWithoutWork() throws Exception {
+        AmqpConnectionManager manager = new AmqpConnectionManager(new AmqpServerUri("amqp://localhost/zenoss"));
+        DrainStatistics statistics = manager.drain(1, TimeUnit.SECONDS);
+        assertTrue(statistics.isComplete());
+        assertEquals(0, statistics.getHandledMessages());
+        assertEquals(0, statistics.getFlushedPublishes());
+        assertEquals(0, statistics.getDroppedPublishes());
+        try {
+            manager.publishAsync(EXCHANGE, "key", FileDescriptorProto.getDefaultInstance());
+            fail("Expected publish after drain to fail");
+        } catch (AmqpException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDrainDropsUnwrittenPublishes() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final AtomicBoolean stalled = new AtomicBoolean();
+        AmqpConnectionManager manager = new AmqpConnectionManager(new AmqpServerUri("amqp://localhost/zenoss")) {
+            @Override
+            public ConfirmingPublisher<com.google.protobuf.Message> createConfirmingPublisher(
+                    ExchangeConfiguration config, int maxOutstanding) throws AmqpException {
+                if (stalled.compareAndSet(false, true)) {
+                    writing.countDown();
+                    /* A stalled channel, which doesn't respond to the flusher being interrupted */
+                    final long deadline = System.currentTimeMillis() + 500;
+                    long remaining;
+                    while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                            Thread.sleep(remaining);
+                        } catch (InterruptedException e) {
+                            // Ignored
+                        }
+                    }
+                }
+                throw new AmqpException("Not connected");
+            }
+        };
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        futures.add(manager.publishAsync(EXCHANGE, "key", FileDescriptorProto.getDefaultInstance()));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 4; i++) {
+            futures.add(manager.publishAsync(EXCHANGE, "key", FileDescriptorProto.getDefaultInstance()));
+        }
+
+        DrainStatistics statistics = manager.drain(1, 0, TimeUnit.SECONDS);
+        assertTrue(statistics.isComplete());
+        assertEquals(4, statistics.getDroppedPublishes());
+        assertEquals(0, statistics.getFlushedPublishes());
+        assertEquals(0, statistics.getUnconfirmedPublishes());
+        for (Future<Void> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Expected unwritten publish to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof AmqpException);
+            }
+        }
+    }
+}
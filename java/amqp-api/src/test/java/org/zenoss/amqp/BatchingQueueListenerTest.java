@@ -0,0 +1,231 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for BatchingQueueListener.
+ */
+public class BatchingQueueListenerTest {
+
+    private static class Listener extends BatchingQueueListener {
+        private final List<Integer> batches = new ArrayList<Integer>();
+        private int count = 0;
+
+        @Override
+        protected void handle(Collection<Message<com.google.protobuf.Message>> messages) throws Exception {
+            if (!messages.isEmpty()) {
+                batches.add(messages.size());
+            }
+            super.handle(messages);
+        }
+
+        @Override
+        protected void handle(com.google.protobuf.Message message) {
+            count++;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Listener listener(BatchPolicy policy) {
+        /* Acknowledgments are discarded */
+        Consumer<com.google.protobuf.Message> consumer = (Consumer<com.google.protobuf.Message>) Proxy.newProxyInstance(
+                Consumer.class.getClassLoader(), new Class<?>[]{Consumer.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+        Listener listener = new Listener();
+        listener.setConsumer(consumer);
+        listener.setBatchPolicy(policy);
+        return listener;
+    }
+
+    private static Message<com.google.protobuf.Message> message(int size) {
+        final FileDescriptorProto body = FileDescriptorProto.newBuilder().setName(new String(new char[size])).build();
+        return new Message<com.google.protobuf.Message>() {
+            @Override
+            public MessageEnvelope getEnvelope() {
+                return null;
+            }
+
+            @Override
+            public MessageProperties getProperties() {
+                return null;
+            }
+
+            @Override
+            public com.google.protobuf.Message getBody() {
+                return body;
+            }
+        };
+    }
+
+    private static Message<com.google.protobuf.Message> lazyMessage(final AtomicInteger decoded,
+                                                                    final boolean undecodable) {
+        final FileDescriptorProto body = FileDescriptorProto.newBuilder().setName(new String(new char[50])).build();
+        return new Message<com.google.protobuf.Message>() {
+            @Override
+            public MessageEnvelope getEnvelope() {
+                return null;
+            }
+
+            @Override
+            public MessageProperties getProperties() {
+                return null;
+            }
+
+            @Override
+            public com.google.protobuf.Message getBody() {
+                decoded.incrementAndGet();
+                if (undecodable) {
+                    throw new MessageBodyException(new MessageDecoderException(null, "Undecodable"));
+                }
+                return body;
+            }
+        };
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        Listener listener = listener(new BatchPolicy(3, 1000, 10000));
+        for (int i = 0; i < 7; i++) {
+            listener.receive(message(10));
+        }
+        assertEquals(Arrays.asList(3, 3), listener.batches);
+        listener.queueEmptied();
+        assertEquals(7, listener.count);
+
+        /* The third message takes the batch over the size limit */
+        listener.receive(message(400));
+        listener.receive(message(400));
+        listener.receive(message(400));
+        assertEquals(Arrays.asList(3, 3, 1, 3), listener.batches);
+
+        Histogram sizes = listener.getBatchSizeHistogram();
+        assertEquals(4, sizes.getCount());
+        assertEquals(2.5, sizes.getMean(), 0.001);
+        assertEquals(3, sizes.getMax());
+        assertEquals(3, sizes.getPercentile(99));
+        assertEquals(1, sizes.getPercentile(20));
+    }
+
+    @Test
+    public void testCollectionHooks() throws Exception {
+        final List<String> settled = new ArrayList<String>();
+        Listener listener = new Listener() {
+            @Override
+            protected void handle(com.google.protobuf.Message message) {
+                if (((FileDescriptorProto) message).getName().length() > 100) {
+                    throw new IllegalArgumentException("Too long");
+                }
+            }
+
+            @Override
+            protected void handled(Collection<? extends Message<?>> messages) throws AmqpException {
+                settled.add("handled " + messages.size());
+                super.handled(messages);
+            }
+
+            @Override
+            protected void failed(Collection<? extends Message<?>> messages) throws AmqpException {
+                settled.add("failed " + messages.size());
+                super.failed(messages);
+            }
+        };
+        listener.setConsumer(listener(new BatchPolicy(3, 100000, 10000)).consumer);
+        listener.setBatchPolicy(new BatchPolicy(3, 100000, 10000));
+        listener.receive(message(10));
+        listener.receive(message(200));
+        try {
+            listener.receive(message(10));
+            fail("Expected the batch to report its failure");
+        } catch (Exception e) {
+            // Expected
+        }
+        /* Failures are rejected before the rest are acknowledged */
+        assertEquals(Arrays.asList("failed 1", "handled 2"), settled);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLazyUndecodableBody() throws Exception {
+        final List<String> calls = new ArrayList<String>();
+        Consumer<com.google.protobuf.Message> consumer = (Consumer<com.google.protobuf.Message>) Proxy.newProxyInstance(
+                Consumer.class.getClassLoader(), new Class<?>[]{Consumer.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        calls.add(method.getName() + " " + ((Collection<?>) args[0]).size());
+                        return null;
+                    }
+                });
+        Listener listener = new Listener() {
+            @Override
+            public boolean isLazyDecoding() {
+                return true;
+            }
+        };
+        listener.setConsumer(consumer);
+        /* The size limit would process each message if bodies were read */
+        listener.setBatchPolicy(new BatchPolicy(3, 10, 10000));
+        AtomicInteger decoded = new AtomicInteger();
+        listener.receive(lazyMessage(decoded, false));
+        listener.receive(lazyMessage(decoded, true));
+        assertEquals(0, decoded.get());
+        assertTrue(listener.batches.isEmpty());
+        try {
+            listener.receive(lazyMessage(decoded, false));
+            fail("Expected the batch to report its failure");
+        } catch (Exception e) {
+            // Expected
+        }
+        assertEquals(3, decoded.get());
+        /* The undecodable message is rejected once, with the batch */
+        assertEquals(Arrays.asList("rejectMessages 1", "ackMessages 2"), calls);
+        listener.queueEmptied();
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void testLingerTimeout() throws Exception {
+        Listener listener = listener(new BatchPolicy(100, 100000, 50));
+        assertEquals(0, listener.getTimeout());
+        listener.receive(message(10));
+        int timeout = listener.getTimeout();
+        assertTrue("Timeout should be bounded by the linger time: " + timeout, timeout > 0 && timeout <= 50);
+
+        Thread.sleep(60);
+        assertEquals(1, listener.getTimeout());
+        /* A message arriving after the linger time processes the batch */
+        listener.receive(message(10));
+        assertEquals(Arrays.asList(2), listener.batches);
+        assertEquals(0, listener.getTimeout());
+        assertTrue(listener.getBatchWaitHistogram().getMax() >= 50);
+
+        listener.setTimeout(20);
+        listener.receive(message(10));
+        assertTrue(listener.getTimeout() <= 20);
+    }
+}
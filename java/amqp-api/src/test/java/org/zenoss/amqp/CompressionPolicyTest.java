@@ -0,0 +1,82 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for CompressionPolicy.
+ */
+public class CompressionPolicyTest {
+
+    @Test
+    public void testMinSize() {
+        CompressionPolicy policy = new CompressionPolicy(100, 0.0);
+        assertFalse(policy.shouldCompress("a", 99));
+        assertTrue(policy.shouldCompress("a", 100));
+        assertEquals(1, policy.getSkippedSizeCount());
+    }
+
+    @Test
+    public void testCounters() {
+        CompressionPolicy policy = new CompressionPolicy(0, 0.0);
+        policy.recordResult("a", 1000, 400);
+        policy.recordResult("a", 1000, 1000);
+        assertEquals(1, policy.getCompressedCount());
+        assertEquals(1, policy.getIneffectiveCount());
+        assertEquals(2000, policy.getUncompressedBytes());
+        assertEquals(1400, policy.getCompressedBytes());
+        assertEquals(600, policy.getSavedBytes());
+        /* Without a minimum gain, ratios aren't tracked and every type is compressed */
+        assertTrue(Double.isNaN(policy.getEstimatedRatio("a")));
+        assertTrue(policy.shouldCompress("a", 1000));
+    }
+
+    @Test
+    public void testDisableAndProbe() {
+        CompressionPolicy policy = new CompressionPolicy(0, 0.1);
+        /* Types are always compressed until there are enough samples */
+        for (int i = 0; i < 8; i++) {
+            assertTrue(policy.shouldCompress("good", 1000));
+            policy.recordResult("good", 1000, 300);
+            assertTrue(policy.shouldCompress("bad", 1000));
+            policy.recordResult("bad", 1000, 980);
+        }
+        assertFalse(policy.shouldCompress("bad", 1000));
+        assertEquals(0.3, policy.getEstimatedRatio("good"), 0.001);
+        assertEquals(0.98, policy.getEstimatedRatio("bad"), 0.001);
+        assertTrue(policy.shouldCompress("good", 1000));
+        assertTrue(policy.shouldCompress("unknown", 1000));
+
+        /* A disabled type is still sampled periodically */
+        int compressed = 0;
+        for (int i = 1; i < 640; i++) {
+            if (policy.shouldCompress("bad", 1000)) {
+                compressed++;
+            }
+        }
+        assertEquals(10, compressed);
+        assertEquals(630, policy.getSkippedRatioCount());
+
+        /* Becomes compressible again */
+        for (int i = 0; i < 30; i++) {
+            policy.recordResult("bad", 1000, 200);
+        }
+        assertTrue(policy.shouldCompress("bad", 1000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidGain() {
+        new CompressionPolicy(0, 1.0);
+    }
+}
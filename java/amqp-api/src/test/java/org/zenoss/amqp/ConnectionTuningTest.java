@@ -0,0 +1,68 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ConnectionTuning.
+ */
+public class ConnectionTuningTest {
+
+    @Test
+    public void testDefaults() {
+        ConnectionTuning tuning = ConnectionTuning.DEFAULT;
+        assertEquals(0, tuning.getFrameMax());
+        assertEquals(0, tuning.getChannelMax());
+        assertEquals(-1, tuning.getHeartbeat());
+        assertEquals(0, tuning.getSendBufferSize());
+        assertEquals(0, tuning.getReceiveBufferSize());
+        assertTrue(tuning.isTcpNoDelay());
+        assertEquals(0, tuning.getConnectionTimeout());
+        assertEquals(-1, tuning.getShutdownTimeout());
+    }
+
+    @Test
+    public void testUriOverridesConfiguration() throws Exception {
+        ConnectionTuning configured = new ConnectionTuning.Builder().frameMax(131072).heartbeat(30)
+                .sendBufferSize(65536).build();
+        AmqpServerUri uri = new AmqpServerUri(
+                "amqp://localhost/zenoss?frame_max=1048576;tcp_nodelay=false;shutdown_timeout=5000");
+        ConnectionTuning tuning = configured.with(uri.getProperties());
+        assertEquals(1048576, tuning.getFrameMax());
+        assertEquals(30, tuning.getHeartbeat());
+        assertEquals(65536, tuning.getSendBufferSize());
+        assertFalse(tuning.isTcpNoDelay());
+        assertEquals(5000, tuning.getShutdownTimeout());
+    }
+
+    @Test
+    public void testInvalidValuesIgnored() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(ConnectionTuning.FRAME_MAX, "big");
+        properties.put(ConnectionTuning.CHANNEL_MAX, "-5");
+        properties.put(ConnectionTuning.RECEIVE_BUFFER, " 262144 ");
+        ConnectionTuning tuning = ConnectionTuning.DEFAULT.with(properties);
+        assertEquals(0, tuning.getFrameMax());
+        assertEquals(0, tuning.getChannelMax());
+        assertEquals(262144, tuning.getReceiveBufferSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBuilder() {
+        new ConnectionTuning.Builder().frameMax(-1).build();
+    }
+}
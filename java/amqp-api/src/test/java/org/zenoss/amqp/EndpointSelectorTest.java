@@ -0,0 +1,87 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for EndpointSelector.
+ */
+public class EndpointSelectorTest {
+
+    private static final long BASE_MILLIS = 40;
+
+    @Test
+    public void testLatencyOrder() throws Exception {
+        List<AmqpServerUri> uris = AmqpServerUri.parseList("amqp://rabbit1/, amqp://rabbit2/, amqp://rabbit3/");
+        EndpointSelector selector = new EndpointSelector(uris, BASE_MILLIS, 1000, new Random(1));
+        assertEquals(uris, selector.candidates());
+        assertEquals(uris, selector.unprobed());
+
+        /* Known endpoints are tried fastest first, after untried endpoints */
+        selector.connected(uris.get(0), 3000000);
+        selector.connected(uris.get(1), 1000000);
+        assertEquals(Arrays.asList(uris.get(2), uris.get(1), uris.get(0)), selector.candidates());
+        assertEquals(Collections.singletonList(uris.get(2)), selector.unprobed());
+        selector.connected(uris.get(2), 2000000);
+        assertEquals(Arrays.asList(uris.get(1), uris.get(2), uris.get(0)), selector.candidates());
+
+        /* Latency is smoothed */
+        selector.connected(uris.get(1), 5000000);
+        assertEquals(2200000, selector.getLatencyNanos(uris.get(1)));
+        assertEquals(Arrays.asList(uris.get(2), uris.get(1), uris.get(0)), selector.candidates());
+    }
+
+    @Test
+    public void testBackoff() throws Exception {
+        List<AmqpServerUri> uris = AmqpServerUri.parseList("amqp://rabbit1/, amqp://rabbit2/");
+        EndpointSelector selector = new EndpointSelector(uris, BASE_MILLIS, BASE_MILLIS * 4, new Random(1));
+        assertEquals(0, selector.getRetryDelayMillis());
+
+        /* A failed endpoint is skipped, so the other is tried straight away */
+        selector.failed(uris.get(0));
+        assertEquals(Collections.singletonList(uris.get(1)), selector.candidates());
+        assertEquals(0, selector.getRetryDelayMillis());
+
+        /* With every endpoint failing, wait for the first to come out of backoff */
+        selector.failed(uris.get(1));
+        assertTrue(selector.candidates().isEmpty());
+        long delay = selector.getRetryDelayMillis();
+        assertTrue("delay " + delay, delay > 0 && delay <= BASE_MILLIS);
+        Thread.sleep(BASE_MILLIS + 5);
+        assertEquals(uris, selector.candidates());
+
+        /* Backoff doubles (with jitter) up to the maximum */
+        selector.failed(uris.get(1));
+        selector.failed(uris.get(1));
+        selector.failed(uris.get(1));
+        selector.failed(uris.get(1));
+        assertEquals(Collections.singletonList(uris.get(0)), selector.candidates());
+        selector.connected(uris.get(0), 1000000);
+        selector.failed(uris.get(0));
+        delay = selector.getRetryDelayMillis();
+        assertTrue("delay " + delay, delay > 0 && delay <= BASE_MILLIS);
+        Thread.sleep(BASE_MILLIS * 4 + 5);
+        assertEquals(2, selector.candidates().size());
+
+        /* A connect clears the failures */
+        selector.failed(uris.get(1));
+        selector.connected(uris.get(1), 1000000);
+        assertEquals(Arrays.asList(uris.get(0), uris.get(1)), selector.candidates());
+    }
+}
@@ -0,0 +1,133 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ListenerGroup.
+ */
+public class ListenerGroupTest {
+
+    private static final long INTERVAL_MILLIS = 20;
+
+    private static final QueueConfiguration CONFIG = new QueueConfiguration("$Test",
+            new Queue("zenoss.test", true, false, false), Collections.<Binding>emptyList(),
+            Collections.<com.google.protobuf.Message>emptyList());
+
+    private static final QueueListenerFactory FACTORY = new QueueListenerFactory() {
+        @Override
+        public QueueListener newListener() {
+            return new QueueListener() {
+                @Override
+                protected void handle(com.google.protobuf.Message message) {
+                }
+            };
+        }
+    };
+
+    /**
+     * Channel reporting the specified number of messages waiting in the queue.
+     */
+    private static Channel channel(final AtomicInteger depth) {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("getMessageCount".equals(method.getName())) {
+                            return depth.get();
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static class RecordingGroup extends ListenerGroup {
+        private final List<String> started = new ArrayList<String>();
+
+        RecordingGroup(ConcurrencyPolicy policy) {
+            super("group", CONFIG, FACTORY, policy, INTERVAL_MILLIS);
+        }
+
+        @Override
+        protected String startWorker(QueueListener listener) {
+            final String id = "worker" + started.size();
+            started.add(id);
+            return id;
+        }
+    }
+
+    @Test
+    public void testStatic() throws Exception {
+        RecordingGroup group = new RecordingGroup(new ConcurrencyPolicy(3));
+        group.start();
+        assertEquals(Arrays.asList("worker0", "worker1", "worker2"), group.started);
+        Thread.sleep(INTERVAL_MILLIS * 2);
+        assertFalse(group.sample("worker0", 1.0, channel(new AtomicInteger(1000))));
+        assertFalse(group.sample("worker0", 0.0, channel(new AtomicInteger(0))));
+        assertEquals(3, group.getWorkerCount());
+        assertEquals(Arrays.asList("worker0", "worker1", "worker2"), group.remove());
+        assertEquals(0, group.getWorkerCount());
+    }
+
+    @Test
+    public void testElastic() throws Exception {
+        RecordingGroup group = new RecordingGroup(new ConcurrencyPolicy(1, 3));
+        AtomicInteger depth = new AtomicInteger(0);
+        group.start();
+        assertEquals(1, group.getWorkerCount());
+
+        /* Changes are rate limited */
+        assertFalse(group.sample("worker0", 1.0, channel(depth)));
+        depth.set(100);
+        assertFalse(group.sample("worker0", 1.0, channel(depth)));
+        assertEquals(1, group.getWorkerCount());
+
+        /* A busy worker with messages waiting adds a worker, an empty queue doesn't */
+        Thread.sleep(INTERVAL_MILLIS * 2);
+        depth.set(0);
+        assertFalse(group.sample("worker0", 0.9, channel(depth)));
+        assertEquals(1, group.getWorkerCount());
+        depth.set(100);
+        assertFalse(group.sample("worker0", 0.9, channel(depth)));
+        assertEquals(2, group.getWorkerCount());
+        Thread.sleep(INTERVAL_MILLIS * 2);
+        assertFalse(group.sample("worker1", 1.0, channel(depth)));
+        assertEquals(3, group.getWorkerCount());
+
+        /* Idle workers stop, down to the minimum */
+        assertFalse(group.sample("worker2", 0.0, channel(depth)));
+        Thread.sleep(INTERVAL_MILLIS * 2);
+        assertTrue(group.sample("worker2", 0.0, channel(depth)));
+        Thread.sleep(INTERVAL_MILLIS * 2);
+        assertFalse(group.sample("worker1", 0.5, channel(depth)));
+        assertTrue(group.sample("worker1", 0.1, channel(depth)));
+        Thread.sleep(INTERVAL_MILLIS * 2);
+        assertFalse(group.sample("worker0", 0.0, channel(depth)));
+        assertEquals(1, group.getWorkerCount());
+
+        /* A removed group doesn't add workers */
+        assertEquals(Collections.singletonList("worker0"), group.remove());
+        assertFalse(group.sample("worker0", 1.0, channel(depth)));
+        assertEquals(3, group.started.size());
+    }
+}
@@ -0,0 +1,286 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PartitionedQueueListener.
+ */
+public class PartitionedQueueListenerTest {
+
+    /**
+     * Consumer which records the messages settled.
+     */
+    private static class RecordingConsumer implements Consumer<com.google.protobuf.Message> {
+        private final List<String> settled = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public Message<com.google.protobuf.Message> nextMessage() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Message<com.google.protobuf.Message> nextMessage(long waitTime, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public Queue getQueue() {
+            return null;
+        }
+
+        @Override
+        public Channel getChannel() {
+            return null;
+        }
+
+        @Override
+        public void ackMessage(Message<?> message) {
+            settled.add(name(message));
+        }
+
+        @Override
+        public void rejectMessage(Message<?> message, boolean requeue) {
+            settled.add("!" + name(message));
+        }
+
+        @Override
+        public void ackMessages(Collection<? extends Message<?>> messages) {
+            for (Message<?> message : messages) {
+                ackMessage(message);
+            }
+        }
+
+        @Override
+        public void rejectMessages(Collection<? extends Message<?>> messages, boolean requeue) {
+            for (Message<?> message : messages) {
+                rejectMessage(message, requeue);
+            }
+        }
+
+        @Override
+        public int requeueBuffered() {
+            return 0;
+        }
+
+        @Override
+        public void setMessageFilter(MessageFilter filter) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setLazyDecoding(boolean lazyDecoding) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Message<com.google.protobuf.Message> pollMessage() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setReadyListener(Runnable readyListener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setBufferPolicy(BufferPolicy bufferPolicy) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getBufferedMessages() {
+            return 0;
+        }
+
+        @Override
+        public long getBufferedBytes() {
+            return 0;
+        }
+    }
+
+    /**
+     * Records the order messages are handled in by key; messages named "slow"
+     * take a while and messages named "fail" throw.
+     */
+    private static class Listener extends PartitionedQueueListener {
+        private final Map<String, List<String>> handled = new HashMap<String, List<String>>();
+
+        private Listener(int lanes) {
+            super(lanes);
+        }
+
+        @Override
+        protected Object getPartitionKey(com.google.protobuf.Message message) {
+            return ((FileDescriptorProto) message).getPackage();
+        }
+
+        @Override
+        protected void handle(com.google.protobuf.Message message) throws Exception {
+            final FileDescriptorProto file = (FileDescriptorProto) message;
+            if (file.getName().startsWith("slow")) {
+                Thread.sleep(50);
+            }
+            if (file.getName().startsWith("fail")) {
+                throw new Exception("Failed " + file.getName());
+            }
+            synchronized (handled) {
+                List<String> names = handled.get(file.getPackage());
+                if (names == null) {
+                    names = new ArrayList<String>();
+                    handled.put(file.getPackage(), names);
+                }
+                names.add(file.getName());
+            }
+        }
+    }
+
+    private static Message<com.google.protobuf.Message> message(final String key, final String name) {
+        final FileDescriptorProto body = FileDescriptorProto.newBuilder().setPackage(key).setName(name).build();
+        return new Message<com.google.protobuf.Message>() {
+            @Override
+            public MessageEnvelope getEnvelope() {
+                return null;
+            }
+
+            @Override
+            public MessageProperties getProperties() {
+                return null;
+            }
+
+            @Override
+            public com.google.protobuf.Message getBody() {
+                return body;
+            }
+        };
+    }
+
+    private static Message<com.google.protobuf.Message> undecodable(final String name) {
+        return new Message<com.google.protobuf.Message>() {
+            @Override
+            public MessageEnvelope getEnvelope() {
+                return null;
+            }
+
+            @Override
+            public MessageProperties getProperties() {
+                return null;
+            }
+
+            @Override
+            public com.google.protobuf.Message getBody() {
+                throw new MessageBodyException(new MessageDecoderException(null, "Undecodable " + name));
+            }
+        };
+    }
+
+    private static String name(Message<?> message) {
+        return ((FileDescriptorProto) message.getBody()).getName();
+    }
+
+    @Test
+    public void testOrderedAcks() throws Exception {
+        Listener listener = new Listener(4);
+        RecordingConsumer consumer = new RecordingConsumer();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            String key = "key" + (i % 3);
+            String name = ((i == 2) ? "slow" : "m") + i;
+            listener.receive(message(key, name), consumer);
+            expected.add(name);
+        }
+        listener.shutdown();
+
+        assertEquals(expected, consumer.settled);
+        for (int k = 0; k < 3; k++) {
+            List<String> names = listener.handled.get("key" + k);
+            for (int j = 1; j < names.size(); j++) {
+                int previous = Integer.parseInt(names.get(j - 1).replaceAll("\\D", ""));
+                int current = Integer.parseInt(names.get(j).replaceAll("\\D", ""));
+                assertTrue("Messages for a key must be handled in order", previous < current);
+            }
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        Listener listener = new Listener(2);
+        RecordingConsumer consumer = new RecordingConsumer();
+        listener.receive(message("a", "m0"), consumer);
+        listener.receive(message("b", "fail1"), consumer);
+        listener.receive(message("a", "m2"), consumer);
+        listener.shutdown();
+        assertEquals(Arrays.asList("m0", "!fail1", "m2"), consumer.settled);
+        try {
+            listener.queueEmptied();
+            fail("Expected the handling failure");
+        } catch (Exception e) {
+            assertEquals("Failed fail1", e.getMessage());
+        }
+        listener.queueEmptied();
+
+        /* Lanes start again after a shutdown */
+        listener.receive(message("a", "m3"), consumer);
+        listener.shutdown();
+        assertEquals("m3", consumer.settled.get(3));
+    }
+
+    @Test
+    public void testUndecodableBody() throws Exception {
+        Listener listener = new Listener(2);
+        RecordingConsumer consumer = new RecordingConsumer();
+        listener.receive(message("a", "m0"), consumer);
+        try {
+            listener.receive(undecodable("bad1"), consumer);
+            fail("Expected the decoding failure");
+        } catch (MessageBodyException e) {
+            /* The worker rejects the message itself */
+            assertEquals("Undecodable bad1", e.getCause().getMessage());
+        }
+        listener.receive(message("b", "m2"), consumer);
+        listener.shutdown();
+
+        /* The failed message doesn't hold back the acknowledgment of later ones */
+        assertEquals(Arrays.asList("m0", "m2"), consumer.settled);
+    }
+
+    @Test
+    public void testPrefetchLimit() {
+        Listener listener = new Listener(2);
+        int max = listener.getMaxPrefetchCount();
+        assertTrue(max > 0);
+
+        /* A prefetch policy can't raise the count past the outstanding messages */
+        PrefetchPolicy limited = new PrefetchPolicy(1, max * 10).limit(max);
+        assertEquals(1, limited.getMin());
+        assertEquals(max, limited.getMax());
+        assertEquals(max, new PrefetchPolicy(max * 2, max * 10).limit(max).getMin());
+        PrefetchPolicy within = new PrefetchPolicy(1, max);
+        assertSame(within, within.limit(max));
+    }
+}
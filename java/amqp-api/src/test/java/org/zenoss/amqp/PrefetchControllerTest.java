@@ -0,0 +1,177 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+import org.junit.Test;
+import org.zenoss.amqp.impl.StubChannel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PrefetchController.
+ */
+public class PrefetchControllerTest {
+
+    /**
+     * Channel which records the prefetch counts set, taking the specified
+     * time for each <code>basic.qos</code> round trip.
+     */
+    private static Channel channel(List<Integer> prefetchCounts, long roundTripMillis) {
+        return channel(prefetchCounts, new AtomicLong(roundTripMillis));
+    }
+
+    private static Channel channel(final List<Integer> prefetchCounts, final AtomicLong roundTripMillis) {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("setQos".equals(method.getName())) {
+                            Thread.sleep(roundTripMillis.get());
+                            prefetchCounts.add((Integer) args[1]);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void testTarget() {
+        PrefetchController controller = new PrefetchController(channel(new ArrayList<Integer>(), 0),
+                new PrefetchPolicy(2, 500));
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        /* 10ms round trip, 1ms per message: 20 in flight plus the one being processed */
+        assertEquals(21, controller.target(10 * ms, ms));
+        /* Slow listeners fall to the minimum, fast ones rise to the maximum */
+        assertEquals(2, controller.target(ms, 100 * ms));
+        assertEquals(500, controller.target(100 * ms, 1000));
+    }
+
+    @Test
+    public void testAdjust() throws Exception {
+        List<Integer> prefetchCounts = new ArrayList<Integer>();
+        PrefetchController controller = new PrefetchController(channel(prefetchCounts, 5), new PrefetchPolicy(1, 100));
+        controller.start();
+        assertEquals(1, controller.getPrefetchCount());
+        assertTrue(controller.getRoundTripNanos() >= TimeUnit.MILLISECONDS.toNanos(5));
+
+        /* Fast messages raise the prefetch count to cover the round trip */
+        for (int i = 0; i < 8; i++) {
+            controller.messageProcessed(TimeUnit.MICROSECONDS.toNanos(500));
+        }
+        int raised = controller.getPrefetchCount();
+        assertTrue("Prefetch count should rise: " + raised, raised >= 20);
+
+        /* Adjustments are rate limited */
+        for (int i = 0; i < 8; i++) {
+            controller.messageProcessed(TimeUnit.MILLISECONDS.toNanos(500));
+        }
+        assertEquals(raised, controller.getPrefetchCount());
+
+        /* Slow messages lower it again */
+        Thread.sleep(300);
+        for (int i = 0; i < 32; i++) {
+            controller.messageProcessed(TimeUnit.MILLISECONDS.toNanos(500));
+        }
+        assertTrue("Prefetch count should fall: " + controller.getPrefetchCount(),
+                controller.getPrefetchCount() < raised);
+        assertEquals(Integer.valueOf(controller.getPrefetchCount()), prefetchCounts.get(prefetchCounts.size() - 1));
+    }
+
+    @Test
+    public void testRemeasureRoundTrip() throws Exception {
+        List<Integer> prefetchCounts = new ArrayList<Integer>();
+        AtomicLong roundTripMillis = new AtomicLong(1);
+        PrefetchController controller = new PrefetchController(channel(prefetchCounts, roundTripMillis),
+                new PrefetchPolicy(1, 1000), TimeUnit.MILLISECONDS.toNanos(100));
+        controller.start();
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        for (int i = 0; i < 8; i++) {
+            controller.messageProcessed(ms);
+        }
+        int steady = controller.getPrefetchCount();
+
+        /* The latency rises while the target is unchanged; re-sending the count notices */
+        roundTripMillis.set(50);
+        for (int round = 0; round < 10 && controller.getPrefetchCount() == steady; round++) {
+            Thread.sleep(300);
+            for (int i = 0; i < 8; i++) {
+                controller.messageProcessed(ms);
+            }
+        }
+        assertTrue("Round trip should be re-measured: " + controller.getRoundTripNanos(),
+                controller.getRoundTripNanos() >= 5 * ms);
+        assertTrue("Prefetch count should rise: " + controller.getPrefetchCount(),
+                controller.getPrefetchCount() > steady);
+        assertTrue(prefetchCounts.lastIndexOf(steady) > prefetchCounts.indexOf(steady));
+    }
+
+    @Test
+    public void testRaiseWhileRingFull() throws Exception {
+        final StubChannel stub = StubChannel.create();
+        Channel channel = stub.channelImpl();
+        Consumer<byte[]> consumer = channel.createConsumer(new Queue("zenoss.test", true, false, false), null, 4);
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+        stub.qosReply = new CountDownLatch(1);
+
+        /* The worker raises the prefetch count and waits for the reply */
+        final PrefetchController controller = new PrefetchController(channel, new PrefetchPolicy(64, 64));
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    controller.start();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        worker.start();
+
+        /* The connection thread fills the ring before it reads the reply */
+        Thread connection = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (long tag = 1; tag <= 8; tag++) {
+                        stub.consumer.handleDelivery("ctag", new Envelope(tag, false, "exchange", "key"),
+                                new BasicProperties.Builder().build(), new byte[]{(byte) tag});
+                    }
+                    stub.qosReply.countDown();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        connection.start();
+        connection.join(5000);
+        worker.join(5000);
+        assertFalse("Connection thread blocked on the full ring", connection.isAlive());
+        assertFalse("basic.qos reply never read", worker.isAlive());
+        assertNull(failure.get());
+        assertEquals(64, controller.getPrefetchCount());
+        for (long tag = 1; tag <= 8; tag++) {
+            assertEquals(tag, consumer.nextMessage(0, TimeUnit.SECONDS).getEnvelope().getDeliveryTag());
+        }
+    }
+}
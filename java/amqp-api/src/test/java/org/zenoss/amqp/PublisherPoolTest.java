@@ -0,0 +1,92 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.junit.Test;
+import org.zenoss.amqp.AmqpConnectionManager.PublisherStriping;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.easymock.EasyMock.createMock;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PublisherPool.
+ */
+public class PublisherPoolTest {
+
+    @SuppressWarnings("unchecked")
+    private static Publisher<com.google.protobuf.Message> mockPublisher() {
+        return createMock(Publisher.class);
+    }
+
+    @Test
+    public void testThreadAffinity() {
+        PublisherPool pool = new PublisherPool(4, PublisherStriping.THREAD_AFFINITY);
+        int slot = pool.slot();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(slot, pool.slot());
+        }
+        assertEquals((int) (Thread.currentThread().getId() % 4), slot);
+    }
+
+    @Test
+    public void testRoundRobin() {
+        PublisherPool pool = new PublisherPool(4, PublisherStriping.ROUND_ROBIN);
+        Set<Integer> slots = new HashSet<Integer>();
+        for (int i = 0; i < 4; i++) {
+            slots.add(pool.slot());
+        }
+        assertEquals(4, slots.size());
+        assertEquals(0, new PublisherPool(1, PublisherStriping.ROUND_ROBIN).slot());
+    }
+
+    @Test
+    public void testSetRemoveClear() {
+        PublisherPool pool = new PublisherPool(2, PublisherStriping.THREAD_AFFINITY);
+        Publisher<com.google.protobuf.Message> first = mockPublisher();
+        Publisher<com.google.protobuf.Message> second = mockPublisher();
+        assertNull(pool.get(0));
+        assertTrue(pool.setIfEmpty(0, first));
+        assertFalse(pool.setIfEmpty(0, second));
+        assertSame(first, pool.get(0));
+        assertTrue(pool.setIfEmpty(1, second));
+
+        assertTrue(pool.remove(first));
+        assertFalse(pool.remove(first));
+        assertNull(pool.get(0));
+
+        assertEquals(1, pool.clear().size());
+        assertNull(pool.get(1));
+        assertTrue(pool.clear().isEmpty());
+    }
+
+    @Test
+    public void testShards() {
+        /* Two channels on each of three connections */
+        PublisherPool pool = new PublisherPool(6, PublisherStriping.ROUND_ROBIN);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(pool.setIfEmpty(i, mockPublisher()));
+        }
+        Publisher<com.google.protobuf.Message> onFirst = pool.get(3);
+        assertEquals(2, pool.count(0, 3));
+        List<Publisher<com.google.protobuf.Message>> removed = pool.clear(0, 3);
+        assertEquals(2, removed.size());
+        assertTrue(removed.contains(onFirst));
+        assertNull(pool.get(0));
+        assertNull(pool.get(3));
+        assertEquals(0, pool.count(0, 3));
+        assertEquals(2, pool.count(1, 3));
+        assertEquals(4, pool.clear().size());
+    }
+}
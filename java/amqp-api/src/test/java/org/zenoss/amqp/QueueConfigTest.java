@@ -159,6 +159,14 @@ public class QueueConfigTest {
         Exchange exchange = configuration.getExchange();
         
         assertEquals(MessageDeliveryMode.NON_PERSISTENT, exchange.getDeliveryMode());
+        assertEquals(Exchange.Compression.LZF, exchange.getCompression());
+        assertEquals(1024, exchange.getCompressionPolicy().getMinSize());
+        assertEquals(0.2, exchange.getCompressionPolicy().getMinGain(), 0.0001);
+        assertSame(exchange.getCompressionPolicy(),
+                queueConfig.getExchange("$ExplicitPropertiesExchange").getExchange().getCompressionPolicy());
+        assertEquals(50, exchange.getBatchPolicy().getMaxMessages());
+        assertEquals(BatchPolicy.DEFAULT_MAX_BYTES, exchange.getBatchPolicy().getMaxBytes());
+        assertEquals(5, exchange.getBatchPolicy().getLingerMillis());
 
         QueueConfiguration queueConfiguration = queueConfig.getQueue("$ExplicitPropertiesQueue");
         Queue queue = queueConfiguration.getQueue();
@@ -170,7 +178,20 @@ public class QueueConfigTest {
 
         assertEquals(54321, ttl);
         assertEquals(11235, expires);
-
+        assertEquals(4, queueConfiguration.getPrefetchPolicy().getMin());
+        assertEquals(200, queueConfiguration.getPrefetchPolicy().getMax());
+        assertEquals(2, queueConfiguration.getDecodeThreads());
+        assertEquals(BufferPolicy.DEFAULT_MAX_MESSAGES, queueConfiguration.getBufferPolicy().getMaxMessages());
+        assertEquals(1048576L, queueConfiguration.getBufferPolicy().getMaxBytes());
+        assertEquals(2, queueConfiguration.getConcurrencyPolicy().getMin());
+        assertEquals(6, queueConfiguration.getConcurrencyPolicy().getMax());
+
+        ConnectionTuning tuning = queueConfig.getConnectionTuning();
+        assertEquals(131072, tuning.getFrameMax());
+        assertEquals(262144, tuning.getSendBufferSize());
+        assertFalse(tuning.isTcpNoDelay());
+        assertEquals(0, tuning.getChannelMax());
+        assertEquals(-1, tuning.getHeartbeat());
     }
 
     @Test
@@ -193,6 +214,9 @@ public class QueueConfigTest {
         configuration = queueConfig.getExchange("$ExplicitPropertiesExchange");
         exchange = configuration.getExchange();
         assertEquals(MessageDeliveryMode.PERSISTENT, exchange.getDeliveryMode());
+        assertEquals(Exchange.Compression.NONE, exchange.getCompression());
+        assertEquals(CompressionPolicy.DEFAULT_MIN_SIZE, exchange.getCompressionPolicy().getMinSize());
+        assertNull(exchange.getBatchPolicy());
 
         QueueConfiguration queueConfiguration = queueConfig.getQueue("$DefaultPropertiesQueue");
         Queue queue = queueConfiguration.getQueue();
@@ -201,6 +225,11 @@ public class QueueConfigTest {
         Object expires = arguments.get("x-expires");
         assertEquals(54321, ttl);
         assertEquals(11235, expires);
+        assertNull(queueConfiguration.getPrefetchPolicy());
+        assertEquals(0, queueConfiguration.getDecodeThreads());
+        assertNull(queueConfiguration.getBufferPolicy());
+        assertNull(queueConfiguration.getConcurrencyPolicy());
+        assertEquals(ConnectionTuning.DEFAULT.getFrameMax(), queueConfig.getConnectionTuning().getFrameMax());
 
         queueConfiguration = queueConfig.getQueue("$ExplicitPropertiesQueue");
         queue = queueConfiguration.getQueue();
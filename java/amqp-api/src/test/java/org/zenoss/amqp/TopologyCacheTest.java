@@ -0,0 +1,103 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp;
+
+import org.junit.Test;
+import org.zenoss.amqp.impl.StubChannel;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TopologyCache.
+ */
+public class TopologyCacheTest {
+
+    private static final Exchange EXCHANGE = new Exchange("zenoss.events", Exchange.Type.TOPIC, true, false);
+    private static final Queue QUEUE = new Queue("zenoss.queues.events", true, false, false);
+    private static final Queue OTHER_QUEUE = new Queue("zenoss.queues.other", true, false, false);
+    private static final Queue TEMPORARY_QUEUE = new Queue("zenoss.queues.temporary", false, true, true);
+
+    private static QueueConfiguration config(Queue queue) {
+        return new QueueConfiguration("$Test", queue,
+                Collections.singletonList(new Binding(queue, EXCHANGE, "zenoss.#")),
+                Collections.<com.google.protobuf.Message>emptyList());
+    }
+
+    @Test
+    public void testDeclareOnce() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Channel channel = stub.channelImpl();
+        TopologyCache cache = new TopologyCache();
+        for (int i = 0; i < 3; i++) {
+            cache.declareExchange(channel, EXCHANGE);
+            cache.declareQueue(channel, QUEUE);
+            cache.bindQueue(channel, new Binding(QUEUE, EXCHANGE, "zenoss.#"));
+            cache.declareQueue(channel, TEMPORARY_QUEUE);
+        }
+        assertEquals(1, stub.callsNamed("exchangeDeclare").size());
+        assertEquals(4, stub.callsNamed("queueDeclare").size());
+        assertEquals(1, stub.callsNamed("queueBind").size());
+        assertEquals(6, cache.getDeclarations());
+
+        /* Invalidated queues are declared again */
+        cache.invalidate(config(QUEUE));
+        cache.declareExchange(channel, EXCHANGE);
+        cache.declareQueue(channel, QUEUE);
+        cache.bindQueue(channel, new Binding(QUEUE, EXCHANGE, "zenoss.#"));
+        assertEquals(1, stub.callsNamed("exchangeDeclare").size());
+        assertEquals(5, stub.callsNamed("queueDeclare").size());
+        assertEquals(2, stub.callsNamed("queueBind").size());
+    }
+
+    @Test
+    public void testInvalidateExchange() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Channel channel = stub.channelImpl();
+        TopologyCache cache = new TopologyCache();
+        cache.declareExchange(channel, EXCHANGE);
+        cache.declareQueue(channel, QUEUE);
+        cache.declareExchange(channel, EXCHANGE);
+        assertEquals(1, stub.callsNamed("exchangeDeclare").size());
+
+        /* A publisher failed, so the exchange may have been deleted */
+        cache.invalidate(EXCHANGE);
+        cache.declareExchange(channel, EXCHANGE);
+        cache.declareExchange(channel, EXCHANGE);
+        cache.declareQueue(channel, QUEUE);
+        assertEquals(2, stub.callsNamed("exchangeDeclare").size());
+        assertEquals(1, stub.callsNamed("queueDeclare").size());
+    }
+
+    @Test
+    public void testDeclareAll() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Channel channel = stub.channelImpl();
+        TopologyCache cache = new TopologyCache();
+        assertEquals(-1, cache.getRestoreNanos());
+        int declared = cache.declareAll(channel, Arrays.asList(config(QUEUE), config(OTHER_QUEUE),
+                config(QUEUE), config(TEMPORARY_QUEUE)));
+        /* One exchange, two queues and two bindings; only the last waits for a reply */
+        assertEquals(5, declared);
+        assertEquals(4, stub.callsNamed("asyncRpc").size());
+        assertEquals(1, stub.callsNamed("queueBind").size());
+        assertTrue(cache.getRestoreNanos() >= 0);
+
+        cache.declareExchange(channel, EXCHANGE);
+        cache.declareQueue(channel, OTHER_QUEUE);
+        cache.bindQueue(channel, new Binding(OTHER_QUEUE, EXCHANGE, "zenoss.#"));
+        assertTrue(stub.callsNamed("exchangeDeclare").isEmpty());
+        assertTrue(stub.callsNamed("queueDeclare").isEmpty());
+        assertEquals(1, stub.callsNamed("queueBind").size());
+    }
+}
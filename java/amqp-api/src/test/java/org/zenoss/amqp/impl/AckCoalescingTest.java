@@ -0,0 +1,131 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+import org.junit.Test;
+import org.zenoss.amqp.Consumer;
+import org.zenoss.amqp.Message;
+import org.zenoss.amqp.Queue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for acknowledging and rejecting several messages with the AMQP
+ * multiple flag.
+ */
+public class AckCoalescingTest {
+
+    private static List<Message<byte[]>> receive(StubChannel stub, Consumer<byte[]> consumer, int count)
+            throws Exception {
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+        final List<Message<byte[]>> messages = new ArrayList<Message<byte[]>>();
+        for (int tag = 1; tag <= count; tag++) {
+            stub.consumer.handleDelivery("ctag", new Envelope(tag, false, "exchange", "key"),
+                    new BasicProperties.Builder().build(), new byte[0]);
+            messages.add(consumer.nextMessage(1, TimeUnit.SECONDS));
+        }
+        return messages;
+    }
+
+    private static List<String> settleCalls(StubChannel stub) {
+        final List<String> calls = new ArrayList<String>();
+        calls.addAll(stub.callsNamed("basicAck"));
+        calls.addAll(stub.callsNamed("basicNack"));
+        calls.addAll(stub.callsNamed("basicReject"));
+        return calls;
+    }
+
+    @Test
+    public void testFailuresThenSuccesses() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Consumer<byte[]> consumer = stub.channelImpl().createConsumer(new Queue("zenoss.test", true, false, false));
+        List<Message<byte[]>> messages = receive(stub, consumer, 100);
+
+        List<Message<byte[]>> failed = Arrays.asList(messages.get(49), messages.get(50), messages.get(79));
+        List<Message<byte[]>> succeeded = new ArrayList<Message<byte[]>>(messages);
+        succeeded.removeAll(failed);
+        consumer.rejectMessages(failed, false);
+        consumer.ackMessages(succeeded);
+
+        /* Tags 50-51 and 80 are rejected individually, the rest with one acknowledgment */
+        assertEquals(Arrays.asList("basicAck 100 true", "basicReject 50 false", "basicReject 51 false",
+                "basicReject 80 false"), settleCalls(stub));
+    }
+
+    @Test
+    public void testMultipleReject() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Consumer<byte[]> consumer = stub.channelImpl().createConsumer(new Queue("zenoss.test", true, false, false));
+        List<Message<byte[]>> messages = receive(stub, consumer, 10);
+
+        consumer.ackMessage(messages.get(0));
+        consumer.rejectMessages(messages.subList(1, 5), true);
+        /* Tag 7 is still outstanding, so 8-10 can't be combined */
+        consumer.ackMessages(Arrays.asList(messages.get(5), messages.get(7), messages.get(8), messages.get(9)));
+        consumer.ackMessage(messages.get(6));
+
+        assertEquals(Arrays.asList("basicAck 1 false", "basicAck 6 true", "basicAck 8 false", "basicAck 9 false",
+                "basicAck 10 false", "basicAck 7 false", "basicNack 5 true true"), settleCalls(stub));
+    }
+
+    @Test
+    public void testRequeueBuffered() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Consumer<byte[]> consumer = stub.channelImpl().createConsumer(new Queue("zenoss.test", true, false, false));
+        List<Message<byte[]>> messages = receive(stub, consumer, 2);
+        for (int tag = 3; tag <= 7; tag++) {
+            stub.consumer.handleDelivery("ctag", new Envelope(tag, false, "exchange", "key"),
+                    new BasicProperties.Builder().build(), new byte[0]);
+        }
+        consumer.ackMessages(messages);
+        consumer.cancel();
+        consumer.cancel();
+
+        /* The buffered deliveries are re-queued with one rejection */
+        assertEquals(5, consumer.requeueBuffered());
+        assertEquals(0, consumer.getBufferedMessages());
+        assertEquals(Arrays.asList("basicAck 2 true", "basicNack 7 true true"), settleCalls(stub));
+        assertEquals(1, stub.callsNamed("basicCancel").size());
+        assertEquals(0, consumer.requeueBuffered());
+    }
+
+    @Test
+    public void testTracker() {
+        DeliveryTagTracker tracker = new DeliveryTagTracker();
+        assertTrue(tracker.isNext(1));
+        tracker.settle(3);
+        tracker.settle(1);
+        assertTrue(tracker.isNext(2));
+        tracker.settle(2);
+        assertTrue(tracker.isNext(4));
+
+        /* Settled tags beyond the initial window are kept */
+        for (long tag = 6; tag < 1000; tag++) {
+            tracker.settle(tag);
+        }
+        assertTrue(tracker.isNext(4));
+        tracker.settle(5);
+        tracker.settle(4);
+        assertTrue(tracker.isNext(1000));
+
+        /* Tracking stops if the lowest unsettled tag falls too far behind */
+        tracker.settle(1000 + DeliveryTagTracker.MAX_WINDOW + 1);
+        tracker.settle(1000);
+        assertFalse(tracker.isNext(1001));
+    }
+}
@@ -0,0 +1,215 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.amqp.impl;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Message;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+import org.junit.Test;
+import org.zenoss.amqp.AmqpException;
+import org.zenoss.amqp.BatchPolicy;
+import org.zenoss.amqp.CompressionPolicy;
+import org.zenoss.amqp.Consumer;
+import org.zenoss.amqp.Exchange;
+import org.zenoss.amqp.MessageDecoderException;
+import org.zenoss.amqp.MessageDeliveryMode;
+import org.zenoss.amqp.ProtobufConverter;
+import org.zenoss.amqp.Publisher;
+import org.zenoss.amqp.Queue;
+import org.zenoss.protobufs.ProtobufConstants;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CoalescingPublisherTest {
+
+    private static final ProtobufConverter CONVERTER = new ProtobufConverter(FileDescriptorProto.getDefaultInstance());
+
+    private static Exchange exchange(BatchPolicy policy) {
+        return new Exchange("zenoss.test", Exchange.Type.TOPIC, true, false, null, MessageDeliveryMode.PERSISTENT,
+                Exchange.Compression.DEFLATE, new CompressionPolicy(0, 0.0), policy);
+    }
+
+    private static Message makeMessage(int i) {
+        return FileDescriptorProto.newBuilder().setName("file" + i + ".proto").setPackage("org.zenoss.test").build();
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Publisher<Message> publisher = stub.channelImpl().createPublisher(
+                exchange(new BatchPolicy(3, 64 * 1024, 60000)), CONVERTER);
+        assertTrue(publisher instanceof Flushable);
+        for (int i = 0; i < 5; i++) {
+            publisher.publish(makeMessage(i), "key");
+        }
+        /* Batches are separate for each routing key */
+        publisher.publish(makeMessage(5), "other");
+        assertEquals(1, stub.bodies.size());
+        ((Flushable) publisher).flush();
+        assertEquals(3, stub.bodies.size());
+
+        BasicProperties properties = stub.properties.get(0);
+        assertEquals(3, properties.getHeaders().get(BatchPolicy.HEADER_MESSAGE_COUNT));
+        assertEquals(ProtobufConstants.CONTENT_TYPE_PROTOBUF, properties.getContentType());
+        assertEquals("deflate", properties.getContentEncoding());
+        /* A batch with a single message is sent as an ordinary message */
+        int single = stub.properties.get(1).getHeaders().containsKey(BatchPolicy.HEADER_MESSAGE_COUNT) ? 2 : 1;
+        assertFalse(stub.properties.get(single).getHeaders().containsKey(BatchPolicy.HEADER_MESSAGE_COUNT));
+        byte[] body = stub.bodies.get(single);
+        if ("deflate".equals(stub.properties.get(single).getContentEncoding())) {
+            body = ConsumerImpl.deflateDecompress(body);
+        }
+        assertEquals("file5.proto", FileDescriptorProto.parseFrom(body).getName());
+    }
+
+    @Test
+    public void testLinger() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Publisher<Message> publisher = stub.channelImpl().createPublisher(
+                exchange(new BatchPolicy(100, 64 * 1024, 10)), CONVERTER);
+        publisher.publish(makeMessage(0), "key");
+        publisher.publish(makeMessage(1), "key");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stub.bodies.size() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, stub.bodies.size());
+        assertEquals(2, stub.properties.get(0).getHeaders().get(BatchPolicy.HEADER_MESSAGE_COUNT));
+    }
+
+    @Test
+    public void testLingerFailureReported() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Publisher<Message> publisher = stub.channelImpl().createPublisher(
+                exchange(new BatchPolicy(100, 64 * 1024, 10)), CONVERTER);
+        stub.publishFailure = new IOException("Channel closed");
+        publisher.publish(makeMessage(0), "key");
+        publisher.publish(makeMessage(1), "key");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stub.bodies.size() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, stub.bodies.size());
+        stub.publishFailure = null;
+
+        /* The next publish reports the lost batch, once */
+        try {
+            publisher.publish(makeMessage(2), "key");
+            fail("Expected the linger failure");
+        } catch (AmqpException e) {
+            assertTrue(e.getCause() instanceof AmqpException);
+        }
+        publisher.publish(makeMessage(3), "key");
+        ((Flushable) publisher).flush();
+        assertEquals(2, stub.bodies.size());
+        assertEquals("file3.proto", FileDescriptorProto.parseFrom(stub.bodies.get(1)).getName());
+    }
+
+    @Test
+    public void testMalformedMessageCount() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Consumer<Message> consumer = stub.channelImpl().createConsumer(new Queue("zenoss.test", true, false, false), CONVERTER);
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+        for (Object count : new Object[]{"many", -1}) {
+            Map<String, Object> headers = new HashMap<String, Object>();
+            headers.put(BatchPolicy.HEADER_MESSAGE_COUNT, count);
+            headers.put(ProtobufConstants.HEADER_PROTOBUF_FULLNAME, "google.protobuf.FileDescriptorProto");
+            stub.consumer.handleDelivery("ctag", new Envelope(5, false, "zenoss.test", "key"),
+                    new BasicProperties.Builder().contentType(ProtobufConstants.CONTENT_TYPE_PROTOBUF)
+                            .headers(headers).build(), new byte[]{2, 10, 0});
+            try {
+                consumer.nextMessage(1, TimeUnit.SECONDS);
+                fail("Expected the delivery with count " + count + " to be rejected");
+            } catch (MessageDecoderException e) {
+                assertEquals(3, e.getRawMessage().getBody().length);
+            }
+        }
+    }
+
+    @Test
+    public void testUnpackCountExceedsBody() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Consumer<Message> consumer = stub.channelImpl().createConsumer(new Queue("zenoss.test", true, false, false), CONVERTER);
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put(BatchPolicy.HEADER_MESSAGE_COUNT, Integer.MAX_VALUE);
+        headers.put(ProtobufConstants.HEADER_PROTOBUF_FULLNAME, "google.protobuf.FileDescriptorProto");
+        stub.consumer.handleDelivery("ctag", new Envelope(5, false, "zenoss.test", "key"),
+                new BasicProperties.Builder().contentType(ProtobufConstants.CONTENT_TYPE_PROTOBUF)
+                        .headers(headers).build(), new byte[]{2, 10, 0});
+        try {
+            consumer.nextMessage(1, TimeUnit.SECONDS);
+            fail("Expected the batch to be rejected");
+        } catch (MessageDecoderException e) {
+            assertEquals(3, e.getRawMessage().getBody().length);
+        }
+    }
+
+    @Test
+    public void testUnpack() throws Exception {
+        StubChannel publisherStub = StubChannel.create();
+        Publisher<Message> publisher = publisherStub.channelImpl().createPublisher(
+                exchange(new BatchPolicy(3, 64 * 1024, 60000)), CONVERTER);
+        for (int i = 0; i < 3; i++) {
+            publisher.publish(makeMessage(i), "key");
+        }
+        assertEquals(1, publisherStub.bodies.size());
+
+        StubChannel stub = StubChannel.create();
+        Consumer<Message> consumer = stub.channelImpl().createConsumer(new Queue("zenoss.test", true, false, false), CONVERTER);
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+        stub.consumer.handleDelivery("ctag", new Envelope(7, false, "zenoss.test", "key"),
+                publisherStub.properties.get(0), publisherStub.bodies.get(0));
+
+        org.zenoss.amqp.Message<Message> first = consumer.nextMessage(1, TimeUnit.SECONDS);
+        org.zenoss.amqp.Message<Message> second = consumer.nextMessage(1, TimeUnit.SECONDS);
+        org.zenoss.amqp.Message<Message> third = consumer.nextMessage(1, TimeUnit.SECONDS);
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+        assertEquals("file0.proto", ((FileDescriptorProto) first.getBody()).getName());
+        assertEquals("file1.proto", ((FileDescriptorProto) second.getBody()).getName());
+        assertEquals("file2.proto", ((FileDescriptorProto) third.getBody()).getName());
+        assertEquals(7, third.getEnvelope().getDeliveryTag());
+
+        /* The delivery is only acknowledged once every message has been */
+        consumer.ackMessage(first);
+        consumer.ackMessage(first);
+        consumer.ackMessage(second);
+        assertTrue(stub.callsNamed("basicAck").isEmpty());
+        consumer.ackMessage(third);
+        assertEquals(1, stub.callsNamed("basicAck").size());
+    }
+
+    @Test
+    public void testRejectInBatch() throws Exception {
+        StubChannel publisherStub = StubChannel.create();
+        Publisher<Message> publisher = publisherStub.channelImpl().createPublisher(
+                exchange(new BatchPolicy(2, 64 * 1024, 60000)), CONVERTER);
+        publisher.publish(makeMessage(0), "key");
+        publisher.publish(makeMessage(1), "key");
+
+        StubChannel stub = StubChannel.create();
+        Consumer<Message> consumer = stub.channelImpl().createConsumer(new Queue("zenoss.test", true, false, false), CONVERTER);
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+        stub.consumer.handleDelivery("ctag", new Envelope(3, false, "zenoss.test", "key"),
+                publisherStub.properties.get(0), publisherStub.bodies.get(0));
+        org.zenoss.amqp.Message<Message> first = consumer.nextMessage(1, TimeUnit.SECONDS);
+        org.zenoss.amqp.Message<Message> second = consumer.nextMessage(1, TimeUnit.SECONDS);
+        consumer.rejectMessage(first, true);
+        consumer.ackMessage(second);
+        assertTrue(stub.callsNamed("basicAck").isEmpty());
+        assertEquals(1, stub.callsNamed("basicReject").size());
+    }
+}
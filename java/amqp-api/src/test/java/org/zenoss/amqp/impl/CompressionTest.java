@@ -9,6 +9,10 @@
 package org.zenoss.amqp.impl;
 
 import org.junit.Test;
+import org.zenoss.amqp.CompressionCodecRegistry;
+import org.zenoss.amqp.CompressionDictionary;
+import org.zenoss.amqp.CompressionDictionaryTrainer;
+import org.zenoss.amqp.Exchange.Compression;
 
 import java.io.IOException;
 import java.util.Arrays;
@@ -43,4 +47,172 @@ public class CompressionTest {
             assertArrayEquals(rawBytes, ConsumerImpl.deflateDecompress(compressed));
         }
     }
+
+    @Test
+    public void testCodecReuse() throws IOException {
+        DeflateCodec codec = DeflateCodec.forCurrentThread();
+        assertSame(codec, DeflateCodec.forCurrentThread());
+        /* Larger than the initial buffer so the output buffer must grow */
+        for (String testString : Arrays.asList(makeStringOfLength(100000), "abc", makeStringOfLength(20000))) {
+            byte[] rawBytes = testString.getBytes("UTF-8");
+            byte[] padded = new byte[rawBytes.length + 10];
+            System.arraycopy(rawBytes, 0, padded, 5, rawBytes.length);
+            byte[] compressed = codec.compress(padded, 5, rawBytes.length);
+            assertArrayEquals(rawBytes, codec.decompress(compressed, 0, compressed.length));
+            assertArrayEquals(rawBytes, ConsumerImpl.deflateDecompress(compressed));
+        }
+    }
+
+    @Test
+    public void testCompressIfSmaller() throws IOException {
+        DeflateCodec codec = DeflateCodec.forCurrentThread();
+        assertNull(codec.compressIfSmaller(new byte[0], 0, 0));
+        assertNull(codec.compressIfSmaller("abc".getBytes("UTF-8"), 0, 3));
+
+        byte[] random = new byte[50000];
+        new Random().nextBytes(random);
+        assertNull(codec.compressIfSmaller(random, 0, random.length));
+
+        byte[] zeros = new byte[50000];
+        byte[] compressed = codec.compressIfSmaller(zeros, 0, zeros.length);
+        assertNotNull(compressed);
+        assertTrue(compressed.length < zeros.length);
+        assertArrayEquals(zeros, codec.decompress(compressed, 0, compressed.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        byte[] compressed = PublisherImpl.deflateCompress(makeStringOfLength(8192).getBytes("UTF-8"));
+        ConsumerImpl.deflateDecompress(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalid() throws IOException {
+        ConsumerImpl.deflateDecompress("not compressed".getBytes("UTF-8"));
+    }
+
+    @Test
+    public void testLzf() throws IOException {
+        LzfCompressionCodec codec = new LzfCompressionCodec();
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 200000) {
+            sb.append("device=localhost component=eth").append(sb.length() % 17).append(" severity=5;");
+        }
+        for (String testString : Arrays.asList(sb.toString(), sb.substring(0, 100), "aaaaaaaaaaaaaaaaaaaa")) {
+            byte[] rawBytes = testString.getBytes("UTF-8");
+            byte[] padded = new byte[rawBytes.length + 10];
+            System.arraycopy(rawBytes, 0, padded, 3, rawBytes.length);
+            byte[] compressed = codec.compress(padded, 3, rawBytes.length);
+            assertNotNull(compressed);
+            assertTrue(compressed.length < rawBytes.length);
+            assertArrayEquals(rawBytes, codec.decompress(compressed, 0, compressed.length));
+        }
+
+        /* Random data and tiny messages aren't worth compressing */
+        byte[] random = new byte[10000];
+        new Random().nextBytes(random);
+        assertNull(codec.compress(random, 0, random.length));
+        assertNull(codec.compress("abc".getBytes("UTF-8"), 0, 3));
+
+        /* Mostly literal data with a few matches */
+        byte[] text = makeStringOfLength(50000).getBytes("UTF-8");
+        System.arraycopy(text, 0, text, 25000, 5000);
+        byte[] compressed = codec.compress(text, 0, text.length);
+        if (compressed != null) {
+            assertArrayEquals(text, codec.decompress(compressed, 0, compressed.length));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testLzfTruncated() throws IOException {
+        LzfCompressionCodec codec = new LzfCompressionCodec();
+        byte[] zeros = new byte[1000];
+        byte[] compressed = codec.compress(zeros, 0, zeros.length);
+        codec.decompress(compressed, 0, compressed.length - 1);
+    }
+
+    @Test
+    public void testRegistry() throws Exception {
+        CompressionCodecRegistry registry = CompressionCodecRegistry.newDefaultRegistry();
+        assertTrue(registry.getCodec("DEFLATE") instanceof DeflateCompressionCodec);
+        assertTrue(registry.getCodec(Compression.LZF) instanceof LzfCompressionCodec);
+        assertNull(registry.getCodec(Compression.NONE));
+        assertNull(registry.getCodec("gzip"));
+        assertNull(registry.getCodec((String) null));
+        assertSame(registry.getCodec(Compression.DEFLATE_DICTIONARY), registry.getDictionaryCodec());
+    }
+
+    private static byte[] makeEvent(Random r, int i) throws IOException {
+        String event = String.format("{\"uuid\":\"%08x-%04x\",\"actor\":{\"element_type_id\":\"DEVICE\"," +
+                "\"element_identifier\":\"host%d.example.com\",\"element_sub_type_id\":\"COMPONENT\"," +
+                "\"element_sub_identifier\":\"eth%d\"},\"summary\":\"Interface eth%d threshold exceeded\"," +
+                "\"severity\":\"SEVERITY_WARNING\",\"event_class\":\"/Perf/Interface\",\"agent\":\"zenperfsnmp\"," +
+                "\"monitor\":\"localhost\",\"created_time\":%d}",
+                r.nextInt(), i, r.nextInt(500), r.nextInt(8), r.nextInt(8), 1360000000000L + r.nextInt(1000000));
+        return event.getBytes("UTF-8");
+    }
+
+    @Test
+    public void testDictionary() throws IOException {
+        Random r = new Random(42);
+        CompressionDictionaryTrainer trainer = new CompressionDictionaryTrainer();
+        for (int i = 0; i < 500; i++) {
+            trainer.addSample(makeEvent(r, i));
+        }
+        CompressionDictionary dictionary = trainer.train("events-1", 4096);
+        assertTrue(dictionary.getSize() <= 4096);
+
+        DeflateDictionaryCompressionCodec codec = new DeflateDictionaryCompressionCodec();
+        codec.setActiveDictionary(dictionary);
+        assertSame(dictionary, codec.getDictionary("events-1"));
+        int plain = 0, withDictionary = 0;
+        for (int i = 0; i < 100; i++) {
+            byte[] event = makeEvent(r, i);
+            byte[] compressed = codec.compress(event, 0, event.length);
+            byte[] deflated = DeflateCodec.forCurrentThread().compress(event, 0, event.length);
+            plain += deflated.length;
+            withDictionary += compressed.length;
+            assertArrayEquals(event, codec.decompress(compressed, 0, compressed.length, dictionary));
+            /* Dictionary found by the checksum in the zlib header */
+            assertArrayEquals(event, codec.decompress(compressed, 0, compressed.length));
+        }
+        assertTrue("Dictionary should at least halve compressed size: " + withDictionary + " vs " + plain,
+                withDictionary * 2 < plain);
+    }
+
+    @Test
+    public void testDictionaryRotation() throws IOException {
+        CompressionDictionary first = new CompressionDictionary("first", "abcdefghijklmnop".getBytes("UTF-8"));
+        CompressionDictionary second = new CompressionDictionary("second", "qrstuvwxyz012345".getBytes("UTF-8"));
+        DeflateDictionaryCompressionCodec codec = new DeflateDictionaryCompressionCodec();
+        codec.setActiveDictionary(first);
+        byte[] data = "abcdefghijklmnopabcdefghijklmnop".getBytes("UTF-8");
+        byte[] compressed = codec.compress(data, 0, data.length);
+
+        codec.setActiveDictionary(second);
+        assertArrayEquals(data, codec.decompress(compressed, 0, compressed.length));
+        try {
+            codec.removeDictionary("second");
+            fail("Removed active dictionary");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertSame(first, codec.removeDictionary("first"));
+        try {
+            codec.decompress(compressed, 0, compressed.length);
+            fail("Decompressed with unknown dictionary");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongDictionary() throws IOException {
+        CompressionDictionary first = new CompressionDictionary("first", "abcdefghijklmnop".getBytes("UTF-8"));
+        CompressionDictionary second = new CompressionDictionary("second", "qrstuvwxyz012345".getBytes("UTF-8"));
+        DeflateDictionaryCompressionCodec codec = new DeflateDictionaryCompressionCodec();
+        byte[] data = "abcdefghijklmnopabcdefghijklmnop".getBytes("UTF-8");
+        byte[] compressed = codec.compress(data, 0, data.length, first);
+        codec.decompress(compressed, 0, compressed.length, second);
+    }
 }
@@ -0,0 +1,109 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.amqp.impl;
+
+import com.rabbitmq.client.ShutdownSignalException;
+import org.junit.Test;
+import org.zenoss.amqp.AmqpException;
+import org.zenoss.amqp.Exchange;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConfirmingPublisherTest {
+
+    private static final Exchange EXCHANGE = new Exchange("zenoss.test", Exchange.Type.TOPIC, false, true);
+
+    @Test
+    public void testAcksAndNacks() throws Exception {
+        StubChannel stub = StubChannel.create();
+        ConfirmingPublisherImpl<byte[]> publisher = new ConfirmingPublisherImpl<byte[]>(stub.channelImpl(),
+                EXCHANGE, 10);
+        assertEquals(1, stub.callsNamed("confirmSelect").size());
+
+        Future<Void> first = publisher.publishAsync(new byte[]{1}, "key");
+        Future<Void> second = publisher.publishAsync(new byte[]{2}, "key");
+        Future<Void> third = publisher.publishAsync(new byte[]{3}, "key");
+        Future<Void> batch = publisher.confirmOutstanding();
+        assertEquals(3, publisher.getOutstandingCount());
+
+        stub.confirmListener.handleAck(2, true);
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertFalse(third.isDone());
+        assertFalse(batch.isDone());
+
+        stub.confirmListener.handleNack(3, false);
+        try {
+            third.get();
+            fail("Expected nack to fail the future");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AmqpException);
+        }
+        try {
+            batch.get(1, TimeUnit.SECONDS);
+            fail("Expected batch containing nacked message to fail");
+        } catch (ExecutionException e) {
+            // Expected
+        }
+        assertEquals(0, publisher.getOutstandingCount());
+        publisher.waitForConfirms(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testMaxOutstanding() throws Exception {
+        final StubChannel stub = StubChannel.create();
+        final ConfirmingPublisherImpl<byte[]> publisher = new ConfirmingPublisherImpl<byte[]>(stub.channelImpl(),
+                EXCHANGE, 2);
+        publisher.publishAsync(new byte[]{1}, "key");
+        publisher.publishAsync(new byte[]{2}, "key");
+
+        Thread acker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    stub.confirmListener.handleAck(1, false);
+                } catch (Exception e) {
+                    // Ignored
+                }
+            }
+        };
+        acker.start();
+        final long start = System.nanoTime();
+        publisher.publishAsync(new byte[]{3}, "key");
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+        acker.join();
+        assertEquals(2, publisher.getOutstandingCount());
+    }
+
+    @Test
+    public void testShutdownFailsOutstanding() throws Exception {
+        StubChannel stub = StubChannel.create();
+        ConfirmingPublisherImpl<byte[]> publisher = new ConfirmingPublisherImpl<byte[]>(stub.channelImpl(),
+                EXCHANGE, 10);
+        Future<Void> future = publisher.publishAsync(new byte[]{1}, "key");
+        stub.shutdownListeners.get(0).shutdownCompleted(new ShutdownSignalException(false, false, null, null));
+        try {
+            future.get();
+            fail("Expected shutdown to fail the future");
+        } catch (ExecutionException e) {
+            // Expected
+        }
+        try {
+            publisher.publishAsync(new byte[]{2}, "key");
+            fail("Expected publish on closed channel to fail");
+        } catch (AmqpException e) {
+            // Expected
+        }
+    }
+}
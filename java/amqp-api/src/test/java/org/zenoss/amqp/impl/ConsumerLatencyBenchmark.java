@@ -0,0 +1,130 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares <code>QueueingConsumer</code> with {@link PushConsumer} at a fixed
+ * delivery rate (50,000 messages per second by default). A producer thread
+ * stands in for the connection thread, calling <code>handleDelivery</code>
+ * with the send time as the delivery tag; the consuming thread reports the
+ * handoff latency and the CPU time both threads used per message.
+ * <p/>
+ * Run with the test classpath: <code>java org.zenoss.amqp.impl.ConsumerLatencyBenchmark [messages] [rate]</code>
+ */
+public class ConsumerLatencyBenchmark {
+
+    private static final BasicProperties PROPERTIES = new BasicProperties.Builder().build();
+    private static final byte[] BODY = new byte[64];
+
+    private interface Engine {
+        void deliver(long sent) throws Exception;
+
+        Delivery next() throws Exception;
+    }
+
+    private static Engine queueing() {
+        final QueueingConsumer consumer = new QueueingConsumer(StubChannel.create().proxy());
+        return new Engine() {
+            @Override
+            public void deliver(long sent) throws Exception {
+                consumer.handleDelivery("ctag", new Envelope(sent, false, "exchange", "key"), PROPERTIES, BODY);
+            }
+
+            @Override
+            public Delivery next() throws Exception {
+                return consumer.nextDelivery(1000);
+            }
+        };
+    }
+
+    private static Engine push() {
+        final PushConsumer consumer = new PushConsumer(StubChannel.create().proxy(), PushConsumer.DEFAULT_CAPACITY);
+        return new Engine() {
+            @Override
+            public void deliver(long sent) throws Exception {
+                consumer.handleDelivery("ctag", new Envelope(sent, false, "exchange", "key"), PROPERTIES, BODY);
+            }
+
+            @Override
+            public Delivery next() throws Exception {
+                return consumer.nextDelivery(1000);
+            }
+        };
+    }
+
+    private static void run(String name, final Engine engine, final int messages, int rate) throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        final long[] producerCpu = new long[1];
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long cpuStart = threads.getCurrentThreadCpuTime();
+                long next = System.nanoTime();
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        while (System.nanoTime() < next) {
+                            LockSupport.parkNanos(next - System.nanoTime());
+                        }
+                        engine.deliver(System.nanoTime());
+                        next += interval;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                producerCpu[0] = threads.getCurrentThreadCpuTime() - cpuStart;
+            }
+        });
+
+        final long[] latencies = new long[messages];
+        final long cpuStart = threads.getCurrentThreadCpuTime();
+        final long start = System.nanoTime();
+        producer.start();
+        for (int i = 0; i < messages; i++) {
+            final Delivery delivery = engine.next();
+            latencies[i] = System.nanoTime() - delivery.getEnvelope().getDeliveryTag();
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long consumerCpu = threads.getCurrentThreadCpuTime() - cpuStart;
+        producer.join();
+
+        Arrays.sort(latencies);
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        System.out.printf("%-10s %8.0f msg/s  latency mean %6.1fus p50 %6.1fus p99 %7.1fus  " +
+                "CPU/msg consumer %5.2fus connection %5.2fus%n",
+                name, messages * 1e9 / elapsed, total / 1e3 / messages,
+                latencies[messages / 2] / 1e3, latencies[(int) (messages * 0.99)] / 1e3,
+                consumerCpu / 1e3 / messages, producerCpu[0] / 1e3 / messages);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 250000;
+        final int rate = (args.length > 1) ? Integer.parseInt(args[1]) : 50000;
+        for (int round = 0; round < 3; round++) {
+            run("queueing", queueing(), messages, rate);
+            run("push", push(), messages, rate);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Compares the stream based compression previously used by the publisher and
+ * consumer with {@link DeflateCodec}. Reports the time and the heap allocated
+ * per compress/decompress round trip for a few message sizes.
+ * <p/>
+ * Run with the test classpath: <code>java org.zenoss.amqp.impl.DeflateCodecBenchmark [iterations]</code>
+ */
+public class DeflateCodecBenchmark {
+
+    private static final int[] MESSAGE_SIZES = {256, 2048, 16384, 131072};
+
+    private interface RoundTrip {
+        byte[] run(byte[] data) throws IOException;
+    }
+
+    private static final RoundTrip STREAMS = new RoundTrip() {
+        @Override
+        public byte[] run(byte[] data) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length);
+            DeflaterOutputStream dos = new DeflaterOutputStream(baos);
+            dos.write(data);
+            dos.close();
+            byte[] compressed = baos.toByteArray();
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(compressed.length * 2);
+            InflaterOutputStream ios = new InflaterOutputStream(bos);
+            ios.write(compressed);
+            ios.close();
+            return bos.toByteArray();
+        }
+    };
+
+    private static final RoundTrip CODEC = new RoundTrip() {
+        @Override
+        public byte[] run(byte[] data) throws IOException {
+            DeflateCodec codec = DeflateCodec.forCurrentThread();
+            byte[] compressed = codec.compress(data, 0, data.length);
+            return codec.decompress(compressed, 0, compressed.length);
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        final int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        System.out.printf("%8s %10s %12s %14s%n", "size", "impl", "ns/op", "bytes/op");
+        for (int size : MESSAGE_SIZES) {
+            final byte[] data = CompressionTest.makeStringOfLength(size).getBytes("UTF-8");
+            final int count = Math.max(100, iterations * 256 / size);
+            /* Warm up both paths before measuring */
+            measure(STREAMS, data, count);
+            measure(CODEC, data, count);
+            report(size, "streams", measure(STREAMS, data, count));
+            report(size, "codec", measure(CODEC, data, count));
+        }
+    }
+
+    private static void report(int size, String name, long[] result) {
+        System.out.printf("%8d %10s %12d %14s%n", size, name, result[0],
+                (result[1] < 0) ? "n/a" : String.valueOf(result[1]));
+    }
+
+    /**
+     * Returns the average nanoseconds and allocated bytes per round trip.
+     */
+    private static long[] measure(RoundTrip roundTrip, byte[] data, int count) throws IOException {
+        final long startBytes = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (roundTrip.run(data).length != data.length) {
+                throw new IllegalStateException("Round trip failed");
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long endBytes = allocatedBytes();
+        final long bytes = (startBytes < 0) ? -1 : (endBytes - startBytes) / count;
+        return new long[]{elapsed / count, bytes};
+    }
+
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
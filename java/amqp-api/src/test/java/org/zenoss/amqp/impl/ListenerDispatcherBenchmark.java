@@ -0,0 +1,100 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Message;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+import org.zenoss.amqp.Binding;
+import org.zenoss.amqp.Exchange;
+import org.zenoss.amqp.ListenerDispatcher;
+import org.zenoss.amqp.ProtobufConverter;
+import org.zenoss.amqp.Publisher;
+import org.zenoss.amqp.Queue;
+import org.zenoss.amqp.QueueConfiguration;
+import org.zenoss.amqp.QueueListener;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs 5,000 listeners (by default) on 4 dispatcher threads, delivering
+ * messages to every queue in turn as the connection thread would, and
+ * reports the throughput, the number of live threads and the heap used per
+ * listener. A worker per listener would need a thread each.
+ * <p/>
+ * Run with the test classpath: <code>java org.zenoss.amqp.impl.ListenerDispatcherBenchmark [listeners] [threads] [messages per listener]</code>
+ */
+public class ListenerDispatcherBenchmark {
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int listeners = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int messages = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        final ProtobufConverter converter = new ProtobufConverter(FileDescriptorProto.getDefaultInstance());
+        final StubChannel publisherStub = StubChannel.create();
+        final Publisher<Message> publisher = publisherStub.channelImpl().createPublisher(
+                new Exchange("zenoss.test", Exchange.Type.TOPIC, true, false), converter);
+        publisher.publish(FileDescriptorProto.newBuilder().setName("device.proto").build(), null, "key");
+        final BasicProperties properties = publisherStub.properties.get(0);
+        final byte[] body = publisherStub.bodies.get(0);
+
+        final CountDownLatch done = new CountDownLatch(listeners * messages);
+        final StubChannel stub = StubChannel.create();
+        final long heapBefore = usedHeap();
+        final ListenerDispatcher dispatcher = new ListenerDispatcher(stub.channelImpl(), threads);
+        for (int i = 0; i < listeners; i++) {
+            dispatcher.addListener(new QueueConfiguration("$Device", new Queue("device." + i, true, false, false),
+                    Collections.<Binding>emptyList(), Collections.<Message>singletonList(
+                    FileDescriptorProto.getDefaultInstance())), new QueueListener() {
+                @Override
+                protected void handle(Message message) {
+                    done.countDown();
+                }
+            });
+        }
+        while (stub.consumers.size() < listeners) {
+            Thread.sleep(10);
+        }
+        final long heapPerListener = (usedHeap() - heapBefore) / listeners;
+
+        final long start = System.nanoTime();
+        long tag = 1;
+        for (int m = 0; m < messages; m++) {
+            for (int i = 0; i < listeners; i++) {
+                stub.consumers.get("device." + i).handleDelivery("ctag",
+                        new Envelope(tag++, false, "zenoss.test", "key"), properties, body);
+            }
+        }
+        if (!done.await(5, TimeUnit.MINUTES)) {
+            System.out.println("Timed out with " + done.getCount() + " messages left");
+        }
+        final long elapsed = System.nanoTime() - start;
+        System.out.printf("%d listeners on %d dispatcher threads (%d live threads)%n", listeners, threads,
+                ManagementFactory.getThreadMXBean().getThreadCount());
+        System.out.printf("%d messages in %d ms: %.0f messages/s%n", (long) listeners * messages,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), listeners * messages / (elapsed / 1e9));
+        System.out.printf("~%d bytes of heap per idle listener%n", heapPerListener);
+        dispatcher.close();
+    }
+}
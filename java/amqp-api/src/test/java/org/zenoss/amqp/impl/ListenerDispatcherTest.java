@@ -0,0 +1,228 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Message;
+import com.rabbitmq.client.Envelope;
+import org.junit.Test;
+import org.zenoss.amqp.Binding;
+import org.zenoss.amqp.Exchange;
+import org.zenoss.amqp.ListenerDispatcher;
+import org.zenoss.amqp.ProtobufConverter;
+import org.zenoss.amqp.Publisher;
+import org.zenoss.amqp.Queue;
+import org.zenoss.amqp.QueueConfiguration;
+import org.zenoss.amqp.QueueListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ListenerDispatcher.
+ */
+public class ListenerDispatcherTest {
+
+    private static final ProtobufConverter CONVERTER = new ProtobufConverter(FileDescriptorProto.getDefaultInstance());
+
+    private final StubChannel publisherStub = StubChannel.create();
+    private final StubChannel stub = StubChannel.create();
+    private long tag = 1;
+
+    private static QueueConfiguration config(String name) {
+        return new QueueConfiguration("$" + name, new Queue(name, true, false, false),
+                Collections.<Binding>emptyList(),
+                Collections.<Message>singletonList(FileDescriptorProto.getDefaultInstance()));
+    }
+
+    /**
+     * Records the names of the messages it handles, in a list shared with
+     * other listeners.
+     */
+    private static class RecordingListener extends QueueListener {
+        private final String name;
+        private final List<String> handled;
+        private final AtomicInteger emptied = new AtomicInteger();
+
+        RecordingListener(String name, List<String> handled) {
+            this.name = name;
+            this.handled = handled;
+        }
+
+        @Override
+        protected void handle(Message message) throws Exception {
+            synchronized (handled) {
+                handled.add(name + ":" + ((FileDescriptorProto) message).getName());
+                handled.notifyAll();
+            }
+        }
+
+        @Override
+        public void queueEmptied() {
+            emptied.incrementAndGet();
+        }
+    }
+
+    private void awaitConsumers(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (stub.consumers.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, stub.consumers.size());
+    }
+
+    private void deliver(String queue, String name) throws Exception {
+        Publisher<Message> publisher = publisherStub.channelImpl().createPublisher(
+                new Exchange("zenoss.test", Exchange.Type.TOPIC, true, false), CONVERTER);
+        publisher.publish(FileDescriptorProto.newBuilder().setName(name).build(), null, "key");
+        final int last = publisherStub.bodies.size() - 1;
+        stub.consumers.get(queue).handleDelivery("ctag", new Envelope(tag++, false, "zenoss.test", "key"),
+                publisherStub.properties.get(last), publisherStub.bodies.get(last));
+    }
+
+    private static void awaitHandled(List<String> handled, int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        synchronized (handled) {
+            while (handled.size() < count && System.currentTimeMillis() < deadline) {
+                handled.wait(100);
+            }
+            assertEquals(count, handled.size());
+        }
+    }
+
+    private static List<String> handledBy(List<String> handled, String name) {
+        final List<String> matching = new ArrayList<String>();
+        synchronized (handled) {
+            for (String message : handled) {
+                if (message.startsWith(name + ":")) {
+                    matching.add(message.substring(name.length() + 1));
+                }
+            }
+        }
+        return matching;
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher(stub.channelImpl(), 4);
+        try {
+            List<String> handled = new ArrayList<String>();
+            List<RecordingListener> listeners = new ArrayList<RecordingListener>();
+            for (int i = 0; i < 10; i++) {
+                RecordingListener listener = new RecordingListener("q" + i, handled);
+                listeners.add(listener);
+                dispatcher.addListener(config("q" + i), listener);
+            }
+            assertEquals(10, dispatcher.getListenerCount());
+            assertEquals(Collections.singletonList("basicQos 0 16 false"), stub.callsNamed("basicQos"));
+            awaitConsumers(10);
+
+            /* Rounds within the prefetch window, as the broker would deliver */
+            for (int round = 0; round < 5; round++) {
+                for (int m = round * 10; m < (round + 1) * 10; m++) {
+                    for (int i = 0; i < 10; i++) {
+                        deliver("q" + i, "m" + m);
+                    }
+                }
+                awaitHandled(handled, (round + 1) * 100);
+            }
+            for (int i = 0; i < 10; i++) {
+                List<String> messages = handledBy(handled, "q" + i);
+                for (int m = 0; m < 50; m++) {
+                    assertEquals("m" + m, messages.get(m));
+                }
+                assertTrue(listeners.get(i).emptied.get() > 0);
+            }
+            assertEquals(500, stub.callsNamed("basicAck").size());
+            for (Long bytes : dispatcher.getBufferedBytes().values()) {
+                assertEquals(0L, bytes.longValue());
+            }
+        } finally {
+            dispatcher.close();
+        }
+        assertEquals(10, stub.callsNamed("basicCancel").size());
+    }
+
+    @Test
+    public void testRemoveBeforeFirstPoll() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher(stub.channelImpl(), 1);
+        try {
+            final CountDownLatch busy = new CountDownLatch(1);
+            final CountDownLatch gate = new CountDownLatch(1);
+            dispatcher.addListener(config("gate"), new QueueListener() {
+                @Override
+                protected void handle(Message message) throws Exception {
+                    busy.countDown();
+                    gate.await(5, TimeUnit.SECONDS);
+                }
+            });
+            awaitConsumers(1);
+            deliver("gate", "gate");
+            assertTrue(busy.await(5, TimeUnit.SECONDS));
+
+            /* The first poll is queued behind the busy thread */
+            String id = dispatcher.addListener(config("removed"), new RecordingListener("removed",
+                    new ArrayList<String>()));
+            dispatcher.removeListener(id);
+            dispatcher.addListener(config("after"), new RecordingListener("after", new ArrayList<String>()));
+            gate.countDown();
+            awaitConsumers(2);
+            assertFalse(stub.consumers.containsKey("removed"));
+            assertTrue(stub.callsNamed("basicCancel").isEmpty());
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void testFairness() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher(stub.channelImpl(), 1, 64, 4);
+        try {
+            final List<String> handled = new ArrayList<String>();
+            final CountDownLatch gate = new CountDownLatch(1);
+            dispatcher.addListener(config("gate"), new QueueListener() {
+                @Override
+                protected void handle(Message message) throws Exception {
+                    gate.await(5, TimeUnit.SECONDS);
+                }
+            });
+            dispatcher.addListener(config("a"), new RecordingListener("a", handled));
+            dispatcher.addListener(config("b"), new RecordingListener("b", handled));
+            awaitConsumers(3);
+
+            /* Both listeners are ready while the only thread is busy */
+            deliver("gate", "gate");
+            for (int m = 0; m < 10; m++) {
+                deliver("a", "m" + m);
+            }
+            for (int m = 0; m < 10; m++) {
+                deliver("b", "m" + m);
+            }
+            gate.countDown();
+            awaitHandled(handled, 20);
+            synchronized (handled) {
+                assertEquals("a:m0", handled.get(0));
+                assertEquals("a:m3", handled.get(3));
+                assertEquals("b:m0", handled.get(4));
+                assertEquals("b:m3", handled.get(7));
+                assertEquals("a:m4", handled.get(8));
+            }
+        } finally {
+            dispatcher.close();
+        }
+    }
+}
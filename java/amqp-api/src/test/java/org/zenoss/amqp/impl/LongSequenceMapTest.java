@@ -0,0 +1,68 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.amqp.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LongSequenceMapTest {
+
+    @Test
+    public void testPutAndRemove() {
+        LongSequenceMap<String> map = new LongSequenceMap<String>(2);
+        for (long i = 1; i <= 100; i++) {
+            map.put(i, "v" + i);
+        }
+        assertEquals(100, map.size());
+        assertEquals(1L, map.firstKey());
+        assertEquals(100L, map.lastKey());
+        assertEquals("v50", map.remove(50));
+        assertNull(map.remove(50));
+        assertFalse(map.containsKey(50));
+        assertEquals("v51", map.get(51));
+        assertEquals(49, map.countThrough(50));
+        assertEquals(50, map.countThrough(51));
+
+        List<String> removed = new ArrayList<String>();
+        assertEquals(51, map.removeThrough(52, removed));
+        assertEquals("v1", removed.get(0));
+        assertEquals("v52", removed.get(removed.size() - 1));
+        assertEquals(53L, map.firstKey());
+        assertEquals(48, map.size());
+    }
+
+    @Test
+    public void testWrapAround() {
+        LongSequenceMap<Long> map = new LongSequenceMap<Long>(16);
+        long next = 1;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 10; i++, next++) {
+                map.put(next, next);
+            }
+            assertEquals(Long.valueOf(next - 5), map.remove(next - 5));
+            map.removeThrough(next - 8, null);
+        }
+        assertEquals(Arrays.asList(next - 7, next - 6, next - 4, next - 3, next - 2, next - 1),
+                Arrays.asList(map.keyAt(0), map.keyAt(1), map.keyAt(2), map.keyAt(3), map.keyAt(4), map.keyAt(5)));
+        map.clear(null);
+        assertTrue(map.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutOfOrder() {
+        LongSequenceMap<String> map = new LongSequenceMap<String>();
+        map.put(5, "a");
+        map.put(5, "b");
+    }
+}
@@ -0,0 +1,130 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+import org.junit.Test;
+import org.zenoss.amqp.Consumer;
+import org.zenoss.amqp.Message;
+import org.zenoss.amqp.MessageBodyException;
+import org.zenoss.amqp.MessageFilter;
+import org.zenoss.amqp.MessageProperties;
+import org.zenoss.amqp.PropertyMessageFilter;
+import org.zenoss.amqp.ProtobufConverter;
+import org.zenoss.amqp.Queue;
+import org.zenoss.protobufs.ProtobufConstants;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for message filters and lazy decoding.
+ */
+public class MessageFilterTest {
+
+    private static final ProtobufConverter CONVERTER = new ProtobufConverter(FileDescriptorProto.getDefaultInstance());
+    private static final String TYPE = FileDescriptorProto.getDescriptor().getFullName();
+
+    private static BasicProperties properties(String type) {
+        final Map<String, Object> headers = Collections.<String, Object>singletonMap(
+                ProtobufConstants.HEADER_PROTOBUF_FULLNAME, type);
+        return new BasicProperties.Builder().contentType(ProtobufConstants.CONTENT_TYPE_PROTOBUF)
+                .headers(headers).build();
+    }
+
+    private static byte[] body(String name) {
+        return FileDescriptorProto.newBuilder().setName(name).build().toByteArray();
+    }
+
+    private static void deliver(StubChannel stub, long tag, String routingKey, String type, byte[] body)
+            throws Exception {
+        stub.consumer.handleDelivery("ctag", new Envelope(tag, false, "zenoss.test", routingKey),
+                properties(type), body);
+    }
+
+    private static MessageFilter.Action filter(MessageFilter filter, String routingKey, String type) {
+        return filter.filter(new BasicPropertiesWrapper(properties(type)),
+                new EnvelopeWrapper(new Envelope(1, false, "zenoss.test", routingKey)));
+    }
+
+    @Test
+    public void testPropertyMessageFilter() {
+        final MessageFilter filter = new PropertyMessageFilter(MessageFilter.Action.REJECT)
+                .withRoutingKey("zenoss.*.event.#")
+                .withRoutingKey("heartbeat")
+                .withType(TYPE);
+        assertEquals(MessageFilter.Action.ACCEPT, filter(filter, "zenoss.zep.event", TYPE));
+        assertEquals(MessageFilter.Action.ACCEPT, filter(filter, "zenoss.zep.event.new.1", TYPE));
+        assertEquals(MessageFilter.Action.ACCEPT, filter(filter, "heartbeat", TYPE));
+        assertEquals(MessageFilter.Action.REJECT, filter(filter, "zenoss.event", TYPE));
+        assertEquals(MessageFilter.Action.REJECT, filter(filter, "heartbeat.1", TYPE));
+        assertEquals(MessageFilter.Action.REJECT, filter(filter, "heartbeat", "org.zenoss.Other"));
+
+        final MessageFilter headerFilter = new PropertyMessageFilter(MessageFilter.Action.ACK)
+                .withHeader(ProtobufConstants.HEADER_PROTOBUF_FULLNAME, "org.zenoss.Other", TYPE);
+        assertEquals(MessageFilter.Action.ACCEPT, filter(headerFilter, "key", TYPE));
+        assertEquals(MessageFilter.Action.ACK, filter(headerFilter, "key", "org.zenoss.Third"));
+    }
+
+    @Test
+    public void testFilterBeforeDecoding() throws Exception {
+        final StubChannel stub = StubChannel.create();
+        final Consumer<com.google.protobuf.Message> consumer = stub.channelImpl().createConsumer(
+                new Queue("zenoss.test", true, false, false), CONVERTER);
+        consumer.setMessageFilter(new PropertyMessageFilter(MessageFilter.Action.ACK).withType(TYPE));
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+
+        /* Filtered messages are acknowledged without being decoded */
+        deliver(stub, 1, "key", "org.zenoss.Other", new byte[]{1, 2, 3});
+        deliver(stub, 2, "key", TYPE, body("accepted"));
+        final Message<com.google.protobuf.Message> message = consumer.nextMessage(1, TimeUnit.SECONDS);
+        assertEquals(2, message.getEnvelope().getDeliveryTag());
+        assertEquals("accepted", ((FileDescriptorProto) message.getBody()).getName());
+        assertEquals(Collections.singletonList("basicAck 1 false"), stub.callsNamed("basicAck"));
+
+        deliver(stub, 3, "key", "org.zenoss.Other", new byte[]{1, 2, 3});
+        assertNull(consumer.nextMessage(10, TimeUnit.MILLISECONDS));
+        assertEquals(2, stub.callsNamed("basicAck").size());
+    }
+
+    @Test
+    public void testLazyDecoding() throws Exception {
+        final StubChannel stub = StubChannel.create();
+        final Consumer<com.google.protobuf.Message> consumer = stub.channelImpl().createConsumer(
+                new Queue("zenoss.test", true, false, false), CONVERTER);
+        consumer.setLazyDecoding(true);
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+
+        deliver(stub, 1, "key", TYPE, new byte[]{1, 2, 3});
+        deliver(stub, 2, "key", TYPE, body("lazy"));
+
+        /* The message is returned and its properties can be read before decoding fails */
+        final Message<com.google.protobuf.Message> invalid = consumer.nextMessage(1, TimeUnit.SECONDS);
+        final MessageProperties properties = invalid.getProperties();
+        assertEquals(TYPE, properties.getHeaders().get(ProtobufConstants.HEADER_PROTOBUF_FULLNAME));
+        try {
+            invalid.getBody();
+            fail("Expected decoding to fail");
+        } catch (MessageBodyException e) {
+            assertEquals(1, e.getCause().getRawMessage().getEnvelope().getDeliveryTag());
+        }
+
+        final Message<com.google.protobuf.Message> message = consumer.nextMessage(1, TimeUnit.SECONDS);
+        assertFalse(((LazyMessage<?>) message).isDecoded());
+        assertEquals("lazy", ((FileDescriptorProto) message.getBody()).getName());
+        assertSame(message.getBody(), message.getBody());
+    }
+}
@@ -0,0 +1,98 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Message;
+import com.rabbitmq.client.Envelope;
+import org.junit.Test;
+import org.zenoss.amqp.BatchPolicy;
+import org.zenoss.amqp.CompressionPolicy;
+import org.zenoss.amqp.Consumer;
+import org.zenoss.amqp.Exchange;
+import org.zenoss.amqp.MessageDecoderException;
+import org.zenoss.amqp.MessageDeliveryMode;
+import org.zenoss.amqp.ProtobufConverter;
+import org.zenoss.amqp.Publisher;
+import org.zenoss.amqp.Queue;
+
+import java.io.Flushable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for decoding messages on a separate executor.
+ */
+public class ParallelDecodeTest {
+
+    private static final ProtobufConverter CONVERTER = new ProtobufConverter(FileDescriptorProto.getDefaultInstance());
+
+    private static Message makeMessage(int i) {
+        return FileDescriptorProto.newBuilder().setName("file" + i + ".proto").setPackage("org.zenoss.test").build();
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        /* Publish compressed messages, with messages 100-102 in a batch */
+        StubChannel publisherStub = StubChannel.create();
+        Exchange exchange = new Exchange("zenoss.test", Exchange.Type.TOPIC, true, false, null,
+                MessageDeliveryMode.PERSISTENT, Exchange.Compression.DEFLATE, new CompressionPolicy(0, 0.0));
+        Publisher<Message> publisher = publisherStub.channelImpl().createPublisher(exchange, CONVERTER);
+        for (int i = 0; i < 100; i++) {
+            publisher.publish(makeMessage(i), null, "key");
+        }
+        Exchange batched = new Exchange("zenoss.test", Exchange.Type.TOPIC, true, false, null,
+                MessageDeliveryMode.PERSISTENT, Exchange.Compression.DEFLATE, new CompressionPolicy(0, 0.0),
+                new BatchPolicy(3, 64 * 1024, 60000));
+        Publisher<Message> batchPublisher = publisherStub.channelImpl().createPublisher(batched, CONVERTER);
+        for (int i = 100; i < 103; i++) {
+            batchPublisher.publish(makeMessage(i), null, "key");
+        }
+        ((Flushable) batchPublisher).flush();
+        assertEquals(101, publisherStub.bodies.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            StubChannel stub = StubChannel.create();
+            Consumer<Message> consumer = stub.channelImpl().createConsumer(
+                    new Queue("zenoss.test", true, false, false), CONVERTER, executor);
+            assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+            long tag = 1;
+            for (int i = 0; i < 101; i++) {
+                stub.consumer.handleDelivery("ctag", new Envelope(tag++, false, "zenoss.test", "key"),
+                        publisherStub.properties.get(i), publisherStub.bodies.get(i));
+                if (i == 50) {
+                    /* A message which can't be decompressed is reported in order */
+                    stub.consumer.handleDelivery("ctag", new Envelope(tag++, false, "zenoss.test", "key"),
+                            publisherStub.properties.get(i), new byte[]{1, 2, 3});
+                }
+            }
+            for (int i = 0; i < 103; i++) {
+                org.zenoss.amqp.Message<Message> message = consumer.nextMessage(1, TimeUnit.SECONDS);
+                assertEquals("file" + i + ".proto", ((FileDescriptorProto) message.getBody()).getName());
+                if (i == 50) {
+                    try {
+                        consumer.nextMessage(1, TimeUnit.SECONDS);
+                        fail("Expected decoding to fail");
+                    } catch (MessageDecoderException e) {
+                        assertEquals(52, e.getRawMessage().getEnvelope().getDeliveryTag());
+                    }
+                }
+            }
+            assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
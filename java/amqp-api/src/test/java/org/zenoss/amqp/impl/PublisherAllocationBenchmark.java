@@ -0,0 +1,152 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Message;
+import org.zenoss.amqp.AmqpException;
+import org.zenoss.amqp.Exchange;
+import org.zenoss.amqp.MessageConverter;
+import org.zenoss.amqp.MessageDeliveryMode;
+import org.zenoss.amqp.MessageProperties;
+import org.zenoss.amqp.MessagePropertiesBuilder;
+import org.zenoss.amqp.ProtobufConverter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Reports the heap allocated per publish of a small protobuf message with the
+ * cached properties (no properties builder) and with a properties builder,
+ * which builds the properties for every message. Also reports a large
+ * compressed message serialized into the reused buffer and with
+ * <code>toByteArray()</code>. The channel discards the messages, so only the
+ * publisher's allocations (and the proxy's argument array) are measured.
+ * <p/>
+ * Run with the test classpath: <code>java org.zenoss.amqp.impl.PublisherAllocationBenchmark [iterations]</code>
+ */
+public class PublisherAllocationBenchmark {
+
+    private static final InvocationHandler DISCARD = new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("hashCode".equals(method.getName())) {
+                return System.identityHashCode(proxy);
+            }
+            if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+            }
+            return null;
+        }
+    };
+
+    private interface Publish {
+        void run(PublisherImpl<Message> publisher, Message message) throws AmqpException;
+    }
+
+    private static final Publish TEMPLATE = new Publish() {
+        @Override
+        public void run(PublisherImpl<Message> publisher, Message message) throws AmqpException {
+            publisher.publish(message, "zenoss.benchmark");
+        }
+    };
+
+    private static final Publish BUILDER = new Publish() {
+        @Override
+        public void run(PublisherImpl<Message> publisher, Message message) throws AmqpException {
+            publisher.publish(message, MessagePropertiesBuilder.newBuilder(), "zenoss.benchmark");
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        final int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        final com.rabbitmq.client.Channel channel = (com.rabbitmq.client.Channel) Proxy.newProxyInstance(
+                com.rabbitmq.client.Channel.class.getClassLoader(),
+                new Class<?>[]{com.rabbitmq.client.Channel.class}, DISCARD);
+        final Exchange exchange = new Exchange("zenoss.benchmark", Exchange.Type.TOPIC, true, false, null,
+                MessageDeliveryMode.PERSISTENT);
+        final PublisherImpl<Message> publisher = new PublisherImpl<Message>(new ChannelImpl(channel), exchange,
+                new ProtobufConverter(FileDescriptorProto.getDefaultInstance()));
+        final Message message = FileDescriptorProto.newBuilder().setName("event.proto")
+                .setPackage("org.zenoss.protobufs.zep").build();
+        final int bodySize = message.getSerializedSize();
+
+        /* Warm up both paths before measuring */
+        measure(TEMPLATE, publisher, message, iterations);
+        measure(BUILDER, publisher, message, iterations);
+        System.out.printf("%10s %12s %14s %14s%n", "impl", "ns/op", "bytes/op", "body bytes");
+        report("template", measure(TEMPLATE, publisher, message, iterations), bodySize);
+        report("builder", measure(BUILDER, publisher, message, iterations), bodySize);
+
+        final Exchange compressed = new Exchange("zenoss.benchmark", Exchange.Type.TOPIC, true, false, null,
+                MessageDeliveryMode.PERSISTENT, Exchange.Compression.DEFLATE);
+        final ProtobufConverter converter = new ProtobufConverter(FileDescriptorProto.getDefaultInstance());
+        final PublisherImpl<Message> buffered = new PublisherImpl<Message>(new ChannelImpl(channel), compressed,
+                converter);
+        /* Hides the buffered converter interface so the body is serialized with toByteArray() */
+        final PublisherImpl<Message> copying = new PublisherImpl<Message>(new ChannelImpl(channel), compressed,
+                new MessageConverter<Message>() {
+                    @Override
+                    public Message fromBytes(byte[] bytes, MessageProperties properties) throws Exception {
+                        return converter.fromBytes(bytes, properties);
+                    }
+
+                    @Override
+                    public byte[] toBytes(Message message, MessagePropertiesBuilder propertyBuilder)
+                            throws Exception {
+                        return converter.toBytes(message, propertyBuilder);
+                    }
+                });
+        final FileDescriptorProto.Builder builder = FileDescriptorProto.newBuilder().setName("large.proto");
+        for (int i = 0; i < 50000; i++) {
+            builder.addDependency("org/zenoss/protobufs/zep/dependency" + (i % 500) + ".proto");
+        }
+        final Message large = builder.build();
+        final int largeIterations = Math.max(10, iterations / 2000);
+        measure(BUILDER, buffered, large, largeIterations);
+        measure(BUILDER, copying, large, largeIterations);
+        report("buffered", measure(BUILDER, buffered, large, largeIterations), large.getSerializedSize());
+        report("copying", measure(BUILDER, copying, large, largeIterations), large.getSerializedSize());
+    }
+
+    private static void report(String name, long[] result, int bodySize) {
+        System.out.printf("%10s %12d %14s %14d%n", name, result[0],
+                (result[1] < 0) ? "n/a" : String.valueOf(result[1]), bodySize);
+    }
+
+    /**
+     * Returns the average nanoseconds and allocated bytes per publish.
+     */
+    private static long[] measure(Publish publish, PublisherImpl<Message> publisher, Message message, int count)
+            throws AmqpException {
+        final long startBytes = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            publish.run(publisher, message);
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long endBytes = allocatedBytes();
+        final long bytes = (startBytes < 0) ? -1 : (endBytes - startBytes) / count;
+        return new long[]{elapsed / count, bytes};
+    }
+
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,97 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.amqp.impl;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Message;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import org.junit.Test;
+import org.zenoss.amqp.CompressionPolicy;
+import org.zenoss.amqp.Exchange;
+import org.zenoss.amqp.MessageDeliveryMode;
+import org.zenoss.amqp.MessagePropertiesBuilder;
+import org.zenoss.amqp.ProtobufConverter;
+import org.zenoss.protobufs.ProtobufConstants;
+
+import static org.junit.Assert.*;
+
+public class PublisherTest {
+
+    private static final String FULL_NAME = FileDescriptorProto.getDescriptor().getFullName();
+
+    private static Message makeMessage(String name) {
+        return FileDescriptorProto.newBuilder().setName(name).setPackage("org.zenoss.test").build();
+    }
+
+    private static Exchange exchange(Exchange.Compression compression) {
+        return new Exchange("zenoss.test", Exchange.Type.TOPIC, true, false, null, MessageDeliveryMode.PERSISTENT,
+                compression, new CompressionPolicy(0, 0.0));
+    }
+
+    @Test
+    public void testPropertiesTemplate() throws Exception {
+        StubChannel stub = StubChannel.create();
+        PublisherImpl<Message> publisher = new PublisherImpl<Message>(stub.channelImpl(),
+                exchange(Exchange.Compression.NONE), new ProtobufConverter(FileDescriptorProto.getDefaultInstance()));
+        publisher.publish(makeMessage("first"), "key");
+        publisher.publish(makeMessage("second"), "key");
+        publisher.publish(makeMessage("third"), "key");
+        publisher.publish(makeMessage("fourth"), MessagePropertiesBuilder.newBuilder().setAppId("test"), "key");
+
+        assertEquals(4, stub.properties.size());
+        for (BasicProperties properties : stub.properties) {
+            assertEquals(ProtobufConstants.CONTENT_TYPE_PROTOBUF, properties.getContentType());
+            assertEquals(FULL_NAME, properties.getHeaders().get(ProtobufConstants.HEADER_PROTOBUF_FULLNAME));
+            assertEquals(Integer.valueOf(MessageDeliveryMode.PERSISTENT.getMode()), properties.getDeliveryMode());
+            assertNull(properties.getContentEncoding());
+        }
+        /* Properties are reused once the type has been published */
+        assertSame(stub.properties.get(1), stub.properties.get(2));
+        assertEquals("test", stub.properties.get(3).getAppId());
+        assertEquals("second", FileDescriptorProto.parseFrom(stub.bodies.get(1)).getName());
+    }
+
+    @Test
+    public void testCompressedTemplate() throws Exception {
+        StubChannel stub = StubChannel.create();
+        PublisherImpl<Message> publisher = new PublisherImpl<Message>(stub.channelImpl(),
+                exchange(Exchange.Compression.DEFLATE), new ProtobufConverter(FileDescriptorProto.getDefaultInstance()));
+        String name = CompressionTest.makeStringOfLength(10) + "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+        for (int i = 0; i < 3; i++) {
+            publisher.publish(makeMessage(name), "key");
+        }
+        assertSame(stub.properties.get(1), stub.properties.get(2));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("deflate", stub.properties.get(i).getContentEncoding());
+            byte[] body = ConsumerImpl.deflateDecompress(stub.bodies.get(i));
+            assertEquals(name, FileDescriptorProto.parseFrom(body).getName());
+        }
+    }
+
+    @Test
+    public void testLargeCompressedMessage() throws Exception {
+        StubChannel stub = StubChannel.create();
+        PublisherImpl<Message> publisher = new PublisherImpl<Message>(stub.channelImpl(),
+                exchange(Exchange.Compression.DEFLATE), new ProtobufConverter(FileDescriptorProto.getDefaultInstance()));
+        FileDescriptorProto.Builder builder = FileDescriptorProto.newBuilder().setName("large.proto");
+        for (int i = 0; i < 20000; i++) {
+            builder.addDependency("org/zenoss/protobufs/dependency" + (i % 100) + ".proto");
+        }
+        FileDescriptorProto large = builder.build();
+        FileDescriptorProto small = FileDescriptorProto.newBuilder().setName("small.proto").build();
+        /* The small message reuses the buffer the large one grew */
+        publisher.publish(large, "key");
+        publisher.publish(small, "key");
+
+        assertEquals("deflate", stub.properties.get(0).getContentEncoding());
+        assertArrayEquals(large.toByteArray(), ConsumerImpl.deflateDecompress(stub.bodies.get(0)));
+        assertNull(stub.properties.get(1).getContentEncoding());
+        assertArrayEquals(small.toByteArray(), stub.bodies.get(1));
+    }
+}
@@ -0,0 +1,183 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.impl;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.junit.Test;
+import org.zenoss.amqp.AmqpException;
+import org.zenoss.amqp.BufferPolicy;
+import org.zenoss.amqp.Consumer;
+import org.zenoss.amqp.Queue;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PushConsumer.
+ */
+public class PushConsumerTest {
+
+    private static void deliver(PushConsumer consumer, long tag) throws Exception {
+        consumer.handleDelivery("ctag", new Envelope(tag, false, "exchange", "key"),
+                new BasicProperties.Builder().build(), new byte[]{(byte) tag});
+    }
+
+    @Test
+    public void testOrderAndTimeout() throws Exception {
+        PushConsumer consumer = new PushConsumer(StubChannel.create().proxy(), 4);
+        long start = System.nanoTime();
+        assertNull(consumer.nextDelivery(20));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        for (int i = 1; i <= 3; i++) {
+            deliver(consumer, i);
+        }
+        assertEquals(3, consumer.getBufferedCount());
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(i, consumer.nextDelivery(10).getEnvelope().getDeliveryTag());
+        }
+        assertNull(consumer.nextDelivery(1));
+    }
+
+    @Test
+    public void testWakeup() throws Exception {
+        final PushConsumer consumer = new PushConsumer(StubChannel.create().proxy(), 4);
+        final AtomicReference<Delivery> received = new AtomicReference<Delivery>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    received.set(consumer.nextDelivery(0));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+        Thread.sleep(50);
+        deliver(consumer, 42);
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals(42, received.get().getEnvelope().getDeliveryTag());
+    }
+
+    @Test
+    public void testFullBufferOverflows() throws Exception {
+        PushConsumer consumer = new PushConsumer(StubChannel.create().proxy(), 2);
+        assertFalse(consumer.isOverflowing());
+        /* The connection thread never waits for room */
+        for (long tag = 1; tag <= 5; tag++) {
+            deliver(consumer, tag);
+        }
+        assertTrue(consumer.isOverflowing());
+        assertEquals(5, consumer.getBufferedCount());
+        assertEquals(5, consumer.getBufferedBytes());
+        for (long tag = 1; tag <= 5; tag++) {
+            assertEquals(tag, consumer.nextDelivery(0).getEnvelope().getDeliveryTag());
+        }
+        assertFalse(consumer.isOverflowing());
+        assertEquals(0, consumer.getBufferedBytes());
+    }
+
+    @Test
+    public void testShutdownAfterDrain() throws Exception {
+        PushConsumer consumer = new PushConsumer(StubChannel.create().proxy(), 4);
+        deliver(consumer, 1);
+        ShutdownSignalException signal = new ShutdownSignalException(false, false, null, null);
+        consumer.handleShutdownSignal("ctag", signal);
+        assertEquals(1, consumer.nextDelivery(0).getEnvelope().getDeliveryTag());
+        try {
+            consumer.nextDelivery(0);
+            fail("Expected shutdown");
+        } catch (ShutdownSignalException e) {
+            assertSame(signal, e);
+        }
+    }
+
+    @Test
+    public void testBrokerCancel() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Consumer<byte[]> consumer = stub.channelImpl().createConsumer(new Queue("zenoss.test", true, false, false));
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+        stub.consumer.handleDelivery("ctag", new Envelope(5, false, "exchange", "key"),
+                new BasicProperties.Builder().build(), new byte[]{5});
+        stub.consumer.handleCancel("ctag");
+        assertArrayEquals(new byte[]{5}, consumer.nextMessage(0, TimeUnit.SECONDS).getBody());
+        try {
+            consumer.nextMessage(0, TimeUnit.SECONDS);
+            fail("Expected cancellation");
+        } catch (AmqpException e) {
+            assertTrue(e.getCause() instanceof PushConsumer.ConsumerCancelledException);
+        }
+    }
+
+    @Test
+    public void testOverflowPausesConsumer() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Consumer<byte[]> consumer = stub.channelImpl().createConsumer(new Queue("zenoss.test", true, false, false),
+                null, 4);
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+        for (long tag = 1; tag <= 6; tag++) {
+            stub.consumer.handleDelivery("ctag", new Envelope(tag, false, "exchange", "key"),
+                    new BasicProperties.Builder().build(), new byte[]{(byte) tag});
+        }
+
+        /* Deliveries overflowed the ring, so the consumer is cancelled until they drain */
+        assertEquals(1, consumer.nextMessage(0, TimeUnit.SECONDS).getEnvelope().getDeliveryTag());
+        assertEquals(Collections.singletonList("basicCancel ctag"), stub.callsNamed("basicCancel"));
+        for (long tag = 2; tag <= 4; tag++) {
+            assertEquals(tag, consumer.nextMessage(0, TimeUnit.SECONDS).getEnvelope().getDeliveryTag());
+        }
+        assertEquals(1, stub.callsNamed("basicConsume").size());
+
+        assertEquals(5, consumer.nextMessage(0, TimeUnit.SECONDS).getEnvelope().getDeliveryTag());
+        assertEquals(6, consumer.nextMessage(0, TimeUnit.SECONDS).getEnvelope().getDeliveryTag());
+        assertEquals(1, stub.callsNamed("basicConsume").size());
+
+        /* Consuming resumes once the overflow is empty and the ring half empty */
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+        assertEquals(2, stub.callsNamed("basicConsume").size());
+    }
+
+    @Test
+    public void testBufferPolicy() throws Exception {
+        StubChannel stub = StubChannel.create();
+        Consumer<byte[]> consumer = stub.channelImpl().createConsumer(new Queue("zenoss.test", true, false, false));
+        consumer.setBufferPolicy(new BufferPolicy(10, 100));
+        assertNull(consumer.nextMessage(1, TimeUnit.MILLISECONDS));
+        for (long tag = 1; tag <= 3; tag++) {
+            stub.consumer.handleDelivery("ctag", new Envelope(tag, false, "exchange", "key"),
+                    new BasicProperties.Builder().build(), new byte[40]);
+        }
+        assertEquals(120, consumer.getBufferedBytes());
+
+        /* The byte limit is exceeded, so the consumer is cancelled */
+        assertEquals(1, consumer.nextMessage(0, TimeUnit.SECONDS).getEnvelope().getDeliveryTag());
+        assertEquals(Collections.singletonList("basicCancel ctag"), stub.callsNamed("basicCancel"));
+        assertEquals(80, consumer.getBufferedBytes());
+        assertEquals(2, consumer.nextMessage(0, TimeUnit.SECONDS).getEnvelope().getDeliveryTag());
+        assertEquals(1, stub.callsNamed("basicConsume").size());
+
+        /* Consuming resumes once the buffer has drained to half the limits */
+        assertEquals(3, consumer.nextMessage(0, TimeUnit.SECONDS).getEnvelope().getDeliveryTag());
+        assertEquals(2, stub.callsNamed("basicConsume").size());
+        assertEquals(0, consumer.getBufferedMessages());
+
+        /* The resumed consumer is cancelled with its new tag */
+        consumer.cancel();
+        assertEquals(2, stub.callsNamed("basicCancel").size());
+    }
+}
@@ -0,0 +1,130 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.amqp.impl;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Records the calls made on a RabbitMQ channel so the implementation classes
+ * can be tested without a broker.
+ */
+public class StubChannel implements InvocationHandler {
+
+    public final List<String> calls = new ArrayList<String>();
+    public final List<byte[]> bodies = new ArrayList<byte[]>();
+    public final List<BasicProperties> properties = new ArrayList<BasicProperties>();
+    public final List<ShutdownListener> shutdownListeners = new ArrayList<ShutdownListener>();
+    public ConfirmListener confirmListener;
+    public com.rabbitmq.client.Consumer consumer;
+    /* Every consumer, by queue name */
+    public final Map<String, com.rabbitmq.client.Consumer> consumers =
+            new ConcurrentHashMap<String, com.rabbitmq.client.Consumer>();
+    /* If set, basic.qos waits for it, as if for the connection thread to read the reply */
+    public volatile CountDownLatch qosReply;
+    /* If set, basic.publish is recorded and then throws it */
+    public volatile IOException publishFailure;
+    private long nextPublishSeqNo = 0;
+
+    public static StubChannel create() {
+        return new StubChannel();
+    }
+
+    public Channel proxy() {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[]{Channel.class}, this);
+    }
+
+    public ChannelImpl channelImpl() {
+        return new ChannelImpl(proxy());
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final CountDownLatch reply = this.qosReply;
+        if (reply != null && "basicQos".equals(method.getName())) {
+            reply.await();
+        }
+        final Object result = record(proxy, method, args);
+        final IOException failure = this.publishFailure;
+        if (failure != null && "basicPublish".equals(method.getName())) {
+            throw failure;
+        }
+        return result;
+    }
+
+    private synchronized Object record(Object proxy, Method method, Object[] args) {
+        final String name = method.getName();
+        final StringBuilder call = new StringBuilder(name);
+        if ("basicPublish".equals(name)) {
+            properties.add((BasicProperties) args[args.length - 2]);
+            bodies.add((byte[]) args[args.length - 1]);
+            if (nextPublishSeqNo > 0) {
+                nextPublishSeqNo++;
+            }
+        } else if (args != null) {
+            for (Object arg : args) {
+                call.append(' ').append(arg);
+            }
+        }
+        calls.add(call.toString());
+        if ("confirmSelect".equals(name)) {
+            nextPublishSeqNo = 1;
+        } else if ("getNextPublishSeqNo".equals(name)) {
+            return nextPublishSeqNo;
+        } else if ("setConfirmListener".equals(name)) {
+            confirmListener = (ConfirmListener) args[0];
+        } else if ("addShutdownListener".equals(name)) {
+            shutdownListeners.add((ShutdownListener) args[0]);
+        } else if ("basicConsume".equals(name)) {
+            consumer = (com.rabbitmq.client.Consumer) args[args.length - 1];
+            consumers.put((String) args[0], consumer);
+            return "ctag";
+        } else if ("isOpen".equals(name)) {
+            return Boolean.TRUE;
+        } else if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        } else if ("equals".equals(name)) {
+            return proxy == args[0];
+        } else if ("toString".equals(name)) {
+            return "StubChannel";
+        }
+        final Class<?> returnType = method.getReturnType();
+        if (returnType == boolean.class) {
+            return Boolean.FALSE;
+        } else if (returnType == int.class) {
+            return 0;
+        } else if (returnType == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    public synchronized List<String> callsNamed(String prefix) {
+        final List<String> matching = new ArrayList<String>();
+        for (String call : calls) {
+            if (call.startsWith(prefix)) {
+                matching.add(call);
+            }
+        }
+        return matching;
+    }
+}
@@ -0,0 +1,177 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.samples;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.zenoss.amqp.CompressionDictionary;
+import org.zenoss.amqp.CompressionDictionaryTrainer;
+
+/**
+ * Trains a {@link CompressionDictionary} from captured message bodies and
+ * writes it to a file:
+ * <pre>
+ * CompressionDictionaryTool [-s size] [-d] &lt;dictionary file&gt; &lt;sample file or directory&gt;...
+ * </pre>
+ * Each sample file contains one message body, or with <code>-d</code> a
+ * sequence of length-delimited message bodies (as written by
+ * <code>Message.writeDelimitedTo</code>). The dictionary identifier is the
+ * name of the dictionary file without its extension.
+ */
+public class CompressionDictionaryTool {
+
+    private final CompressionDictionaryTrainer trainer = new CompressionDictionaryTrainer();
+    private final List<byte[]> samples = new ArrayList<byte[]>();
+
+    public static void main(String[] args) throws IOException {
+        int size = CompressionDictionaryTrainer.DEFAULT_SIZE;
+        boolean delimited = false;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            if ("-s".equals(args[i]) && i + 1 < args.length) {
+                size = Integer.parseInt(args[++i]);
+            } else if ("-d".equals(args[i])) {
+                delimited = true;
+            } else {
+                break;
+            }
+        }
+        if (args.length - i < 2) {
+            System.err.println("Usage: CompressionDictionaryTool [-s size] [-d] <dictionary file> " +
+                    "<sample file or directory>...");
+            System.exit(1);
+        }
+        final File output = new File(args[i++]);
+        final CompressionDictionaryTool tool = new CompressionDictionaryTool();
+        for (; i < args.length; i++) {
+            tool.addSamples(new File(args[i]), delimited);
+        }
+        String id = output.getName();
+        if (id.lastIndexOf('.') > 0) {
+            id = id.substring(0, id.lastIndexOf('.'));
+        }
+        final CompressionDictionary dictionary = tool.trainer.train(id, size);
+        dictionary.save(output);
+
+        /* Report the improvement on the training samples */
+        final byte[] bytes = dictionary.getBytes();
+        long raw = 0, plain = 0, withDictionary = 0;
+        for (byte[] sample : tool.samples) {
+            raw += sample.length;
+            plain += deflatedSize(sample, null);
+            withDictionary += deflatedSize(sample, bytes);
+        }
+        System.out.printf("Wrote %s from %d samples%n", dictionary, tool.trainer.getSampleCount());
+        System.out.printf("Sample bytes: %d, deflate: %d (%.1f%%), deflate with dictionary: %d (%.1f%%)%n",
+                raw, plain, 100.0 * plain / raw, withDictionary, 100.0 * withDictionary / raw);
+    }
+
+    private boolean addSample(byte[] sample) {
+        if (!this.trainer.addSample(sample)) {
+            return false;
+        }
+        this.samples.add(sample);
+        return true;
+    }
+
+    private void addSamples(File file, boolean delimited) throws IOException {
+        if (file.isDirectory()) {
+            final File[] files = file.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File child : files) {
+                    addSamples(child, delimited);
+                }
+            }
+            return;
+        }
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file));
+            if (delimited) {
+                int length;
+                while ((length = readLength(is)) >= 0) {
+                    if (!addSample(readFully(is, length))) {
+                        return;
+                    }
+                }
+            } else {
+                addSample(readFully(is, (int) file.length()));
+            }
+        } finally {
+            if (is != null) {
+                is.close();
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream is, int length) throws IOException {
+        final byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            final int n = is.read(data, offset, length - offset);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            offset += n;
+        }
+        return data;
+    }
+
+    /**
+     * Reads a varint length prefix, returning -1 at the end of the stream.
+     */
+    private static int readLength(InputStream is) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = is.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed length prefix");
+    }
+
+    private static int deflatedSize(byte[] data, byte[] dictionary) {
+        final Deflater deflater = new Deflater();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data);
+            deflater.finish();
+            final byte[] buf = new byte[data.length + 64];
+            int total = 0;
+            while (!deflater.finished()) {
+                total += deflater.deflate(buf);
+            }
+            return total;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.samples;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.zenoss.amqp.AmqpServerUri;
+import org.zenoss.amqp.Binding;
+import org.zenoss.amqp.Channel;
+import org.zenoss.amqp.Connection;
+import org.zenoss.amqp.ConnectionFactory;
+import org.zenoss.amqp.ConnectionTuning;
+import org.zenoss.amqp.Consumer;
+import org.zenoss.amqp.Exchange;
+import org.zenoss.amqp.Exchange.Type;
+import org.zenoss.amqp.Message;
+import org.zenoss.amqp.Publisher;
+import org.zenoss.amqp.Queue;
+
+/**
+ * Measures the throughput of large messages published and consumed over one
+ * connection for several frame sizes and socket buffer sizes, which are set
+ * by adding {@link ConnectionTuning} properties to the server's URI. The
+ * server may negotiate a smaller frame size than requested.
+ */
+public class ConnectionTuningBenchmark {
+
+    private static final int[] FRAME_SIZES = {4096, 32768, 131072, 1048576};
+    private static final int[] BUFFER_SIZES = {0, 262144, 1048576};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ConnectionTuningBenchmark <AmqpServerUri> [messageSize] [messages]");
+            System.exit(1);
+        }
+        final int messageSize = (args.length > 1) ? Integer.parseInt(args[1]) : 1048576;
+        final int messages = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+        final byte[] body = new byte[messageSize];
+        new Random(0).nextBytes(body);
+
+        System.out.printf("messageSize=%d messages=%d%n", messageSize, messages);
+        for (int frameMax : FRAME_SIZES) {
+            for (int bufferSize : BUFFER_SIZES) {
+                final String query = String.format("%s=%d;%s=%d;%s=%d", ConnectionTuning.FRAME_MAX, frameMax,
+                        ConnectionTuning.SEND_BUFFER, bufferSize, ConnectionTuning.RECEIVE_BUFFER, bufferSize);
+                final AmqpServerUri uri = new AmqpServerUri(args[0] + (args[0].contains("?") ? ";" : "?") + query);
+                final long elapsed = run(uri, body, messages);
+                System.out.printf("frame_max=%7d buffers=%7d  %8.1f MB/sec %8.1f msgs/sec%n", frameMax, bufferSize,
+                        ((double) messageSize * messages / (1024 * 1024)) / (elapsed / 1e9),
+                        messages / (elapsed / 1e9));
+            }
+        }
+    }
+
+    private static long run(AmqpServerUri uri, byte[] body, int messages) throws Exception {
+        final String name = "zenoss.benchmark.tuning." + UUID.randomUUID();
+        final Exchange exchange = new Exchange(name, Type.FANOUT, false, true);
+        final Queue queue = new Queue(name, false, true, true);
+        final Connection connection = ConnectionFactory.newInstance().newConnection(uri);
+        try {
+            final Channel publishChannel = connection.openChannel();
+            final Channel consumeChannel = connection.openChannel();
+            publishChannel.declareExchange(exchange);
+            publishChannel.declareQueue(queue);
+            publishChannel.bindQueue(new Binding(queue, exchange, "#"));
+            consumeChannel.setQos(0, 16);
+            final Consumer<byte[]> consumer = consumeChannel.createConsumer(queue);
+            final Publisher<byte[]> publisher = publishChannel.createPublisher(exchange);
+
+            final long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                publisher.publish(body, "benchmark");
+            }
+            for (int i = 0; i < messages; i++) {
+                final Message<byte[]> message = consumer.nextMessage(60, TimeUnit.SECONDS);
+                if (message == null) {
+                    throw new IllegalStateException("Timed out after " + i + " messages");
+                }
+                consumer.ackMessage(message);
+            }
+            return System.nanoTime() - start;
+        } finally {
+            connection.close();
+        }
+    }
+}
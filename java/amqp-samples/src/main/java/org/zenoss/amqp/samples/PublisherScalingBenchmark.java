@@ -0,0 +1,124 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2013, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.amqp.samples;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.zenoss.amqp.AmqpConnectionManager;
+import org.zenoss.amqp.AmqpConnectionManager.PublisherStriping;
+import org.zenoss.amqp.AmqpException;
+import org.zenoss.amqp.AmqpServerUri;
+import org.zenoss.amqp.Exchange;
+import org.zenoss.amqp.Exchange.Type;
+import org.zenoss.amqp.ExchangeConfiguration;
+import org.zenoss.protobufs.zep.Zep.Event;
+
+/**
+ * Measures publish throughput through {@link AmqpConnectionManager} as the
+ * number of producer threads grows from 1 to 16, for a given number of
+ * publisher channels per exchange and connections to the broker.
+ */
+public class PublisherScalingBenchmark {
+
+    private static final Exchange EXCHANGE = new Exchange("zenoss.benchmark.publisher",
+            Type.FANOUT, false, true);
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: PublisherScalingBenchmark <AmqpServerUri> " +
+                    "[channels] [THREAD_AFFINITY|ROUND_ROBIN] [messagesPerThread] [connections]");
+            System.exit(1);
+        }
+        final AmqpServerUri uri = new AmqpServerUri(args[0]);
+        final int channels = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+        final PublisherStriping striping = (args.length > 2) ?
+                PublisherStriping.valueOf(args[2]) : PublisherStriping.THREAD_AFFINITY;
+        final int messagesPerThread = (args.length > 3) ? Integer.parseInt(args[3]) : 50000;
+        final int connections = (args.length > 4) ? Integer.parseInt(args[4]) : 1;
+
+        final ExchangeConfiguration config = new ExchangeConfiguration("benchmark", EXCHANGE,
+                Collections.<com.google.protobuf.Message>singletonList(Event.getDefaultInstance()));
+        final Event event = Event.newBuilder().setUuid(UUID.randomUUID().toString())
+                .setCreatedTime(System.currentTimeMillis()).build();
+
+        final AmqpConnectionManager manager = new AmqpConnectionManager(uri);
+        manager.setPublisherChannels(channels);
+        manager.setPublisherStriping(striping);
+        manager.setConnections(connections);
+        manager.init();
+        try {
+            waitForConnection(manager, config, event);
+            System.out.printf("channels=%d striping=%s messages/thread=%d connections=%d%n", channels, striping,
+                    messagesPerThread, connections);
+            for (int threads : THREAD_COUNTS) {
+                final long elapsed = run(manager, config, event, threads, messagesPerThread);
+                final long total = (long) threads * messagesPerThread;
+                System.out.printf("threads=%2d  %10.0f msgs/sec%n", threads,
+                        total / (elapsed / 1e9));
+            }
+            System.out.println(manager.getShardStatistics());
+        } finally {
+            manager.shutdown();
+        }
+    }
+
+    private static void waitForConnection(AmqpConnectionManager manager, ExchangeConfiguration config,
+                                          Event event) throws InterruptedException {
+        while (true) {
+            try {
+                manager.publish(config, "warmup", event);
+                return;
+            } catch (AmqpException e) {
+                /* Connection not yet established */
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static long run(final AmqpConnectionManager manager, final ExchangeConfiguration config,
+                            final Event event, int threads, final int messagesPerThread)
+            throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        for (int i = 0; i < threads; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < messagesPerThread; j++) {
+                            manager.publish(config, "benchmark", event);
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "publisher-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        final long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsed = System.nanoTime() - startTime;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return elapsed;
+    }
+}